@@ -0,0 +1,93 @@
+package gavgas.azureservicebusmetricexporter.analytics;
+
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns a stable int slot to each entity so that per-entity state can be kept in
+ * primitive arrays indexed by slot. Slots of removed entities are recycled.
+ * Lookups are safe from any thread; acquiring and releasing slots is expected to happen
+ * on the collecting thread only.
+ */
+class EntitySlots {
+
+    private final Map<String, Integer> queues = new ConcurrentHashMap<>();
+    private final Map<String, Integer> topics = new ConcurrentHashMap<>();
+    // topic name -> subscription name -> slot
+    private final Map<String, Map<String, Integer>> subscriptions = new ConcurrentHashMap<>();
+
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int nextSlot;
+
+    /**
+     * Slot of the entity, or -1 if it has none.
+     */
+    int slotOf(EntityType type, String topicName, String name) {
+        Map<String, Integer> byName = byName(type, topicName, false);
+        Integer slot = byName == null ? null : byName.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    int slotOf(EntityTable table, int row) {
+        return slotOf(table.getType(), table.topicName(row), table.name(row));
+    }
+
+    /**
+     * Assign a slot to an entity that has none yet (see {@link #slotOf(EntityTable, int)}).
+     * The slot may have been used by a removed entity, so callers have to reset its state.
+     */
+    int assign(EntityTable table, int row) {
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : nextSlot++;
+        byName(table.getType(), table.topicName(row), true).put(table.name(row), slot);
+        return slot;
+    }
+
+    /**
+     * Release the slot of an entity that disappeared.
+     * @return the released slot, or -1 if the entity had none
+     */
+    int release(EntityType type, String topicName, String name) {
+        Map<String, Integer> byName = byName(type, topicName, false);
+        if (byName == null) {
+            return -1;
+        }
+        Integer slot = byName.remove(name);
+        if (slot == null) {
+            return -1;
+        }
+        if (type == EntityType.SUBSCRIPTION && byName.isEmpty()) {
+            subscriptions.remove(topicName, byName);
+        }
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        return slot;
+    }
+
+    /**
+     * Upper bound (exclusive) of the slots handed out so far; state arrays need at least this size.
+     */
+    int capacity() {
+        return nextSlot;
+    }
+
+    int size() {
+        return nextSlot - freeCount;
+    }
+
+    private Map<String, Integer> byName(EntityType type, String topicName, boolean create) {
+        return switch (type) {
+            case QUEUE -> queues;
+            case TOPIC -> topics;
+            case SUBSCRIPTION -> create
+                ? subscriptions.computeIfAbsent(topicName, t -> new ConcurrentHashMap<>())
+                : subscriptions.get(topicName);
+        };
+    }
+}
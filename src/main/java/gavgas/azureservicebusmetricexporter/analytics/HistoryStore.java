@@ -0,0 +1,216 @@
+package gavgas.azureservicebusmetricexporter.analytics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.model.HistoryPoint;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed-memory history of the entity counters for incident investigation.
+ * Each entity owns one ring of {@code retention / resolution} buckets per counter; every collection
+ * cycle writes the bucket of its collection time. Storage is allocated in chunks of
+ * {@value #CHUNK_SLOTS} entities up to the configured memory budget, entities beyond the budget
+ * are not tracked. Chunks are long buffers, optionally in direct memory.
+ */
+@Slf4j
+@Component
+public class HistoryStore {
+
+    static final int CHUNK_SLOTS = 64;
+
+    private final boolean enabled;
+    private final long resolutionMillis;
+    private final int buckets;
+    private final long maxBytes;
+    private final boolean offHeap;
+
+    private final TypeHistory[] histories = new TypeHistory[EntityType.values().length];
+    private long allocatedBytes;
+
+    public HistoryStore(ServiceBusProperties properties) {
+        ServiceBusProperties.History history = properties.getHistory();
+        this.enabled = history.isEnabled();
+        this.resolutionMillis = Math.max(1, history.getResolution().toMillis());
+        this.buckets = (int) Math.max(1, history.getRetention().toMillis() / resolutionMillis);
+        this.maxBytes = history.getMaxMemory().toBytes();
+        this.offHeap = history.isOffHeap();
+        for (EntityType type : EntityType.values()) {
+            histories[type.ordinal()] = new TypeHistory(type);
+        }
+    }
+
+    @EventListener
+    public void onSnapshotPublished(SnapshotPublishedEvent event) {
+        if (enabled) {
+            record(event.snapshot(), event.diff());
+        }
+    }
+
+    synchronized void record(MetricsSnapshot snapshot, SnapshotDiff diff) {
+        long bucket = snapshot.getCollectedAt().toEpochMilli() / resolutionMillis;
+        int untracked = 0;
+
+        for (EntityType type : EntityType.values()) {
+            TypeHistory history = histories[type.ordinal()];
+            EntityTable previous = diff.getPrevious().table(type);
+            SnapshotDiff.TableDiff tableDiff = diff.table(type);
+            for (int i = 0; i < tableDiff.removedCount(); i++) {
+                int row = tableDiff.removedRow(i);
+                history.slots.release(type, previous.topicName(row), previous.name(row));
+            }
+
+            EntityTable table = snapshot.table(type);
+            for (int row = 0; row < table.size(); row++) {
+                int slot = history.slots.slotOf(table, row);
+                if (slot < 0) {
+                    slot = history.slots.assign(table, row);
+                    if (!history.ensureCapacity(slot)) {
+                        history.slots.release(type, table.topicName(row), table.name(row));
+                        untracked++;
+                        continue;
+                    }
+                    history.clear(slot);
+                }
+                history.write(slot, bucket, table, row);
+            }
+        }
+
+        if (untracked > 0) {
+            log.warn("History memory budget of {} bytes reached, {} entities are not tracked", maxBytes, untracked);
+        }
+    }
+
+    /**
+     * Points of an entity between from and to (inclusive), oldest first.
+     * @return the points, or null if the entity is not tracked
+     */
+    public synchronized List<HistoryPoint> query(EntityType type, String topicName, String name, Instant from, Instant to) {
+        TypeHistory history = histories[type.ordinal()];
+        int slot = history.slots.slotOf(type, topicName, name);
+        if (slot < 0) {
+            return null;
+        }
+
+        long last = to.toEpochMilli() / resolutionMillis;
+        long first = Math.max(from.toEpochMilli() / resolutionMillis, last - buckets + 1);
+        List<HistoryPoint> points = new ArrayList<>();
+        for (long bucket = first; bucket <= last; bucket++) {
+            HistoryPoint point = history.read(slot, bucket);
+            if (point != null) {
+                points.add(point);
+            }
+        }
+        return points;
+    }
+
+    public Instant oldestRetained(Instant now) {
+        return now.minusMillis(resolutionMillis * buckets);
+    }
+
+    /**
+     * Bytes allocated for history buffers, never more than the configured budget.
+     */
+    public synchronized long sizeInBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized int trackedEntities() {
+        int tracked = 0;
+        for (TypeHistory history : histories) {
+            tracked += history.slots.size();
+        }
+        return tracked;
+    }
+
+    /**
+     * History of one entity type. Per slot and bucket the layout is
+     * [bucket number, counter 0, ..., counter n-1]; a bucket is valid if its stored number matches.
+     */
+    private final class TypeHistory {
+        private final Counter[] counters;
+        private final int[] columns;
+        private final int stride;
+        private final EntitySlots slots = new EntitySlots();
+        private final List<LongBuffer> chunks = new ArrayList<>();
+
+        TypeHistory(EntityType type) {
+            this.counters = Arrays.stream(Counter.values())
+                                  .filter(type::has)
+                                  .filter(counter -> counter != Counter.MAX_SIZE_BYTES
+                                      && counter != Counter.CREATED_AT
+                                      && counter != Counter.UPDATED_AT
+                                      && counter != Counter.ACCESSED_AT)
+                                  .toArray(Counter[]::new);
+            this.columns = Arrays.stream(counters).mapToInt(type::columnOf).toArray();
+            this.stride = counters.length + 1;
+        }
+
+        boolean ensureCapacity(int slot) {
+            while (slot >= chunks.size() * CHUNK_SLOTS) {
+                long chunkBytes = (long) CHUNK_SLOTS * buckets * stride * Long.BYTES;
+                if (allocatedBytes + chunkBytes > maxBytes) {
+                    return false;
+                }
+                int longs = CHUNK_SLOTS * buckets * stride;
+                chunks.add(offHeap
+                               ? ByteBuffer.allocateDirect(longs * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer()
+                               : LongBuffer.allocate(longs));
+                allocatedBytes += chunkBytes;
+            }
+            return true;
+        }
+
+        void clear(int slot) {
+            LongBuffer chunk = chunks.get(slot / CHUNK_SLOTS);
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                chunk.put(offset(slot, bucket), -1);
+            }
+        }
+
+        void write(int slot, long bucket, EntityTable table, int row) {
+            LongBuffer chunk = chunks.get(slot / CHUNK_SLOTS);
+            int offset = offset(slot, (int) (bucket % buckets));
+            chunk.put(offset, bucket);
+            for (int i = 0; i < columns.length; i++) {
+                chunk.put(offset + 1 + i, table.getColumn(row, columns[i]));
+            }
+        }
+
+        HistoryPoint read(int slot, long bucket) {
+            LongBuffer chunk = chunks.get(slot / CHUNK_SLOTS);
+            int offset = offset(slot, (int) (bucket % buckets));
+            if (chunk.get(offset) != bucket) {
+                return null;
+            }
+            Map<String, Long> values = new LinkedHashMap<>();
+            for (int i = 0; i < counters.length; i++) {
+                values.put(counters[i].getFieldName(), chunk.get(offset + 1 + i));
+            }
+            return HistoryPoint.builder()
+                               .timestamp(Instant.ofEpochMilli(bucket * resolutionMillis))
+                               .values(values)
+                               .build();
+        }
+
+        private int offset(int slot, int bucketIndex) {
+            return ((slot % CHUNK_SLOTS) * buckets + bucketIndex) * stride;
+        }
+    }
+}
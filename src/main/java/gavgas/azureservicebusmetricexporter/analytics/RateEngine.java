@@ -0,0 +1,157 @@
+package gavgas.azureservicebusmetricexporter.analytics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptor;
+import gavgas.azureservicebusmetricexporter.metrics.EntityGauge;
+import gavgas.azureservicebusmetricexporter.metrics.EntityGaugeContributor;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes per-second growth of backlog, dead letters and size for every entity, so dashboards
+ * do not have to run deriv()/delta() over thousands of series.
+ * The previous value of each entity is taken from the previous snapshot and divided by the time
+ * between the two reads of that entity, so a row carried forward after a failed read has no rate
+ * rather than a rate over the wrong interval. The computed rates are
+ * kept in primitive arrays aligned with the rows of the current snapshot. Two sets of arrays are
+ * swapped on each cycle and only grow with the entity count, so steady-state updates do not allocate.
+ */
+@Slf4j
+@Component
+public class RateEngine implements EntityGaugeContributor {
+
+    /**
+     * Counters a growth rate is computed for; the index is the rate column.
+     */
+    static final Counter[] RATE_COUNTERS = {Counter.ACTIVE_MESSAGES, Counter.DEAD_LETTER_MESSAGES, Counter.SIZE_BYTES};
+
+    private final ServiceBusProperties properties;
+
+    // Rates readers see; replaced by the spare set once it is fully computed
+    private volatile Rates published = new Rates();
+    private Rates spare = new Rates();
+
+    public RateEngine(ServiceBusProperties properties) {
+        this.properties = properties;
+    }
+
+    @EventListener
+    public void onSnapshotPublished(SnapshotPublishedEvent event) {
+        if (properties.getMetrics().isRatesEnabled()) {
+            update(event.diff().getPrevious(), event.snapshot());
+        }
+    }
+
+    synchronized void update(MetricsSnapshot previous, MetricsSnapshot current) {
+        Rates target = spare;
+        target.snapshot = current;
+        boolean hasPrevious = previous.entityCount() > 0;
+
+        for (EntityType type : EntityType.values()) {
+            EntityTable currentTable = current.table(type);
+            EntityTable previousTable = previous.table(type);
+            double[][] rates = target.ensureCapacity(type, currentTable.size());
+
+            for (int row = 0; row < currentTable.size(); row++) {
+                int previousRow = hasPrevious ? previousTable.rowOf(currentTable, row) : -1;
+                double seconds = previousRow < 0
+                    ? 0
+                    : (currentTable.collectedAt(row) - previousTable.collectedAt(previousRow)) / 1000.0;
+                for (int rate = 0; rate < RATE_COUNTERS.length; rate++) {
+                    int column = type.columnOf(RATE_COUNTERS[rate]);
+                    if (column < 0) {
+                        continue;
+                    }
+                    rates[rate][row] = seconds <= 0
+                        ? Double.NaN
+                        : (currentTable.getColumn(row, column) - previousTable.getColumn(previousRow, column)) / seconds;
+                }
+            }
+        }
+
+        spare = published;
+        published = target;
+    }
+
+    /**
+     * Growth per second of the counter since the previous collection, NaN if unknown
+     * (entity seen for the first time, not read again since or counter not collected for the type).
+     */
+    public double rate(EntityType type, String topicName, String name, Counter counter) {
+        int rate = rateIndex(counter);
+        if (rate < 0 || !type.has(counter)) {
+            return Double.NaN;
+        }
+        Rates rates = published;
+        EntityTable table = rates.snapshot.table(type);
+        int row = type == EntityType.SUBSCRIPTION ? table.rowOf(topicName, name) : table.rowOf(name);
+        return row < 0 ? Double.NaN : rates.byType[type.ordinal()][rate][row];
+    }
+
+    public double rate(EntityDescriptor descriptor, Counter counter) {
+        return rate(descriptor.getType(), descriptor.getTopicName(), descriptor.getName(), counter);
+    }
+
+    private static int rateIndex(Counter counter) {
+        for (int i = 0; i < RATE_COUNTERS.length; i++) {
+            if (RATE_COUNTERS[i] == counter) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public List<EntityGauge> entityGauges() {
+        List<EntityGauge> gauges = new ArrayList<>();
+        if (!properties.getMetrics().isRatesEnabled()) {
+            return gauges;
+        }
+        for (EntityType type : EntityType.values()) {
+            if (type.has(Counter.ACTIVE_MESSAGES)) {
+                gauges.add(new EntityGauge(type, "azure_servicebus_backlog_growth_per_second",
+                                           "Change of active messages per second since the previous collection",
+                                           d -> rate(d, Counter.ACTIVE_MESSAGES)));
+            }
+            if (type.has(Counter.DEAD_LETTER_MESSAGES)) {
+                gauges.add(new EntityGauge(type, "azure_servicebus_dead_letter_growth_per_second",
+                                           "Change of dead letter messages per second since the previous collection",
+                                           d -> rate(d, Counter.DEAD_LETTER_MESSAGES)));
+            }
+            if (type.has(Counter.SIZE_BYTES)) {
+                gauges.add(new EntityGauge(type, "azure_servicebus_size_growth_bytes_per_second",
+                                           "Change of size in bytes per second since the previous collection",
+                                           d -> rate(d, Counter.SIZE_BYTES)));
+            }
+        }
+        return gauges;
+    }
+
+    /**
+     * Rates of one snapshot: [entity type][rate column][row].
+     */
+    private static final class Rates {
+        private MetricsSnapshot snapshot = MetricsSnapshot.empty(null);
+        private final double[][][] byType = new double[EntityType.values().length][RATE_COUNTERS.length][0];
+
+        double[][] ensureCapacity(EntityType type, int rows) {
+            double[][] rates = byType[type.ordinal()];
+            if (rates[0].length < rows) {
+                int capacity = Math.max(rows, rates[0].length + (rates[0].length >> 1));
+                for (int i = 0; i < rates.length; i++) {
+                    rates[i] = new double[capacity];
+                }
+            }
+            return rates;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package gavgas.azureservicebusmetricexporter.analytics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptor;
+import gavgas.azureservicebusmetricexporter.metrics.EntityGauge;
+import gavgas.azureservicebusmetricexporter.metrics.EntityGaugeContributor;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maintains active and dead letter totals per topic (over its subscriptions) and per configured
+ * name prefix group (queues and subscriptions), replacing sum by() queries over thousands of series.
+ * Totals are updated from the snapshot diff: added entities are added, removed ones subtracted and
+ * changed ones contribute their delta. If a snapshot was missed the totals are rebuilt from scratch.
+ */
+@Slf4j
+@Component
+public class RollupEngine implements EntityGaugeContributor {
+
+    private final ServiceBusProperties properties;
+    private final MeterRegistry meterRegistry;
+
+    // Group prefixes, longest first, and the group each one belongs to
+    private final String[] prefixes;
+    private final Rollup[] prefixGroups;
+    private final Map<String, Rollup> groups = new LinkedHashMap<>();
+
+    private final Map<String, Rollup> topics = new ConcurrentHashMap<>();
+
+    // Snapshot the totals reflect
+    private MetricsSnapshot applied;
+    private String registeredNamespace;
+
+    public RollupEngine(ServiceBusProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+
+        List<Map.Entry<String, String>> prefixList = new ArrayList<>();
+        properties.getRollups().getGroups().forEach((group, groupPrefixes) -> {
+            groups.put(group, new Rollup());
+            groupPrefixes.forEach(prefix -> prefixList.add(Map.entry(prefix, group)));
+        });
+        prefixList.sort(Comparator.comparingInt((Map.Entry<String, String> e) -> e.getKey().length()).reversed());
+        this.prefixes = prefixList.stream().map(Map.Entry::getKey).toArray(String[]::new);
+        this.prefixGroups = prefixList.stream().map(e -> groups.get(e.getValue())).toArray(Rollup[]::new);
+    }
+
+    @EventListener
+    public void onSnapshotPublished(SnapshotPublishedEvent event) {
+        if (properties.getRollups().isEnabled()) {
+            update(event.snapshot(), event.diff());
+        }
+    }
+
+    synchronized void update(MetricsSnapshot snapshot, SnapshotDiff diff) {
+        if (applied != diff.getPrevious()) {
+            rebuild(snapshot);
+        } else {
+            applyDiff(diff);
+        }
+        applied = snapshot;
+
+        if (!snapshot.getNamespace().equals(registeredNamespace)) {
+            registerGroupGauges(snapshot.getNamespace());
+        }
+    }
+
+    private void rebuild(MetricsSnapshot snapshot) {
+        log.debug("Rebuilding rollups from snapshot collected at {}", snapshot.getCollectedAt());
+        topics.clear();
+        groups.values().forEach(Rollup::reset);
+
+        for (EntityType type : new EntityType[]{EntityType.QUEUE, EntityType.SUBSCRIPTION}) {
+            EntityTable table = snapshot.table(type);
+            for (int row = 0; row < table.size(); row++) {
+                add(table, row, 1);
+            }
+        }
+    }
+
+    private void applyDiff(SnapshotDiff diff) {
+        for (EntityType type : new EntityType[]{EntityType.QUEUE, EntityType.SUBSCRIPTION}) {
+            SnapshotDiff.TableDiff tableDiff = diff.table(type);
+            EntityTable current = diff.getCurrent().table(type);
+            EntityTable previous = diff.getPrevious().table(type);
+
+            for (int i = 0; i < tableDiff.removedCount(); i++) {
+                add(previous, tableDiff.removedRow(i), -1);
+            }
+            for (int i = 0; i < tableDiff.addedCount(); i++) {
+                add(current, tableDiff.addedRow(i), 1);
+            }
+            for (int i = 0; i < tableDiff.changedCount(); i++) {
+                if (!tableDiff.isChanged(i, Counter.ACTIVE_MESSAGES) && !tableDiff.isChanged(i, Counter.DEAD_LETTER_MESSAGES)) {
+                    continue;
+                }
+                int row = tableDiff.changedRow(i);
+                int previousRow = tableDiff.changedPreviousRow(i);
+                long active = current.get(row, Counter.ACTIVE_MESSAGES) - previous.get(previousRow, Counter.ACTIVE_MESSAGES);
+                long deadLetter = current.get(row, Counter.DEAD_LETTER_MESSAGES)
+                    - previous.get(previousRow, Counter.DEAD_LETTER_MESSAGES);
+                addDelta(current, row, active, deadLetter, 0);
+            }
+        }
+    }
+
+    /**
+     * Add (sign 1) or subtract (sign -1) an entity to the totals it belongs to.
+     */
+    private void add(EntityTable table, int row, int sign) {
+        addDelta(table, row,
+                 sign * table.get(row, Counter.ACTIVE_MESSAGES),
+                 sign * table.get(row, Counter.DEAD_LETTER_MESSAGES),
+                 sign);
+    }
+
+    private void addDelta(EntityTable table, int row, long active, long deadLetter, int entities) {
+        String groupKey = table.getType() == EntityType.SUBSCRIPTION ? table.topicName(row) : table.name(row);
+        Rollup group = groupOf(groupKey);
+        if (group != null) {
+            group.add(active, deadLetter, entities);
+        }
+
+        if (table.getType() == EntityType.SUBSCRIPTION) {
+            String topicName = table.topicName(row);
+            Rollup topic = topics.computeIfAbsent(topicName, name -> new Rollup());
+            topic.add(active, deadLetter, entities);
+            if (topic.entities == 0) {
+                topics.remove(topicName);
+            }
+        }
+    }
+
+    private Rollup groupOf(String name) {
+        for (int i = 0; i < prefixes.length; i++) {
+            if (name.startsWith(prefixes[i])) {
+                return prefixGroups[i];
+            }
+        }
+        return null;
+    }
+
+    private void registerGroupGauges(String namespace) {
+        registeredNamespace = namespace;
+        groups.forEach((name, rollup) -> {
+            Tags tags = Tags.of("namespace", namespace,
+                                "environment", properties.getEnvironment(),
+                                "group", name);
+            Gauge.builder("azure_servicebus_group_active_messages", rollup, r -> r.activeMessages)
+                 .tags(tags)
+                 .description("Active messages over all queues and subscriptions of the group")
+                 .register(meterRegistry);
+            Gauge.builder("azure_servicebus_group_dead_letter_messages", rollup, r -> r.deadLetterMessages)
+                 .tags(tags)
+                 .description("Dead letter messages over all queues and subscriptions of the group")
+                 .register(meterRegistry);
+        });
+    }
+
+    /**
+     * Active messages over all subscriptions of a topic, 0 if the topic has none.
+     */
+    public long topicActiveMessages(String topicName) {
+        Rollup topic = topics.get(topicName);
+        return topic == null ? 0 : topic.activeMessages;
+    }
+
+    public long topicDeadLetterMessages(String topicName) {
+        Rollup topic = topics.get(topicName);
+        return topic == null ? 0 : topic.deadLetterMessages;
+    }
+
+    @Override
+    public List<EntityGauge> entityGauges() {
+        if (!properties.getRollups().isEnabled()) {
+            return List.of();
+        }
+        return List.of(
+            new EntityGauge(EntityType.TOPIC, "azure_servicebus_topic_active_messages",
+                            "Active messages over all subscriptions of the topic",
+                            (EntityDescriptor d) -> topicActiveMessages(d.getName())),
+            new EntityGauge(EntityType.TOPIC, "azure_servicebus_topic_dead_letter_messages",
+                            "Dead letter messages over all subscriptions of the topic",
+                            (EntityDescriptor d) -> topicDeadLetterMessages(d.getName())));
+    }
+
+    /**
+     * Running totals; written by the update thread only, read by scrapes.
+     */
+    private static final class Rollup {
+        volatile long activeMessages;
+        volatile long deadLetterMessages;
+        int entities;
+
+        void add(long active, long deadLetter, int entityDelta) {
+            activeMessages += active;
+            deadLetterMessages += deadLetter;
+            entities += entityDelta;
+        }
+
+        void reset() {
+            activeMessages = 0;
+            deadLetterMessages = 0;
+            entities = 0;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package gavgas.azureservicebusmetricexporter.analytics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptor;
+import gavgas.azureservicebusmetricexporter.metrics.EntityGauge;
+import gavgas.azureservicebusmetricexporter.metrics.EntityGaugeContributor;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Forecasts when queues and topics reach their maximum size.
+ * For each entity the size samples of the last {@code window} cycles are kept in a ring buffer and
+ * fitted with an exponentially weighted linear regression. The weighted sums of the regression are
+ * updated incrementally (shift of the time origin, decay, evicting the oldest sample, adding the
+ * new one), so each cycle costs O(1) per entity. The sums are rebuilt from the ring buffer once per
+ * window to stop floating point drift.
+ */
+@Slf4j
+@Component
+public class TimeToFullForecaster implements EntityGaugeContributor {
+
+    private static final EntityType[] FORECAST_TYPES = {EntityType.QUEUE, EntityType.TOPIC};
+
+    private final boolean enabled;
+    private final int window;
+    private final double decay;
+    // weight of a sample when it leaves the window: decay^window
+    private final double evictedWeight;
+    private final double horizonSeconds;
+
+    private final EntitySlots slots = new EntitySlots();
+
+    // Ring buffers, window entries per slot
+    private long[] sampleTimes = new long[0];
+    private double[] sampleSizes = new double[0];
+    private int[] head = new int[0];
+    private int[] count = new int[0];
+    private long[] lastTime = new long[0];
+
+    // Weighted regression sums per slot, x is seconds relative to the latest sample
+    private double[] s0 = new double[0];
+    private double[] sx = new double[0];
+    private double[] sy = new double[0];
+    private double[] sxx = new double[0];
+    private double[] sxy = new double[0];
+
+    // Results per slot, read by the gauges
+    private volatile double[] secondsUntilFull = new double[0];
+    private volatile double[] projectedFillPercentage = new double[0];
+
+    public TimeToFullForecaster(ServiceBusProperties properties) {
+        ServiceBusProperties.Forecast forecast = properties.getForecast();
+        this.enabled = forecast.isEnabled();
+        this.window = Math.max(2, forecast.getWindow());
+        this.decay = forecast.getDecay();
+        this.evictedWeight = Math.pow(decay, window);
+        this.horizonSeconds = forecast.getHorizon().toMillis() / 1000.0;
+    }
+
+    @EventListener
+    public void onSnapshotPublished(SnapshotPublishedEvent event) {
+        if (enabled) {
+            update(event.snapshot(), event.diff());
+        }
+    }
+
+    synchronized void update(MetricsSnapshot snapshot, SnapshotDiff diff) {
+        for (EntityType type : FORECAST_TYPES) {
+            EntityTable previous = diff.getPrevious().table(type);
+            SnapshotDiff.TableDiff tableDiff = diff.table(type);
+            for (int i = 0; i < tableDiff.removedCount(); i++) {
+                int row = tableDiff.removedRow(i);
+                slots.release(type, previous.topicName(row), previous.name(row));
+            }
+
+            EntityTable table = snapshot.table(type);
+            for (int row = 0; row < table.size(); row++) {
+                int slot = slots.slotOf(table, row);
+                if (slot < 0) {
+                    slot = slots.assign(table, row);
+                    ensureCapacity(slots.capacity());
+                    reset(slot);
+                }
+                // Rows carried forward keep the time of their last read and are not sampled again
+                addSample(slot, table.collectedAt(row), table.get(row, Counter.SIZE_BYTES));
+                estimate(slot, table.get(row, Counter.MAX_SIZE_BYTES));
+            }
+        }
+    }
+
+    private void addSample(int slot, long timeMillis, double size) {
+        int samples = count[slot];
+        if (samples > 0) {
+            double dt = (timeMillis - lastTime[slot]) / 1000.0;
+            if (dt <= 0) {
+                return;
+            }
+            // Move the time origin to the new sample: x -> x - dt
+            sxx[slot] += -2 * dt * sx[slot] + dt * dt * s0[slot];
+            sx[slot] -= dt * s0[slot];
+            sxy[slot] -= dt * sy[slot];
+
+            // Age all samples by one step
+            s0[slot] *= decay;
+            sx[slot] *= decay;
+            sy[slot] *= decay;
+            sxx[slot] *= decay;
+            sxy[slot] *= decay;
+
+            if (samples == window) {
+                int oldest = slot * window + head[slot];
+                double x = (sampleTimes[oldest] - timeMillis) / 1000.0;
+                double y = sampleSizes[oldest];
+                s0[slot] -= evictedWeight;
+                sx[slot] -= evictedWeight * x;
+                sy[slot] -= evictedWeight * y;
+                sxx[slot] -= evictedWeight * x * x;
+                sxy[slot] -= evictedWeight * x * y;
+            }
+        }
+
+        // The new sample sits at x = 0 with weight 1
+        s0[slot] += 1;
+        sy[slot] += size;
+
+        int index = slot * window + head[slot];
+        sampleTimes[index] = timeMillis;
+        sampleSizes[index] = size;
+        head[slot] = (head[slot] + 1) % window;
+        count[slot] = Math.min(samples + 1, window);
+        lastTime[slot] = timeMillis;
+
+        if (head[slot] == 0) {
+            rebuildSums(slot);
+        }
+    }
+
+    /**
+     * Recompute the regression sums from the ring buffer, removing accumulated rounding errors.
+     */
+    private void rebuildSums(int slot) {
+        double w0 = 0, wx = 0, wy = 0, wxx = 0, wxy = 0;
+        double weight = 1;
+        int newest = (head[slot] - 1 + window) % window;
+        for (int age = 0; age < count[slot]; age++) {
+            int index = slot * window + (newest - age + window) % window;
+            double x = (sampleTimes[index] - lastTime[slot]) / 1000.0;
+            double y = sampleSizes[index];
+            w0 += weight;
+            wx += weight * x;
+            wy += weight * y;
+            wxx += weight * x * x;
+            wxy += weight * x * y;
+            weight *= decay;
+        }
+        s0[slot] = w0;
+        sx[slot] = wx;
+        sy[slot] = wy;
+        sxx[slot] = wxx;
+        sxy[slot] = wxy;
+    }
+
+    private void estimate(int slot, long maxSizeBytes) {
+        double denominator = s0[slot] * sxx[slot] - sx[slot] * sx[slot];
+        if (count[slot] < 2 || maxSizeBytes <= 0 || denominator <= 0) {
+            secondsUntilFull[slot] = Double.NaN;
+            projectedFillPercentage[slot] = Double.NaN;
+            return;
+        }
+
+        // bytes per second, and the fitted size at the latest sample
+        double slope = (s0[slot] * sxy[slot] - sx[slot] * sy[slot]) / denominator;
+        double fitted = (sy[slot] - slope * sx[slot]) / s0[slot];
+
+        secondsUntilFull[slot] = slope > 0
+            ? Math.max(0, (maxSizeBytes - fitted) / slope)
+            : Double.POSITIVE_INFINITY;
+        projectedFillPercentage[slot] = Math.max(0, fitted + slope * horizonSeconds) * 100.0 / maxSizeBytes;
+    }
+
+    private void reset(int slot) {
+        head[slot] = 0;
+        count[slot] = 0;
+        lastTime[slot] = 0;
+        s0[slot] = 0;
+        sx[slot] = 0;
+        sy[slot] = 0;
+        sxx[slot] = 0;
+        sxy[slot] = 0;
+        secondsUntilFull[slot] = Double.NaN;
+        projectedFillPercentage[slot] = Double.NaN;
+    }
+
+    private void ensureCapacity(int slotCount) {
+        if (slotCount <= head.length) {
+            return;
+        }
+        int capacity = Math.max(slotCount, head.length + (head.length >> 1) + 16);
+        sampleTimes = Arrays.copyOf(sampleTimes, capacity * window);
+        sampleSizes = Arrays.copyOf(sampleSizes, capacity * window);
+        head = Arrays.copyOf(head, capacity);
+        count = Arrays.copyOf(count, capacity);
+        lastTime = Arrays.copyOf(lastTime, capacity);
+        s0 = Arrays.copyOf(s0, capacity);
+        sx = Arrays.copyOf(sx, capacity);
+        sy = Arrays.copyOf(sy, capacity);
+        sxx = Arrays.copyOf(sxx, capacity);
+        sxy = Arrays.copyOf(sxy, capacity);
+        secondsUntilFull = Arrays.copyOf(secondsUntilFull, capacity);
+        projectedFillPercentage = Arrays.copyOf(projectedFillPercentage, capacity);
+    }
+
+    /**
+     * Estimated seconds until the entity reaches its maximum size; +Inf if it is not growing,
+     * NaN if there is not enough data yet.
+     */
+    public double secondsUntilFull(EntityType type, String name) {
+        return read(secondsUntilFull, type, name);
+    }
+
+    /**
+     * Projected fill percentage of the maximum size after the configured horizon.
+     */
+    public double projectedFillPercentage(EntityType type, String name) {
+        return read(projectedFillPercentage, type, name);
+    }
+
+    private double read(double[] values, EntityType type, String name) {
+        int slot = slots.slotOf(type, null, name);
+        return slot < 0 || slot >= values.length ? Double.NaN : values[slot];
+    }
+
+    @Override
+    public List<EntityGauge> entityGauges() {
+        if (!enabled) {
+            return List.of();
+        }
+        return Arrays.stream(FORECAST_TYPES)
+                     .flatMap(type -> List.of(
+                         new EntityGauge(type, "azure_servicebus_seconds_until_full",
+                                         "Estimated seconds until the " + type.getLabel()
+                                             + " reaches its maximum size, +Inf if it is not growing",
+                                         (EntityDescriptor d) -> secondsUntilFull(type, d.getName())),
+                         new EntityGauge(type, "azure_servicebus_projected_fill_percentage",
+                                         "Projected fill percentage of the " + type.getLabel()
+                                             + " maximum size at the end of the forecast horizon",
+                                         (EntityDescriptor d) -> projectedFillPercentage(type, d.getName()))).stream())
+                     .toList();
+    }
+}
@@ -39,7 +39,14 @@ public class ServiceBusClientConfig {
 
         log.info("Using Service Bus namespace: {}", namespace);
 
-        // Create and return the client
+        return buildClient(connectionString);
+    }
+
+    /**
+     * Create an admin client for the given connection string.
+     * Also used for the namespaces probed through /probe?target=.
+     */
+    public ServiceBusAdministrationClient buildClient(String connectionString) {
         return new ServiceBusAdministrationClientBuilder()
             .connectionString(connectionString)
             .buildClient();
@@ -48,8 +55,9 @@ public class ServiceBusClientConfig {
     /**
      * Extract namespace from connection string.
      * Typical format: Endpoint=sb://namespace.servicebus.windows.net/;...
+     * @return the namespace, or null if the connection string has no such endpoint
      */
-    private String extractNamespaceFromConnectionString(String connectionString) {
+    public String extractNamespaceFromConnectionString(String connectionString) {
         String pattern = "Endpoint=sb://([^.]+)\\.servicebus\\.windows\\.net/";
         Matcher matcher = Pattern.compile(pattern).matcher(connectionString);
 
@@ -4,10 +4,14 @@ import jakarta.validation.constraints.NotBlank;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -36,6 +40,51 @@ public class ServiceBusProperties {
      */
     private Metrics metrics = new Metrics();
 
+    /**
+     * Time-to-full forecasting for queues and topics.
+     */
+    private Forecast forecast = new Forecast();
+
+    /**
+     * In-memory counter history served by /probe/history.
+     */
+    private History history = new History();
+
+    /**
+     * Backlog rollups per topic and per entity name prefix group.
+     */
+    private Rollups rollups = new Rollups();
+
+    /**
+     * Extra labels (team, domain, tier, ...) derived from entity names.
+     */
+    private Labels labels = new Labels();
+
+    /**
+     * Push of each collected snapshot to an OpenTelemetry (OTLP/HTTP) endpoint.
+     */
+    private Otlp otlp = new Otlp();
+
+    /**
+     * Push of each collected snapshot to a Prometheus remote-write endpoint.
+     */
+    private RemoteWrite remoteWrite = new RemoteWrite();
+
+    /**
+     * Namespaces probed on demand through /probe?target=&module=.
+     */
+    private Probe probe = new Probe();
+
+    /**
+     * Server-sent event stream of snapshot changes at /probe/stream.
+     */
+    private Stream stream = new Stream();
+
+    /**
+     * Health indicator settings.
+     */
+    private Health health = new Health();
+
     /**
      * Environment name to be included in metrics tags.
      * Default: "default"
@@ -82,6 +131,32 @@ public class ServiceBusProperties {
          */
         private Set<String> types = Set.of("queue", "topic", "subscription");
 
+        /**
+         * Regular expressions; when set, an entity must match at least one of them (or an include prefix).
+         */
+        private List<String> include = new ArrayList<>();
+
+        /**
+         * Regular expressions; entities matching any of them are skipped.
+         */
+        private List<String> exclude = new ArrayList<>();
+
+        /**
+         * Literal name prefixes to include, checked before the regular expressions.
+         */
+        private List<String> includePrefixes = new ArrayList<>();
+
+        /**
+         * Literal name prefixes to exclude, checked before the regular expressions.
+         */
+        private List<String> excludePrefixes = new ArrayList<>();
+
+        /**
+         * Additional rules per entity type ("queue", "topic", "subscription").
+         * Subscriptions are matched as "topic/subscription".
+         */
+        private Map<String, FilterRules> typeRules = new LinkedHashMap<>();
+
         // Compiled pattern for efficient filtering
         private Pattern compiledFilter;
 
@@ -97,6 +172,17 @@ public class ServiceBusProperties {
         }
     }
 
+    /**
+     * Include and exclude rules of one entity type.
+     */
+    @Data
+    public static class FilterRules {
+        private List<String> include = new ArrayList<>();
+        private List<String> exclude = new ArrayList<>();
+        private List<String> includePrefixes = new ArrayList<>();
+        private List<String> excludePrefixes = new ArrayList<>();
+    }
+
     /**
      * Metrics collection and formatting settings.
      */
@@ -119,5 +205,437 @@ public class ServiceBusProperties {
          * Default: 1 minute
          */
         private Duration scrapeInterval = Duration.ofMinutes(1);
+
+        /**
+         * Consecutive failed collection cycles after which collection is paused for circuitOpenDuration.
+         * A cycle fails if an entity type cannot be listed. 0 never pauses collection.
+         * Default: 3
+         */
+        private int circuitFailureThreshold = 3;
+
+        /**
+         * How long collection is paused once circuitFailureThreshold is reached; the next cycle is a trial.
+         * Default: 2 minutes
+         */
+        private Duration circuitOpenDuration = Duration.ofMinutes(2);
+
+        /**
+         * Keep the counter columns of each snapshot in direct (off-heap) memory.
+         * Useful for namespaces with tens of thousands of entities.
+         * Default: false
+         */
+        private boolean offHeapSnapshot = false;
+
+        /**
+         * Export per-second growth gauges (backlog, dead letters, size) computed in the exporter.
+         * Adds up to three series per entity.
+         * Default: false
+         */
+        private boolean ratesEnabled = false;
+
+        /**
+         * Export azure_servicebus_last_collected_timestamp_seconds per entity and
+         * azure_servicebus_data_age_seconds per entity type, to see and alert on stale values.
+         * Adds one series per entity.
+         * Default: false
+         */
+        private boolean collectionTimestamps = false;
+
+        /**
+         * Export per-entity series only for the top N entities of each type, ranked by {@link #rankBy}.
+         * The other entities are summed into "__other__" series, per topic for subscriptions.
+         * Default: 0 (every entity is exported)
+         */
+        private int maxEntitiesPerType = 0;
+
+        /**
+         * Ranking used by maxEntitiesPerType. Topics have no message counts and are ranked by size.
+         * Default: backlog
+         */
+        private RankBy rankBy = RankBy.BACKLOG;
+
+        /**
+         * Number of entities whose fetch latency and failures are kept for /probe/fetches.
+         * Entities beyond it are not tracked. 0 disables the statistics.
+         * Default: 10000
+         */
+        private int fetchStatsCapacity = 10000;
+
+        public enum RankBy {
+            /**
+             * Active messages
+             */
+            BACKLOG,
+            /**
+             * Dead letter messages
+             */
+            DEAD_LETTER
+        }
+    }
+
+    /**
+     * Time-to-full forecasting settings.
+     */
+    @Data
+    public static class Forecast {
+        /**
+         * Whether to export the seconds-until-full and projected fill gauges, two series per queue and topic.
+         * Default: false
+         */
+        private boolean enabled = false;
+
+        /**
+         * Number of collection cycles kept per entity for the trend estimation.
+         * Default: 30
+         */
+        private int window = 30;
+
+        /**
+         * Weight decay per cycle; older samples count less in the regression.
+         * Default: 0.9
+         */
+        private double decay = 0.9;
+
+        /**
+         * Horizon of the projected fill percentage.
+         * Default: 1 hour
+         */
+        private Duration horizon = Duration.ofHours(1);
+    }
+
+    /**
+     * Counter history settings.
+     */
+    @Data
+    public static class History {
+        /**
+         * Whether to keep per-entity counter history. Up to maxMemory of heap (or direct memory with offHeap)
+         * is allocated for it, so the JVM memory limit has to leave room for the budget.
+         * Default: false
+         */
+        private boolean enabled = false;
+
+        /**
+         * How far back the history goes.
+         * Default: 3 hours
+         */
+        private Duration retention = Duration.ofHours(3);
+
+        /**
+         * Width of one history bucket; the last collection within a bucket is kept.
+         * Default: 1 minute
+         */
+        private Duration resolution = Duration.ofMinutes(1);
+
+        /**
+         * Upper bound of the memory used for history buffers. Entities beyond it are not tracked.
+         * Default: 128MB
+         */
+        private DataSize maxMemory = DataSize.ofMegabytes(128);
+
+        /**
+         * Keep the history buffers in direct (off-heap) memory.
+         * Default: false
+         */
+        private boolean offHeap = false;
+    }
+
+    /**
+     * Rollup settings.
+     */
+    @Data
+    public static class Rollups {
+        /**
+         * Whether to export active and dead letter totals per topic and per group.
+         * Default: true
+         */
+        private boolean enabled = true;
+
+        /**
+         * Groups by name, each with the entity name prefixes that belong to it, e.g. payments: [pay-, billing-].
+         * Queues match on their name, subscriptions on their topic name; the longest prefix wins.
+         * Default: no groups
+         */
+        private Map<String, List<String>> groups = new LinkedHashMap<>();
+    }
+
+    /**
+     * Label enrichment settings.
+     */
+    @Data
+    public static class Labels {
+        /**
+         * Value of a label that no rule sets for an entity.
+         * Default: "none"
+         */
+        private String defaultValue = "none";
+
+        /**
+         * Rules mapping entity names to labels. When several rules set the same label,
+         * the one with the longest pattern wins, then the first one.
+         */
+        private List<LabelRule> rules = new ArrayList<>();
+    }
+
+    /**
+     * A label rule, e.g. match: prefix, pattern: "pay-", labels: {team: payments, tier: gold}.
+     * Names are matched as "topic/subscription" for subscriptions.
+     */
+    @Data
+    public static class LabelRule {
+        /**
+         * How the pattern is matched against the entity name.
+         * Default: prefix
+         */
+        private MatchType match = MatchType.PREFIX;
+
+        /**
+         * Literal text to match.
+         */
+        private String pattern;
+
+        /**
+         * Labels to add to matching entities.
+         */
+        private Map<String, String> labels = new LinkedHashMap<>();
+
+        public enum MatchType {
+            PREFIX,
+            SUFFIX,
+            CONTAINS,
+            EXACT
+        }
+    }
+
+    /**
+     * OTLP push settings.
+     */
+    @Data
+    public static class Otlp {
+        /**
+         * Whether to push metrics after each collection cycle.
+         * Default: false
+         */
+        private boolean enabled = false;
+
+        /**
+         * OTLP/HTTP metrics endpoint; requests are sent as JSON.
+         * Default: "http://localhost:4318/v1/metrics"
+         */
+        private String endpoint = "http://localhost:4318/v1/metrics";
+
+        /**
+         * Extra request headers, e.g. for authentication.
+         */
+        private Map<String, String> headers = new LinkedHashMap<>();
+
+        /**
+         * Maximum number of data points per request.
+         * Default: 5000
+         */
+        private int batchSize = 5000;
+
+        /**
+         * Gzip request bodies.
+         * Default: true
+         */
+        private boolean compression = true;
+
+        /**
+         * Send only counters of entities that were added or changed since the previous cycle.
+         * Default: false
+         */
+        private boolean changedOnly = false;
+
+        /**
+         * Number of failed requests kept for retry; the oldest is dropped when full.
+         * Default: 10
+         */
+        private int retryQueueSize = 10;
+
+        /**
+         * Connect and request timeout.
+         * Default: 10 seconds
+         */
+        private Duration timeout = Duration.ofSeconds(10);
+    }
+
+    /**
+     * Prometheus remote-write push settings.
+     */
+    @Data
+    public static class RemoteWrite {
+        /**
+         * Whether to push metrics after each collection cycle.
+         * Default: false
+         */
+        private boolean enabled = false;
+
+        /**
+         * Remote-write endpoint, e.g. "http://prometheus:9090/api/v1/write".
+         */
+        private String url;
+
+        /**
+         * Extra request headers, e.g. for authentication or tenant selection.
+         */
+        private Map<String, String> headers = new LinkedHashMap<>();
+
+        /**
+         * Number of parallel senders; each entity is always sent by the same shard.
+         * Default: 4
+         */
+        private int shards = 4;
+
+        /**
+         * Maximum number of samples per request.
+         * Default: 2000
+         */
+        private int maxSamplesPerSend = 2000;
+
+        /**
+         * Requests buffered per shard; the oldest is dropped when full.
+         * Default: 20
+         */
+        private int queueCapacity = 20;
+
+        /**
+         * Retries of a request failing with 5xx, 429 or a connection error before it is dropped.
+         * Default: 3
+         */
+        private int maxRetries = 3;
+
+        /**
+         * Delay before the first retry; doubled on each further retry.
+         * Default: 500 milliseconds
+         */
+        private Duration retryBackoff = Duration.ofMillis(500);
+
+        /**
+         * Connect and request timeout.
+         * Default: 10 seconds
+         */
+        private Duration timeout = Duration.ofSeconds(10);
+    }
+
+    /**
+     * Multi-target probe settings.
+     */
+    @Data
+    public static class Probe {
+        /**
+         * Namespaces that may be probed, by the name passed as ?target=.
+         */
+        private Map<String, ProbeTarget> targets = new LinkedHashMap<>();
+
+        /**
+         * Entity filter profiles selectable with ?module=. Without a module the "default" profile is used,
+         * or the top-level entities settings if there is none.
+         */
+        private Map<String, Entities> modules = new LinkedHashMap<>();
+
+        /**
+         * Targets not probed for this long drop their admin client and cached snapshots.
+         * Default: 15 minutes
+         */
+        private Duration idleTtl = Duration.ofMinutes(15);
+
+        /**
+         * Worker threads for runtime property calls, shared by all targets.
+         * Default: 8
+         */
+        private int workers = 8;
+
+        /**
+         * Calls queued per target; a probe listing more entities waits for the workers before queuing further calls.
+         * Default: 1000
+         */
+        private int maxQueuedPerTarget = 1000;
+
+        /**
+         * Longest a /probe request waits for a running collection cycle before it is answered from the
+         * previous snapshot.
+         * Default: 10 seconds
+         */
+        private Duration refreshWait = Duration.ofSeconds(10);
+
+        /**
+         * /probe requests waiting for a collection cycle at most; further ones are answered from the
+         * previous snapshot.
+         * Default: 10000
+         */
+        private int maxQueuedRequests = 10_000;
+    }
+
+    /**
+     * Health indicator settings. Health is derived from the state of the collection cycles.
+     */
+    @Data
+    public static class Health {
+        /**
+         * Health is down once the last successful collection cycle is older than this.
+         * Default: 5 minutes
+         */
+        private Duration maxCycleAge = Duration.ofMinutes(5);
+
+        /**
+         * When set, health also checks connectivity by listing a queue, at most once per this interval;
+         * checks in between report the last result.
+         * Default: not set (no deep check)
+         */
+        private Duration deepCheckInterval;
+    }
+
+    /**
+     * Snapshot change stream settings.
+     */
+    @Data
+    public static class Stream {
+        /**
+         * Maximum number of connected clients; further connections are refused.
+         * Default: 5000
+         */
+        private int maxClients = 5000;
+
+        /**
+         * Events buffered per client; a client whose buffer is full is disconnected as too slow.
+         * Default: 16
+         */
+        private int clientBufferSize = 16;
+
+        /**
+         * Number of recent snapshot diffs kept for clients resuming with Last-Event-ID.
+         * Default: 16
+         */
+        private int replayVersions = 16;
+
+        /**
+         * Threads writing events to clients.
+         * Default: 4
+         */
+        private int senders = 4;
+
+        /**
+         * A client whose event write has not returned after this long is disconnected.
+         * Default: 10 seconds
+         */
+        private Duration writeTimeout = Duration.ofSeconds(10);
+
+        /**
+         * Connections are closed after this long; clients reconnect with Last-Event-ID.
+         * Default: 30 minutes
+         */
+        private Duration timeout = Duration.ofMinutes(30);
+    }
+
+    /**
+     * Namespace that can be probed.
+     */
+    @Data
+    public static class ProbeTarget {
+        /**
+         * Service Bus connection string of the namespace.
+         */
+        private String connectionString;
     }
-}
\ No newline at end of file
+}
@@ -1,23 +1,42 @@
 package gavgas.azureservicebusmetricexporter.controller;
 
-import gavgas.azureservicebusmetricexporter.model.NamespaceMetric;
-import gavgas.azureservicebusmetricexporter.model.QueueMetric;
-import gavgas.azureservicebusmetricexporter.model.SubscriptionMetric;
-import gavgas.azureservicebusmetricexporter.model.TopicMetric;
-import gavgas.azureservicebusmetricexporter.service.ServiceBusClientService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gavgas.azureservicebusmetricexporter.analytics.HistoryStore;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.export.PrometheusTextEncoder;
+import gavgas.azureservicebusmetricexporter.export.SnapshotJsonWriter;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptorCache;
+import gavgas.azureservicebusmetricexporter.model.HistoryPoint;
+import gavgas.azureservicebusmetricexporter.service.CollectionMetrics;
+import gavgas.azureservicebusmetricexporter.service.EntityFetchStats;
+import gavgas.azureservicebusmetricexporter.service.ProbeTargetRegistry;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * REST controller for custom Service Bus metric endpoints
@@ -28,150 +47,519 @@ import java.util.stream.Collectors;
 @Slf4j
 public class ProbeController {
 
-    private final ServiceBusClientService serviceBusClientService;
-
-    public ProbeController(ServiceBusClientService serviceBusClientService) {
-        this.serviceBusClientService = serviceBusClientService;
+    // Ranking key of /metrics/top for sizeBytes / maxSizeBytes
+    private static final String SIZE_USAGE = "sizeUsage";
+    // Serialises error bodies of streamed endpoints, where the message converters are bypassed
+    private static final ObjectMapper ERROR_JSON = new ObjectMapper();
+
+    private final SnapshotRefresher snapshotRefresher;
+    private final HistoryStore historyStore;
+    private final ProbeTargetRegistry probeTargetRegistry;
+    private final ServiceBusProperties properties;
+    private final SnapshotStream snapshotStream;
+    private final EntityFetchStats fetchStats;
+    private final EntityDescriptorCache descriptorCache;
+    private final ResponseBodyCache responseBodyCache;
+
+    public ProbeController(SnapshotRefresher snapshotRefresher, HistoryStore historyStore,
+                           ProbeTargetRegistry probeTargetRegistry, ServiceBusProperties properties,
+                           SnapshotStream snapshotStream, CollectionMetrics collectionMetrics,
+                           EntityFetchStats fetchStats, EntityDescriptorCache descriptorCache) {
+        this.snapshotRefresher = snapshotRefresher;
+        this.historyStore = historyStore;
+        this.probeTargetRegistry = probeTargetRegistry;
+        this.properties = properties;
+        this.snapshotStream = snapshotStream;
+        this.fetchStats = fetchStats;
+        this.descriptorCache = descriptorCache;
+        this.responseBodyCache = new ResponseBodyCache(collectionMetrics);
     }
 
     /**
-     * Returns all Service Bus metrics in JSON format
+     * Probes a configured namespace and returns its metrics in the Prometheus text format (OpenMetrics
+     * if accepted), so one exporter can be scraped for many namespaces with ?target=&module=
      */
-    @GetMapping("/metrics")
-    public ResponseEntity<ApiResponse<MetricsResponse>> getProbeMetrics() {
-        log.info("Request received for /probe/metrics");
+    @GetMapping(value = "", produces = {PrometheusTextEncoder.OPENMETRICS_CONTENT_TYPE, PrometheusTextEncoder.CONTENT_TYPE})
+    public CompletableFuture<ResponseEntity<String>> probe(
+        @RequestParam("target") String target,
+        @RequestParam(value = "module", required = false) String module,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept) {
+
+        log.info("Request received for /probe with target={}, module={}", target, module);
+
+        PrometheusTextEncoder encoder = new PrometheusTextEncoder(properties.getEnvironment(),
+                                                                  PrometheusTextEncoder.acceptsOpenMetrics(accept),
+                                                                  descriptorCache);
+        long start = System.nanoTime();
+        CompletableFuture<MetricsSnapshot> snapshot;
+        try {
+            snapshot = probeTargetRegistry.probe(target, module);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(e.getMessage() + "\n"));
+        }
 
-        // Ensure metrics are up-to-date
-        serviceBusClientService.collectMetrics();
+        // Answered once the target is collected, without holding the request thread meanwhile
+        return snapshot.handle((collected, error) -> {
+            StringBuilder body = new StringBuilder();
+            Throwable failure = error instanceof CompletionException ? error.getCause() : error;
+            if (failure == null) {
+                try {
+                    encoder.encode(collected, body);
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                log.error("Probe of target {} failed", target, failure);
+                body.setLength(0);
+            }
 
-        MetricsResponse metricsResponse = new MetricsResponse(
-            serviceBusClientService.getQueueMetrics(),
-            serviceBusClientService.getTopicMetrics(),
-            serviceBusClientService.getSubscriptionMetrics(),
-            serviceBusClientService.getNamespaceMetrics()
-        );
+            encoder.appendGauge(body, "azure_servicebus_probe_success",
+                                "Whether the probe of the target succeeded", failure == null ? 1 : 0);
+            encoder.appendGauge(body, "azure_servicebus_probe_duration_seconds",
+                                "Duration of the probe in seconds", (System.nanoTime() - start) / 1e9);
+            encoder.finish(body);
+            return ResponseEntity.ok()
+                                 .header(HttpHeaders.CONTENT_TYPE, encoder.contentType())
+                                 .body(body.toString());
+        });
+    }
 
-        return ResponseEntity.ok(new ApiResponse<>("success", metricsResponse));
+    /**
+     * Returns the metrics of this exporter's namespace with the time each entity was read as sample
+     * timestamp, for scrapes that should not stamp cached values with the scrape time
+     */
+    @GetMapping(value = "/exposition", produces = {PrometheusTextEncoder.OPENMETRICS_CONTENT_TYPE, PrometheusTextEncoder.CONTENT_TYPE})
+    public CompletableFuture<ResponseEntity<byte[]>> getProbeExposition(
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+
+        log.info("Request received for /probe/exposition");
+
+        // Answered once the snapshot is up-to-date, without holding the request thread meanwhile
+        return snapshotRefresher.snapshot().thenApply(snapshot -> {
+            boolean openMetrics = PrometheusTextEncoder.acceptsOpenMetrics(accept);
+            PrometheusTextEncoder encoder = new PrometheusTextEncoder(properties.getEnvironment(), openMetrics,
+                                                                      descriptorCache);
+            // Both formats are served from this URL, so the tag has to tell them apart
+            String variant = openMetrics ? "openmetrics" : "text";
+            String etag = etag(snapshot, variant);
+            if (matches(ifNoneMatch, etag)) {
+                return notModified(snapshot, etag);
+            }
+            byte[] body = responseBodyCache.get("exposition:" + variant, snapshot, out -> {
+                StringBuilder text = new StringBuilder();
+                encoder.encode(snapshot, text);
+                encoder.finish(text);
+                out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            });
+            return ResponseEntity.ok()
+                                 .header(HttpHeaders.CONTENT_TYPE, encoder.contentType())
+                                 .header(HttpHeaders.VARY, HttpHeaders.ACCEPT)
+                                 .eTag(etag)
+                                 .lastModified(snapshot.getCollectedAt().toEpochMilli())
+                                 .body(body);
+        });
     }
 
     /**
-     * Returns a list of all Service Bus entities
+     * Returns Service Bus metrics in JSON format, streamed from the current snapshot.
+     * type, prefix and fields narrow the response; with limit, entities are paged and the response
+     * carries a next_cursor to pass as cursor for the following page.
+     * Clients accepting CBOR or Smile get the same entities in the columnar layout of
+     * {@link SnapshotJsonWriter#writeColumnar}, which is not paged.
+     * Every body, errors included, is a {@link StreamingResponseBody}: Spring MVC only streams bodies
+     * whose declared type says so.
      */
-    @GetMapping("/metrics/list")
-    public ResponseEntity<ApiResponse<EntitiesResponse>> getProbeMetricsList() {
-        log.info("Request received for /probe/metrics/list");
+    @GetMapping(value = "/metrics", produces = {MediaType.APPLICATION_JSON_VALUE, SnapshotJsonWriter.CBOR_CONTENT_TYPE,
+                                           SnapshotJsonWriter.SMILE_CONTENT_TYPE})
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> getProbeMetrics(
+        @RequestParam(value = "type", required = false) List<String> types,
+        @RequestParam(value = "prefix", required = false) String prefix,
+        @RequestParam(value = "fields", required = false) List<String> fields,
+        @RequestParam(value = "limit", defaultValue = "0") int limit,
+        @RequestParam(value = "cursor", required = false) String cursor,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+
+        log.info("Request received for /probe/metrics with type={}, prefix={}, fields={}, limit={}, cursor={}",
+                 types, prefix, fields, limit, cursor);
+
+        SnapshotJsonWriter.ColumnarFormat columnar = SnapshotJsonWriter.ColumnarFormat.fromAccept(accept);
+        SnapshotJsonWriter writer;
+        try {
+            writer = new SnapshotJsonWriter(types, prefix, fields, limit, cursor);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(streamedError(e.getMessage()));
+        }
+        if (columnar != null && writer.isPaged()) {
+            return CompletableFuture.completedFuture(streamedError("'limit' and 'cursor' are only supported for JSON"));
+        }
 
-        // Ensure metrics are up-to-date
-        serviceBusClientService.collectMetrics();
+        // Answered once the snapshot is up-to-date, without holding the request thread meanwhile
+        return snapshotRefresher.snapshot().thenApply(snapshot -> {
+            String variant = columnar == null ? "json" : columnar.name().toLowerCase();
+            String etag = etag(snapshot, variant);
+            if (matches(ifNoneMatch, etag)) {
+                return notModified(snapshot, etag);
+            }
+            ResponseEntity.BodyBuilder ok = ResponseEntity.ok()
+                                                          .header(HttpHeaders.CONTENT_TYPE,
+                                                                  columnar == null ? MediaType.APPLICATION_JSON_VALUE : columnar.getContentType())
+                                                          .header(HttpHeaders.VARY, HttpHeaders.ACCEPT)
+                                                          .eTag(etag)
+                                                          .lastModified(snapshot.getCollectedAt().toEpochMilli());
+            StreamingResponseBody body = columnar == null
+                ? out -> writer.write(snapshot, out)
+                : out -> writer.writeColumnar(snapshot, columnar, out);
+            if (writer.isUnfiltered()) {
+                // The full body is the same for every poll of a snapshot, render it once and share it
+                byte[] rendered = responseBodyCache.get("metrics:" + variant, snapshot, body::writeTo);
+                return ok.body(out -> out.write(rendered));
+            }
+            return ok.body(body);
+        });
+    }
 
-        List<String> queues = serviceBusClientService.getQueueMetrics().stream()
-                                                     .map(QueueMetric::getName)
-                                                     .collect(Collectors.toList());
+    /**
+     * 400 response with an {@link ApiResponse} error body, for endpoints whose body type is streamed.
+     */
+    private static ResponseEntity<StreamingResponseBody> streamedError(String message) {
+        return ResponseEntity.badRequest()
+                             .contentType(MediaType.APPLICATION_JSON)
+                             .body(out -> out.write(ERROR_JSON.writeValueAsBytes(new ApiResponse<>("error", message))));
+    }
+
+    /**
+     * Streams snapshot changes as server-sent events: a "snapshot" event with all entities matching
+     * type and prefix, then a "delta" event after each collection cycle that changed any of them.
+     * Clients reconnecting with Last-Event-ID are sent only what they missed when possible.
+     * Returned as a bare {@link SseEmitter}, which Spring MVC only recognises by its declared type;
+     * invalid filters and a full stream are answered through {@link ResponseStatusException}.
+     */
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter getProbeStream(
+        @RequestParam(value = "type", required = false) List<String> types,
+        @RequestParam(value = "prefix", required = false) String prefix,
+        @RequestParam(value = "fields", required = false) List<String> fields,
+        @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+
+        log.info("Request received for /probe/stream with type={}, prefix={}, fields={}, Last-Event-ID={}",
+                 types, prefix, fields, lastEventId);
+
+        SnapshotJsonWriter filter;
+        try {
+            filter = new SnapshotJsonWriter(types, prefix, fields, 0, null);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
 
-        List<String> topics = serviceBusClientService.getTopicMetrics().stream()
-                                                     .map(TopicMetric::getName)
-                                                     .collect(Collectors.toList());
+        SseEmitter emitter = new SseEmitter(properties.getStream().getTimeout().toMillis());
+        SnapshotStream.Client client;
+        try {
+            client = snapshotStream.subscribe(filter, lastEventId, new SnapshotStream.Sink() {
+                @Override
+                public void send(SnapshotStream.Event event) throws IOException {
+                    emitter.send(SseEmitter.event()
+                                           .id(event.id())
+                                           .name(event.name())
+                                           .data(event.data(), MediaType.APPLICATION_JSON));
+                }
 
-        List<Map<String, String>> subscriptions = serviceBusClientService.getSubscriptionMetrics().stream()
-                                                                         .map(s -> {
-                                                                             Map<String, String> map = new HashMap<>();
-                                                                             map.put("topic", s.getTopicName());
-                                                                             map.put("subscription", s.getName());
-                                                                             return map;
-                                                                         })
-                                                                         .collect(Collectors.toList());
+                @Override
+                public void close() {
+                    emitter.complete();
+                }
+            });
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage(), e);
+        }
+        emitter.onCompletion(() -> snapshotStream.unsubscribe(client));
+        emitter.onTimeout(() -> snapshotStream.unsubscribe(client));
+        emitter.onError(e -> snapshotStream.unsubscribe(client));
+        return emitter;
+    }
 
-        EntitiesResponse entitiesResponse = new EntitiesResponse(queues, topics, subscriptions);
+    /**
+     * Returns a list of all Service Bus entities
+     */
+    @GetMapping("/metrics/list")
+    public CompletableFuture<ResponseEntity<byte[]>> getProbeMetricsList(
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        log.info("Request received for /probe/metrics/list");
 
-        return ResponseEntity.ok(new ApiResponse<>("success", entitiesResponse));
+        // Answered once the snapshot is up-to-date, without holding the request thread meanwhile
+        return snapshotRefresher.snapshot().thenApply(snapshot -> {
+            String etag = etag(snapshot, "json");
+            if (matches(ifNoneMatch, etag)) {
+                return notModified(snapshot, etag);
+            }
+            byte[] body = responseBodyCache.get("list:json", snapshot,
+                                                out -> SnapshotJsonWriter.writeEntityList(snapshot, out));
+            return ResponseEntity.ok()
+                                 .contentType(MediaType.APPLICATION_JSON)
+                                 .eTag(etag)
+                                 .lastModified(snapshot.getCollectedAt().toEpochMilli())
+                                 .body(body);
+        });
     }
 
     /**
      * Returns metrics for a specific entity (queue, topic, or subscription)
      */
     @GetMapping("/metrics/resource")
-    public ResponseEntity<?> getProbeMetricsResource(
+    public CompletableFuture<ResponseEntity<?>> getProbeMetricsResource(
         @RequestParam("type") String entityType,
         @RequestParam("name") String entityName) {
 
         log.info("Request received for /probe/metrics/resource with type={}, name={}", entityType, entityName);
 
         if (entityType == null || entityName == null) {
-            return ResponseEntity.badRequest().body(
-                new ApiResponse<>("error", "Both 'type' and 'name' query parameters are required"));
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(
+                new ApiResponse<>("error", "Both 'type' and 'name' query parameters are required")));
         }
 
-        // Ensure metrics are up-to-date
-        serviceBusClientService.collectMetrics();
+        // Answered once the snapshot is up-to-date, without holding the request thread meanwhile
+        return snapshotRefresher.snapshot().thenApply(snapshot -> {
+            // The snapshot is immutable and indexed by name, so the lookup needs no copy, scan or lock
+            EntityType type = EntityType.fromLabel(entityType);
+            Object metric = type == null ? null : findMetric(snapshot, type, entityName);
 
-        Object result = switch(entityType.toLowerCase()) {
-            case "queue" -> serviceBusClientService.getQueueMetrics().stream()
-                                                   .filter(q -> q.getName().equals(entityName))
-                                                   .findFirst();
-
-            case "topic" -> serviceBusClientService.getTopicMetrics().stream()
-                                                   .filter(t -> t.getName().equals(entityName))
-                                                   .findFirst();
+            if (metric == null) {
+                return ResponseEntity.status(404).body(
+                    new ApiResponse<>("error", entityType + " with name '" + entityName + "' not found"));
+            }
 
-            case "subscription" -> {
-                // For subscription, name should be in format "topicName/subscriptionName"
-                String[] parts = entityName.split("/", 2);
-                if (parts.length != 2) {
-                    yield Optional.empty();
-                }
+            Map<String, Object> response = new HashMap<>();
+            response.put("status", "success");
+            response.put("timestamp", Instant.now().toString());
+            response.put("entity_type", entityType);
+            response.put("entity_name", entityName);
+            response.put("metrics", metric);
 
-                String topicName = parts[0];
-                String subscriptionName = parts[1];
+            return ResponseEntity.ok(response);
+        });
+    }
 
-                yield serviceBusClientService.getSubscriptionMetrics().stream()
-                                             .filter(s -> s.getTopicName().equals(topicName) && s.getName().equals(subscriptionName))
-                                             .findFirst();
-            }
+    /**
+     * Returns the entities of one type with the highest (or lowest) value of a counter, e.g. the
+     * subscriptions with the most dead letters. by is a counter field name, or sizeUsage for
+     * sizeBytes / maxSizeBytes. Answered from rankings the snapshot builds once, not sorted per request.
+     */
+    @GetMapping("/metrics/top")
+    public CompletableFuture<ResponseEntity<?>> getProbeMetricsTop(
+        @RequestParam("type") String entityType,
+        @RequestParam("by") String by,
+        @RequestParam(value = "limit", defaultValue = "20") int limit,
+        @RequestParam(value = "order", defaultValue = "desc") String order) {
 
-            default -> Optional.empty();
-        };
+        log.info("Request received for /probe/metrics/top with type={}, by={}, limit={}, order={}", entityType, by, limit, order);
 
-        if (result instanceof Optional<?> optional && optional.isEmpty()) {
-            return ResponseEntity.status(404).body(
-                new ApiResponse<>("error", entityType + " with name '" + entityName + "' not found"));
+        EntityType type = EntityType.fromLabel(entityType);
+        if (type == null) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(
+                new ApiResponse<>("error", "Entity type must be one of: queue, topic, subscription")));
         }
+        boolean sizeUsage = SIZE_USAGE.equalsIgnoreCase(by);
+        Counter counter = Counter.fromFieldName(by);
+        if (sizeUsage ? !type.has(Counter.MAX_SIZE_BYTES) : counter == null || !type.has(counter)) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(
+                new ApiResponse<>("error", "'" + by + "' is not available for " + type.getLabel())));
+        }
+        if (limit <= 0 || !("desc".equalsIgnoreCase(order) || "asc".equalsIgnoreCase(order))) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(
+                new ApiResponse<>("error", "'limit' must be positive and 'order' one of: desc, asc")));
+        }
+
+        // Answered once the snapshot is up-to-date, without holding the request thread meanwhile
+        return snapshotRefresher.snapshot().thenApply(snapshot -> {
+            EntityTable table = snapshot.table(type);
+            int[] ranked = sizeUsage ? table.rankedBySizeUsage() : table.rankedBy(counter);
+            boolean ascending = "asc".equalsIgnoreCase(order);
+            int count = Math.min(limit, ranked.length);
+
+            List<Map<String, Object>> entities = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int row = ranked[ascending ? ranked.length - 1 - i : i];
+                Map<String, Object> entity = new LinkedHashMap<>();
+                entity.put("entity_name", table.entityName(row));
+                entity.put("value", sizeUsage ? table.sizeUsage(row) : table.get(row, counter));
+                entity.put("metrics", toMetric(snapshot, type, row));
+                entities.add(entity);
+            }
 
-        if (result instanceof Optional<?> optional) {
             Map<String, Object> response = new HashMap<>();
             response.put("status", "success");
-            response.put("timestamp", Instant.now().toString());
-            response.put("entity_type", entityType);
-            response.put("entity_name", entityName);
-            response.put("metrics", optional.get());
+            response.put("timestamp", snapshot.getCollectedAt().toString());
+            response.put("entity_type", type.getLabel());
+            response.put("by", sizeUsage ? SIZE_USAGE : counter.getFieldName());
+            response.put("order", ascending ? "asc" : "desc");
+            response.put("entities", entities);
 
             return ResponseEntity.ok(response);
+        });
+    }
+
+    /**
+     * Strong validator of a response rendered from the snapshot. The collection time keeps tags
+     * unique across restarts, which start the version over.
+     */
+    private static String etag(MetricsSnapshot snapshot, String variant) {
+        return "\"" + snapshot.getVersion() + "-" + Long.toHexString(snapshot.getCollectedAt().toEpochMilli())
+            + "-" + variant + "\"";
+    }
+
+    /**
+     * Whether an If-None-Match header lists the tag (or "*"); weak tags compare by their value.
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
         }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        return ResponseEntity.badRequest().body(
-            new ApiResponse<>("error", "Entity type must be one of: queue, topic, subscription"));
+    private static <T> ResponseEntity<T> notModified(MetricsSnapshot snapshot, String etag) {
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                             .eTag(etag)
+                             .lastModified(snapshot.getCollectedAt().toEpochMilli())
+                             .build();
     }
 
-    @Data
-    @AllArgsConstructor
-    static class ApiResponse<T> {
-        private String status;
-        private T data;
+    /**
+     * Model object of the named entity, or null if the snapshot has no such entity
+     */
+    private static Object findMetric(MetricsSnapshot snapshot, EntityType type, String entityName) {
+        EntityTable table = snapshot.table(type);
+        int row;
+        if (type == EntityType.SUBSCRIPTION) {
+            // For subscription, name should be in format "topicName/subscriptionName"
+            int separator = entityName.indexOf('/');
+            row = separator < 0 ? -1 : table.rowOf(entityName.substring(0, separator), entityName.substring(separator + 1));
+        } else {
+            row = table.rowOf(entityName);
+        }
+        return row < 0 ? null : toMetric(snapshot, type, row);
     }
 
-    @Data
-    @AllArgsConstructor
-    static class MetricsResponse {
-        private List<QueueMetric> queues;
-        private List<TopicMetric> topics;
-        private List<SubscriptionMetric> subscriptions;
-        private List<NamespaceMetric> namespaces;
+    private static Object toMetric(MetricsSnapshot snapshot, EntityType type, int row) {
+        return switch (type) {
+            case QUEUE -> snapshot.toQueueMetric(row);
+            case TOPIC -> snapshot.toTopicMetric(row);
+            case SUBSCRIPTION -> snapshot.toSubscriptionMetric(row);
+        };
+    }
+
+    /**
+     * Returns the entities slowest to fetch, by average latency, and the entities whose runtime
+     * properties currently fail to be read, longest failure streak first
+     */
+    @GetMapping("/fetches")
+    public ResponseEntity<?> getProbeFetches(@RequestParam(value = "limit", defaultValue = "20") int limit) {
+
+        log.info("Request received for /probe/fetches with limit={}", limit);
+
+        if (limit <= 0) {
+            return ResponseEntity.badRequest().body(new ApiResponse<>("error", "'limit' must be positive"));
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", "success");
+        response.put("tracked", fetchStats.size());
+        response.put("capacity", fetchStats.capacity());
+        response.put("slowest", fetchStats.slowest(limit).stream().map(ProbeController::toFetch).toList());
+        response.put("failing", fetchStats.failing(limit).stream().map(ProbeController::toFetch).toList());
+
+        return ResponseEntity.ok(response);
+    }
+
+    private static Map<String, Object> toFetch(EntityFetchStats.Entry entry) {
+        Map<String, Object> fetch = new LinkedHashMap<>();
+        fetch.put("entity_type", entry.type().getLabel());
+        fetch.put("entity_name", entry.entityName());
+        fetch.put("last_latency_ms", entry.lastLatencyMillis());
+        fetch.put("average_latency_ms", entry.averageLatencyMillis());
+        fetch.put("failure_streak", entry.failureStreak());
+        fetch.put("failures", entry.failures());
+        fetch.put("fetches", entry.fetches());
+        fetch.put("last_error", entry.lastErrorClass());
+        fetch.put("last_fetch", entry.lastFetch().toString());
+        return fetch;
+    }
+
+    /**
+     * Returns the recorded counter history of a specific entity.
+     * from and to are ISO-8601 instants and default to the whole retention window.
+     */
+    @GetMapping("/history")
+    public ResponseEntity<?> getProbeHistory(
+        @RequestParam("type") String entityType,
+        @RequestParam("name") String entityName,
+        @RequestParam(value = "from", required = false) String from,
+        @RequestParam(value = "to", required = false) String to) {
+
+        log.info("Request received for /probe/history with type={}, name={}, from={}, to={}", entityType, entityName, from, to);
+
+        EntityType type = entityType == null ? null : EntityType.fromLabel(entityType.toLowerCase());
+        if (type == null || entityName == null) {
+            return ResponseEntity.badRequest().body(
+                new ApiResponse<>("error", "Entity type must be one of: queue, topic, subscription"));
+        }
+
+        Instant now = Instant.now();
+        Instant fromInstant;
+        Instant toInstant;
+        try {
+            fromInstant = from != null ? Instant.parse(from) : historyStore.oldestRetained(now);
+            toInstant = to != null ? Instant.parse(to) : now;
+        } catch (DateTimeParseException e) {
+            return ResponseEntity.badRequest().body(
+                new ApiResponse<>("error", "'from' and 'to' must be ISO-8601 instants"));
+        }
+
+        String topicName = null;
+        String name = entityName;
+        if (type == EntityType.SUBSCRIPTION) {
+            // For subscription, name should be in format "topicName/subscriptionName"
+            String[] parts = entityName.split("/", 2);
+            if (parts.length != 2) {
+                return ResponseEntity.status(404).body(
+                    new ApiResponse<>("error", entityType + " with name '" + entityName + "' not found"));
+            }
+            topicName = parts[0];
+            name = parts[1];
+        }
+
+        List<HistoryPoint> points = historyStore.query(type, topicName, name, fromInstant, toInstant);
+        if (points == null) {
+            return ResponseEntity.status(404).body(
+                new ApiResponse<>("error", "No history for " + entityType + " with name '" + entityName + "'"));
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", "success");
+        response.put("entity_type", type.getLabel());
+        response.put("entity_name", entityName);
+        response.put("from", fromInstant.toString());
+        response.put("to", toInstant.toString());
+        response.put("points", points);
+
+        return ResponseEntity.ok(response);
     }
 
     @Data
     @AllArgsConstructor
-    static class EntitiesResponse {
-        private List<String> queues;
-        private List<String> topics;
-        private List<Map<String, String>> subscriptions;
+    static class ApiResponse<T> {
+        private String status;
+        private T data;
     }
 }
\ No newline at end of file
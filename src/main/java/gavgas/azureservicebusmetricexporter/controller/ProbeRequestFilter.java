@@ -0,0 +1,79 @@
+package gavgas.azureservicebusmetricexporter.controller;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts /probe requests in flight, from arrival until the response is complete. Requests handled
+ * asynchronously leave the filter as soon as their servlet thread is released and are counted until
+ * their async processing ends. /probe/stream connections stay open for as long as the client
+ * listens, so they are left out and counted by azure_servicebus_exporter_stream_clients instead.
+ */
+@Component
+public class ProbeRequestFilter extends OncePerRequestFilter {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public ProbeRequestFilter(MeterRegistry meterRegistry) {
+        Gauge.builder("azure_servicebus_exporter_probe_requests_in_flight", inFlight, AtomicInteger::get)
+             .description("Probe requests received and not yet answered")
+             .register(meterRegistry);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !path.startsWith("/probe") || path.startsWith("/probe/stream");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+        throws ServletException, IOException {
+        inFlight.incrementAndGet();
+        boolean async = false;
+        try {
+            filterChain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new Completion());
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private final class Completion implements AsyncListener {
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            inFlight.decrementAndGet();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Async processing restarted on the same request, keep listening
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
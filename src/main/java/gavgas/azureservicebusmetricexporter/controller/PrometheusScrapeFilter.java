@@ -0,0 +1,45 @@
+package gavgas.azureservicebusmetricexporter.controller;
+
+import gavgas.azureservicebusmetricexporter.service.CollectionMetrics;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Times scrapes of the actuator Prometheus endpoint, from arrival until the exposition is written,
+ * so the cost of rendering every registered gauge shows up next to the collection meters.
+ */
+@Component
+public class PrometheusScrapeFilter extends OncePerRequestFilter {
+
+    private final CollectionMetrics collectionMetrics;
+    private final String path;
+
+    public PrometheusScrapeFilter(CollectionMetrics collectionMetrics,
+                                  @Value("${management.endpoints.web.base-path:/actuator}") String basePath) {
+        this.collectionMetrics = collectionMetrics;
+        this.path = basePath + "/prometheus";
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().equals(request.getContextPath() + path);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+        throws ServletException, IOException {
+        long start = System.nanoTime();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            collectionMetrics.recordScrape(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package gavgas.azureservicebusmetricexporter.controller;
+
+import gavgas.azureservicebusmetricexporter.service.CollectionMetrics;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serialized response bodies of the current snapshot, one per endpoint and content type, so polls
+ * between collection cycles are answered without rendering again. An entry is replaced once a
+ * request sees a snapshot with another version; concurrent requests for a stale entry wait for a
+ * single render instead of each rendering the same body. Render time is recorded per key.
+ */
+class ResponseBodyCache {
+
+    @FunctionalInterface
+    interface Renderer {
+        void render(OutputStream out) throws IOException;
+    }
+
+    private record Body(long version, byte[] bytes) {
+    }
+
+    private final ConcurrentMap<String, Body> bodies = new ConcurrentHashMap<>();
+    private final CollectionMetrics collectionMetrics;
+
+    ResponseBodyCache(CollectionMetrics collectionMetrics) {
+        this.collectionMetrics = collectionMetrics;
+    }
+
+    /**
+     * Body for the key rendered from the given snapshot, rendering it if the cached one belongs to another snapshot.
+     */
+    byte[] get(String key, MetricsSnapshot snapshot, Renderer renderer) {
+        return bodies.compute(key, (k, cached) -> cached != null && cached.version() == snapshot.getVersion()
+            ? cached
+            : new Body(snapshot.getVersion(), render(key, renderer))).bytes();
+    }
+
+    private byte[] render(String key, Renderer renderer) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            renderer.render(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        collectionMetrics.recordRender(key, System.nanoTime() - start);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,135 @@
+package gavgas.azureservicebusmetricexporter.controller;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.service.ServiceBusClientService;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Hands probe requests an up-to-date snapshot without holding their servlet thread. A fresh
+ * snapshot is returned as a completed future. Otherwise one collection cycle is started on a
+ * dedicated thread and every request arriving while it runs waits on the same future, so a burst of
+ * requests during a slow cycle parks them instead of exhausting the Tomcat pool.
+ * Requests still waiting after the configured wait, or arriving while the maximum number is already
+ * waiting, are answered from the previous snapshot.
+ */
+@Slf4j
+@Component
+public class SnapshotRefresher {
+
+    private final BooleanSupplier fresh;
+    private final Runnable collect;
+    private final Supplier<MetricsSnapshot> currentSnapshot;
+    private final ServiceBusProperties.Probe settings;
+    private final ExecutorService collector = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "probe-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Cycle started for waiting requests, null while none runs
+    private final AtomicReference<CompletableFuture<MetricsSnapshot>> refresh = new AtomicReference<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Counter staleResponses;
+
+    @Autowired
+    public SnapshotRefresher(ServiceBusClientService serviceBusClientService, ServiceBusProperties properties,
+                             MeterRegistry meterRegistry) {
+        this(serviceBusClientService::isCacheFresh, serviceBusClientService::collectMetrics,
+             serviceBusClientService::getSnapshot, properties.getProbe(), meterRegistry);
+    }
+
+    SnapshotRefresher(BooleanSupplier fresh, Runnable collect, Supplier<MetricsSnapshot> currentSnapshot,
+                      ServiceBusProperties.Probe settings, MeterRegistry meterRegistry) {
+        this.fresh = fresh;
+        this.collect = collect;
+        this.currentSnapshot = currentSnapshot;
+        this.settings = settings;
+
+        Gauge.builder("azure_servicebus_exporter_probe_requests_queued", queued, AtomicInteger::get)
+             .description("Probe requests waiting for a collection cycle")
+             .register(meterRegistry);
+        this.staleResponses = Counter.builder("azure_servicebus_exporter_probe_requests_stale")
+                                     .description("Probe requests answered from the previous snapshot because the collection cycle took too long or too many requests were waiting")
+                                     .register(meterRegistry);
+    }
+
+    /**
+     * Snapshot to answer a probe request from, completed once it is up-to-date. Never blocks.
+     */
+    public CompletableFuture<MetricsSnapshot> snapshot() {
+        MetricsSnapshot previous = currentSnapshot.get();
+        if (fresh.getAsBoolean()) {
+            return CompletableFuture.completedFuture(previous);
+        }
+        if (queued.incrementAndGet() > settings.getMaxQueuedRequests()) {
+            queued.decrementAndGet();
+            staleResponses.increment();
+            return CompletableFuture.completedFuture(previous);
+        }
+        Duration wait = settings.getRefreshWait();
+        return refresh().copy()
+                        .completeOnTimeout(null, wait.toMillis(), TimeUnit.MILLISECONDS)
+                        .thenApply(snapshot -> {
+                            queued.decrementAndGet();
+                            if (snapshot == null) {
+                                staleResponses.increment();
+                                return previous;
+                            }
+                            return snapshot;
+                        });
+    }
+
+    /**
+     * Running cycle, or a new one if none runs
+     */
+    private CompletableFuture<MetricsSnapshot> refresh() {
+        while (true) {
+            CompletableFuture<MetricsSnapshot> running = refresh.get();
+            if (running != null) {
+                return running;
+            }
+            CompletableFuture<MetricsSnapshot> started = new CompletableFuture<>();
+            if (refresh.compareAndSet(null, started)) {
+                collector.execute(() -> {
+                    try {
+                        collect.run();
+                    } catch (RuntimeException e) {
+                        log.error("Error refreshing metrics for probe requests", e);
+                    } finally {
+                        refresh.set(null);
+                        started.complete(currentSnapshot.get());
+                    }
+                });
+                return started;
+            }
+        }
+    }
+
+    /**
+     * Number of requests waiting for a collection cycle
+     */
+    int queued() {
+        return queued.get();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        collector.shutdownNow();
+    }
+}
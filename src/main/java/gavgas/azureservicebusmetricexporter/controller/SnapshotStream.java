@@ -0,0 +1,453 @@
+package gavgas.azureservicebusmetricexporter.controller;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.export.SnapshotJsonWriter;
+import gavgas.azureservicebusmetricexporter.service.ServiceBusClientService;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Pushes snapshot changes to the server-sent event clients of /probe/stream.
+ * A new client receives a "snapshot" event with every entity matching its filters, then a "delta"
+ * event per published snapshot with the matching entities added or changed since the previous one
+ * and the ones removed. Event ids name snapshot versions: a client reconnecting with Last-Event-ID
+ * is replayed the deltas it missed while they are still kept, or sent a fresh "snapshot" otherwise.
+ * Events are rendered once per distinct filter and version and written by a small pool of sender
+ * threads. Each client buffers a bounded number of events; a client that falls further behind is
+ * disconnected, so slow consumers do not grow the heap. Writes are blocking, so a watchdog also
+ * disconnects a client whose write has not returned within the write timeout and adds a sender
+ * thread until that write gives up; stuck connections therefore cannot hold up the other clients.
+ */
+@Slf4j
+@Component
+public class SnapshotStream {
+
+    /**
+     * Event written to a client.
+     */
+    public record Event(String id, String name, String data) {
+    }
+
+    /**
+     * Connection of one client.
+     */
+    public interface Sink {
+        void send(Event event) throws IOException;
+
+        void close();
+    }
+
+    // Marks a filter whose delta is empty in the per-dispatch render cache
+    private static final Event NO_EVENT = new Event(null, null, null);
+
+    private final Supplier<MetricsSnapshot> currentSnapshot;
+    private final ServiceBusProperties.Stream settings;
+    // Distinguishes event ids of this process from those of an earlier one, whose versions may repeat
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    // Most recent diffs, oldest first; guarded by this
+    private final ArrayDeque<SnapshotDiff> recent = new ArrayDeque<>();
+    // Full snapshot events of the current version by filter key, shared by clients connecting; guarded by this
+    private final Map<String, String> snapshotEvents = new HashMap<>();
+    private long snapshotEventsVersion = -1;
+    private final ThreadPoolExecutor dispatcher;
+    private final ThreadPoolExecutor senders;
+    private final ScheduledExecutorService watchdog;
+    private final Counter slowDisconnects;
+    private final Counter failedDisconnects;
+    private final Counter timedOutDisconnects;
+
+    @Autowired
+    public SnapshotStream(ServiceBusClientService serviceBusClientService, ServiceBusProperties properties,
+                          MeterRegistry meterRegistry) {
+        this(serviceBusClientService::getSnapshot, properties.getStream(), meterRegistry);
+    }
+
+    SnapshotStream(Supplier<MetricsSnapshot> currentSnapshot, ServiceBusProperties.Stream settings,
+                   MeterRegistry meterRegistry) {
+        this.currentSnapshot = currentSnapshot;
+        this.settings = settings;
+        this.dispatcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                                 new ArrayBlockingQueue<>(Math.max(1, settings.getReplayVersions())),
+                                                 daemonThreads("snapshot-stream-dispatcher"),
+                                                 new ThreadPoolExecutor.DiscardOldestPolicy());
+        int senderThreads = Math.max(1, settings.getSenders());
+        this.senders = new ThreadPoolExecutor(senderThreads, senderThreads, 60, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<>(), daemonThreads("snapshot-stream-sender"));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads("snapshot-stream-watchdog"));
+        long checkMillis = Math.max(10, settings.getWriteTimeout().toMillis() / 4);
+        watchdog.scheduleWithFixedDelay(this::abandonStuckWrites, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+
+        Gauge.builder("azure_servicebus_exporter_stream_clients", clients, Set::size)
+             .description("Clients connected to the snapshot change stream")
+             .register(meterRegistry);
+        this.slowDisconnects = disconnectCounter(meterRegistry, "slow");
+        this.failedDisconnects = disconnectCounter(meterRegistry, "error");
+        this.timedOutDisconnects = disconnectCounter(meterRegistry, "timeout");
+    }
+
+    private static Counter disconnectCounter(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("azure_servicebus_exporter_stream_disconnects")
+                      .tag("reason", reason)
+                      .description("Stream clients disconnected by the exporter, by reason")
+                      .register(meterRegistry);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Connects a client. It is sent the current snapshot, or the deltas since lastEventId if they are still kept.
+     * @throws IllegalStateException if the maximum number of clients is connected
+     */
+    public Client subscribe(SnapshotJsonWriter filter, String lastEventId, Sink sink) {
+        if (clients.size() >= settings.getMaxClients()) {
+            throw new IllegalStateException("Too many stream clients");
+        }
+        Client client = new Client(filter, sink, Math.max(1, settings.getClientBufferSize()));
+        synchronized (this) {
+            MetricsSnapshot current = currentSnapshot.get();
+            long resumeFrom = parseVersion(lastEventId);
+            List<SnapshotDiff> missed = resumeFrom < 0 ? null : missedSince(resumeFrom, current.getVersion());
+            if (missed == null || missed.size() > client.buffer.remainingCapacity()) {
+                if (current.getVersion() > 0) {
+                    offer(client, snapshotEvent(client, current));
+                }
+            } else {
+                for (SnapshotDiff diff : missed) {
+                    Event delta = deltaEvent(client, diff);
+                    if (delta != null) {
+                        offer(client, delta);
+                    }
+                }
+            }
+            client.lastVersion = current.getVersion();
+            if (!client.closed) {
+                clients.add(client);
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Forgets a client whose connection was closed by the client or the container.
+     */
+    public void unsubscribe(Client client) {
+        clients.remove(client);
+        client.closed = true;
+        client.buffer.clear();
+    }
+
+    public int clientCount() {
+        return clients.size();
+    }
+
+    @EventListener
+    public void onSnapshotPublished(SnapshotPublishedEvent event) {
+        // Listeners run on the collecting thread; rendering and fan-out happen on the dispatcher
+        dispatcher.execute(() -> dispatch(event.diff()));
+    }
+
+    synchronized void dispatch(SnapshotDiff diff) {
+        recent.addLast(diff);
+        while (recent.size() > Math.max(1, settings.getReplayVersions())) {
+            recent.removeFirst();
+        }
+        long previousVersion = diff.getPrevious().getVersion();
+        long version = diff.getCurrent().getVersion();
+        Map<String, Event> deltas = new HashMap<>();
+        for (Client client : clients) {
+            if (client.lastVersion >= version) {
+                continue;
+            }
+            if (client.lastVersion == previousVersion) {
+                // Empty deltas are rendered once per filter too, and then not sent
+                Event delta = deltas.computeIfAbsent(client.filterKey, key -> {
+                    Event rendered = deltaEvent(client, diff);
+                    return rendered == null ? NO_EVENT : rendered;
+                });
+                if (delta != NO_EVENT) {
+                    offer(client, delta);
+                }
+            } else {
+                // The client missed a version, e.g. because the dispatcher dropped a diff; resynchronize it
+                offer(client, snapshotEvent(client, diff.getCurrent()));
+            }
+            client.lastVersion = version;
+        }
+    }
+
+    /**
+     * Diffs leading from the version to the current one, or null if they are not all kept.
+     */
+    private List<SnapshotDiff> missedSince(long version, long currentVersion) {
+        List<SnapshotDiff> missed = new ArrayList<>();
+        long expected = version;
+        for (SnapshotDiff diff : recent) {
+            if (diff.getCurrent().getVersion() <= expected) {
+                continue;
+            }
+            if (diff.getPrevious().getVersion() != expected) {
+                return null;
+            }
+            missed.add(diff);
+            expected = diff.getCurrent().getVersion();
+        }
+        return expected == currentVersion ? missed : null;
+    }
+
+    private Event snapshotEvent(Client client, MetricsSnapshot snapshot) {
+        if (snapshotEventsVersion != snapshot.getVersion()) {
+            snapshotEvents.clear();
+            snapshotEventsVersion = snapshot.getVersion();
+        }
+        String data = snapshotEvents.get(client.filterKey);
+        if (data == null) {
+            data = render(out -> client.filter.write(snapshot, out));
+            // Connection storms share renders of the common filters; rare filters are not kept
+            if (snapshotEvents.size() < 16) {
+                snapshotEvents.put(client.filterKey, data);
+            }
+        }
+        return new Event(eventId(snapshot.getVersion()), "snapshot", data);
+    }
+
+    private Event deltaEvent(Client client, SnapshotDiff diff) {
+        int[] written = new int[1];
+        String data = render(out -> written[0] = client.filter.writeDelta(diff, out));
+        return written[0] == 0 ? null : new Event(eventId(diff.getCurrent().getVersion()), "delta", data);
+    }
+
+    private interface Renderer {
+        void render(ByteArrayOutputStream out) throws IOException;
+    }
+
+    private static String render(Renderer renderer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            renderer.render(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private String eventId(long version) {
+        return version + "." + epoch;
+    }
+
+    /**
+     * Version named by an event id of this process, or -1.
+     */
+    private long parseVersion(String eventId) {
+        if (eventId == null) {
+            return -1;
+        }
+        int separator = eventId.indexOf('.');
+        if (separator < 0 || !eventId.substring(separator + 1).equals(epoch)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(eventId.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void offer(Client client, Event event) {
+        if (!client.buffer.offer(event)) {
+            log.debug("Disconnecting stream client that fell {} events behind", client.buffer.size());
+            slowDisconnects.increment();
+            disconnect(client);
+            return;
+        }
+        if (client.draining.compareAndSet(false, true)) {
+            senders.execute(() -> drain(client));
+        }
+    }
+
+    private void drain(Client client) {
+        do {
+            Event event;
+            while (!client.closed && (event = client.buffer.poll()) != null) {
+                if (!send(client, event)) {
+                    return;
+                }
+            }
+            client.draining.set(false);
+            // An event offered after the last poll but before the flag was cleared needs another pass
+        } while (!client.closed && !client.buffer.isEmpty() && client.draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Write one event, watched by {@link #abandonStuckWrites()}.
+     * @return false if the client was disconnected
+     */
+    private boolean send(Client client, Event event) {
+        synchronized (client) {
+            if (client.closed) {
+                return false;
+            }
+            client.sendingThread = Thread.currentThread();
+            client.sendingSince = System.nanoTime();
+        }
+        Exception error = null;
+        try {
+            client.sink.send(event);
+        } catch (Exception e) {
+            error = e;
+        }
+        boolean abandoned;
+        boolean closePending;
+        synchronized (client) {
+            client.sendingThread = null;
+            abandoned = client.abandoned;
+            closePending = client.closePending;
+        }
+        if (abandoned) {
+            // The watchdog added a sender in place of this one while the write was stuck
+            Thread.interrupted();
+            resizeSenders(-1);
+        }
+        if (closePending) {
+            client.sink.close();
+            return false;
+        }
+        if (error != null) {
+            log.debug("Stream client failed: {}", error.getMessage());
+            failedDisconnects.increment();
+            disconnect(client);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Disconnect the clients whose current write has been blocked for longer than the write timeout,
+     * adding a sender thread for each until its write returns.
+     */
+    void abandonStuckWrites() {
+        long timeoutNanos = settings.getWriteTimeout().toNanos();
+        long now = System.nanoTime();
+        for (Client client : clients) {
+            Thread stuck;
+            synchronized (client) {
+                if (client.sendingThread == null || client.abandoned || now - client.sendingSince < timeoutNanos) {
+                    continue;
+                }
+                client.abandoned = true;
+                stuck = client.sendingThread;
+            }
+            log.debug("Disconnecting stream client whose write blocked for more than {}", settings.getWriteTimeout());
+            timedOutDisconnects.increment();
+            resizeSenders(1);
+            disconnect(client);
+            stuck.interrupt();
+        }
+    }
+
+    private void resizeSenders(int delta) {
+        synchronized (senders) {
+            int size = senders.getCorePoolSize() + delta;
+            // The maximum may never be below the core size
+            if (delta > 0) {
+                senders.setMaximumPoolSize(size);
+                senders.setCorePoolSize(size);
+            } else {
+                senders.setCorePoolSize(size);
+                senders.setMaximumPoolSize(size);
+            }
+        }
+    }
+
+    /**
+     * Forget the client and close its connection. A sink in the middle of a write is closed by its
+     * sender once the write returns, since closing it meanwhile would wait for the write.
+     */
+    private void disconnect(Client client) {
+        clients.remove(client);
+        client.closed = true;
+        client.buffer.clear();
+        synchronized (client) {
+            if (client.sendingThread != null) {
+                client.closePending = true;
+                return;
+            }
+        }
+        client.sink.close();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+        dispatcher.shutdownNow();
+        for (Client client : clients) {
+            disconnect(client);
+        }
+        senders.shutdownNow();
+    }
+
+    /**
+     * A connected client with its filter and event buffer.
+     */
+    public static final class Client {
+        private final SnapshotJsonWriter filter;
+        private final String filterKey;
+        private final Sink sink;
+        private final BlockingQueue<Event> buffer;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean closed;
+        // Version the client will be up to date with once its buffer is sent; guarded by the stream
+        private long lastVersion;
+        // Write in progress and what happens once it returns, guarded by this client
+        private Thread sendingThread;
+        private long sendingSince;
+        private boolean abandoned;
+        private boolean closePending;
+
+        private Client(SnapshotJsonWriter filter, Sink sink, int bufferSize) {
+            this.filter = filter;
+            this.filterKey = filter.filterKey();
+            this.sink = sink;
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+
+import java.util.List;
+
+/**
+ * Metric name under which a snapshot counter is pushed to external systems and rendered by /probe.
+ * Counters that also have a gauge on /actuator/prometheus use the gauge's name. The list is a superset
+ * of the gauges: transfer counts and max size have no gauge, and every counter is sent for every
+ * entity type that has it, e.g. scheduled messages of subscriptions.
+ */
+record CounterSeries(Counter counter, String name, String description, String unit) {
+
+    static final List<CounterSeries> ALL = List.of(
+        new CounterSeries(Counter.ACTIVE_MESSAGES, "azure_servicebus_active_messages",
+                          "Number of active messages", "{message}"),
+        new CounterSeries(Counter.DEAD_LETTER_MESSAGES, "azure_servicebus_dead_letter_messages",
+                          "Number of dead letter messages", "{message}"),
+        new CounterSeries(Counter.SCHEDULED_MESSAGES, "azure_servicebus_scheduled_messages",
+                          "Number of scheduled messages", "{message}"),
+        new CounterSeries(Counter.TRANSFER_MESSAGES, "azure_servicebus_transfer_messages",
+                          "Number of messages pending transfer", "{message}"),
+        new CounterSeries(Counter.TRANSFER_DEAD_LETTER_MESSAGES, "azure_servicebus_transfer_dead_letter_messages",
+                          "Number of messages that failed to transfer", "{message}"),
+        new CounterSeries(Counter.TOTAL_MESSAGES, "azure_servicebus_total_messages",
+                          "Total number of messages", "{message}"),
+        new CounterSeries(Counter.SIZE_BYTES, "azure_servicebus_size_bytes",
+                          "Size of the entity in bytes", "By"),
+        new CounterSeries(Counter.MAX_SIZE_BYTES, "azure_servicebus_max_size_bytes",
+                          "Maximum size of the entity in bytes", "By"),
+        new CounterSeries(Counter.SUBSCRIPTION_COUNT, "azure_servicebus_subscription_count",
+                          "Number of subscriptions for the topic", "{subscription}"));
+}
@@ -0,0 +1,188 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptorCache;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes every published snapshot to an OTLP/HTTP endpoint for environments without a Prometheus scraper.
+ * Encoding and sending run on a single background thread so collection is never blocked; if a push is
+ * still running when the next snapshot arrives, only the newest pending snapshot is kept.
+ * Requests that fail with a retryable error go to a bounded retry queue and are resent, oldest first,
+ * before the next snapshot is pushed.
+ * In changed-only mode the snapshot is compared with the last one exported rather than the one published
+ * before it, so changes in a snapshot that was skipped are still sent.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "azure.servicebus.otlp", name = "enabled", havingValue = "true")
+public class OtlpExporter {
+
+    private final ServiceBusProperties.Otlp otlp;
+    private final OtlpMetricsEncoder encoder;
+    private final HttpClient httpClient;
+    private final ThreadPoolExecutor executor;
+
+    // Written by the export thread only; concurrent so the size gauge does not wait for a running export
+    private final Deque<byte[]> retryQueue = new ConcurrentLinkedDeque<>();
+    // Written by the export thread only
+    private MetricsSnapshot lastExported;
+
+    private final Counter sentRequests;
+    private final Counter failedRequests;
+    private final Counter droppedRequests;
+
+    public OtlpExporter(ServiceBusProperties properties, MeterRegistry meterRegistry, EntityDescriptorCache labels) {
+        this.otlp = properties.getOtlp();
+        this.encoder = new OtlpMetricsEncoder(otlp.getBatchSize(), otlp.isCompression(), properties.getEnvironment(),
+                                              labels);
+        this.httpClient = HttpClient.newBuilder()
+                                    .connectTimeout(otlp.getTimeout())
+                                    .build();
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1), runnable -> {
+            Thread thread = new Thread(runnable, "otlp-exporter");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardOldestPolicy());
+
+        this.sentRequests = requestCounter(meterRegistry, "sent");
+        this.failedRequests = requestCounter(meterRegistry, "failed");
+        this.droppedRequests = requestCounter(meterRegistry, "dropped");
+        Gauge.builder("azure_servicebus_exporter_otlp_retry_queue_size", this, OtlpExporter::retryQueueSize)
+             .description("Failed OTLP requests waiting to be resent")
+             .register(meterRegistry);
+
+        log.info("OTLP export enabled to {}", otlp.getEndpoint());
+    }
+
+    private static Counter requestCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("azure_servicebus_exporter_otlp_requests")
+                      .tag("result", result)
+                      .description("OTLP export requests by result")
+                      .register(meterRegistry);
+    }
+
+    @EventListener
+    public void onSnapshotPublished(SnapshotPublishedEvent event) {
+        executor.execute(() -> export(event.snapshot(), event.diff()));
+    }
+
+    synchronized void export(MetricsSnapshot snapshot, SnapshotDiff diff) {
+        boolean available = resendQueued();
+
+        List<byte[]> requests;
+        try {
+            if (otlp.isChangedOnly() && lastExported != null && diff.getPrevious() != lastExported) {
+                // Snapshots published while an export was running were skipped
+                diff = SnapshotDiff.between(lastExported, snapshot);
+            }
+            requests = encoder.encode(snapshot, diff, otlp.isChangedOnly());
+        } catch (Exception e) {
+            log.error("Error encoding snapshot for OTLP export", e);
+            return;
+        }
+        lastExported = snapshot;
+
+        for (byte[] body : requests) {
+            if (available && send(body)) {
+                continue;
+            }
+            // Keep the order: once a request failed, the rest of the cycle goes to the retry queue
+            available = false;
+            enqueue(body);
+        }
+        log.debug("OTLP export of {} requests done, {} queued for retry", requests.size(), retryQueue.size());
+    }
+
+    private boolean resendQueued() {
+        while (!retryQueue.isEmpty()) {
+            if (!send(retryQueue.peekFirst())) {
+                return false;
+            }
+            retryQueue.pollFirst();
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the request should be retried
+     */
+    private boolean send(byte[] body) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(otlp.getEndpoint()))
+                                                 .timeout(otlp.getTimeout())
+                                                 .header("Content-Type", "application/json")
+                                                 .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        if (otlp.isCompression()) {
+            request.header("Content-Encoding", "gzip");
+        }
+        otlp.getHeaders().forEach(request::header);
+
+        try {
+            HttpResponse<String> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            int status = response.statusCode();
+            if (status / 100 == 2) {
+                sentRequests.increment();
+                return true;
+            }
+            failedRequests.increment();
+            if (status == 429 || status / 100 == 5) {
+                log.warn("OTLP endpoint returned {}, request will be retried", status);
+                return false;
+            }
+            // Not retryable: the request itself is rejected
+            log.error("OTLP endpoint rejected request with {}: {}", status, response.body());
+            droppedRequests.increment();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failedRequests.increment();
+            return false;
+        } catch (Exception e) {
+            log.warn("OTLP request failed, will be retried: {}", e.getMessage());
+            failedRequests.increment();
+            return false;
+        }
+    }
+
+    private void enqueue(byte[] body) {
+        if (otlp.getRetryQueueSize() <= 0) {
+            droppedRequests.increment();
+            return;
+        }
+        if (retryQueue.size() >= otlp.getRetryQueueSize()) {
+            retryQueue.pollFirst();
+            droppedRequests.increment();
+        }
+        retryQueue.addLast(body);
+    }
+
+    int retryQueueSize() {
+        return retryQueue.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,200 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptorCache;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes a snapshot as OTLP/HTTP JSON ExportMetricsServiceRequests, one gauge per counter.
+ * Data points are streamed straight into the (optionally gzipped) request body and split into
+ * requests of at most batchSize points. Namespace and environment are resource attributes;
+ * the labels set by label rules are attributes of every data point, as on the gauges.
+ */
+final class OtlpMetricsEncoder {
+
+    static final String SCOPE = "azure-servicebus-metric-exporter";
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final int batchSize;
+    private final boolean gzip;
+    private final String environment;
+    private final EntityDescriptorCache labels;
+
+    OtlpMetricsEncoder(int batchSize, boolean gzip, String environment, EntityDescriptorCache labels) {
+        this.batchSize = Math.max(1, batchSize);
+        this.gzip = gzip;
+        this.environment = environment;
+        this.labels = labels;
+    }
+
+    /**
+     * Request bodies for the snapshot; with changedOnly only counters of added or changed entities.
+     */
+    List<byte[]> encode(MetricsSnapshot snapshot, SnapshotDiff diff, boolean changedOnly) {
+        List<byte[]> requests = new ArrayList<>();
+        Request request = null;
+
+        try {
+            for (CounterSeries series : CounterSeries.ALL) {
+                for (EntityType type : EntityType.values()) {
+                    int column = type.columnOf(series.counter());
+                    if (column < 0) {
+                        continue;
+                    }
+                    EntityTable table = snapshot.table(type);
+                    int[] rows = changedOnly ? changedRows(diff.table(type), series.counter()) : null;
+                    int count = rows != null ? rows.length : table.size();
+
+                    for (int i = 0; i < count; i++) {
+                        int row = rows != null ? rows[i] : i;
+                        long value = table.getColumn(row, column);
+                        if (value == Counter.NO_VALUE) {
+                            continue;
+                        }
+                        if (request == null) {
+                            request = new Request(snapshot.getNamespace());
+                        }
+                        request.point(series, table, row, value);
+                        if (request.points == batchSize) {
+                            requests.add(request.finish());
+                            request = null;
+                        }
+                    }
+                }
+            }
+            if (request != null) {
+                requests.add(request.finish());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return requests;
+    }
+
+    private static int[] changedRows(SnapshotDiff.TableDiff tableDiff, Counter counter) {
+        int[] rows = new int[tableDiff.addedCount() + tableDiff.changedCount()];
+        int count = 0;
+        for (int i = 0; i < tableDiff.addedCount(); i++) {
+            rows[count++] = tableDiff.addedRow(i);
+        }
+        for (int i = 0; i < tableDiff.changedCount(); i++) {
+            if (tableDiff.isChanged(i, counter)) {
+                rows[count++] = tableDiff.changedRow(i);
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * One request body being written.
+     */
+    private final class Request {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final JsonGenerator json;
+        private final String namespace;
+        private CounterSeries metric;
+        private int points;
+
+        Request(String namespace) throws IOException {
+            OutputStream out = gzip ? new GZIPOutputStream(bytes) : bytes;
+            json = jsonFactory.createGenerator(out);
+            this.namespace = namespace;
+            json.writeStartObject();
+            json.writeArrayFieldStart("resourceMetrics");
+            json.writeStartObject();
+            json.writeObjectFieldStart("resource");
+            json.writeArrayFieldStart("attributes");
+            attribute("service.name", SCOPE);
+            attribute("namespace", namespace);
+            if (environment != null) {
+                attribute("environment", environment);
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeArrayFieldStart("scopeMetrics");
+            json.writeStartObject();
+            json.writeObjectFieldStart("scope");
+            json.writeStringField("name", SCOPE);
+            json.writeEndObject();
+            json.writeArrayFieldStart("metrics");
+        }
+
+        void point(CounterSeries series, EntityTable table, int row, long value) throws IOException {
+            if (metric != series) {
+                endMetric();
+                metric = series;
+                json.writeStartObject();
+                json.writeStringField("name", series.name());
+                json.writeStringField("description", series.description());
+                json.writeStringField("unit", series.unit());
+                json.writeObjectFieldStart("gauge");
+                json.writeArrayFieldStart("dataPoints");
+            }
+
+            json.writeStartObject();
+            json.writeArrayFieldStart("attributes");
+            attribute("entity_type", table.getType().getLabel());
+            attribute("entity_name", table.entityName(row));
+            if (table.getType() == EntityType.SUBSCRIPTION) {
+                attribute("topic_name", table.topicName(row));
+                attribute("subscription_name", table.name(row));
+            }
+            String[] ruleLabelNames = labels.ruleLabelNames();
+            if (ruleLabelNames.length > 0) {
+                String[] ruleLabelValues = labels.ruleLabelValues(namespace, table, row);
+                for (int label = 0; label < ruleLabelNames.length; label++) {
+                    attribute(ruleLabelNames[label], ruleLabelValues[label]);
+                }
+            }
+            json.writeEndArray();
+            // When the values were read, not when the snapshot was published
+            json.writeStringField("timeUnixNano", Long.toString(table.collectedAt(row) * 1_000_000L));
+            json.writeStringField("asInt", Long.toString(value));
+            json.writeEndObject();
+            points++;
+        }
+
+        private void endMetric() throws IOException {
+            if (metric != null) {
+                json.writeEndArray();
+                json.writeEndObject();
+                json.writeEndObject();
+            }
+        }
+
+        byte[] finish() throws IOException {
+            endMetric();
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeEndObject();
+            json.close();
+            return bytes.toByteArray();
+        }
+
+        private void attribute(String key, String value) throws IOException {
+            json.writeStartObject();
+            json.writeStringField("key", key);
+            json.writeObjectFieldStart("value");
+            json.writeStringField("stringValue", value);
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+    }
+}
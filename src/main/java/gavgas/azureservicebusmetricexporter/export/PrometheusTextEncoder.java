@@ -0,0 +1,138 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptorCache;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+
+/**
+ * Renders a snapshot in the Prometheus text or OpenMetrics exposition format, for snapshots that
+ * are not registered as gauges (probed targets) and for scrapes that need sample timestamps.
+ * Series names and labels match the registered gauges, including the labels set by the label rules.
+ * Every sample carries the time its entity was read, so Prometheus stores values at collection time
+ * rather than at scrape time.
+ */
+public final class PrometheusTextEncoder {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String OPENMETRICS_CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private final String environment;
+    private final boolean openMetrics;
+    private final EntityDescriptorCache labels;
+
+    /**
+     * @param labels source of the rule labels of each entity
+     */
+    public PrometheusTextEncoder(String environment, boolean openMetrics, EntityDescriptorCache labels) {
+        this.environment = environment == null ? "" : environment;
+        this.openMetrics = openMetrics;
+        this.labels = labels;
+    }
+
+    /**
+     * Whether an Accept header asks for OpenMetrics.
+     */
+    public static boolean acceptsOpenMetrics(String accept) {
+        return accept != null && accept.contains("application/openmetrics-text");
+    }
+
+    public String contentType() {
+        return openMetrics ? OPENMETRICS_CONTENT_TYPE : CONTENT_TYPE;
+    }
+
+    public void encode(MetricsSnapshot snapshot, StringBuilder out) {
+        String[] ruleLabelNames = labels.ruleLabelNames();
+        for (CounterSeries series : CounterSeries.ALL) {
+            boolean header = false;
+            for (EntityType type : EntityType.values()) {
+                int column = type.columnOf(series.counter());
+                if (column < 0) {
+                    continue;
+                }
+                EntityTable table = snapshot.table(type);
+                for (int row = 0; row < table.size(); row++) {
+                    long value = table.getColumn(row, column);
+                    if (value == Counter.NO_VALUE) {
+                        continue;
+                    }
+                    if (!header) {
+                        appendHeader(out, series.name(), series.description());
+                        header = true;
+                    }
+                    out.append(series.name()).append('{');
+                    appendLabel(out, "entity_type", type.getLabel()).append(',');
+                    appendLabel(out, "entity_name", table.entityName(row)).append(',');
+                    appendLabel(out, "namespace", snapshot.getNamespace()).append(',');
+                    appendLabel(out, "environment", environment);
+                    if (type == EntityType.SUBSCRIPTION) {
+                        out.append(',');
+                        appendLabel(out, "topic_name", table.topicName(row)).append(',');
+                        appendLabel(out, "subscription_name", table.name(row));
+                    }
+                    if (ruleLabelNames.length > 0) {
+                        String[] ruleLabelValues = labels.ruleLabelValues(snapshot.getNamespace(), table, row);
+                        for (int label = 0; label < ruleLabelNames.length; label++) {
+                            out.append(',');
+                            appendLabel(out, ruleLabelNames[label], ruleLabelValues[label]);
+                        }
+                    }
+                    out.append("} ").append(value).append(' ');
+                    appendTimestamp(out, table.collectedAt(row));
+                    out.append('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a single unlabeled gauge without timestamp, e.g. probe_success.
+     */
+    public void appendGauge(StringBuilder out, String name, String help, double value) {
+        appendHeader(out, name, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Terminate the exposition; required by OpenMetrics.
+     */
+    public void finish(StringBuilder out) {
+        if (openMetrics) {
+            out.append("# EOF\n");
+        }
+    }
+
+    // Milliseconds in the Prometheus text format, seconds in OpenMetrics
+    private void appendTimestamp(StringBuilder out, long epochMillis) {
+        if (!openMetrics) {
+            out.append(epochMillis);
+            return;
+        }
+        long millis = Math.floorMod(epochMillis, 1000L);
+        out.append(Math.floorDiv(epochMillis, 1000L)).append('.');
+        if (millis < 100) {
+            out.append(millis < 10 ? "00" : "0");
+        }
+        out.append(millis);
+    }
+
+    private static void appendHeader(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+    }
+
+    private static StringBuilder appendLabel(StringBuilder out, String name, String value) {
+        out.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+        return out.append('"');
+    }
+}
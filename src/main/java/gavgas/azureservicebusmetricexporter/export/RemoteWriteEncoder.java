@@ -0,0 +1,228 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptorCache;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes a snapshot as Prometheus remote-write WriteRequests (protobuf, snappy compressed).
+ * All series of an entity go to the same shard, so samples of a series are always sent in order.
+ * A request is cut every maxSamples samples; every sample carries the time its entity was read.
+ * Series carry the labels set by label rules next to the fixed labels, as the gauges do.
+ */
+final class RemoteWriteEncoder {
+
+    /**
+     * Receives the compressed request bodies.
+     */
+    interface Sink {
+        void accept(int shard, byte[] body, int samples);
+    }
+
+    private static final byte[][] SERIES_NAMES = CounterSeries.ALL.stream()
+                                                                  .map(series -> utf8(series.name()))
+                                                                  .toArray(byte[][]::new);
+
+    private final byte[] environment;
+    private final EntityDescriptorCache labels;
+
+    // All label names in the sorted order remote-write requires, and the position of each label in it
+    private final byte[][] labelNames;
+    private final int nameSlot;
+    private final int entityNameSlot;
+    private final int entityTypeSlot;
+    private final int environmentSlot;
+    private final int namespaceSlot;
+    private final int subscriptionNameSlot;
+    private final int topicNameSlot;
+    private final int[] ruleLabelSlots;
+
+    RemoteWriteEncoder(String environment, EntityDescriptorCache labels) {
+        this.environment = environment == null ? null : utf8(environment);
+        this.labels = labels;
+
+        String[] ruleLabelNames = labels.ruleLabelNames();
+        List<String> names = new ArrayList<>(List.of(
+            "__name__", "entity_name", "entity_type", "environment", "namespace", "subscription_name", "topic_name"));
+        names.addAll(List.of(ruleLabelNames));
+        names.sort(null);
+        this.labelNames = names.stream().map(RemoteWriteEncoder::utf8).toArray(byte[][]::new);
+        this.nameSlot = names.indexOf("__name__");
+        this.entityNameSlot = names.indexOf("entity_name");
+        this.entityTypeSlot = names.indexOf("entity_type");
+        this.environmentSlot = names.indexOf("environment");
+        this.namespaceSlot = names.indexOf("namespace");
+        this.subscriptionNameSlot = names.indexOf("subscription_name");
+        this.topicNameSlot = names.indexOf("topic_name");
+        this.ruleLabelSlots = new int[ruleLabelNames.length];
+        for (int label = 0; label < ruleLabelNames.length; label++) {
+            ruleLabelSlots[label] = names.indexOf(ruleLabelNames[label]);
+        }
+    }
+
+    void encode(MetricsSnapshot snapshot, int shards, int maxSamples, Sink sink) {
+        byte[] namespace = utf8(snapshot.getNamespace());
+        ProtoBuffer[] buffers = new ProtoBuffer[shards];
+        int[] samples = new int[shards];
+
+        for (EntityType type : EntityType.values()) {
+            EntityTable table = snapshot.table(type);
+            byte[] typeLabel = utf8(type.getLabel());
+            for (int row = 0; row < table.size(); row++) {
+                String entityName = table.entityName(row);
+                long timestamp = table.collectedAt(row);
+                int shard = Math.floorMod(entityName.hashCode() * 31 + type.ordinal(), shards);
+                if (buffers[shard] == null) {
+                    buffers[shard] = new ProtoBuffer(labelNames);
+                }
+                ProtoBuffer buffer = buffers[shard];
+
+                byte[][] labelValues = new byte[labelNames.length][];
+                labelValues[entityNameSlot] = utf8(entityName);
+                labelValues[entityTypeSlot] = typeLabel;
+                labelValues[environmentSlot] = environment;
+                labelValues[namespaceSlot] = namespace;
+                if (type == EntityType.SUBSCRIPTION) {
+                    labelValues[subscriptionNameSlot] = utf8(table.name(row));
+                    labelValues[topicNameSlot] = utf8(table.topicName(row));
+                }
+                if (ruleLabelSlots.length > 0) {
+                    String[] ruleLabelValues = labels.ruleLabelValues(snapshot.getNamespace(), table, row);
+                    for (int label = 0; label < ruleLabelSlots.length; label++) {
+                        labelValues[ruleLabelSlots[label]] = utf8(ruleLabelValues[label]);
+                    }
+                }
+                for (int s = 0; s < SERIES_NAMES.length; s++) {
+                    int column = type.columnOf(CounterSeries.ALL.get(s).counter());
+                    long value = column < 0 ? Counter.NO_VALUE : table.getColumn(row, column);
+                    if (value == Counter.NO_VALUE) {
+                        continue;
+                    }
+                    labelValues[nameSlot] = SERIES_NAMES[s];
+                    buffer.timeSeries(labelValues, value, timestamp);
+                    if (++samples[shard] == maxSamples) {
+                        sink.accept(shard, buffer.compress(), samples[shard]);
+                        buffer.reset();
+                        samples[shard] = 0;
+                    }
+                }
+            }
+        }
+
+        for (int shard = 0; shard < shards; shard++) {
+            if (samples[shard] > 0) {
+                sink.accept(shard, buffers[shard].compress(), samples[shard]);
+            }
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Growable protobuf writer for the WriteRequest message.
+     */
+    static final class ProtoBuffer {
+
+        // Label names in the sorted order remote-write requires, aligned with the label values
+        private final byte[][] labelNames;
+
+        private byte[] bytes = new byte[64 * 1024];
+        private int size;
+
+        ProtoBuffer(byte[][] labelNames) {
+            this.labelNames = labelNames;
+        }
+
+        /**
+         * Append WriteRequest.timeseries (1) { labels (1) ..., samples (2) { value (1), timestamp (2) } }.
+         * Null label values are skipped.
+         */
+        void timeSeries(byte[][] labelValues, long value, long timestamp) {
+            int labelsSize = 0;
+            for (int i = 0; i < labelValues.length; i++) {
+                if (labelValues[i] != null) {
+                    int labelSize = labelSize(labelNames[i], labelValues[i]);
+                    labelsSize += 1 + varintSize(labelSize) + labelSize;
+                }
+            }
+            int sampleSize = 1 + 8 + 1 + varintSize(timestamp);
+            int seriesSize = labelsSize + 1 + varintSize(sampleSize) + sampleSize;
+
+            ensureCapacity(1 + varintSize(seriesSize) + seriesSize);
+            writeByte(0x0a);
+            writeVarint(seriesSize);
+            for (int i = 0; i < labelValues.length; i++) {
+                if (labelValues[i] != null) {
+                    writeByte(0x0a);
+                    writeVarint(labelSize(labelNames[i], labelValues[i]));
+                    writeBytes(0x0a, labelNames[i]);
+                    writeBytes(0x12, labelValues[i]);
+                }
+            }
+            writeByte(0x12);
+            writeVarint(sampleSize);
+            writeByte(0x09);
+            long bits = Double.doubleToRawLongBits(value);
+            for (int i = 0; i < 8; i++) {
+                writeByte((int) (bits >>> (8 * i)));
+            }
+            writeByte(0x10);
+            writeVarint(timestamp);
+        }
+
+        byte[] compress() {
+            return Snappy.compress(bytes, size);
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        private static int labelSize(byte[] name, byte[] value) {
+            return 1 + varintSize(name.length) + name.length + 1 + varintSize(value.length) + value.length;
+        }
+
+        private static int varintSize(long value) {
+            int size = 1;
+            while ((value & ~0x7fL) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        private void writeBytes(int tag, byte[] value) {
+            writeByte(tag);
+            writeVarint(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void writeByte(int value) {
+            bytes[size++] = (byte) value;
+        }
+    }
+}
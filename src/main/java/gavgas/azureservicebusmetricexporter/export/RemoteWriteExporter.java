@@ -0,0 +1,209 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptorCache;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes every published snapshot to a Prometheus remote-write endpoint.
+ * A snapshot is encoded on a background thread (only the newest pending snapshot is kept) into
+ * snappy-compressed requests that are spread over a fixed number of shards. Each shard has its own
+ * sender thread and a bounded request queue that drops the oldest request when full, so memory stays
+ * bounded when the endpoint is slow or down. An entity always maps to the same shard, which keeps
+ * the samples of every series in timestamp order.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "azure.servicebus.remote-write", name = "enabled", havingValue = "true")
+public class RemoteWriteExporter {
+
+    private final ServiceBusProperties.RemoteWrite remoteWrite;
+    private final URI url;
+    private final RemoteWriteEncoder encoder;
+    private final HttpClient httpClient;
+    private final ThreadPoolExecutor encoderExecutor;
+    private final Shard[] shards;
+
+    private final Counter sentSamples;
+    private final Counter failedRequests;
+    private final Counter droppedSamples;
+
+    public RemoteWriteExporter(ServiceBusProperties properties, MeterRegistry meterRegistry, EntityDescriptorCache labels) {
+        this.remoteWrite = properties.getRemoteWrite();
+        if (remoteWrite.getUrl() == null || remoteWrite.getUrl().isBlank()) {
+            throw new IllegalArgumentException("azure.servicebus.remote-write.url is required when remote write is enabled");
+        }
+        this.url = URI.create(remoteWrite.getUrl());
+        this.encoder = new RemoteWriteEncoder(properties.getEnvironment(), labels);
+        this.httpClient = HttpClient.newBuilder()
+                                    .connectTimeout(remoteWrite.getTimeout())
+                                    .build();
+        this.encoderExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1), runnable -> {
+            Thread thread = new Thread(runnable, "remote-write-encoder");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardOldestPolicy());
+
+        this.sentSamples = sampleCounter(meterRegistry, "sent");
+        this.droppedSamples = sampleCounter(meterRegistry, "dropped");
+        this.failedRequests = Counter.builder("azure_servicebus_exporter_remote_write_failed_requests")
+                                     .description("Remote-write requests that failed, including retried ones")
+                                     .register(meterRegistry);
+        Gauge.builder("azure_servicebus_exporter_remote_write_pending_requests", this, RemoteWriteExporter::pendingRequests)
+             .description("Remote-write requests waiting to be sent")
+             .register(meterRegistry);
+
+        this.shards = new Shard[Math.max(1, remoteWrite.getShards())];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(Math.max(1, remoteWrite.getQueueCapacity()));
+            Thread thread = new Thread(shards[i], "remote-write-shard-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        log.info("Remote write enabled to {} with {} shards", url, shards.length);
+    }
+
+    private static Counter sampleCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("azure_servicebus_exporter_remote_write_samples")
+                      .tag("result", result)
+                      .description("Remote-write samples by result")
+                      .register(meterRegistry);
+    }
+
+    @EventListener
+    public void onSnapshotPublished(SnapshotPublishedEvent event) {
+        encoderExecutor.execute(() -> enqueue(event.snapshot()));
+    }
+
+    void enqueue(MetricsSnapshot snapshot) {
+        try {
+            encoder.encode(snapshot, shards.length, Math.max(1, remoteWrite.getMaxSamplesPerSend()),
+                           (shard, body, samples) -> shards[shard].offer(new Batch(body, samples)));
+        } catch (Exception e) {
+            log.error("Error encoding snapshot for remote write", e);
+        }
+    }
+
+    int pendingRequests() {
+        int pending = 0;
+        for (Shard shard : shards) {
+            pending += shard.queue.size();
+        }
+        return pending;
+    }
+
+    /**
+     * @return true if the request is done with, either sent or rejected as not retryable
+     */
+    private boolean send(Batch batch) throws InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(url)
+                                                 .timeout(remoteWrite.getTimeout())
+                                                 .header("Content-Type", "application/x-protobuf")
+                                                 .header("Content-Encoding", "snappy")
+                                                 .header("X-Prometheus-Remote-Write-Version", "0.1.0")
+                                                 .POST(HttpRequest.BodyPublishers.ofByteArray(batch.body()));
+        remoteWrite.getHeaders().forEach(request::header);
+
+        try {
+            HttpResponse<String> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            int status = response.statusCode();
+            if (status / 100 == 2) {
+                sentSamples.increment(batch.samples());
+                return true;
+            }
+            failedRequests.increment();
+            if (status == 429 || status / 100 == 5) {
+                log.warn("Remote-write endpoint returned {}", status);
+                return false;
+            }
+            // Not retryable: the samples themselves are rejected, e.g. out of order
+            log.error("Remote-write endpoint rejected request with {}: {}", status, response.body());
+            droppedSamples.increment(batch.samples());
+            return true;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            log.warn("Remote-write request failed: {}", e.getMessage());
+            failedRequests.increment();
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        encoderExecutor.shutdownNow();
+        for (Shard shard : shards) {
+            shard.running = false;
+        }
+    }
+
+    private record Batch(byte[] body, int samples) {
+    }
+
+    private final class Shard implements Runnable {
+
+        private final BlockingQueue<Batch> queue;
+        private volatile boolean running = true;
+
+        private Shard(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        private void offer(Batch batch) {
+            while (!queue.offer(batch)) {
+                Batch dropped = queue.poll();
+                if (dropped != null) {
+                    droppedSamples.increment(dropped.samples());
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    Batch batch = queue.poll(1, TimeUnit.SECONDS);
+                    if (batch != null) {
+                        sendWithRetries(batch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void sendWithRetries(Batch batch) throws InterruptedException {
+            long backoff = remoteWrite.getRetryBackoff().toMillis();
+            for (int attempt = 0; running; attempt++) {
+                if (send(batch)) {
+                    return;
+                }
+                if (attempt >= remoteWrite.getMaxRetries()) {
+                    break;
+                }
+                Thread.sleep(backoff);
+                backoff *= 2;
+            }
+            droppedSamples.increment(batch.samples());
+        }
+    }
+}
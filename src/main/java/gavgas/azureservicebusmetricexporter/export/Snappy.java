@@ -0,0 +1,111 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import java.util.Arrays;
+
+/**
+ * Snappy block format compressor, as required by the Prometheus remote-write protocol.
+ * Greedy single-pass matcher over 64 KiB blocks with a 16K-entry hash table; the output is
+ * readable by any snappy decoder but not as dense as the reference implementation.
+ */
+final class Snappy {
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int HASH_BITS = 14;
+    private static final int MIN_COMPRESSIBLE = 15;
+
+    private Snappy() {
+    }
+
+    static byte[] compress(byte[] input, int length) {
+        byte[] out = new byte[32 + length + length / 6];
+        int[] table = new int[1 << HASH_BITS];
+        int pos = writeVarint(out, 0, length);
+        for (int blockStart = 0; blockStart < length; blockStart += BLOCK_SIZE) {
+            pos = compressBlock(input, blockStart, Math.min(length, blockStart + BLOCK_SIZE), out, pos, table);
+        }
+        return Arrays.copyOf(out, pos);
+    }
+
+    private static int compressBlock(byte[] in, int start, int end, byte[] out, int pos, int[] table) {
+        int literalStart = start;
+        if (end - start >= MIN_COMPRESSIBLE) {
+            Arrays.fill(table, -1);
+            int ip = start;
+            int limit = end - 4;
+            while (ip <= limit) {
+                int value = readInt(in, ip);
+                int hash = (value * 0x1e35a7bd) >>> (32 - HASH_BITS);
+                int candidate = table[hash];
+                table[hash] = ip;
+                if (candidate < 0 || readInt(in, candidate) != value) {
+                    ip++;
+                    continue;
+                }
+                int matchLength = 4;
+                while (ip + matchLength < end && in[candidate + matchLength] == in[ip + matchLength]) {
+                    matchLength++;
+                }
+                pos = emitLiteral(in, literalStart, ip - literalStart, out, pos);
+                pos = emitCopy(ip - candidate, matchLength, out, pos);
+                ip += matchLength;
+                literalStart = ip;
+            }
+        }
+        return emitLiteral(in, literalStart, end - literalStart, out, pos);
+    }
+
+    private static int emitLiteral(byte[] in, int start, int length, byte[] out, int pos) {
+        if (length == 0) {
+            return pos;
+        }
+        int n = length - 1;
+        if (n < 60) {
+            out[pos++] = (byte) (n << 2);
+        } else {
+            int bytes = n < (1 << 8) ? 1 : n < (1 << 16) ? 2 : n < (1 << 24) ? 3 : 4;
+            out[pos++] = (byte) ((59 + bytes) << 2);
+            for (int i = 0; i < bytes; i++) {
+                out[pos++] = (byte) (n >>> (8 * i));
+            }
+        }
+        System.arraycopy(in, start, out, pos, length);
+        return pos + length;
+    }
+
+    private static int emitCopy(int offset, int length, byte[] out, int pos) {
+        while (length >= 68) {
+            pos = emitCopy2(offset, 64, out, pos);
+            length -= 64;
+        }
+        if (length > 64) {
+            pos = emitCopy2(offset, 60, out, pos);
+            length -= 60;
+        }
+        if (length <= 11 && offset < 2048) {
+            out[pos++] = (byte) (1 | ((length - 4) << 2) | ((offset >>> 8) << 5));
+            out[pos++] = (byte) offset;
+            return pos;
+        }
+        return emitCopy2(offset, length, out, pos);
+    }
+
+    private static int emitCopy2(int offset, int length, byte[] out, int pos) {
+        out[pos++] = (byte) (2 | ((length - 1) << 2));
+        out[pos++] = (byte) offset;
+        out[pos++] = (byte) (offset >>> 8);
+        return pos;
+    }
+
+    private static int readInt(byte[] in, int i) {
+        return (in[i] & 0xff) | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff) << 16 | (in[i + 3] & 0xff) << 24;
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7f) != 0) {
+            out[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+}
@@ -0,0 +1,514 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import gavgas.azureservicebusmetricexporter.model.NamespaceMetric;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streams the entities of a snapshot as JSON straight from its entity tables, in the shape of the
+ * /probe/metrics response. No model objects or list copies are created, so the heap used per
+ * response stays the same however large the namespace is.
+ * Entities can be restricted by type and name prefix (topic/subscription for subscriptions) and
+ * projected to a set of fields. With a limit, a page ends after that many entities and carries a
+ * cursor naming the last entity written; the next page resumes after that entity, looked up by
+ * name so a snapshot refresh between pages neither repeats nor skips entities that still exist.
+ * The same selection can also be written column by column in a binary encoding, see
+ * {@link #writeColumnar(MetricsSnapshot, ColumnarFormat, OutputStream)}.
+ */
+public final class SnapshotJsonWriter {
+
+    public static final String CBOR_CONTENT_TYPE = "application/cbor";
+    public static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+                                                               .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+                                                               .build();
+
+    /**
+     * Binary encodings of the columnar layout, negotiated through the Accept header.
+     */
+    public enum ColumnarFormat {
+        CBOR(CBOR_CONTENT_TYPE, CBORFactory.builder()
+                                           .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+                                           .build()),
+        // Names repeat across the topicName column, let Smile back-reference them
+        SMILE(SMILE_CONTENT_TYPE, SmileFactory.builder()
+                                              .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+                                              .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+                                              .build());
+
+        private final String contentType;
+        private final JsonFactory factory;
+
+        ColumnarFormat(String contentType, JsonFactory factory) {
+            this.contentType = contentType;
+            this.factory = factory;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Format an Accept header asks for, or null if it asks for none of them.
+         */
+        public static ColumnarFormat fromAccept(String accept) {
+            if (accept != null) {
+                for (ColumnarFormat format : values()) {
+                    if (accept.contains(format.contentType)) {
+                        return format;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Set<EntityType> types;
+    private final String prefix;
+    private final int limit;
+    private final Cursor cursor;
+    // Counters written per type ordinal, and whether the namespace field is written
+    private final Counter[][] counters = new Counter[EntityType.values().length][];
+    private final boolean writeNamespace;
+
+    /**
+     * @param types  entity types to write, all types if null or empty
+     * @param prefix entity name prefix, or null
+     * @param fields fields to write besides name and topicName, all fields if null or empty
+     * @param limit  maximum number of entities per page, 0 for no paging
+     * @param cursor cursor returned by the previous page, or null for the first page
+     * @throws IllegalArgumentException if a type, field or the cursor is not valid
+     */
+    public SnapshotJsonWriter(Collection<String> types, String prefix, Collection<String> fields, int limit, String cursor) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("'limit' must not be negative");
+        }
+        this.types = parseTypes(types);
+        this.prefix = prefix == null || prefix.isEmpty() ? null : prefix;
+        this.limit = limit;
+        this.cursor = cursor == null || cursor.isEmpty() ? null : Cursor.decode(cursor);
+        if (this.cursor != null && !this.types.contains(this.cursor.type())) {
+            throw new IllegalArgumentException("'cursor' does not belong to the requested types");
+        }
+
+        boolean allFields = fields == null || fields.isEmpty();
+        Set<Counter> requested = EnumSet.noneOf(Counter.class);
+        boolean namespace = allFields;
+        if (!allFields) {
+            for (String field : fields) {
+                Counter counter = Counter.fromFieldName(field);
+                if (counter != null && this.types.stream().anyMatch(type -> type.has(counter))) {
+                    requested.add(counter);
+                } else if ("namespace".equalsIgnoreCase(field)) {
+                    namespace = true;
+                } else if (!"name".equalsIgnoreCase(field) && !"topicName".equalsIgnoreCase(field)) {
+                    throw new IllegalArgumentException("Unknown field '" + field + "'");
+                }
+            }
+        }
+        this.writeNamespace = namespace;
+        for (EntityType type : EntityType.values()) {
+            List<Counter> written = new ArrayList<>();
+            for (int column = 0; column < type.counterCount(); column++) {
+                Counter counter = type.counter(column);
+                if (allFields || requested.contains(counter)) {
+                    written.add(counter);
+                }
+            }
+            counters[type.ordinal()] = written.toArray(new Counter[0]);
+        }
+    }
+
+    /**
+     * Writes one page of the snapshot. The output stream is flushed but not closed.
+     */
+    public void write(MetricsSnapshot snapshot, OutputStream out) throws IOException {
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+            json.writeStartObject();
+            json.writeStringField("status", "success");
+            json.writeObjectFieldStart("data");
+
+            int remaining = limit == 0 ? Integer.MAX_VALUE : limit;
+            String nextCursor = null;
+            EntityType lastType = null;
+            int lastRow = -1;
+            types:
+            for (EntityType type : types) {
+                if (cursor != null && type.ordinal() < cursor.type().ordinal()) {
+                    continue;
+                }
+                EntityTable table = snapshot.table(type);
+                int row = cursor != null && type == cursor.type() ? cursor.resumeRow(table) : 0;
+                if (remaining > 0) {
+                    json.writeArrayFieldStart(fieldName(type));
+                    for (; row < table.size() && remaining > 0; row++) {
+                        if (matches(table, row)) {
+                            writeEntity(json, snapshot, table, row);
+                            lastType = type;
+                            lastRow = row;
+                            remaining--;
+                        }
+                    }
+                    json.writeEndArray();
+                }
+                if (remaining == 0) {
+                    // Only report a next page if there is a further matching entity
+                    for (; row < table.size(); row++) {
+                        if (matches(table, row)) {
+                            EntityTable lastTable = snapshot.table(lastType);
+                            nextCursor = Cursor.encode(lastType, lastRow, lastTable.entityName(lastRow));
+                            break types;
+                        }
+                    }
+                }
+            }
+
+            if (cursor == null && types.size() == EntityType.values().length && prefix == null) {
+                writeNamespaces(json, snapshot.getNamespaceMetrics());
+            }
+            json.writeEndObject();
+            if (nextCursor != null) {
+                json.writeStringField("next_cursor", nextCursor);
+            }
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes the selected entities column by column: per type the entity names once, then one array
+     * per field holding that field of every entity in the same order. The namespace is written once
+     * at the top and timestamps are epoch milliseconds (null if unknown), which together with the
+     * binary encoding makes the body a fraction of the JSON one. Paging does not apply.
+     * <pre>
+     * {"namespace": ..., "version": ..., "collected_at": ...,
+     *  "queues": {"count": 2, "name": ["a", "b"], "activeMessages": [3, 0], ...},
+     *  "subscriptions": {"count": 1, "topicName": ["t"], "name": ["s"], ...}, "namespaces": [...]}
+     * </pre>
+     * The output stream is flushed but not closed.
+     * @throws IllegalStateException if this writer pages
+     */
+    public void writeColumnar(MetricsSnapshot snapshot, ColumnarFormat format, OutputStream out) throws IOException {
+        if (isPaged()) {
+            throw new IllegalStateException("The columnar layout is not paged");
+        }
+        try (JsonGenerator json = format.factory.createGenerator(out)) {
+            json.writeStartObject();
+            if (writeNamespace) {
+                json.writeStringField("namespace", snapshot.getNamespace());
+            }
+            json.writeNumberField("version", snapshot.getVersion());
+            json.writeNumberField("collected_at", snapshot.getCollectedAt().toEpochMilli());
+            for (EntityType type : types) {
+                EntityTable table = snapshot.table(type);
+                int count = 0;
+                for (int row = 0; row < table.size(); row++) {
+                    if (matches(table, row)) {
+                        count++;
+                    }
+                }
+                json.writeObjectFieldStart(fieldName(type));
+                json.writeNumberField("count", count);
+                if (type == EntityType.SUBSCRIPTION) {
+                    json.writeArrayFieldStart("topicName");
+                    for (int row = 0; row < table.size(); row++) {
+                        if (matches(table, row)) {
+                            json.writeString(table.topicName(row));
+                        }
+                    }
+                    json.writeEndArray();
+                }
+                json.writeArrayFieldStart("name");
+                for (int row = 0; row < table.size(); row++) {
+                    if (matches(table, row)) {
+                        json.writeString(table.name(row));
+                    }
+                }
+                json.writeEndArray();
+                for (Counter counter : counters[type.ordinal()]) {
+                    boolean timestamp = isTimestamp(counter);
+                    json.writeArrayFieldStart(counter.getFieldName());
+                    for (int row = 0; row < table.size(); row++) {
+                        if (matches(table, row)) {
+                            long value = table.get(row, counter);
+                            if (timestamp && value == Counter.NO_VALUE) {
+                                json.writeNull();
+                            } else {
+                                json.writeNumber(value);
+                            }
+                        }
+                    }
+                    json.writeEndArray();
+                }
+                json.writeEndObject();
+            }
+            if (types.size() == EntityType.values().length && prefix == null) {
+                writeNamespaces(json, snapshot.getNamespaceMetrics());
+            }
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes the entities of the diff that match this writer's types and prefix: added and changed
+     * ones in full (projected to the fields) under "updated", removed ones by name under "removed".
+     * Paging does not apply.
+     * @return number of entities written
+     */
+    public int writeDelta(SnapshotDiff diff, OutputStream out) throws IOException {
+        MetricsSnapshot current = diff.getCurrent();
+        MetricsSnapshot previous = diff.getPrevious();
+        int written = 0;
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+            json.writeStartObject();
+            json.writeNumberField("version", current.getVersion());
+            json.writeNumberField("previous_version", previous.getVersion());
+            json.writeStringField("collected_at", current.getCollectedAt().toString());
+            json.writeObjectFieldStart("updated");
+            for (EntityType type : types) {
+                SnapshotDiff.TableDiff tableDiff = diff.table(type);
+                EntityTable table = current.table(type);
+                json.writeArrayFieldStart(fieldName(type));
+                for (int i = 0; i < tableDiff.addedCount(); i++) {
+                    written += writeIfMatching(json, current, table, tableDiff.addedRow(i));
+                }
+                for (int i = 0; i < tableDiff.changedCount(); i++) {
+                    written += writeIfMatching(json, current, table, tableDiff.changedRow(i));
+                }
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+            json.writeObjectFieldStart("removed");
+            for (EntityType type : types) {
+                SnapshotDiff.TableDiff tableDiff = diff.table(type);
+                EntityTable table = previous.table(type);
+                json.writeArrayFieldStart(fieldName(type));
+                for (int i = 0; i < tableDiff.removedCount(); i++) {
+                    int row = tableDiff.removedRow(i);
+                    if (matches(table, row)) {
+                        json.writeString(table.entityName(row));
+                        written++;
+                    }
+                }
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        return written;
+    }
+
+    /**
+     * Identifies the entities and fields this writer selects; writers with equal keys write equal output.
+     */
+    public String filterKey() {
+        StringBuilder key = new StringBuilder().append(types).append('|').append(prefix).append('|').append(writeNamespace);
+        for (Counter[] typeCounters : counters) {
+            key.append('|').append(Arrays.toString(typeCounters));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Writes the names of all entities in the shape of the /probe/metrics/list response.
+     */
+    public static void writeEntityList(MetricsSnapshot snapshot, OutputStream out) throws IOException {
+        try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+            json.writeStartObject();
+            json.writeStringField("status", "success");
+            json.writeObjectFieldStart("data");
+            for (EntityType type : EntityType.values()) {
+                EntityTable table = snapshot.table(type);
+                json.writeArrayFieldStart(fieldName(type));
+                for (int row = 0; row < table.size(); row++) {
+                    if (type == EntityType.SUBSCRIPTION) {
+                        json.writeStartObject();
+                        json.writeStringField("topic", table.topicName(row));
+                        json.writeStringField("subscription", table.name(row));
+                        json.writeEndObject();
+                    } else {
+                        json.writeString(table.name(row));
+                    }
+                }
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Whether this writer returns the whole snapshot unfiltered, so its output can be shared by
+     * all requests for the same snapshot.
+     */
+    public boolean isUnfiltered() {
+        return types.size() == EntityType.values().length && prefix == null && limit == 0 && cursor == null
+            && writeNamespace && Arrays.stream(EntityType.values())
+                                       .allMatch(type -> counters[type.ordinal()].length == type.counterCount());
+    }
+
+    /**
+     * Whether this writer returns a page rather than all selected entities.
+     */
+    public boolean isPaged() {
+        return limit != 0 || cursor != null;
+    }
+
+    private boolean matches(EntityTable table, int row) {
+        if (prefix == null) {
+            return true;
+        }
+        if (table.getType() != EntityType.SUBSCRIPTION) {
+            return table.name(row).startsWith(prefix);
+        }
+        // Match "topic/subscription" without building the path
+        String topicName = table.topicName(row);
+        if (prefix.length() <= topicName.length()) {
+            return topicName.startsWith(prefix);
+        }
+        int offset = topicName.length() + 1;
+        String name = table.name(row);
+        return prefix.startsWith(topicName)
+            && prefix.charAt(topicName.length()) == '/'
+            && name.length() >= prefix.length() - offset
+            && name.regionMatches(0, prefix, offset, prefix.length() - offset);
+    }
+
+    private int writeIfMatching(JsonGenerator json, MetricsSnapshot snapshot, EntityTable table, int row) throws IOException {
+        if (!matches(table, row)) {
+            return 0;
+        }
+        writeEntity(json, snapshot, table, row);
+        return 1;
+    }
+
+    private void writeEntity(JsonGenerator json, MetricsSnapshot snapshot, EntityTable table, int row) throws IOException {
+        json.writeStartObject();
+        if (writeNamespace) {
+            json.writeStringField("namespace", snapshot.getNamespace());
+        }
+        if (table.getType() == EntityType.SUBSCRIPTION) {
+            json.writeStringField("topicName", table.topicName(row));
+        }
+        json.writeStringField("name", table.name(row));
+        for (Counter counter : counters[table.getType().ordinal()]) {
+            long value = table.get(row, counter);
+            if (!isTimestamp(counter)) {
+                json.writeNumberField(counter.getFieldName(), value);
+            } else if (value == Counter.NO_VALUE) {
+                json.writeNullField(counter.getFieldName());
+            } else {
+                json.writeStringField(counter.getFieldName(), Instant.ofEpochMilli(value).toString());
+            }
+        }
+        json.writeEndObject();
+    }
+
+    private static void writeNamespaces(JsonGenerator json, List<NamespaceMetric> namespaces) throws IOException {
+        json.writeArrayFieldStart("namespaces");
+        for (NamespaceMetric namespace : namespaces) {
+            json.writeStartObject();
+            json.writeStringField("namespace", namespace.getNamespace());
+            json.writeNumberField("activeConnections", namespace.getActiveConnections());
+            json.writeObjectFieldStart("quotaUsage");
+            if (namespace.getQuotaUsage() != null) {
+                for (Map.Entry<String, Double> quota : namespace.getQuotaUsage().entrySet()) {
+                    json.writeNumberField(quota.getKey(), quota.getValue());
+                }
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+    }
+
+    private static boolean isTimestamp(Counter counter) {
+        return counter == Counter.CREATED_AT || counter == Counter.UPDATED_AT || counter == Counter.ACCESSED_AT;
+    }
+
+    private static String fieldName(EntityType type) {
+        return switch (type) {
+            case QUEUE -> "queues";
+            case TOPIC -> "topics";
+            case SUBSCRIPTION -> "subscriptions";
+        };
+    }
+
+    private static Set<EntityType> parseTypes(Collection<String> labels) {
+        if (labels == null || labels.isEmpty()) {
+            return EnumSet.allOf(EntityType.class);
+        }
+        Set<EntityType> types = EnumSet.noneOf(EntityType.class);
+        for (String label : labels) {
+            EntityType type = EntityType.fromLabel(label);
+            if (type == null) {
+                throw new IllegalArgumentException("Entity type must be one of: queue, topic, subscription");
+            }
+            types.add(type);
+        }
+        return types;
+    }
+
+    /**
+     * Last entity of a page: its type, its row in the snapshot the page was written from and its
+     * entity name, encoded as URL-safe base64 of "type:row:name".
+     */
+    private record Cursor(EntityType type, int row, String entityName) {
+
+        static String encode(EntityType type, int row, String entityName) {
+            String raw = type.getLabel() + ':' + row + ':' + entityName;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Cursor decode(String encoded) {
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8).split(":", 3);
+                EntityType type = parts.length == 3 ? EntityType.fromLabel(parts[0]) : null;
+                int row = type == null ? -1 : Integer.parseInt(parts[1]);
+                if (row < 0) {
+                    throw new IllegalArgumentException();
+                }
+                return new Cursor(type, row, parts[2]);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("'cursor' is not valid", e);
+            }
+        }
+
+        /**
+         * Row to resume from: after the named entity if it still exists, otherwise after the
+         * remembered row.
+         */
+        int resumeRow(EntityTable table) {
+            int current;
+            if (type == EntityType.SUBSCRIPTION) {
+                int slash = entityName.indexOf('/');
+                current = slash < 0 ? -1 : table.rowOf(entityName.substring(0, slash), entityName.substring(slash + 1));
+            } else {
+                current = table.rowOf(entityName);
+            }
+            return Math.min((current >= 0 ? current : row) + 1, table.size());
+        }
+    }
+}
@@ -1,14 +1,27 @@
 package gavgas.azureservicebusmetricexporter.health;
 
 import com.azure.messaging.servicebus.administration.ServiceBusAdministrationClient;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.service.CollectionStatus;
 import gavgas.azureservicebusmetricexporter.service.ServiceBusClientService;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.actuate.health.Health;
 import org.springframework.boot.actuate.health.HealthIndicator;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * Custom health indicator for Azure Service Bus
+ * Health is derived from the collection cycles: down while the circuit is open, once the last
+ * successful cycle is older than the configured age, or before any cycle succeeded if one failed.
+ * Entity counts are read from the snapshot, so liveness and readiness probes cause no network calls.
+ * An optional deep check lists a queue, at most once per configured interval.
  */
 @Component
 @Slf4j
@@ -16,31 +29,87 @@ public class ServiceBusHealthIndicator implements HealthIndicator {
 
     private final ServiceBusAdministrationClient adminClient;
     private final ServiceBusClientService serviceBusClientService;
+    private final ServiceBusProperties.Health settings;
+    // Only one deep check runs at a time; concurrent health checks report the last result
+    private final Lock deepCheckLock = new ReentrantLock();
+    private volatile DeepCheck lastDeepCheck;
+
+    private record DeepCheck(Instant at, String error) {
+    }
 
     public ServiceBusHealthIndicator(ServiceBusAdministrationClient adminClient,
-                                     ServiceBusClientService serviceBusClientService) {
+                                     ServiceBusClientService serviceBusClientService,
+                                     ServiceBusProperties properties) {
         this.adminClient = adminClient;
         this.serviceBusClientService = serviceBusClientService;
+        this.settings = properties.getHealth();
     }
 
     @Override
     public Health health() {
-        try {
-            // Check connectivity by listing queues
-            adminClient.listQueues().stream().findFirst();
-
-            return Health.up()
-                         .withDetail("status", "connected")
-                         .withDetail("queueCount", serviceBusClientService.getQueueMetrics().size())
-                         .withDetail("topicCount", serviceBusClientService.getTopicMetrics().size())
-                         .withDetail("subscriptionCount", serviceBusClientService.getSubscriptionMetrics().size())
-                         .build();
-        } catch (Exception e) {
-            log.warn("Service Bus health check failed", e);
-            return Health.down()
-                         .withDetail("status", "disconnected")
-                         .withDetail("error", e.getMessage())
-                         .build();
+        Instant now = Instant.now();
+        CollectionStatus status = serviceBusClientService.getCollectionStatus();
+        MetricsSnapshot snapshot = serviceBusClientService.getSnapshot();
+        CollectionStatus.Circuit circuit = status.circuit(now);
+
+        Health.Builder health;
+        if (circuit == CollectionStatus.Circuit.OPEN) {
+            health = Health.down().withDetail("status", "circuit open");
+        } else if (status.lastSuccess() == null) {
+            health = status.consecutiveFailures() > 0
+                ? Health.down().withDetail("status", "disconnected")
+                : Health.unknown().withDetail("status", "no collection cycle yet");
+        } else if (Duration.between(status.lastSuccess(), now).compareTo(settings.getMaxCycleAge()) > 0) {
+            health = Health.down().withDetail("status", "stale");
+        } else {
+            health = Health.up().withDetail("status", "connected");
+        }
+
+        if (status.lastSuccess() != null) {
+            health.withDetail("lastSuccessfulCycle", status.lastSuccess().toString())
+                  .withDetail("lastCycleAgeSeconds", Duration.between(status.lastSuccess(), now).toSeconds());
+        }
+        health.withDetail("consecutiveFailures", status.consecutiveFailures())
+              .withDetail("circuit", circuit.name());
+        if (status.lastError() != null) {
+            health.withDetail("error", status.lastError());
+        }
+        health.withDetail("queueCount", snapshot.table(EntityType.QUEUE).size())
+              .withDetail("topicCount", snapshot.table(EntityType.TOPIC).size())
+              .withDetail("subscriptionCount", snapshot.table(EntityType.SUBSCRIPTION).size());
+
+        DeepCheck deepCheck = deepCheck(now);
+        if (deepCheck != null) {
+            health.withDetail("deepCheckAt", deepCheck.at().toString());
+            if (deepCheck.error() != null) {
+                health.down().withDetail("deepCheckError", deepCheck.error());
+            }
+        }
+        return health.build();
+    }
+
+    /**
+     * Result of the last deep check, running one first if it is due; null if deep checks are disabled
+     */
+    private DeepCheck deepCheck(Instant now) {
+        Duration interval = settings.getDeepCheckInterval();
+        if (interval == null || interval.isZero() || interval.isNegative()) {
+            return null;
+        }
+        DeepCheck last = lastDeepCheck;
+        if ((last == null || !now.isBefore(last.at().plus(interval))) && deepCheckLock.tryLock()) {
+            try {
+                // Check connectivity by listing queues
+                adminClient.listQueues().stream().findFirst();
+                last = new DeepCheck(now, null);
+            } catch (Exception e) {
+                log.warn("Service Bus health check failed", e);
+                last = new DeepCheck(now, e.getMessage());
+            } finally {
+                lastDeepCheck = last;
+                deepCheckLock.unlock();
+            }
         }
+        return last;
     }
-}
\ No newline at end of file
+}
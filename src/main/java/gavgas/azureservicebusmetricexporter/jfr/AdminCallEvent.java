@@ -0,0 +1,57 @@
+package gavgas.azureservicebusmetricexporter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One Service Bus management API call: a listing or the runtime properties of an entity.
+ * Listings span their whole iteration, including runtime calls an inline executor makes meanwhile.
+ */
+@Name(AdminCallEvent.NAME)
+@Label("Admin Call")
+@Category({ExporterEvents.CATEGORY, "Collection"})
+@Description("Service Bus management API call")
+@Enabled(false)
+@StackTrace(false)
+public class AdminCallEvent extends jdk.jfr.Event {
+
+    public static final String NAME = ExporterEvents.PREFIX + "AdminCall";
+
+    @Label("Operation")
+    @Description("list or runtime")
+    String operation;
+
+    @Label("Entity Type")
+    String entityType;
+
+    @Label("Entity")
+    @Description("Entity read, topic of a subscription listing, empty for queue and topic listings")
+    String entity;
+
+    @Label("Success")
+    boolean success;
+
+    @Label("Error")
+    @Description("Class of the exception that failed the call")
+    String error;
+
+    /**
+     * End the call and commit the event if it is enabled and above the threshold.
+     * @param error exception that failed the call, or null
+     */
+    public void complete(String operation, String entityType, String entity, Throwable error) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.entityType = entityType;
+            this.entity = entity;
+            this.success = error == null;
+            this.error = error == null ? null : error.getClass().getName();
+            commit();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package gavgas.azureservicebusmetricexporter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One collection cycle of this exporter's namespace. Its admin calls and snapshot publish are
+ * nested in it on the same thread.
+ */
+@Name(CollectionCycleEvent.NAME)
+@Label("Collection Cycle")
+@Category({ExporterEvents.CATEGORY, "Collection"})
+@Description("Collection of the runtime properties of all included entities into a new snapshot")
+@Enabled(false)
+@StackTrace(false)
+public class CollectionCycleEvent extends jdk.jfr.Event {
+
+    public static final String NAME = ExporterEvents.PREFIX + "CollectionCycle";
+
+    @Label("Namespace")
+    String namespace;
+
+    @Label("Entities")
+    @Description("Entities in the published snapshot, 0 if none was published")
+    int entities;
+
+    @Label("Success")
+    @Description("Whether every enabled entity type was listed")
+    boolean success;
+
+    @Label("Error")
+    String error;
+
+    /**
+     * @param error exception that failed a listing or the cycle, or null
+     */
+    public void complete(String namespace, int entities, Throwable error) {
+        end();
+        if (shouldCommit()) {
+            this.namespace = namespace;
+            this.entities = entities;
+            this.success = error == null;
+            this.error = error == null ? null : error.toString();
+            commit();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package gavgas.azureservicebusmetricexporter.jfr;
+
+/**
+ * Names shared by the exporter's JDK Flight Recorder events.
+ * The events are disabled unless a recording enables them, for example with the settings in
+ * {@value #SETTINGS}; disabled, an event costs an allocation the JIT usually removes and a flag check.
+ */
+public final class ExporterEvents {
+
+    public static final String CATEGORY = "Azure Service Bus Exporter";
+    public static final String PREFIX = "gavgas.servicebus.";
+    /**
+     * Classpath resource of the JFR settings enabling all exporter events
+     */
+    public static final String SETTINGS = "jfr/servicebus-exporter.jfc";
+
+    private ExporterEvents() {
+    }
+}
@@ -0,0 +1,46 @@
+package gavgas.azureservicebusmetricexporter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Registration and removal of the per-entity gauges after a snapshot was published.
+ */
+@Name(GaugeReconciliationEvent.NAME)
+@Label("Gauge Reconciliation")
+@Category({ExporterEvents.CATEGORY, "Snapshot"})
+@Description("Update of the registered gauges to the entities of a new snapshot")
+@Enabled(false)
+@StackTrace(false)
+public class GaugeReconciliationEvent extends jdk.jfr.Event {
+
+    public static final String NAME = ExporterEvents.PREFIX + "GaugeReconciliation";
+
+    @Label("Snapshot Version")
+    long version;
+
+    @Label("Cardinality Limited")
+    @Description("Whether the exported entities were re-ranked instead of following the diff")
+    boolean cardinalityLimited;
+
+    @Label("Entities Added")
+    int added;
+
+    @Label("Entities Removed")
+    int removed;
+
+    public void complete(long version, boolean cardinalityLimited, int added, int removed) {
+        end();
+        if (shouldCommit()) {
+            this.version = version;
+            this.cardinalityLimited = cardinalityLimited;
+            this.added = added;
+            this.removed = removed;
+            commit();
+        }
+    }
+}
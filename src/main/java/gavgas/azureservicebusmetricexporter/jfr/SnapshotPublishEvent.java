@@ -0,0 +1,50 @@
+package gavgas.azureservicebusmetricexporter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Publication of a snapshot: diffing it against the previous one and notifying the listeners,
+ * whose gauge reconciliation is nested in it.
+ */
+@Name(SnapshotPublishEvent.NAME)
+@Label("Snapshot Publish")
+@Category({ExporterEvents.CATEGORY, "Snapshot"})
+@Description("Diff and listener notification of a new snapshot")
+@Enabled(false)
+@StackTrace(false)
+public class SnapshotPublishEvent extends jdk.jfr.Event {
+
+    public static final String NAME = ExporterEvents.PREFIX + "SnapshotPublish";
+
+    @Label("Version")
+    long version;
+
+    @Label("Entities")
+    int entities;
+
+    @Label("Added")
+    int added;
+
+    @Label("Removed")
+    int removed;
+
+    @Label("Changed")
+    int changed;
+
+    public void complete(long version, int entities, int added, int removed, int changed) {
+        end();
+        if (shouldCommit()) {
+            this.version = version;
+            this.entities = entities;
+            this.added = added;
+            this.removed = removed;
+            this.changed = changed;
+            commit();
+        }
+    }
+}
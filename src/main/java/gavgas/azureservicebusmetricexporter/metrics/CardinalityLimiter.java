@@ -0,0 +1,146 @@
+package gavgas.azureservicebusmetricexporter.metrics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks the entities that get their own series when the number of entities per type is limited.
+ * The top entities are found with a bounded min-heap over the ranking column (O(n log k) per cycle),
+ * the counters of every other entity are summed per type, or per topic for subscriptions.
+ */
+final class CardinalityLimiter {
+
+    /**
+     * Entity name of the aggregate series.
+     */
+    static final String OTHER = "__other__";
+
+    private final int limit;
+    private final Counter rankCounter;
+
+    // Reused heap buffers
+    private int[] heapRows = new int[0];
+    private long[] heapKeys = new long[0];
+
+    CardinalityLimiter(ServiceBusProperties properties) {
+        ServiceBusProperties.Metrics metrics = properties.getMetrics();
+        this.limit = metrics.getMaxEntitiesPerType();
+        this.rankCounter = metrics.getRankBy() == ServiceBusProperties.Metrics.RankBy.DEAD_LETTER
+            ? Counter.DEAD_LETTER_MESSAGES
+            : Counter.ACTIVE_MESSAGES;
+    }
+
+    boolean isEnabled() {
+        return limit > 0;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Select the exported rows of a table and sum the counters of the others.
+     */
+    Selection select(EntityTable table) {
+        int size = table.size();
+        BitSet rows = new BitSet(size);
+        Map<String, long[]> others = new HashMap<>();
+
+        if (size <= limit) {
+            rows.set(0, size);
+            return new Selection(rows, others);
+        }
+
+        int column = table.getType().columnOf(rankColumnCounter(table.getType()));
+        int heapSize = fillHeap(table, column);
+        for (int i = 0; i < heapSize; i++) {
+            rows.set(heapRows[i]);
+        }
+
+        EntityType type = table.getType();
+        for (int row = rows.nextClearBit(0); row < size; row = rows.nextClearBit(row + 1)) {
+            long[] sums = others.computeIfAbsent(table.topicName(row), topic -> new long[Counter.values().length]);
+            for (int c = 0; c < type.counterCount(); c++) {
+                long value = table.getColumn(row, c);
+                if (value != Counter.NO_VALUE) {
+                    sums[type.counter(c).ordinal()] += value;
+                }
+            }
+        }
+        return new Selection(rows, others);
+    }
+
+    private Counter rankColumnCounter(EntityType type) {
+        return type.has(rankCounter) ? rankCounter : Counter.SIZE_BYTES;
+    }
+
+    private int fillHeap(EntityTable table, int column) {
+        if (heapRows.length < limit) {
+            heapRows = new int[limit];
+            heapKeys = new long[limit];
+        }
+        int heapSize = 0;
+        for (int row = 0; row < table.size(); row++) {
+            long key = table.getColumn(row, column);
+            if (heapSize < limit) {
+                heapRows[heapSize] = row;
+                heapKeys[heapSize] = key;
+                siftUp(heapSize++);
+            } else if (key > heapKeys[0]) {
+                heapRows[0] = row;
+                heapKeys[0] = key;
+                siftDown(heapSize);
+            }
+        }
+        return heapSize;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapKeys[parent] <= heapKeys[i]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int heapSize) {
+        int i = 0;
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= heapSize) {
+                return;
+            }
+            int smallest = left + 1 < heapSize && heapKeys[left + 1] < heapKeys[left] ? left + 1 : left;
+            if (heapKeys[i] <= heapKeys[smallest]) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int row = heapRows[a];
+        heapRows[a] = heapRows[b];
+        heapRows[b] = row;
+        long key = heapKeys[a];
+        heapKeys[a] = heapKeys[b];
+        heapKeys[b] = key;
+    }
+
+    /**
+     * Exported rows and, by topic name (null for queues and topics), the counter sums of the other rows
+     * indexed by {@link Counter#ordinal()}.
+     */
+    record Selection(BitSet rows, Map<String, long[]> others) {
+    }
+}
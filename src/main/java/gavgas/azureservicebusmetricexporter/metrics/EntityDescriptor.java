@@ -0,0 +1,86 @@
+package gavgas.azureservicebusmetricexporter.metrics;
+
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Tags;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Identity of one Service Bus entity as seen by the exporters.
+ * Created once when the entity is first discovered and reused by every metric family,
+ * so tags and names are not rebuilt on each collection cycle.
+ */
+public final class EntityDescriptor {
+
+    private final EntityType type;
+    private final String namespace;
+    private final String topicName;
+    private final String name;
+    private final String entityName;
+    private final Tags tags;
+    // Values of the rule labels, in the order of EntityDescriptorCache.ruleLabelNames()
+    private final String[] ruleLabelValues;
+
+    // Meters registered for this entity, needed to remove them again
+    private final List<Meter.Id> meterIds = new ArrayList<>();
+
+    EntityDescriptor(EntityType type, String namespace, String topicName, String name, Tags tags,
+                     String[] ruleLabelValues) {
+        this.type = type;
+        this.namespace = namespace;
+        this.topicName = topicName;
+        this.name = name;
+        this.entityName = topicName == null ? name : topicName + "/" + name;
+        this.tags = tags;
+        this.ruleLabelValues = ruleLabelValues;
+    }
+
+    public EntityType getType() {
+        return type;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Topic of a subscription, null for queues and topics.
+     */
+    public String getTopicName() {
+        return topicName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Value of the "entity_name" tag, "topic/subscription" for subscriptions.
+     */
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public Tags getTags() {
+        return tags;
+    }
+
+    String[] getRuleLabelValues() {
+        return ruleLabelValues;
+    }
+
+    public synchronized List<Meter.Id> getMeterIds() {
+        return Collections.unmodifiableList(new ArrayList<>(meterIds));
+    }
+
+    synchronized boolean hasMeters() {
+        return !meterIds.isEmpty();
+    }
+
+    synchronized void addMeterId(Meter.Id meterId) {
+        meterIds.add(meterId);
+    }
+}
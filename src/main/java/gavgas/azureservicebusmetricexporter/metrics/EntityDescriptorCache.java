@@ -0,0 +1,160 @@
+package gavgas.azureservicebusmetricexporter.metrics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of {@link EntityDescriptor}s keyed by entity name.
+ * Lookups of already known entities do not allocate, which keeps the per-cycle refresh
+ * of the gauges independent of the number of entities.
+ */
+@Component
+public class EntityDescriptorCache {
+
+    private final ServiceBusProperties properties;
+    private final LabelRules labelRules;
+    private final String[] ruleLabelNames;
+
+    private final Map<String, EntityDescriptor> queues = new ConcurrentHashMap<>();
+    private final Map<String, EntityDescriptor> topics = new ConcurrentHashMap<>();
+    // topic name -> subscription name -> descriptor, avoids building "topic/subscription" keys
+    private final Map<String, Map<String, EntityDescriptor>> subscriptions = new ConcurrentHashMap<>();
+
+    public EntityDescriptorCache(ServiceBusProperties properties) {
+        this.properties = properties;
+        this.labelRules = new LabelRules(properties.getLabels());
+        this.ruleLabelNames = labelRules.labelNames();
+    }
+
+    /**
+     * Descriptor of the entity in the given table row, created on first use.
+     */
+    public EntityDescriptor descriptor(String namespace, EntityTable table, int row) {
+        EntityType type = table.getType();
+        return descriptor(namespace, type, table.topicName(row), table.name(row));
+    }
+
+    public EntityDescriptor descriptor(String namespace, EntityType type, String topicName, String name) {
+        Map<String, EntityDescriptor> byName = byName(type, topicName, true);
+        EntityDescriptor descriptor = byName.get(name);
+        if (descriptor == null) {
+            descriptor = byName.computeIfAbsent(name, n -> create(namespace, type, topicName, n));
+        }
+        return descriptor;
+    }
+
+    /**
+     * Names of the labels set by the label rules, in the order of {@link #ruleLabelValues}.
+     * The returned array must not be modified.
+     */
+    public String[] ruleLabelNames() {
+        return ruleLabelNames;
+    }
+
+    /**
+     * Values of the rule labels of the entity in the given row, as its gauges carry them. Known
+     * entities of the namespace answer from their descriptor; others, such as the entities of
+     * probed namespaces, are evaluated without being cached. The returned array must not be modified.
+     */
+    public String[] ruleLabelValues(String namespace, EntityTable table, int row) {
+        if (ruleLabelNames.length == 0) {
+            return ruleLabelNames;
+        }
+        EntityDescriptor descriptor = find(table.getType(), table.topicName(row), table.name(row));
+        if (descriptor != null && descriptor.getNamespace().equals(namespace)) {
+            return descriptor.getRuleLabelValues();
+        }
+        return labelRules.labelValues(table.entityName(row));
+    }
+
+    /**
+     * Known descriptor, or null if the entity has not been discovered yet.
+     */
+    public EntityDescriptor find(EntityType type, String topicName, String name) {
+        Map<String, EntityDescriptor> byName = byName(type, topicName, false);
+        return byName == null ? null : byName.get(name);
+    }
+
+    /**
+     * Forget an entity, typically because it disappeared from the namespace.
+     * @return the removed descriptor, or null if it was not known
+     */
+    public EntityDescriptor remove(EntityType type, String topicName, String name) {
+        Map<String, EntityDescriptor> byName = byName(type, topicName, false);
+        if (byName == null) {
+            return null;
+        }
+        EntityDescriptor removed = byName.remove(name);
+        if (type == EntityType.SUBSCRIPTION && byName.isEmpty()) {
+            subscriptions.remove(topicName, byName);
+        }
+        return removed;
+    }
+
+    public int size() {
+        int size = queues.size() + topics.size();
+        for (Map<String, EntityDescriptor> topicSubscriptions : subscriptions.values()) {
+            size += topicSubscriptions.size();
+        }
+        return size;
+    }
+
+    private Map<String, EntityDescriptor> byName(EntityType type, String topicName, boolean create) {
+        return switch (type) {
+            case QUEUE -> queues;
+            case TOPIC -> topics;
+            case SUBSCRIPTION -> {
+                Map<String, EntityDescriptor> topicSubscriptions = subscriptions.get(topicName);
+                if (topicSubscriptions == null && create) {
+                    topicSubscriptions = subscriptions.computeIfAbsent(topicName, t -> new ConcurrentHashMap<>());
+                }
+                yield topicSubscriptions;
+            }
+        };
+    }
+
+    /**
+     * Labels of the configured rules; every entity gets all of them so each metric keeps one label set.
+     */
+    private Tags ruleTags(String[] values) {
+        if (ruleLabelNames.length == 0) {
+            return Tags.empty();
+        }
+        String[] keyValues = new String[ruleLabelNames.length * 2];
+        for (int i = 0; i < ruleLabelNames.length; i++) {
+            keyValues[2 * i] = ruleLabelNames[i];
+            keyValues[2 * i + 1] = values[i];
+        }
+        return Tags.of(keyValues);
+    }
+
+    private EntityDescriptor create(String namespace, EntityType type, String topicName, String name) {
+        String environment = properties.getEnvironment();
+        Tags tags;
+        if (type == EntityType.SUBSCRIPTION) {
+            tags = Tags.of("entity_type", type.getLabel(),
+                           "entity_name", topicName + "/" + name,
+                           "namespace", namespace,
+                           "topic_name", topicName,
+                           "subscription_name", name,
+                           "environment", environment);
+        } else {
+            tags = Tags.of("entity_type", type.getLabel(),
+                           "entity_name", name,
+                           "namespace", namespace,
+                           "environment", environment);
+        }
+        String[] ruleValues = ruleLabelNames.length == 0
+            ? ruleLabelNames
+            : labelRules.labelValues(type == EntityType.SUBSCRIPTION ? topicName + "/" + name : name);
+        tags = tags.and(ruleTags(ruleValues));
+        return new EntityDescriptor(type, namespace, type == EntityType.SUBSCRIPTION ? topicName : null, name, tags,
+                                    ruleValues);
+    }
+}
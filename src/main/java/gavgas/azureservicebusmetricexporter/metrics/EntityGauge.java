@@ -0,0 +1,19 @@
+package gavgas.azureservicebusmetricexporter.metrics;
+
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A gauge registered once per entity of the given type, e.g. active messages per queue.
+ *
+ * @param type        entity type the gauge applies to
+ * @param name        metric name
+ * @param description metric description
+ * @param value       reads the current value for an entity
+ */
+public record EntityGauge(EntityType type,
+                          String name,
+                          String description,
+                          ToDoubleFunction<EntityDescriptor> value) {
+}
@@ -0,0 +1,13 @@
+package gavgas.azureservicebusmetricexporter.metrics;
+
+import java.util.List;
+
+/**
+ * Component contributing per-entity gauges to the {@link ServiceBusMetricsCollector}.
+ * The collector registers them together with its own gauges when an entity is discovered
+ * and removes them when the entity disappears.
+ */
+public interface EntityGaugeContributor {
+
+    List<EntityGauge> entityGauges();
+}
@@ -0,0 +1,230 @@
+package gavgas.azureservicebusmetricexporter.metrics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties.LabelRule;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Label rules compiled into a single Aho-Corasick automaton over the rule patterns.
+ * Labelling an entity is one pass over its name whatever the number of rules; matches are then
+ * filtered by their position (prefix, suffix, exact) and the longest pattern wins per label.
+ * Evaluated once per entity when its descriptor is created.
+ */
+final class LabelRules {
+
+    private static final Set<String> RESERVED = Set.of(
+        "entity_type", "entity_name", "namespace", "environment", "topic_name", "subscription_name");
+
+    private final String[] labelNames;
+    private final String defaultValue;
+
+    // Rules by pattern id
+    private final LabelRule.MatchType[] matchTypes;
+    private final int[] patternLengths;
+    private final String[][] ruleValues; // [pattern][label] -> value or null
+    private final int[] samePattern;      // next rule with the same pattern, -1 if none
+
+    // Automaton: sorted transition characters and targets per state
+    private char[][] transitionChars = new char[16][];
+    private int[][] transitionTargets = new int[16][];
+    private int[] failure = new int[16];
+    private int[] patternAt = new int[16];     // pattern ending in the state, -1 if none
+    private int[] outputLink = new int[16];    // next state on the failure chain that ends a pattern, -1 if none
+    private int states;
+
+    LabelRules(ServiceBusProperties.Labels labels) {
+        this.defaultValue = labels.getDefaultValue();
+        List<LabelRule> rules = labels.getRules();
+
+        Map<String, Integer> labelIndex = new LinkedHashMap<>();
+        for (LabelRule rule : rules) {
+            if (rule.getPattern() == null || rule.getPattern().isEmpty()) {
+                throw new IllegalArgumentException("Label rule without pattern: " + rule);
+            }
+            for (String label : rule.getLabels().keySet()) {
+                if (RESERVED.contains(label)) {
+                    throw new IllegalArgumentException("Label '" + label + "' is reserved and cannot be set by a rule");
+                }
+                labelIndex.putIfAbsent(label, labelIndex.size());
+            }
+        }
+        this.labelNames = labelIndex.keySet().toArray(String[]::new);
+
+        this.matchTypes = new LabelRule.MatchType[rules.size()];
+        this.patternLengths = new int[rules.size()];
+        this.ruleValues = new String[rules.size()][labelNames.length];
+        this.samePattern = new int[rules.size()];
+        newState();
+        for (int i = 0; i < rules.size(); i++) {
+            LabelRule rule = rules.get(i);
+            matchTypes[i] = rule.getMatch();
+            patternLengths[i] = rule.getPattern().length();
+            for (Map.Entry<String, String> label : rule.getLabels().entrySet()) {
+                ruleValues[i][labelIndex.get(label.getKey())] = label.getValue();
+            }
+            insert(rule.getPattern(), i);
+        }
+        buildFailureLinks();
+    }
+
+    /**
+     * Names of the labels the rules set, in configuration order. Every entity gets all of them.
+     */
+    String[] labelNames() {
+        return labelNames.clone();
+    }
+
+    /**
+     * Label values for an entity name, aligned with {@link #labelNames()}.
+     */
+    String[] labelValues(String name) {
+        String[] values = new String[labelNames.length];
+        int[] bestLength = new int[labelNames.length];
+        int[] bestPattern = new int[labelNames.length];
+        Arrays.fill(bestPattern, Integer.MAX_VALUE);
+
+        int state = 0;
+        for (int position = 0; position < name.length(); position++) {
+            state = next(state, name.charAt(position));
+            for (int s = patternAt[state] >= 0 ? state : outputLink[state]; s > 0; s = outputLink[s]) {
+                for (int pattern = patternAt[s]; pattern >= 0; pattern = samePattern[pattern]) {
+                    if (matchesPosition(pattern, position, name.length())) {
+                        apply(pattern, values, bestLength, bestPattern);
+                    }
+                }
+            }
+        }
+
+        for (int label = 0; label < values.length; label++) {
+            if (values[label] == null) {
+                values[label] = defaultValue;
+            }
+        }
+        return values;
+    }
+
+    private boolean matchesPosition(int pattern, int end, int length) {
+        int start = end - patternLengths[pattern] + 1;
+        return switch (matchTypes[pattern]) {
+            case PREFIX -> start == 0;
+            case SUFFIX -> end == length - 1;
+            case EXACT -> start == 0 && end == length - 1;
+            case CONTAINS -> true;
+        };
+    }
+
+    private void apply(int pattern, String[] values, int[] bestLength, int[] bestPattern) {
+        String[] patternValues = ruleValues[pattern];
+        for (int label = 0; label < patternValues.length; label++) {
+            String value = patternValues[label];
+            if (value == null) {
+                continue;
+            }
+            int length = patternLengths[pattern];
+            if (length > bestLength[label] || (length == bestLength[label] && pattern < bestPattern[label])) {
+                values[label] = value;
+                bestLength[label] = length;
+                bestPattern[label] = pattern;
+            }
+        }
+    }
+
+    private int next(int state, char c) {
+        while (true) {
+            int target = transition(state, c);
+            if (target >= 0) {
+                return target;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = failure[state];
+        }
+    }
+
+    private int transition(int state, char c) {
+        char[] chars = transitionChars[state];
+        int index = Arrays.binarySearch(chars, c);
+        return index >= 0 ? transitionTargets[state][index] : -1;
+    }
+
+    private void insert(String pattern, int id) {
+        int state = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            int target = transition(state, c);
+            if (target < 0) {
+                target = newState();
+                addTransition(state, c, target);
+            }
+            state = target;
+        }
+        // Rules sharing a pattern are chained in configuration order
+        samePattern[id] = -1;
+        if (patternAt[state] < 0) {
+            patternAt[state] = id;
+        } else {
+            int last = patternAt[state];
+            while (samePattern[last] >= 0) {
+                last = samePattern[last];
+            }
+            samePattern[last] = id;
+        }
+    }
+
+    private void buildFailureLinks() {
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int target : transitionTargets[0]) {
+            failure[target] = 0;
+            queue.add(target);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            outputLink[state] = patternAt[failure[state]] >= 0 ? failure[state] : outputLink[failure[state]];
+            char[] chars = transitionChars[state];
+            for (int i = 0; i < chars.length; i++) {
+                int target = transitionTargets[state][i];
+                failure[target] = next(failure[state], chars[i]);
+                queue.add(target);
+            }
+        }
+    }
+
+    private int newState() {
+        if (states == failure.length) {
+            int capacity = states * 2;
+            transitionChars = Arrays.copyOf(transitionChars, capacity);
+            transitionTargets = Arrays.copyOf(transitionTargets, capacity);
+            failure = Arrays.copyOf(failure, capacity);
+            patternAt = Arrays.copyOf(patternAt, capacity);
+            outputLink = Arrays.copyOf(outputLink, capacity);
+        }
+        transitionChars[states] = new char[0];
+        transitionTargets[states] = new int[0];
+        patternAt[states] = -1;
+        outputLink[states] = -1;
+        return states++;
+    }
+
+    private void addTransition(int state, char c, int target) {
+        char[] chars = transitionChars[state];
+        int insertAt = -Arrays.binarySearch(chars, c) - 1;
+        char[] newChars = new char[chars.length + 1];
+        int[] newTargets = new int[chars.length + 1];
+        System.arraycopy(chars, 0, newChars, 0, insertAt);
+        System.arraycopy(transitionTargets[state], 0, newTargets, 0, insertAt);
+        newChars[insertAt] = c;
+        newTargets[insertAt] = target;
+        System.arraycopy(chars, insertAt, newChars, insertAt + 1, chars.length - insertAt);
+        System.arraycopy(transitionTargets[state], insertAt, newTargets, insertAt + 1, chars.length - insertAt);
+        transitionChars[state] = newChars;
+        transitionTargets[state] = newTargets;
+    }
+}
@@ -1,22 +1,34 @@
 package gavgas.azureservicebusmetricexporter.metrics;
 
 import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.jfr.GaugeReconciliationEvent;
 import gavgas.azureservicebusmetricexporter.model.NamespaceMetric;
-import gavgas.azureservicebusmetricexporter.model.QueueMetric;
-import gavgas.azureservicebusmetricexporter.model.SubscriptionMetric;
-import gavgas.azureservicebusmetricexporter.model.TopicMetric;
 import gavgas.azureservicebusmetricexporter.service.ServiceBusClientService;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
 import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tags;
-import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.function.ToLongFunction;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 @Component
@@ -25,19 +37,96 @@ public class ServiceBusMetricsCollector {
     private final MeterRegistry meterRegistry;
     private final ServiceBusClientService serviceBusClientService;
     private final ServiceBusProperties serviceBusProperties;
+    private final EntityDescriptorCache descriptorCache;
 
-    // Keep track of registered gauge functions to avoid duplicates
+    // Gauges registered for each discovered entity, by entity type
+    private final Map<EntityType, List<EntityGauge>> entityGauges = new EnumMap<>(EntityType.class);
+
+    // Gauges registered for the "__other__" aggregates when the cardinality is limited
+    private final Map<EntityType, List<EntityGauge>> otherGauges = new EnumMap<>(EntityType.class);
+
+    private final CardinalityLimiter cardinalityLimiter;
+
+    // Entities exported under the cardinality limit and the counter sums of the aggregates, by type
+    private final Map<EntityType, Set<EntityDescriptor>> exportedEntities = new EnumMap<>(EntityType.class);
+    private final Map<EntityDescriptor, long[]> otherValues = new ConcurrentHashMap<>();
+
+    // Keep track of registered namespace gauge functions to avoid duplicates
     private final Map<String, Object> registeredMetrics = new HashMap<>();
 
     public ServiceBusMetricsCollector(MeterRegistry meterRegistry,
                                       ServiceBusClientService serviceBusClientService,
-                                      ServiceBusProperties serviceBusProperties) {
+                                      ServiceBusProperties serviceBusProperties,
+                                      EntityDescriptorCache descriptorCache,
+                                      List<EntityGaugeContributor> gaugeContributors) {
         this.meterRegistry = meterRegistry;
         this.serviceBusClientService = serviceBusClientService;
         this.serviceBusProperties = serviceBusProperties;
+        this.descriptorCache = descriptorCache;
+
+        this.cardinalityLimiter = new CardinalityLimiter(serviceBusProperties);
+
+        for (EntityType type : EntityType.values()) {
+            entityGauges.put(type, new ArrayList<>());
+            otherGauges.put(type, new ArrayList<>());
+            exportedEntities.put(type, new HashSet<>());
+        }
+        baseGauges().forEach(gauge -> {
+            entityGauges.get(gauge.type()).add(gauge);
+            otherGauges.get(gauge.type()).add(gauge);
+        });
+        if (serviceBusProperties.getMetrics().isCollectionTimestamps()) {
+            // Not for the "__other__" aggregates, which mix entities read at different times
+            collectionGauges().forEach(gauge -> entityGauges.get(gauge.type()).add(gauge));
+        }
+        for (EntityGaugeContributor contributor : gaugeContributors) {
+            contributor.entityGauges().forEach(gauge -> entityGauges.get(gauge.type()).add(gauge));
+        }
+    }
+
+    private List<EntityGauge> baseGauges() {
+        return List.of(
+            counterGauge(EntityType.QUEUE, "azure_servicebus_active_messages", Counter.ACTIVE_MESSAGES,
+                         "Number of active messages in the queue"),
+            counterGauge(EntityType.QUEUE, "azure_servicebus_dead_letter_messages", Counter.DEAD_LETTER_MESSAGES,
+                         "Number of dead letter messages in the queue"),
+            counterGauge(EntityType.QUEUE, "azure_servicebus_scheduled_messages", Counter.SCHEDULED_MESSAGES,
+                         "Number of scheduled messages in the queue"),
+            counterGauge(EntityType.QUEUE, "azure_servicebus_size_bytes", Counter.SIZE_BYTES,
+                         "Size of the queue in bytes"),
+            counterGauge(EntityType.QUEUE, "azure_servicebus_total_messages", Counter.TOTAL_MESSAGES,
+                         "Total number of messages in the queue"),
+
+            counterGauge(EntityType.TOPIC, "azure_servicebus_size_bytes", Counter.SIZE_BYTES,
+                         "Size of the topic in bytes"),
+            counterGauge(EntityType.TOPIC, "azure_servicebus_subscription_count", Counter.SUBSCRIPTION_COUNT,
+                         "Number of subscriptions for the topic"),
+
+            counterGauge(EntityType.SUBSCRIPTION, "azure_servicebus_active_messages", Counter.ACTIVE_MESSAGES,
+                         "Number of active messages in the subscription"),
+            counterGauge(EntityType.SUBSCRIPTION, "azure_servicebus_dead_letter_messages", Counter.DEAD_LETTER_MESSAGES,
+                         "Number of dead letter messages in the subscription"));
     }
 
-    @PostConstruct
+    private EntityGauge counterGauge(EntityType type, String name, Counter counter, String description) {
+        return new EntityGauge(type, name, description, descriptor -> currentValue(descriptor, counter));
+    }
+
+    private List<EntityGauge> collectionGauges() {
+        List<EntityGauge> gauges = new ArrayList<>();
+        for (EntityType type : EntityType.values()) {
+            gauges.add(new EntityGauge(type, "azure_servicebus_last_collected_timestamp_seconds",
+                                       "Time the values of the " + type.getLabel() + " were last read, in seconds since the epoch",
+                                       this::lastCollectedSeconds));
+        }
+        return gauges;
+    }
+
+    /**
+     * First collection once the application is ready rather than while this bean is created, so that
+     * every {@link SnapshotPublishedEvent} listener is registered and receives the first snapshot.
+     */
+    @EventListener(ApplicationReadyEvent.class)
     public void init() {
         log.info("Initializing ServiceBusMetricsCollector");
 
@@ -50,274 +139,269 @@ public class ServiceBusMetricsCollector {
         log.info("All metrics registered");
     }
 
-    private void registerAllMetrics() {
-        // Register queue metrics
-        for (QueueMetric queue : serviceBusClientService.getQueueMetrics()) {
-            String queueName = queue.getName();
-            String namespace = queue.getNamespace();
-
-            Tags tags = Tags.of("entity_type",
-                                "queue",
-                                "entity_name",
-                                queueName,
-                                "namespace",
-                                namespace,
-                                "environment",
-                                serviceBusProperties.getEnvironment());
-
-            // Register active messages metric
-            registerQueueMetric("queue_active_",
-                                "azure_servicebus_active_messages",
-                                queueName,
-                                namespace,
-                                tags,
-                                "Number of active messages in the queue",
-                                QueueMetric::getActiveMessages);
-
-            // Register dead letter messages metric
-            registerQueueMetric("queue_deadletter_",
-                                "azure_servicebus_dead_letter_messages",
-                                queueName,
-                                namespace,
-                                tags,
-                                "Number of dead letter messages in the queue",
-                                QueueMetric::getDeadLetterMessages);
-
-            // Register scheduled messages metric
-            registerQueueMetric("queue_scheduled_",
-                                "azure_servicebus_scheduled_messages",
-                                queueName,
-                                namespace,
-                                tags,
-                                "Number of scheduled messages in the queue",
-                                QueueMetric::getScheduledMessages);
-
-            // Register size bytes metric
-            registerQueueMetric("queue_size_",
-                                "azure_servicebus_size_bytes",
-                                queueName,
-                                namespace,
-                                tags,
-                                "Size of the queue in bytes",
-                                QueueMetric::getSizeBytes);
-
-            // Register total messages metric
-            registerQueueMetric("queue_total_",
-                                "azure_servicebus_total_messages",
-                                queueName,
-                                namespace,
-                                tags,
-                                "Total number of messages in the queue",
-                                QueueMetric::getTotalMessages);
-
-            log.info("Registered metrics for queue: {}", queueName);
+    /**
+     * Register gauges for every entity of the current snapshot that has none yet.
+     * Entities that already have gauges only cost a descriptor lookup, no tags or ids are rebuilt.
+     * Used at startup; afterwards gauges follow the snapshot diffs.
+     */
+    synchronized void registerAllMetrics() {
+        MetricsSnapshot snapshot = serviceBusClientService.getSnapshot();
+        String namespace = snapshot.getNamespace();
+
+        if (cardinalityLimiter.isEnabled()) {
+            applyCardinalityLimit(snapshot);
+        } else {
+            registerEntities(namespace, snapshot.getQueues());
+            registerEntities(namespace, snapshot.getTopics());
+            registerEntities(namespace, snapshot.getSubscriptions());
         }
 
-        // Register topic metrics
-        for (TopicMetric topic : serviceBusClientService.getTopicMetrics()) {
-            String topicName = topic.getName();
-            String namespace = topic.getNamespace();
-
-            Tags tags = Tags.of("entity_type",
-                                "topic",
-                                "entity_name",
-                                topicName,
-                                "namespace",
-                                namespace,
-                                "environment",
-                                serviceBusProperties.getEnvironment());
-
-            // Register size bytes metric
-            registerTopicMetric("topic_size_",
-                                "azure_servicebus_size_bytes",
-                                topicName,
-                                namespace,
-                                tags,
-                                "Size of the topic in bytes",
-                                TopicMetric::getSizeBytes);
-
-            // Register subscription count metric
-            registerTopicMetric("topic_subscription_count_",
-                                "azure_servicebus_subscription_count",
-                                topicName,
-                                namespace,
-                                tags,
-                                "Number of subscriptions for the topic",
-                                TopicMetric::getSubscriptionCount);
-
-            log.info("Registered metrics for topic: {}", topicName);
+        // Register namespace metrics
+        for (NamespaceMetric ns : snapshot.getNamespaceMetrics()) {
+            registerNamespaceMetrics(ns);
         }
+        registerDataAgeGauges(namespace);
+    }
 
-        // Register subscription metrics
-        for (SubscriptionMetric sub : serviceBusClientService.getSubscriptionMetrics()) {
-            String topicName = sub.getTopicName();
-            String subscriptionName = sub.getName();
-            String namespace = sub.getNamespace();
-            String entityName = topicName + "/" + subscriptionName;
-
-            Tags tags = Tags.of("entity_type",
-                                "subscription",
-                                "entity_name",
-                                entityName,
-                                "namespace",
-                                namespace,
-                                "topic_name",
-                                topicName,
-                                "subscription_name",
-                                subscriptionName,
-                                "environment",
-                                serviceBusProperties.getEnvironment());
-
-            // Register active messages metric
-            registerSubscriptionMetric("sub_active_",
-                                       "azure_servicebus_active_messages",
-                                       topicName,
-                                       subscriptionName,
-                                       namespace,
-                                       tags,
-                                       "Number of active messages in the subscription",
-                                       SubscriptionMetric::getActiveMessages);
-
-            // Register dead letter messages metric
-            registerSubscriptionMetric("sub_deadletter_",
-                                       "azure_servicebus_dead_letter_messages",
-                                       topicName,
-                                       subscriptionName,
-                                       namespace,
-                                       tags,
-                                       "Number of dead letter messages in the subscription",
-                                       SubscriptionMetric::getDeadLetterMessages);
-
-            log.info("Registered metrics for subscription: {}/{}", topicName, subscriptionName);
+    /**
+     * Apply the changes of a newly published snapshot: register gauges for added entities and
+     * remove the gauges of entities that disappeared. Unchanged entities are not touched.
+     * With a cardinality limit the exported entities are re-ranked instead.
+     */
+    @EventListener
+    public synchronized void onSnapshotPublished(SnapshotPublishedEvent event) {
+        GaugeReconciliationEvent reconciliation = new GaugeReconciliationEvent();
+        reconciliation.begin();
+        MetricsSnapshot snapshot = event.snapshot();
+
+        if (cardinalityLimiter.isEnabled()) {
+            applyCardinalityLimit(snapshot);
+        } else {
+            applyDiff(snapshot, event.diff());
         }
 
-        // Register namespace metrics
-        for (NamespaceMetric ns : serviceBusClientService.getNamespaceMetrics()) {
-            String namespace = ns.getNamespace();
-            String environment = serviceBusProperties.getEnvironment();
+        for (NamespaceMetric ns : snapshot.getNamespaceMetrics()) {
+            registerNamespaceMetrics(ns);
+        }
+        registerDataAgeGauges(snapshot.getNamespace());
+        reconciliation.complete(snapshot.getVersion(), cardinalityLimiter.isEnabled(), event.diff().addedCount(),
+                                event.diff().removedCount());
+    }
 
-            Tags tags = Tags.of(
-                "namespace", namespace,
-                "environment", environment
-            );
+    private void applyDiff(MetricsSnapshot snapshot, SnapshotDiff diff) {
+        String namespace = snapshot.getNamespace();
 
-            String metricId = "namespace_connections_" + namespace;
-            if (!registeredMetrics.containsKey(metricId)) {
-                Gauge.builder("azure_servicebus_active_connections",
-                              () -> serviceBusClientService.getNamespaceMetrics()
-                                                           .stream()
-                                                           .filter(n -> n.getNamespace().equals(namespace))
-                                                           .mapToLong(NamespaceMetric::getActiveConnections)
-                                                           .findFirst()
-                                                           .orElse(0))
-                     .tags(tags)
-                     .description("Number of active connections")
-                     .register(meterRegistry);
-                registeredMetrics.put(metricId, true);
+        for (EntityType type : EntityType.values()) {
+            SnapshotDiff.TableDiff tableDiff = diff.table(type);
+            EntityTable current = snapshot.table(type);
+            EntityTable previous = diff.getPrevious().table(type);
+
+            for (int i = 0; i < tableDiff.addedCount(); i++) {
+                registerEntity(namespace, current, tableDiff.addedRow(i));
+            }
+            for (int i = 0; i < tableDiff.removedCount(); i++) {
+                int row = tableDiff.removedRow(i);
+                removeEntity(type, previous.topicName(row), previous.name(row));
             }
+        }
+    }
 
-            // Register quota metrics
-            for (Map.Entry<String, Double> entry : ns.getQuotaUsage().entrySet()) {
-                String quotaName = entry.getKey();
+    /**
+     * Export only the top entities of each type. Entities that dropped out of the top are removed
+     * before new ones are registered, so the number of per-entity series never exceeds the limit.
+     * The remaining entities are exported as "__other__" aggregates, per topic for subscriptions.
+     */
+    private void applyCardinalityLimit(MetricsSnapshot snapshot) {
+        String namespace = snapshot.getNamespace();
 
-                Tags quotaTags = Tags.of(
-                    "namespace", namespace,
-                    "quota_name", quotaName,
-                    "environment", environment
-                );
+        for (EntityType type : EntityType.values()) {
+            EntityTable table = snapshot.table(type);
+            CardinalityLimiter.Selection selection = cardinalityLimiter.select(table);
 
-                metricId = "namespace_quota_" + namespace + "_" + quotaName;
-                if (!registeredMetrics.containsKey(metricId)) {
-                    final String finalQuotaName = quotaName;
-                    Gauge.builder("azure_servicebus_quota_usage_percentage",
-                                  () -> serviceBusClientService.getNamespaceMetrics()
-                                                               .stream()
-                                                               .filter(n -> n.getNamespace().equals(namespace))
-                                                               .filter(n -> n.getQuotaUsage().containsKey(finalQuotaName))
-                                                               .map(n -> n.getQuotaUsage().get(finalQuotaName))
-                                                               .findFirst()
-                                                               .orElse(0.0))
-                         .tags(quotaTags)
-                         .description("Percentage of quota used")
-                         .register(meterRegistry);
-                    registeredMetrics.put(metricId, true);
+            Set<EntityDescriptor> exported = new HashSet<>();
+            BitSet rows = selection.rows();
+            for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+                exported.add(descriptorCache.descriptor(namespace, table, row));
+            }
+            for (EntityDescriptor descriptor : exportedEntities.get(type)) {
+                if (!exported.contains(descriptor) && !otherValues.containsKey(descriptor)) {
+                    removeEntity(type, descriptor.getTopicName(), descriptor.getName());
                 }
             }
+            for (EntityDescriptor descriptor : exported) {
+                registerGauges(descriptor, entityGauges.get(type));
+            }
 
-            log.info("Registered metrics for namespace: {}", namespace);
+            // Aggregates of the entities that are not exported
+            for (Map.Entry<String, long[]> other : selection.others().entrySet()) {
+                EntityDescriptor descriptor =
+                    descriptorCache.descriptor(namespace, type, other.getKey(), CardinalityLimiter.OTHER);
+                otherValues.put(descriptor, other.getValue());
+                exported.add(descriptor);
+                registerGauges(descriptor, otherGauges.get(type));
+            }
+            for (EntityDescriptor descriptor : exportedEntities.get(type)) {
+                if (!exported.contains(descriptor) && otherValues.remove(descriptor) != null) {
+                    removeEntity(type, descriptor.getTopicName(), descriptor.getName());
+                }
+            }
+
+            exportedEntities.put(type, exported);
         }
     }
 
-    private void registerQueueMetric(String metricPrefix,
-                                     String metricName,
-                                     String queueName,
-                                     String namespace,
-                                     Tags tags,
-                                     String desc,
-                                     ToLongFunction<QueueMetric> valueFunction) {
-        String metricId = metricPrefix + namespace + "_" + queueName;
-
-        Gauge.builder(metricName,
-                      () -> serviceBusClientService.getQueueMetrics()
-                                                   .stream()
-                                                   .filter(q -> q.getName().equals(queueName) && q.getNamespace().equals(namespace))
-                                                   .mapToLong(valueFunction)
-                                                   .findFirst()
-                                                   .orElse(0)).tags(tags).description(desc).register(meterRegistry);
+    private void registerEntities(String namespace, EntityTable table) {
+        for (int row = 0; row < table.size(); row++) {
+            registerEntity(namespace, table, row);
+        }
+    }
 
-        registeredMetrics.put(metricId, true);
+    private void registerEntity(String namespace, EntityTable table, int row) {
+        registerGauges(descriptorCache.descriptor(namespace, table, row), entityGauges.get(table.getType()));
     }
 
-    private void registerTopicMetric(String metricPrefix,
-                                     String metricName,
-                                     String topicName,
-                                     String namespace,
-                                     Tags tags,
-                                     String desc,
-                                     ToLongFunction<TopicMetric> valueFunction) {
-        String metricId = metricPrefix + namespace + "_" + topicName;
-
-        Gauge.builder(metricName,
-                      () -> serviceBusClientService.getTopicMetrics()
-                                                   .stream()
-                                                   .filter(t -> t.getName().equals(topicName) && t.getNamespace().equals(namespace))
-                                                   .mapToLong(valueFunction)
-                                                   .findFirst()
-                                                   .orElse(0)).tags(tags).description(desc).register(meterRegistry);
+    private void registerGauges(EntityDescriptor descriptor, List<EntityGauge> gauges) {
+        if (descriptor.hasMeters()) {
+            return;
+        }
 
-        registeredMetrics.put(metricId, true);
+        for (EntityGauge entityGauge : gauges) {
+            Gauge gauge = Gauge.builder(entityGauge.name(), descriptor, entityGauge.value())
+                               .tags(descriptor.getTags())
+                               .description(entityGauge.description())
+                               .strongReference(true)
+                               .register(meterRegistry);
+            descriptor.addMeterId(gauge.getId());
+        }
 
+        log.info("Registered metrics for {}: {}", descriptor.getType().getLabel(), descriptor.getEntityName());
+    }
+
+    private void removeEntity(EntityType type, String topicName, String name) {
+        EntityDescriptor descriptor = descriptorCache.remove(type, topicName, name);
+        if (descriptor == null) {
+            return;
+        }
+        for (Meter.Id meterId : descriptor.getMeterIds()) {
+            meterRegistry.remove(meterId);
+        }
+        log.info("Removed metrics for {}: {}", type.getLabel(), descriptor.getEntityName());
     }
 
     /**
-     * Generic method to register a subscription metric.
+     * Value of a counter for the entity in the current snapshot, the sum for an "__other__" aggregate,
+     * 0 if the entity is gone.
      */
-    private void registerSubscriptionMetric(String metricPrefix,
-                                            String metricName,
-                                            String topicName,
-                                            String subscriptionName,
-                                            String namespace,
-                                            Tags tags,
-                                            String desc,
-                                            ToLongFunction<SubscriptionMetric> valueFunction) {
-        String metricId = metricPrefix + namespace + "_" + topicName + "_" + subscriptionName;
-
-        Gauge.builder(metricName,
-                      () -> serviceBusClientService.getSubscriptionMetrics()
-                                                   .stream()
-                                                   .filter(s -> s.getTopicName().equals(topicName) && s.getName().equals(subscriptionName)
-                                                       && s.getNamespace().equals(namespace))
-                                                   .mapToLong(valueFunction)
-                                                   .findFirst()
-                                                   .orElse(0)).tags(tags).description(desc).register(meterRegistry);
+    private double currentValue(EntityDescriptor descriptor, Counter counter) {
+        long[] other = otherValues.get(descriptor);
+        if (other != null) {
+            return other[counter.ordinal()];
+        }
+        EntityTable table = serviceBusClientService.getSnapshot().table(descriptor.getType());
+        int row = rowOf(table, descriptor);
+        return row < 0 ? 0 : table.get(row, counter);
+    }
 
+    private double lastCollectedSeconds(EntityDescriptor descriptor) {
+        EntityTable table = serviceBusClientService.getSnapshot().table(descriptor.getType());
+        int row = rowOf(table, descriptor);
+        return row < 0 ? Double.NaN : table.collectedAt(row) / 1000.0;
+    }
+
+    private static int rowOf(EntityTable table, EntityDescriptor descriptor) {
+        return descriptor.getType() == EntityType.SUBSCRIPTION
+            ? table.rowOf(descriptor.getTopicName(), descriptor.getName())
+            : table.rowOf(descriptor.getName());
+    }
+
+    /**
+     * Age of the oldest value per entity type, computed at scrape time: it keeps growing when
+     * collection stalls, which the per-entity timestamps alone only show relative to time().
+     */
+    private void registerDataAgeGauges(String namespace) {
+        if (!serviceBusProperties.getMetrics().isCollectionTimestamps()) {
+            return;
+        }
+        String metricId = "data_age_" + namespace;
+        if (registeredMetrics.containsKey(metricId)) {
+            return;
+        }
+        for (EntityType type : EntityType.values()) {
+            Gauge.builder("azure_servicebus_data_age_seconds", () -> dataAgeSeconds(type))
+                 .tags(Tags.of("namespace", namespace,
+                               "environment", serviceBusProperties.getEnvironment(),
+                               "entity_type", type.getLabel()))
+                 .description("Seconds since the least recently read entity of the type was read")
+                 .register(meterRegistry);
+        }
         registeredMetrics.put(metricId, true);
     }
 
+    private double dataAgeSeconds(EntityType type) {
+        EntityTable table = serviceBusClientService.getSnapshot().table(type);
+        if (table.size() == 0) {
+            return Double.NaN;
+        }
+        return (System.currentTimeMillis() - table.oldestCollectedAt()) / 1000.0;
+    }
+
+    private void registerNamespaceMetrics(NamespaceMetric ns) {
+        String namespace = ns.getNamespace();
+        String environment = serviceBusProperties.getEnvironment();
+
+        String metricId = "namespace_connections_" + namespace;
+        if (!registeredMetrics.containsKey(metricId)) {
+            Tags tags = Tags.of(
+                "namespace", namespace,
+                "environment", environment
+            );
+
+            Gauge.builder("azure_servicebus_active_connections",
+                          () -> serviceBusClientService.getNamespaceMetrics()
+                                                       .stream()
+                                                       .filter(n -> n.getNamespace().equals(namespace))
+                                                       .mapToLong(NamespaceMetric::getActiveConnections)
+                                                       .findFirst()
+                                                       .orElse(0))
+                 .tags(tags)
+                 .description("Number of active connections")
+                 .register(meterRegistry);
+            registeredMetrics.put(metricId, true);
+            log.info("Registered metrics for namespace: {}", namespace);
+        }
+
+        // Register quota metrics
+        for (Map.Entry<String, Double> entry : ns.getQuotaUsage().entrySet()) {
+            String quotaName = entry.getKey();
+
+            metricId = "namespace_quota_" + namespace + "_" + quotaName;
+            if (!registeredMetrics.containsKey(metricId)) {
+                Tags quotaTags = Tags.of(
+                    "namespace", namespace,
+                    "quota_name", quotaName,
+                    "environment", environment
+                );
+
+                Gauge.builder("azure_servicebus_quota_usage_percentage",
+                              () -> serviceBusClientService.getNamespaceMetrics()
+                                                           .stream()
+                                                           .filter(n -> n.getNamespace().equals(namespace))
+                                                           .filter(n -> n.getQuotaUsage().containsKey(quotaName))
+                                                           .map(n -> n.getQuotaUsage().get(quotaName))
+                                                           .findFirst()
+                                                           .orElse(0.0))
+                     .tags(quotaTags)
+                     .description("Percentage of quota used")
+                     .register(meterRegistry);
+                registeredMetrics.put(metricId, true);
+            }
+        }
+    }
+
     @Scheduled(fixedDelayString = "${azure.servicebus.metrics.scrape-interval:60000}")
     public void collectMetrics() {
         log.info("Scheduled metric collection started");
         serviceBusClientService.collectMetrics();
         log.info("Metrics collected successfully.");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,48 @@
+package gavgas.azureservicebusmetricexporter.metrics;
+
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Exposes how many entities were added, removed and changed by the last collection cycle.
+ */
+@Component
+public class SnapshotDiffMetrics {
+
+    private volatile SnapshotDiff lastDiff;
+
+    public SnapshotDiffMetrics(MeterRegistry meterRegistry) {
+        for (EntityType type : EntityType.values()) {
+            register(meterRegistry, type, "added", SnapshotDiff.TableDiff::addedCount);
+            register(meterRegistry, type, "removed", SnapshotDiff.TableDiff::removedCount);
+            register(meterRegistry, type, "changed", SnapshotDiff.TableDiff::changedCount);
+        }
+    }
+
+    private void register(MeterRegistry meterRegistry,
+                          EntityType type,
+                          String change,
+                          ToIntFunction<SnapshotDiff.TableDiff> count) {
+        Gauge.builder("azure_servicebus_exporter_entity_changes",
+                      () -> {
+                          SnapshotDiff diff = lastDiff;
+                          return diff == null ? 0 : count.applyAsInt(diff.table(type));
+                      })
+             .tags(Tags.of("entity_type", type.getLabel(), "change", change))
+             .description("Number of entities added, removed or changed by the last collection cycle")
+             .register(meterRegistry);
+    }
+
+    @EventListener
+    public void onSnapshotPublished(SnapshotPublishedEvent event) {
+        lastDiff = event.diff();
+    }
+}
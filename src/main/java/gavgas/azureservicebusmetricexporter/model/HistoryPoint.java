@@ -0,0 +1,14 @@
+package gavgas.azureservicebusmetricexporter.model;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.time.Instant;
+import java.util.Map;
+
+@Data
+@Builder
+public class HistoryPoint {
+    private Instant timestamp;
+    private Map<String, Long> values;
+}
@@ -0,0 +1,246 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import com.azure.core.exception.HttpResponseException;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Meters describing the exporter's own collection pipeline: cycle duration, latency and number of
+ * management API calls per operation and entity type, failures by cause, entities collected,
+ * snapshot publish lag, probe render time and the duration of /actuator/prometheus scrapes.
+ * Meters used on the hot path are registered up front and looked up by array index, so recording
+ * a call costs a clock read and a histogram update.
+ */
+@Component
+public class CollectionMetrics {
+
+    private static final EntityType[] TYPES = EntityType.values();
+
+    /**
+     * Records nothing; used by collectors whose calls should not count towards this exporter's cycles.
+     */
+    public static final CollectionMetrics NONE = new CollectionMetrics(new CompositeMeterRegistry());
+
+    /**
+     * Management API operation; a listing counts as one call however many pages it spans.
+     */
+    public enum Operation {
+        LIST("list"),
+        RUNTIME("runtime");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * Why a management API call failed, derived from the exception and the HTTP status it carries.
+     */
+    public enum Cause {
+        TIMEOUT("timeout"),
+        THROTTLED("throttled"),
+        UNAUTHORIZED("unauthorized"),
+        NOT_FOUND("not_found"),
+        SERVER("server"),
+        REJECTED("rejected"),
+        OTHER("other");
+
+        private final String label;
+
+        Cause(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public static Cause of(Throwable error) {
+            for (Throwable e = error; e != null; e = e.getCause()) {
+                if (e instanceof RejectedExecutionException) {
+                    return REJECTED;
+                }
+                if (e instanceof TimeoutException || e instanceof SocketTimeoutException) {
+                    return TIMEOUT;
+                }
+                if (e instanceof HttpResponseException http && http.getResponse() != null) {
+                    int status = http.getResponse().getStatusCode();
+                    if (status == 408) {
+                        return TIMEOUT;
+                    }
+                    if (status == 429) {
+                        return THROTTLED;
+                    }
+                    if (status == 401 || status == 403) {
+                        return UNAUTHORIZED;
+                    }
+                    if (status == 404) {
+                        return NOT_FOUND;
+                    }
+                    return status >= 500 ? SERVER : OTHER;
+                }
+            }
+            return OTHER;
+        }
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final Timer successfulCycles;
+    private final Timer failedCycles;
+    private final Timer publishLag;
+    private final Timer scrapes;
+    // Indexed by [operation][entity type], and by cause for failures
+    private final Timer[][] callTimers = new Timer[Operation.values().length][TYPES.length];
+    private final DistributionSummary[][] callsPerCycle = new DistributionSummary[Operation.values().length][TYPES.length];
+    private final LongAdder[][] cycleCalls = new LongAdder[Operation.values().length][TYPES.length];
+    private final Counter[][][] failures = new Counter[Operation.values().length][TYPES.length][Cause.values().length];
+    private final Map<String, Timer> renderTimers = new ConcurrentHashMap<>();
+    // Entities per type in the last published snapshot
+    private volatile int[] entitiesCollected = new int[TYPES.length];
+
+    public CollectionMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.successfulCycles = cycleTimer("success");
+        this.failedCycles = cycleTimer("failure");
+        this.publishLag = Timer.builder("azure_servicebus_exporter_snapshot_publish_lag")
+                               .description("Time from the end of a collection cycle until all snapshot listeners were notified")
+                               .register(meterRegistry);
+        this.scrapes = Timer.builder("azure_servicebus_exporter_scrape")
+                            .description("Time spent answering /actuator/prometheus scrapes, including rendering the exposition")
+                            .register(meterRegistry);
+
+        for (Operation operation : Operation.values()) {
+            for (EntityType type : TYPES) {
+                int op = operation.ordinal();
+                int t = type.ordinal();
+                callTimers[op][t] = Timer.builder("azure_servicebus_exporter_admin_call_duration")
+                                         .tags("operation", operation.getLabel(), "entity_type", type.getLabel())
+                                         .description("Latency of Service Bus management API calls")
+                                         .publishPercentileHistogram()
+                                         .minimumExpectedValue(Duration.ofMillis(1))
+                                         .maximumExpectedValue(Duration.ofSeconds(30))
+                                         .register(meterRegistry);
+                callsPerCycle[op][t] = DistributionSummary.builder("azure_servicebus_exporter_admin_calls_per_cycle")
+                                                          .tags("operation", operation.getLabel(), "entity_type", type.getLabel())
+                                                          .description("Service Bus management API calls made by one collection cycle")
+                                                          .register(meterRegistry);
+                cycleCalls[op][t] = new LongAdder();
+                for (Cause cause : Cause.values()) {
+                    failures[op][t][cause.ordinal()] =
+                        Counter.builder("azure_servicebus_exporter_collection_failures")
+                               .tags("operation", operation.getLabel(), "entity_type", type.getLabel(),
+                                     "cause", cause.getLabel())
+                               .description("Failed Service Bus management API calls")
+                               .register(meterRegistry);
+                }
+            }
+        }
+
+        for (EntityType type : TYPES) {
+            Gauge.builder("azure_servicebus_exporter_entities_collected", () -> entitiesCollected[type.ordinal()])
+                 .tag("entity_type", type.getLabel())
+                 .description("Entities in the snapshot published by the last collection cycle")
+                 .register(meterRegistry);
+        }
+    }
+
+    private Timer cycleTimer(String result) {
+        return Timer.builder("azure_servicebus_exporter_collection_cycle")
+                    .tag("result", result)
+                    .description("Duration of collection cycles")
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(10))
+                    .maximumExpectedValue(Duration.ofMinutes(10))
+                    .register(meterRegistry);
+    }
+
+    /**
+     * Start of a collection cycle; calls recorded from now on count towards it.
+     * @return start time to pass to {@link #cycleCompleted}
+     */
+    public long cycleStarted() {
+        for (LongAdder[] adders : cycleCalls) {
+            for (LongAdder adder : adders) {
+                adder.reset();
+            }
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * End of a collection cycle.
+     * @param snapshot the snapshot the cycle published, or null if it published none
+     */
+    public void cycleCompleted(long startNanos, boolean success, MetricsSnapshot snapshot) {
+        (success ? successfulCycles : failedCycles).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        for (int op = 0; op < cycleCalls.length; op++) {
+            for (int t = 0; t < TYPES.length; t++) {
+                callsPerCycle[op][t].record(cycleCalls[op][t].sum());
+            }
+        }
+        if (snapshot != null) {
+            int[] entities = new int[TYPES.length];
+            for (EntityType type : TYPES) {
+                entities[type.ordinal()] = snapshot.table(type).size();
+            }
+            entitiesCollected = entities;
+        }
+    }
+
+    /**
+     * Listeners of the given snapshot have returned.
+     */
+    public void published(MetricsSnapshot snapshot) {
+        long lagMillis = System.currentTimeMillis() - snapshot.getCollectedAt().toEpochMilli();
+        publishLag.record(Math.max(0, lagMillis), TimeUnit.MILLISECONDS);
+    }
+
+    public void recordCall(Operation operation, EntityType type, long nanos) {
+        callTimers[operation.ordinal()][type.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+        cycleCalls[operation.ordinal()][type.ordinal()].increment();
+    }
+
+    public void recordFailure(Operation operation, EntityType type, Throwable error) {
+        failures[operation.ordinal()][type.ordinal()][Cause.of(error).ordinal()].increment();
+    }
+
+    /**
+     * Time spent rendering a probe response body, e.g. "exposition:openmetrics" or "metrics:json".
+     */
+    public void recordRender(String body, long nanos) {
+        renderTimers.computeIfAbsent(body, b -> Timer.builder("azure_servicebus_exporter_render")
+                                                     .tag("body", b)
+                                                     .description("Time spent rendering probe response bodies")
+                                                     .register(meterRegistry))
+                    .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Time spent answering one scrape of the Prometheus endpoint.
+     */
+    public void recordScrape(long nanos) {
+        scrapes.record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,48 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Outcome of the recent collection cycles. Immutable, so the health check reads a consistent state
+ * without locking.
+ * After a configured number of consecutive failed cycles the circuit opens: collection is skipped
+ * until openUntil, then one trial cycle closes it on success or opens it again on failure.
+ *
+ * @param lastSuccess         end of the last cycle that listed every entity type, null if none did
+ * @param lastFailure         end of the last failed cycle, null if none failed
+ * @param consecutiveFailures failed cycles since the last successful one
+ * @param lastError           error of the last failed cycle, null after a successful one
+ * @param openUntil           end of the open period of the circuit, null while it is closed
+ */
+public record CollectionStatus(Instant lastSuccess, Instant lastFailure, int consecutiveFailures, String lastError,
+                               Instant openUntil) {
+
+    public enum Circuit {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    static final CollectionStatus INITIAL = new CollectionStatus(null, null, 0, null, null);
+
+    public Circuit circuit(Instant now) {
+        if (openUntil == null) {
+            return Circuit.CLOSED;
+        }
+        return now.isBefore(openUntil) ? Circuit.OPEN : Circuit.HALF_OPEN;
+    }
+
+    CollectionStatus succeeded(Instant at) {
+        return new CollectionStatus(at, lastFailure, 0, null, null);
+    }
+
+    /**
+     * @param failureThreshold consecutive failures that open the circuit, 0 to never open it
+     */
+    CollectionStatus failed(Instant at, Exception error, int failureThreshold, Duration openDuration) {
+        int failures = consecutiveFailures + 1;
+        Instant open = failureThreshold > 0 && failures >= failureThreshold ? at.plus(openDuration) : null;
+        return new CollectionStatus(lastSuccess, at, failures, error.toString(), open);
+    }
+}
@@ -0,0 +1,343 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import com.azure.core.http.rest.PagedIterable;
+import com.azure.messaging.servicebus.administration.ServiceBusAdministrationClient;
+import com.azure.messaging.servicebus.administration.models.QueueProperties;
+import com.azure.messaging.servicebus.administration.models.QueueRuntimeProperties;
+import com.azure.messaging.servicebus.administration.models.SubscriptionRuntimeProperties;
+import com.azure.messaging.servicebus.administration.models.TopicProperties;
+import com.azure.messaging.servicebus.administration.models.TopicRuntimeProperties;
+import gavgas.azureservicebusmetricexporter.jfr.AdminCallEvent;
+import gavgas.azureservicebusmetricexporter.service.CollectionMetrics.Operation;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Reads queue, topic and subscription runtime properties of one namespace into a snapshot builder.
+ * Runtime property calls are submitted to the given executor and joined in listing order, so rows
+ * are added in the same order whether the executor runs them inline or on a worker pool.
+ * Each row is stamped with the time its runtime properties were returned.
+ * Every management API call is timed into the given collection metrics; the time spent in a
+ * listing excludes the runtime calls an inline executor makes while it is iterated. Runtime calls
+ * are also recorded per entity in the given fetch statistics, and every call emits an
+ * {@link AdminCallEvent} when JFR records it.
+ */
+@Slf4j
+final class EntityCollector {
+
+    private final ServiceBusAdministrationClient adminClient;
+    private final Set<String> types;
+    private final EntityFilter entityFilter;
+    private final Executor executor;
+    private final CollectionMetrics metrics;
+    private final EntityFetchStats fetchStats;
+
+    EntityCollector(ServiceBusAdministrationClient adminClient, Set<String> types, EntityFilter entityFilter,
+                    Executor executor, CollectionMetrics metrics, EntityFetchStats fetchStats) {
+        this.adminClient = adminClient;
+        this.types = types;
+        this.entityFilter = entityFilter;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.fetchStats = fetchStats;
+    }
+
+    /**
+     * Adds the included entities to the builder. Entities whose runtime properties cannot be read keep
+     * their row of the previous snapshot, as do all entities of a type, or all subscriptions of a
+     * topic, that cannot be listed; carried forward rows keep their old collection time.
+     * @return the error that failed a listing, or null if every enabled type was listed
+     */
+    Exception collect(MetricsSnapshot.Builder builder) {
+        Exception queueError = collectQueues(builder.queues());
+        Exception topicError = collectTopics(builder.topics(), builder.subscriptions());
+        fetchStats.cycleCompleted(queueError == null && topicError == null);
+        return queueError != null ? queueError : topicError;
+    }
+
+    private Exception collectQueues(EntityTable.Builder queues) {
+        try {
+            log.info("Collecting Service Bus queue metrics");
+
+            // Check if queue metrics are enabled in configuration
+            if (!types.contains("queue")) {
+                log.info("Queue metrics collection is disabled in configuration");
+                return null;  // Skip entirely if queue type is not enabled
+            }
+
+            List<QueueProperties> queueList = new ArrayList<>();
+            List<CompletableFuture<Fetched<QueueRuntimeProperties>>> runtimeList = new ArrayList<>();
+            AdminCallEvent listEvent = new AdminCallEvent();
+            listEvent.begin();
+            long listStart = System.nanoTime();
+            forEachListed(EntityType.QUEUE, listStart, listEvent, adminClient.listQueues(), queueProperties -> {
+                String queueName = queueProperties.getName();
+                if (entityFilter.includes(EntityType.QUEUE, queueName)) {
+                    queueList.add(queueProperties);
+                    runtimeList.add(fetch(EntityType.QUEUE, null, queueName,
+                                          () -> adminClient.getQueueRuntimeProperties(queueName)));
+                }
+            });
+
+            for (int i = 0; i < queueList.size(); i++) {
+                QueueProperties queueProperties = queueList.get(i);
+                String queueName = queueProperties.getName();
+                try {
+                    Fetched<QueueRuntimeProperties> fetched = join(runtimeList.get(i));
+                    QueueRuntimeProperties runtimeProps = fetched.value();
+
+                    long maxSizeBytes = queueProperties.getMaxSizeInMegabytes() * 1024 * 1024L;
+
+                    int row = queues.addRow(queueName);
+                    queues.collectedAt(row, fetched.at())
+                          .set(row, Counter.CREATED_AT, MetricsSnapshot.toEpochMillis(runtimeProps.getCreatedAt()))
+                          .set(row, Counter.UPDATED_AT, MetricsSnapshot.toEpochMillis(runtimeProps.getUpdatedAt()))
+                          .set(row, Counter.ACCESSED_AT, MetricsSnapshot.toEpochMillis(runtimeProps.getAccessedAt()))
+                          .set(row, Counter.TOTAL_MESSAGES, runtimeProps.getTotalMessageCount())
+                          .set(row, Counter.ACTIVE_MESSAGES, runtimeProps.getActiveMessageCount())
+                          .set(row, Counter.DEAD_LETTER_MESSAGES, runtimeProps.getDeadLetterMessageCount())
+                          .set(row, Counter.SCHEDULED_MESSAGES, runtimeProps.getScheduledMessageCount())
+                          .set(row, Counter.TRANSFER_MESSAGES, runtimeProps.getTransferMessageCount())
+                          .set(row, Counter.TRANSFER_DEAD_LETTER_MESSAGES, runtimeProps.getTransferDeadLetterMessageCount())
+                          .set(row, Counter.SIZE_BYTES, runtimeProps.getSizeInBytes())
+                          .set(row, Counter.MAX_SIZE_BYTES, maxSizeBytes);
+                    log.debug("Collected metrics for queue: {}", queueName);
+                } catch (Exception e) {
+                    log.warn("Failed to get metrics for queue {}, keeping its previous values: {}",
+                             queueName, e.getMessage());
+                    queues.carryForward(null, queueName);
+                }
+            }
+
+            log.info("Collected metrics for {} queues", queues.size());
+            return null;
+        } catch (Exception e) {
+            log.error("Error collecting queue metrics", e);
+            metrics.recordFailure(Operation.LIST, EntityType.QUEUE, e);
+            // Rows are only added once the listing completed, so the table is still empty here
+            log.warn("Keeping {} queues of the previous snapshot", queues.carryForwardAll());
+            return e;
+        }
+    }
+
+    private Exception collectTopics(EntityTable.Builder topics, EntityTable.Builder subscriptions) {
+        // Check if queue metrics are enabled in configuration
+        if (!types.contains("topic")) {
+            log.info("Queue metrics collection is disabled in configuration");
+            return null;  // Skip entirely if topic type is not enabled
+        }
+
+        try {
+            log.info("Collecting Service Bus topic metrics");
+            AdminCallEvent listEvent = new AdminCallEvent();
+            listEvent.begin();
+            long listStart = System.nanoTime();
+            PagedIterable<TopicProperties> topicList = adminClient.listTopics();
+
+            if (topicList == null) {
+                log.warn("listTopics() returned null - skipping topic metrics collection");
+                return null;
+            }
+
+            boolean withSubscriptions = types.contains("subscription");
+            List<TopicProperties> included = new ArrayList<>();
+            List<CompletableFuture<Fetched<TopicRuntimeProperties>>> runtimeList = new ArrayList<>();
+            List<CompletableFuture<Fetched<List<String>>>> subscriptionNames = new ArrayList<>();
+            forEachListed(EntityType.TOPIC, listStart, listEvent, topicList, topicProperties -> {
+                String topicName = topicProperties.getName();
+                if (entityFilter.includes(EntityType.TOPIC, topicName)) {
+                    included.add(topicProperties);
+                    runtimeList.add(fetch(EntityType.TOPIC, null, topicName,
+                                          () -> adminClient.getTopicRuntimeProperties(topicName)));
+                    subscriptionNames.add(withSubscriptions
+                        ? submit(Operation.LIST, EntityType.SUBSCRIPTION, topicName, () -> listSubscriptions(topicName))
+                        : CompletableFuture.completedFuture(new Fetched<>(List.of(), 0)));
+                }
+            });
+
+            // The filter is not thread-safe, so subscriptions are filtered here rather than in the listing tasks.
+            // A topic whose subscriptions could not be listed gets null instead of its fetches.
+            List<List<SubscriptionFetch>> subscriptionFetches = new ArrayList<>();
+            for (int i = 0; i < included.size(); i++) {
+                String topicName = included.get(i).getName();
+                List<SubscriptionFetch> fetches = new ArrayList<>();
+                try {
+                    for (String subscriptionName : join(subscriptionNames.get(i)).value()) {
+                        if (entityFilter.includes(topicName, subscriptionName)) {
+                            fetches.add(new SubscriptionFetch(subscriptionName, fetch(
+                                EntityType.SUBSCRIPTION, topicName, subscriptionName,
+                                () -> adminClient.getSubscriptionRuntimeProperties(topicName, subscriptionName))));
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("Error collecting subscription metrics for topic {}", topicName, e);
+                    fetchStats.subscriptionsNotListed(topicName);
+                    fetches = null;
+                }
+                subscriptionFetches.add(fetches);
+            }
+
+            for (int i = 0; i < included.size(); i++) {
+                TopicProperties topicProperties = included.get(i);
+                String topicName = topicProperties.getName();
+                try {
+                    Fetched<TopicRuntimeProperties> fetched = join(runtimeList.get(i));
+                    TopicRuntimeProperties runtimeProps = fetched.value();
+
+                    int row = topics.addRow(topicName);
+                    topics.collectedAt(row, fetched.at())
+                          .set(row, Counter.SIZE_BYTES, runtimeProps.getSizeInBytes())
+                          .set(row, Counter.MAX_SIZE_BYTES, topicProperties.getMaxSizeInMegabytes() * 1024 * 1024L)
+                          .set(row, Counter.SUBSCRIPTION_COUNT, runtimeProps.getSubscriptionCount());
+                    log.debug("Collected metrics for topic: {}", topicName);
+                } catch (Exception e) {
+                    log.warn("Failed to get metrics for topic {}, keeping its previous values: {}",
+                             topicName, e.getMessage());
+                    topics.carryForward(null, topicName);
+                }
+
+                // Collect subscriptions for this topic
+                List<SubscriptionFetch> fetches = subscriptionFetches.get(i);
+                if (fetches == null) {
+                    subscriptions.carryForwardTopic(topicName);
+                    continue;
+                }
+                for (SubscriptionFetch subscription : fetches) {
+                    addSubscription(subscriptions, topicName, subscription);
+                }
+            }
+
+            log.info("Collected metrics for {} topics and {} subscriptions",
+                     topics.size(), subscriptions.size());
+            return null;
+        } catch (Exception e) {
+            log.error("Error collecting topic metrics", e);
+            metrics.recordFailure(Operation.LIST, EntityType.TOPIC, e);
+            log.warn("Keeping {} topics and {} subscriptions of the previous snapshot",
+                     topics.carryForwardAll(), subscriptions.carryForwardAll());
+            return e;
+        }
+    }
+
+    private record Fetched<T>(T value, long at) {
+    }
+
+    private record SubscriptionFetch(String name, CompletableFuture<Fetched<SubscriptionRuntimeProperties>> runtime) {
+    }
+
+    private List<String> listSubscriptions(String topicName) {
+        List<String> names = new ArrayList<>();
+        adminClient.listSubscriptions(topicName).forEach(
+            subscriptionProperties -> names.add(subscriptionProperties.getSubscriptionName()));
+        return names;
+    }
+
+    private void addSubscription(EntityTable.Builder subscriptions, String topicName, SubscriptionFetch subscription) {
+        try {
+            Fetched<SubscriptionRuntimeProperties> fetched = join(subscription.runtime());
+            SubscriptionRuntimeProperties runtimeProps = fetched.value();
+
+            int row = subscriptions.addRow(topicName, subscription.name());
+            subscriptions.collectedAt(row, fetched.at())
+                         .set(row, Counter.ACTIVE_MESSAGES, runtimeProps.getActiveMessageCount())
+                         .set(row, Counter.DEAD_LETTER_MESSAGES, runtimeProps.getDeadLetterMessageCount())
+                         .set(row, Counter.SCHEDULED_MESSAGES, 0) // Not available in current API version
+                         .set(row, Counter.TRANSFER_MESSAGES, runtimeProps.getTransferMessageCount())
+                         .set(row, Counter.TRANSFER_DEAD_LETTER_MESSAGES, runtimeProps.getTransferDeadLetterMessageCount());
+            log.debug("Collected metrics for subscription: {}/{}", topicName, subscription.name());
+        } catch (Exception e) {
+            log.warn("Failed to get metrics for subscription {}/{}, keeping its previous values: {}",
+                     topicName, subscription.name(), e.getMessage());
+            subscriptions.carryForward(topicName, subscription.name());
+        }
+    }
+
+    /**
+     * Iterate a listing started at listStart and record it as one list call, leaving out the time
+     * spent in the action.
+     */
+    private <T> void forEachListed(EntityType type, long listStart, AdminCallEvent event, Iterable<T> listing,
+                                   Consumer<T> action) {
+        long[] inAction = new long[1];
+        try {
+            listing.forEach(item -> {
+                long actionStart = System.nanoTime();
+                action.accept(item);
+                inAction[0] += System.nanoTime() - actionStart;
+            });
+        } catch (RuntimeException e) {
+            event.complete(Operation.LIST.getLabel(), type.getLabel(), null, e);
+            throw e;
+        }
+        event.complete(Operation.LIST.getLabel(), type.getLabel(), null, null);
+        metrics.recordCall(Operation.LIST, type, System.nanoTime() - listStart - inAction[0]);
+    }
+
+    /**
+     * Submit a runtime property call of one entity, recording its latency and outcome for the entity.
+     */
+    private <T> CompletableFuture<Fetched<T>> fetch(EntityType type, String topicName, String name, Supplier<T> call) {
+        // Listed, so its statistics are kept even if the call is rejected
+        fetchStats.listed(type, topicName, name);
+        return submit(Operation.RUNTIME, type, topicName == null ? name : topicName + "/" + name, () -> {
+            long start = System.nanoTime();
+            try {
+                T value = call.get();
+                fetchStats.recordSuccess(type, topicName, name, System.nanoTime() - start);
+                return value;
+            } catch (RuntimeException e) {
+                fetchStats.recordFailure(type, topicName, name, System.nanoTime() - start, e);
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * @param entity entity the call reads, or the topic whose subscriptions it lists
+     */
+    private <T> CompletableFuture<Fetched<T>> submit(Operation operation, EntityType type, String entity,
+                                                     Supplier<T> call) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                AdminCallEvent event = new AdminCallEvent();
+                event.begin();
+                long start = System.nanoTime();
+                RuntimeException error = null;
+                try {
+                    return new Fetched<>(call.get(), System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    error = e;
+                    metrics.recordFailure(operation, type, e);
+                    throw e;
+                } finally {
+                    metrics.recordCall(operation, type, System.nanoTime() - start);
+                    event.complete(operation.getLabel(), type.getLabel(), entity, error);
+                }
+            }, executor);
+        } catch (RuntimeException e) {
+            // Rejected by a full worker queue
+            metrics.recordFailure(operation, type, e);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+}
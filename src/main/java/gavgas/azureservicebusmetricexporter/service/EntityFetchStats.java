@@ -0,0 +1,268 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * Runtime property fetch statistics per entity: last latency, exponentially weighted average
+ * latency, consecutive failures and the class of the last error.
+ * State lives in primitive arrays of a fixed capacity, indexed by a slot per entity. Slots of
+ * entities that were neither listed nor fetched are released at the end of each fully listed cycle;
+ * entities beyond the capacity are not tracked. Error classes are interned into a small table, so a slot only
+ * holds the index of its last one.
+ */
+@Component
+public class EntityFetchStats {
+
+    private static final EntityType[] TYPES = EntityType.values();
+
+    /**
+     * Tracks nothing; used by collectors whose entities should not show up in this exporter's report.
+     */
+    public static final EntityFetchStats NONE = new EntityFetchStats(0);
+
+    // Weight of the latest fetch in the average latency
+    static final double EWMA_ALPHA = 0.3;
+    static final int MAX_ERROR_CLASSES = 64;
+    private static final String OTHER_ERROR_CLASS = "other";
+
+    /**
+     * Statistics of one entity at the time of the report.
+     * @param topicName        topic of a subscription, null for queues and topics
+     * @param lastErrorClass   class of the last failure, also after later successful fetches; null if none failed
+     */
+    public record Entry(EntityType type, String topicName, String name, double lastLatencyMillis,
+                        double averageLatencyMillis, int failureStreak, long failures, long fetches,
+                        String lastErrorClass, Instant lastFetch) {
+
+        public String entityName() {
+            return topicName == null ? name : topicName + "/" + name;
+        }
+    }
+
+    private final int capacity;
+    // Slot by entity name per type; subscriptions are keyed "topic/subscription"
+    private final List<Map<String, Integer>> slots = new ArrayList<>();
+    private final byte[] types;
+    private final String[] topicNames;
+    private final String[] names;
+    private final long[] lastLatencyNanos;
+    private final double[] averageLatencyNanos;
+    private final int[] failureStreak;
+    private final long[] failures;
+    private final long[] fetches;
+    private final byte[] lastErrorClass;
+    private final long[] lastFetchMillis;
+    // Cycle in which each slot was last fetched
+    private final int[] seenInCycle;
+    private final List<String> errorClasses = new ArrayList<>();
+
+    private final int[] freeSlots;
+    private int freeCount;
+    private int nextSlot;
+    private int cycle;
+
+    @Autowired
+    public EntityFetchStats(ServiceBusProperties properties) {
+        this(Math.max(0, properties.getMetrics().getFetchStatsCapacity()));
+    }
+
+    EntityFetchStats(int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < TYPES.length; i++) {
+            slots.add(new HashMap<>());
+        }
+        this.types = new byte[capacity];
+        this.topicNames = new String[capacity];
+        this.names = new String[capacity];
+        this.lastLatencyNanos = new long[capacity];
+        this.averageLatencyNanos = new double[capacity];
+        this.failureStreak = new int[capacity];
+        this.failures = new long[capacity];
+        this.fetches = new long[capacity];
+        this.lastErrorClass = new byte[capacity];
+        this.lastFetchMillis = new long[capacity];
+        this.seenInCycle = new int[capacity];
+        this.freeSlots = new int[capacity];
+    }
+
+    public synchronized void recordSuccess(EntityType type, String topicName, String name, long latencyNanos) {
+        int slot = slot(type, topicName, name, latencyNanos);
+        if (slot >= 0) {
+            failureStreak[slot] = 0;
+        }
+    }
+
+    public synchronized void recordFailure(EntityType type, String topicName, String name, long latencyNanos,
+                                           Throwable error) {
+        int slot = slot(type, topicName, name, latencyNanos);
+        if (slot >= 0) {
+            failureStreak[slot]++;
+            failures[slot]++;
+            lastErrorClass[slot] = (byte) errorClass(error.getClass().getName());
+        }
+    }
+
+    /**
+     * The entity was listed in the current cycle, so it keeps its slot even if its fetch never ran,
+     * e.g. because a full worker queue rejected it.
+     */
+    public synchronized void listed(EntityType type, String topicName, String name) {
+        if (capacity == 0) {
+            return;
+        }
+        Integer slot = slots.get(type.ordinal()).get(topicName == null ? name : topicName + "/" + name);
+        if (slot != null) {
+            seenInCycle[slot] = cycle;
+        }
+    }
+
+    /**
+     * The subscriptions of the topic could not be listed in the current cycle; the tracked ones keep
+     * their slots, as nothing tells whether they still exist.
+     */
+    public synchronized void subscriptionsNotListed(String topicName) {
+        for (int slot = 0; slot < nextSlot; slot++) {
+            if (names[slot] != null && types[slot] == EntityType.SUBSCRIPTION.ordinal()
+                && topicName.equals(topicNames[slot])) {
+                seenInCycle[slot] = cycle;
+            }
+        }
+    }
+
+    /**
+     * End of a collection cycle. If every enabled type was listed, entities that were neither listed
+     * nor fetched in it have been deleted or filtered out and give up their slots.
+     */
+    public synchronized void cycleCompleted(boolean listed) {
+        if (listed) {
+            for (int slot = 0; slot < nextSlot; slot++) {
+                if (names[slot] != null && seenInCycle[slot] != cycle) {
+                    release(slot);
+                }
+            }
+        }
+        cycle++;
+    }
+
+    /**
+     * Tracked entities ordered by average latency, slowest first.
+     */
+    public synchronized List<Entry> slowest(int limit) {
+        return ranked(limit, slot -> true,
+                      Comparator.comparingDouble((Integer slot) -> averageLatencyNanos[slot]).reversed());
+    }
+
+    /**
+     * Entities whose last fetch failed, longest failure streak first.
+     */
+    public synchronized List<Entry> failing(int limit) {
+        return ranked(limit, slot -> failureStreak[slot] > 0,
+                      Comparator.comparingInt((Integer slot) -> failureStreak[slot]).reversed()
+                                .thenComparing(Comparator.comparingLong((Integer slot) -> failures[slot]).reversed()));
+    }
+
+    public synchronized int size() {
+        return nextSlot - freeCount;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private List<Entry> ranked(int limit, IntPredicate include, Comparator<Integer> order) {
+        Integer[] ranked = new Integer[nextSlot];
+        int count = 0;
+        for (int slot = 0; slot < nextSlot; slot++) {
+            if (names[slot] != null && include.test(slot)) {
+                ranked[count++] = slot;
+            }
+        }
+        Arrays.sort(ranked, 0, count, order);
+        List<Entry> entries = new ArrayList<>(Math.min(limit, count));
+        for (int i = 0; i < Math.min(limit, count); i++) {
+            entries.add(entry(ranked[i]));
+        }
+        return entries;
+    }
+
+    private Entry entry(int slot) {
+        return new Entry(TYPES[types[slot]], topicNames[slot], names[slot], lastLatencyNanos[slot] / 1e6,
+                         averageLatencyNanos[slot] / 1e6, failureStreak[slot], failures[slot], fetches[slot],
+                         lastErrorClass[slot] == 0 ? null : errorClasses.get(lastErrorClass[slot] - 1),
+                         Instant.ofEpochMilli(lastFetchMillis[slot]));
+    }
+
+    /**
+     * Slot of the entity with this fetch recorded, assigning one if needed; -1 if the entity is not tracked.
+     */
+    private int slot(EntityType type, String topicName, String name, long latencyNanos) {
+        if (capacity == 0) {
+            return -1;
+        }
+        Map<String, Integer> byName = slots.get(type.ordinal());
+        String key = topicName == null ? name : topicName + "/" + name;
+        Integer existing = byName.get(key);
+        int slot;
+        if (existing != null) {
+            slot = existing;
+            averageLatencyNanos[slot] += EWMA_ALPHA * (latencyNanos - averageLatencyNanos[slot]);
+        } else if (freeCount > 0 || nextSlot < capacity) {
+            slot = freeCount > 0 ? freeSlots[--freeCount] : nextSlot++;
+            byName.put(key, slot);
+            types[slot] = (byte) type.ordinal();
+            topicNames[slot] = topicName;
+            names[slot] = name;
+            averageLatencyNanos[slot] = latencyNanos;
+            failureStreak[slot] = 0;
+            failures[slot] = 0;
+            fetches[slot] = 0;
+            lastErrorClass[slot] = 0;
+        } else {
+            return -1;
+        }
+        lastLatencyNanos[slot] = latencyNanos;
+        fetches[slot]++;
+        lastFetchMillis[slot] = System.currentTimeMillis();
+        seenInCycle[slot] = cycle;
+        return slot;
+    }
+
+    private void release(int slot) {
+        String topicName = topicNames[slot];
+        slots.get(types[slot]).remove(topicName == null ? names[slot] : topicName + "/" + names[slot]);
+        topicNames[slot] = null;
+        names[slot] = null;
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * 1-based index of the error class in the interned table; classes beyond its size share "other".
+     */
+    private int errorClass(String className) {
+        int index = errorClasses.indexOf(className);
+        if (index < 0) {
+            if (errorClasses.size() < MAX_ERROR_CLASSES - 1) {
+                errorClasses.add(className);
+                return errorClasses.size();
+            }
+            index = errorClasses.indexOf(OTHER_ERROR_CLASS);
+            if (index < 0) {
+                errorClasses.add(OTHER_ERROR_CLASS);
+                return errorClasses.size();
+            }
+        }
+        return index + 1;
+    }
+}
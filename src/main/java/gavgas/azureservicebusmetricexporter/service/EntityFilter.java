@@ -0,0 +1,248 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which entities are collected: environment prefix, the legacy filter regex, global
+ * include/exclude rules and per-type rules, all of which must pass.
+ * Rules are compiled once: literal prefixes go into a trie, regular expressions of the form
+ * {@code literal} or {@code literal.*} become exact names or prefixes, and the remaining regular
+ * expressions of a rule list are joined into a single pattern. Decisions are cached per entity name
+ * and kept as long as the entity is seen in every collection cycle.
+ * Not thread-safe; used by the collection under the service's collection lock.
+ */
+@Slf4j
+public final class EntityFilter {
+
+    private final String environmentPrefix;
+    private final RuleSet legacy;
+    private final RuleSet global;
+    private final Map<EntityType, RuleSet> byType = new EnumMap<>(EntityType.class);
+
+    // Decisions of the current and the previous cycle, by type and topic ("" for queues and topics)
+    private Map<EntityType, Map<String, Map<String, Boolean>>> current = new EnumMap<>(EntityType.class);
+    private Map<EntityType, Map<String, Map<String, Boolean>>> previous = new EnumMap<>(EntityType.class);
+
+    private long evaluations;
+
+    public EntityFilter(ServiceBusProperties properties) {
+        this(properties.getEnvironment(), properties.getEntities());
+    }
+
+    public EntityFilter(String environment, ServiceBusProperties.Entities entities) {
+        this.environmentPrefix = environment == null || environment.isEmpty() ? null : environment;
+
+        Pattern legacyFilter = entities.getCompiledFilter();
+        this.legacy = new RuleSet(legacyFilter == null ? List.of() : List.of(legacyFilter.pattern()),
+                                  List.of(), List.of(), List.of());
+        this.global = new RuleSet(entities.getInclude(), entities.getExclude(),
+                                  entities.getIncludePrefixes(), entities.getExcludePrefixes());
+        entities.getTypeRules().forEach((label, rules) -> {
+            EntityType type = EntityType.fromLabel(label);
+            if (type == null) {
+                throw new IllegalArgumentException("Unknown entity type in filter rules: " + label);
+            }
+            byType.put(type, new RuleSet(rules.getInclude(), rules.getExclude(),
+                                         rules.getIncludePrefixes(), rules.getExcludePrefixes()));
+        });
+    }
+
+    /**
+     * Whether a queue or topic is collected.
+     */
+    public boolean includes(EntityType type, String name) {
+        return decide(type, "", name, name);
+    }
+
+    /**
+     * Whether a subscription is collected; the environment prefix applies to the topic name.
+     */
+    public boolean includes(String topicName, String subscriptionName) {
+        return decide(EntityType.SUBSCRIPTION, topicName, subscriptionName, null);
+    }
+
+    private boolean decide(EntityType type, String topicName, String name, String entityName) {
+        Map<String, Boolean> decisions = current.computeIfAbsent(type, t -> new HashMap<>())
+                                                .computeIfAbsent(topicName, t -> new HashMap<>());
+        Boolean decision = decisions.get(name);
+        if (decision == null) {
+            Map<String, Map<String, Boolean>> previousByTopic = previous.get(type);
+            Map<String, Boolean> previousDecisions = previousByTopic == null ? null : previousByTopic.get(topicName);
+            decision = previousDecisions == null ? null : previousDecisions.get(name);
+            if (decision == null) {
+                decision = evaluate(type, topicName, entityName != null ? entityName : topicName + "/" + name);
+            }
+            decisions.put(name, decision);
+        }
+        return decision;
+    }
+
+    private boolean evaluate(EntityType type, String topicName, String entityName) {
+        evaluations++;
+        String environmentName = type == EntityType.SUBSCRIPTION ? topicName : entityName;
+        boolean included = (environmentPrefix == null || environmentName.startsWith(environmentPrefix))
+            && legacy.test(entityName)
+            && global.test(entityName)
+            && byType.getOrDefault(type, RuleSet.EMPTY).test(entityName);
+        if (!included) {
+            log.debug("{} '{}' filtered out (environment: {})", type.getLabel(), entityName, environmentPrefix);
+        }
+        return included;
+    }
+
+    /**
+     * End of a collection cycle: forget the decisions of entities that were not seen in it.
+     */
+    public void rollover() {
+        previous = current;
+        current = new EnumMap<>(EntityType.class);
+    }
+
+    /**
+     * Number of rule evaluations, i.e. cache misses, since creation.
+     */
+    long evaluations() {
+        return evaluations;
+    }
+
+    /**
+     * Include and exclude rules of one level. Passes when no exclude matches and either no includes
+     * are configured or one of them matches.
+     */
+    static final class RuleSet {
+
+        static final RuleSet EMPTY = new RuleSet(List.of(), List.of(), List.of(), List.of());
+
+        private static final Pattern LITERAL = Pattern.compile("[^\\\\.\\[\\]{}()*+?^$|]*");
+
+        private final PrefixSet includePrefixes = new PrefixSet();
+        private final PrefixSet excludePrefixes = new PrefixSet();
+        private final Set<String> includeNames = new HashSet<>();
+        private final Set<String> excludeNames = new HashSet<>();
+        private final Pattern include;
+        private final Pattern exclude;
+        private final boolean hasIncludes;
+
+        RuleSet(List<String> include, List<String> exclude, List<String> includePrefixes, List<String> excludePrefixes) {
+            includePrefixes.forEach(this.includePrefixes::add);
+            excludePrefixes.forEach(this.excludePrefixes::add);
+            boolean includesAll = include.stream().anyMatch(RuleSet::matchesAll);
+            this.include = includesAll ? null : compile(include, this.includePrefixes, includeNames);
+            this.exclude = compile(exclude, this.excludePrefixes, excludeNames);
+            this.hasIncludes = !includesAll && (this.include != null || !this.includePrefixes.isEmpty() || !includeNames.isEmpty());
+        }
+
+        boolean test(String name) {
+            if (excludePrefixes.matches(name) || excludeNames.contains(name)
+                || (exclude != null && exclude.matcher(name).matches())) {
+                return false;
+            }
+            return !hasIncludes
+                || includePrefixes.matches(name)
+                || includeNames.contains(name)
+                || (include != null && include.matcher(name).matches());
+        }
+
+        /**
+         * Move literal and literal-prefix expressions into the given sets, join the others into one pattern.
+         */
+        private static Pattern compile(List<String> regexes, PrefixSet prefixes, Set<String> names) {
+            List<String> remaining = new ArrayList<>();
+            for (String regex : regexes) {
+                String body = regex.startsWith("^") ? regex.substring(1) : regex;
+                body = body.endsWith("$") && !body.endsWith("\\$") ? body.substring(0, body.length() - 1) : body;
+                if (body.endsWith(".*") && LITERAL.matcher(body.substring(0, body.length() - 2)).matches()) {
+                    prefixes.add(body.substring(0, body.length() - 2));
+                } else if (LITERAL.matcher(body).matches()) {
+                    names.add(body);
+                } else {
+                    remaining.add("(?:" + regex + ")");
+                }
+            }
+            return remaining.isEmpty() ? null : Pattern.compile(String.join("|", remaining));
+        }
+
+        private static boolean matchesAll(String regex) {
+            return Arrays.asList(".*", "^.*", ".*$", "^.*$").contains(regex);
+        }
+    }
+
+    /**
+     * Set of literal prefixes stored as a character trie; {@link #matches} walks the name once.
+     */
+    static final class PrefixSet {
+
+        private final Node root = new Node();
+        private boolean empty = true;
+
+        void add(String prefix) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.child(prefix.charAt(i), true);
+            }
+            node.terminal = true;
+            empty = false;
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        /**
+         * Whether one of the prefixes is a prefix of the name.
+         */
+        boolean matches(String name) {
+            if (empty) {
+                return false;
+            }
+            Node node = root;
+            for (int i = 0; !node.terminal; i++) {
+                if (i == name.length() || (node = node.child(name.charAt(i), false)) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static final class Node {
+            private char[] chars = new char[0];
+            private Node[] children = new Node[0];
+            private boolean terminal;
+
+            Node child(char c, boolean create) {
+                int index = Arrays.binarySearch(chars, c);
+                if (index >= 0) {
+                    return children[index];
+                }
+                if (!create) {
+                    return null;
+                }
+                int insertAt = -index - 1;
+                Node child = new Node();
+                char[] newChars = new char[chars.length + 1];
+                Node[] newChildren = new Node[chars.length + 1];
+                System.arraycopy(chars, 0, newChars, 0, insertAt);
+                System.arraycopy(children, 0, newChildren, 0, insertAt);
+                newChars[insertAt] = c;
+                newChildren[insertAt] = child;
+                System.arraycopy(chars, insertAt, newChars, insertAt + 1, chars.length - insertAt);
+                System.arraycopy(children, insertAt, newChildren, insertAt + 1, chars.length - insertAt);
+                chars = newChars;
+                children = newChildren;
+                return child;
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Fixed set of worker threads shared by several keys (probe targets). Every key has its own bounded
+ * FIFO queue and workers take tasks from the keys round-robin, so a large namespace delays the probe
+ * of a small one by at most one task per worker instead of its whole backlog.
+ * A submitter finding its key's queue full waits for a worker to take one of its tasks, so a listing
+ * larger than the bound is throttled to the pace of the workers rather than cut off.
+ */
+@Slf4j
+final class FairWorkerPool {
+
+    private final int maxQueuedPerKey;
+    private final Thread[] workers;
+
+    // Guarded by this; a key is in ready exactly when its queue is non-empty
+    private final Map<String, ArrayDeque<Runnable>> queues = new HashMap<>();
+    private final ArrayDeque<String> ready = new ArrayDeque<>();
+    private boolean shutdown;
+
+    FairWorkerPool(int threads, int maxQueuedPerKey, String name) {
+        this.maxQueuedPerKey = maxQueuedPerKey;
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, name + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Executor queuing tasks under the given key, blocking while the key's queue is full.
+     * Throws {@link RejectedExecutionException} when the pool is shut down or the caller is interrupted.
+     */
+    Executor executor(String key) {
+        return task -> submit(key, task);
+    }
+
+    private synchronized void submit(String key, Runnable task) {
+        ArrayDeque<Runnable> queue;
+        while (true) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Worker pool is shut down");
+            }
+            queue = queues.computeIfAbsent(key, k -> new ArrayDeque<>());
+            if (queue.size() < maxQueuedPerKey) {
+                break;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting to queue a task for " + key);
+            }
+        }
+        queue.addLast(task);
+        if (queue.size() == 1) {
+            ready.addLast(key);
+            // Submitters and idle workers wait on the same monitor
+            notifyAll();
+        }
+    }
+
+    private synchronized Runnable take() throws InterruptedException {
+        while (ready.isEmpty()) {
+            if (shutdown) {
+                return null;
+            }
+            wait();
+        }
+        String key = ready.pollFirst();
+        ArrayDeque<Runnable> queue = queues.get(key);
+        if (queue.size() == maxQueuedPerKey) {
+            notifyAll();
+        }
+        Runnable task = queue.pollFirst();
+        if (queue.isEmpty()) {
+            queues.remove(key);
+        } else {
+            ready.addLast(key);
+        }
+        return task;
+    }
+
+    private void work() {
+        try {
+            Runnable task;
+            while ((task = take()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.warn("Worker task failed: {}", e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized int queued() {
+        int queued = 0;
+        for (ArrayDeque<Runnable> queue : queues.values()) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            queues.clear();
+            ready.clear();
+            notifyAll();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import com.azure.messaging.servicebus.administration.ServiceBusAdministrationClient;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusClientConfig;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Namespaces probed on demand through /probe?target=&module=, in the style of blackbox_exporter.
+ * An admin client per target and a snapshot per target and module are created on first use and
+ * dropped once the target has not been probed for the idle TTL. Collections run on their own
+ * threads, one at a time per target and module, so probes do not hold the servlet thread. Runtime
+ * property calls of all targets run on one shared worker pool that serves the targets round-robin.
+ */
+@Slf4j
+@Service
+public class ProbeTargetRegistry {
+
+    public static final String DEFAULT_MODULE = "default";
+
+    private final ServiceBusProperties properties;
+    private final ServiceBusClientConfig clientConfig;
+    private final FairWorkerPool workerPool;
+    // At most one collection per target and module runs at a time, so the configuration bounds the threads
+    private final ExecutorService collector = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "probe-collector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+    public ProbeTargetRegistry(ServiceBusProperties properties, ServiceBusClientConfig clientConfig) {
+        this.properties = properties;
+        this.clientConfig = clientConfig;
+        ServiceBusProperties.Probe probe = properties.getProbe();
+        this.workerPool = new FairWorkerPool(Math.max(1, probe.getWorkers()), Math.max(1, probe.getMaxQueuedPerTarget()),
+                                             "probe-worker");
+    }
+
+    /**
+     * Snapshot of the given target filtered by the given module. A cached snapshot younger than the
+     * cache duration is returned as a completed future; otherwise the target is collected on a
+     * collector thread and concurrent probes of the same target and module share that collection.
+     * The future fails with an IllegalStateException if an entity type of the target could not be listed.
+     * @param module filter profile, or null for the top-level entity settings
+     * @throws IllegalArgumentException if the target or module is not configured
+     */
+    public CompletableFuture<MetricsSnapshot> probe(String target, String module) {
+        String moduleName = module == null || module.isEmpty() ? DEFAULT_MODULE : module;
+        ServiceBusProperties.Entities entities = moduleEntities(moduleName);
+
+        Target state = targets.computeIfAbsent(target, this::createTarget);
+        state.lastAccess = System.nanoTime();
+        Module moduleState = state.modules.computeIfAbsent(
+            moduleName, name -> new Module(state, new EntityFilter(properties.getEnvironment(), entities),
+                                           entities.getTypes()));
+        return moduleState.snapshot();
+    }
+
+    private ServiceBusProperties.Entities moduleEntities(String module) {
+        if (DEFAULT_MODULE.equals(module)) {
+            return properties.getProbe().getModules().getOrDefault(DEFAULT_MODULE, properties.getEntities());
+        }
+        ServiceBusProperties.Entities entities = properties.getProbe().getModules().get(module);
+        if (entities == null) {
+            throw new IllegalArgumentException("Unknown module: " + module);
+        }
+        return entities;
+    }
+
+    private Target createTarget(String target) {
+        ServiceBusProperties.ProbeTarget config = properties.getProbe().getTargets().get(target);
+        if (config == null) {
+            throw new IllegalArgumentException("Unknown target: " + target);
+        }
+        String namespace = clientConfig.extractNamespaceFromConnectionString(config.getConnectionString());
+        if (namespace == null) {
+            throw new IllegalArgumentException("Could not extract namespace from connection string of target " + target);
+        }
+        log.info("Creating admin client for probe target {} (namespace {})", target, namespace);
+        return new Target(target, namespace, clientConfig.buildClient(config.getConnectionString()));
+    }
+
+    /**
+     * Drop targets that have not been probed for the idle TTL.
+     */
+    @Scheduled(fixedDelayString = "${azure.servicebus.probe.eviction-interval:60000}")
+    public void evictIdleTargets() {
+        long idleNanos = properties.getProbe().getIdleTtl().toNanos();
+        long now = System.nanoTime();
+        targets.values().removeIf(target -> {
+            boolean idle = now - target.lastAccess > idleNanos;
+            if (idle) {
+                log.info("Evicting probe target {} after {} idle", target.name, properties.getProbe().getIdleTtl());
+            }
+            return idle;
+        });
+    }
+
+    public int targetCount() {
+        return targets.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        collector.shutdownNow();
+        workerPool.shutdown();
+    }
+
+    private final class Target {
+        private final String name;
+        private final String namespace;
+        private final ServiceBusAdministrationClient adminClient;
+        private final Map<String, Module> modules = new ConcurrentHashMap<>();
+        private volatile long lastAccess = System.nanoTime();
+
+        private Target(String name, String namespace, ServiceBusAdministrationClient adminClient) {
+            this.name = name;
+            this.namespace = namespace;
+            this.adminClient = adminClient;
+        }
+    }
+
+    private final class Module {
+        private final Target target;
+        private final EntityFilter entityFilter;
+        private final EntityCollector entityCollector;
+        private final NameInterner nameInterner = new NameInterner();
+
+        // Guarded by this, so concurrent probes of the same target and module collect once
+        private MetricsSnapshot snapshot;
+        private Instant lastUpdate = Instant.EPOCH;
+        // Collection started for waiting probes, null while none runs
+        private CompletableFuture<MetricsSnapshot> refresh;
+
+        private Module(Target target, EntityFilter entityFilter, Set<String> types) {
+            this.target = target;
+            this.entityFilter = entityFilter;
+            this.entityCollector = new EntityCollector(target.adminClient, types, entityFilter,
+                                                       workerPool.executor(target.name), CollectionMetrics.NONE,
+                                                       EntityFetchStats.NONE);
+            this.snapshot = MetricsSnapshot.empty(target.namespace);
+        }
+
+        private synchronized CompletableFuture<MetricsSnapshot> snapshot() {
+            Duration age = Duration.between(lastUpdate, Instant.now());
+            if (age.compareTo(properties.getMetrics().getCacheDuration()) < 0) {
+                return CompletableFuture.completedFuture(snapshot);
+            }
+            if (refresh != null) {
+                return refresh;
+            }
+            refresh = CompletableFuture.supplyAsync(this::collect, collector);
+            return refresh;
+        }
+
+        // Runs on a collector thread, never twice at the same time for one module
+        private MetricsSnapshot collect() {
+            try {
+                MetricsSnapshot previous;
+                synchronized (this) {
+                    previous = snapshot;
+                }
+                MetricsSnapshot.Builder builder = MetricsSnapshot.builder(target.namespace, nameInterner, previous);
+                Exception listingError = entityCollector.collect(builder);
+                if (listingError != null) {
+                    // Not cached, the next probe lists again instead of serving the partial snapshot
+                    throw new IllegalStateException("Could not list the entities of target " + target.name, listingError);
+                }
+                entityFilter.rollover();
+                Instant collectedAt = Instant.now();
+                MetricsSnapshot collected = builder.build(collectedAt, properties.getMetrics().isOffHeapSnapshot());
+                nameInterner.rollover();
+                synchronized (this) {
+                    snapshot = collected;
+                    lastUpdate = collectedAt;
+                }
+                log.info("Probe of target {} collected {} entities", target.name, collected.entityCount());
+                return collected;
+            } finally {
+                // Cleared before the future completes, so a probe retrying a failure starts a new collection
+                synchronized (this) {
+                    refresh = null;
+                }
+            }
+        }
+    }
+}
@@ -1,121 +1,111 @@
 package gavgas.azureservicebusmetricexporter.service;
 
-import com.azure.core.http.rest.PagedIterable;
 import com.azure.messaging.servicebus.administration.ServiceBusAdministrationClient;
-import com.azure.messaging.servicebus.administration.models.QueueRuntimeProperties;
-import com.azure.messaging.servicebus.administration.models.SubscriptionRuntimeProperties;
-import com.azure.messaging.servicebus.administration.models.TopicProperties;
-import com.azure.messaging.servicebus.administration.models.TopicRuntimeProperties;
 import gavgas.azureservicebusmetricexporter.config.ServiceBusClientConfig;
 import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.jfr.CollectionCycleEvent;
+import gavgas.azureservicebusmetricexporter.jfr.SnapshotPublishEvent;
 import gavgas.azureservicebusmetricexporter.model.NamespaceMetric;
 import gavgas.azureservicebusmetricexporter.model.QueueMetric;
 import gavgas.azureservicebusmetricexporter.model.SubscriptionMetric;
 import gavgas.azureservicebusmetricexporter.model.TopicMetric;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.regex.Pattern;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 @Service
 public class ServiceBusClientService {
     private final ServiceBusAdministrationClient adminClient;
     private final ServiceBusProperties properties;
-    private final ReadWriteLock cacheLock = new ReentrantReadWriteLock();
-
-    private List<QueueMetric> queueMetrics = new ArrayList<>();
-    private List<TopicMetric> topicMetrics = new ArrayList<>();
-    private List<SubscriptionMetric> subscriptionMetrics = new ArrayList<>();
-    private List<NamespaceMetric> namespaceMetrics = new ArrayList<>();
-
-    private Instant lastUpdate = Instant.EPOCH;
+    private final ApplicationEventPublisher eventPublisher;
+    private final CollectionMetrics collectionMetrics;
+    private final EntityFetchStats fetchStats;
+    // Serializes collection cycles; readers only use the volatile snapshot
+    private final Lock collectionLock = new ReentrantLock();
+
+    private final NameInterner nameInterner = new NameInterner();
+
+    // Last published snapshot, replaced atomically at the end of each collection cycle
+    private volatile MetricsSnapshot snapshot;
+    // Changes between the last two published snapshots
+    private volatile SnapshotDiff lastDiff;
+
+    // Advanced under the collection lock, read without it
+    private volatile Instant lastUpdate = Instant.EPOCH;
+    private volatile CollectionStatus collectionStatus = CollectionStatus.INITIAL;
     private String namespace;
-    private Pattern environmentFilter;
+    // Compiled on the first collection, decisions are cached across cycles
+    private EntityFilter entityFilter;
+    private EntityCollector entityCollector;
 
     public ServiceBusClientService(
         ServiceBusAdministrationClient adminClient,
         ServiceBusProperties properties,
-        ServiceBusClientConfig clientConfig) {
+        ServiceBusClientConfig clientConfig,
+        ApplicationEventPublisher eventPublisher,
+        CollectionMetrics collectionMetrics,
+        EntityFetchStats fetchStats) {
         this.adminClient = adminClient;
         this.properties = properties;
+        this.eventPublisher = eventPublisher;
+        this.collectionMetrics = collectionMetrics;
+        this.fetchStats = fetchStats;
         this.namespace = clientConfig.getNamespace();
-
-        // Initialize environment filter pattern based on configured environment
-        initEnvironmentFilter();
+        this.snapshot = MetricsSnapshot.empty(namespace);
+        this.lastDiff = SnapshotDiff.between(snapshot, snapshot);
 
         log.info("ServiceBusClientService initialized for namespace: {}, environment: {}",
                  namespace, properties.getEnvironment());
     }
 
-    /**
-     * Initialize the environment filter pattern based on the configured environment
-     */
-    private void initEnvironmentFilter() {
-        String environment = properties.getEnvironment();
-        if (environment != null && !environment.isEmpty()) {
-            // Create pattern that matches entity names starting with the environment value
-            // e.g., if environment=dev, pattern will match "dev", "dev1", "dev-cdp", etc.
-            String pattern = "^" + environment + ".*";
-            environmentFilter = Pattern.compile(pattern);
-            log.info("Environment filter initialized for environment '{}' with pattern: {}",
-                     environment, pattern);
-        } else {
-            // If no environment is specified, accept all entity names
-            environmentFilter = Pattern.compile(".*");
-            log.warn("No environment specified, all entities will be considered");
-        }
-    }
-
-    /**
-     * Check if an entity name matches the environment filter
-     * @param entityName The name of the entity to check
-     * @return true if the entity name should be included, false otherwise
-     */
-    private boolean matchesEnvironmentFilter(String entityName) {
-        if (entityName == null || entityName.isEmpty()) {
-            return false;
+    public void collectMetrics() {
+        // Lock-free fast path, taken by almost every probe request
+        if (isCacheFresh()) {
+            log.debug("Using cached metrics, cache duration not expired yet");
+            return;
         }
-
-        boolean matches = environmentFilter.matcher(entityName).matches();
-        if (!matches) {
-            log.debug("Entity '{}' filtered out by environment filter ({})",
-                      entityName, properties.getEnvironment());
+        if (isCircuitOpen()) {
+            log.debug("Skipping metric collection, circuit is open after {} failed cycles",
+                      collectionStatus.consecutiveFailures());
+            return;
         }
-        return matches;
-    }
 
-    public void collectMetrics() {
-        cacheLock.readLock().lock();
+        collectionLock.lock();
+        long cycleStart = 0;
+        CollectionCycleEvent cycleEvent = new CollectionCycleEvent();
         try {
-            Duration timeSinceLastUpdate = Duration.between(lastUpdate, Instant.now());
-            if (timeSinceLastUpdate.compareTo(properties.getMetrics().getCacheDuration()) < 0 &&
-                !lastUpdate.equals(Instant.EPOCH)) {
-                log.debug("Using cached metrics, cache duration not expired yet");
+            // Another request may have collected while this one waited for the lock
+            if (isCacheFresh() || isCircuitOpen()) {
                 return;
             }
-        } finally {
-            cacheLock.readLock().unlock();
-        }
 
-        cacheLock.writeLock().lock();
-        try {
             log.info("Starting metric collection");
+            cycleStart = collectionMetrics.cycleStarted();
+            cycleEvent.begin();
+
+            if (entityFilter == null) {
+                entityFilter = new EntityFilter(properties);
+                entityCollector = new EntityCollector(adminClient, properties.getEntities().getTypes(), entityFilter,
+                                                      Runnable::run, collectionMetrics, fetchStats);
+                log.info("Entity filter compiled for environment '{}'", properties.getEnvironment());
+            }
 
-            // Clear metrics
-            queueMetrics = new ArrayList<>();
-            topicMetrics = new ArrayList<>();
-            subscriptionMetrics = new ArrayList<>();
-            namespaceMetrics = new ArrayList<>();
+            MetricsSnapshot.Builder builder = MetricsSnapshot.builder(namespace, nameInterner, snapshot);
 
-            // Collect metrics
-            collectQueues();
-            collectTopics();
+            // Collect metrics; entities that could not be read keep their previous rows, so the
+            // snapshot is published even after a listing error without showing them as removed
+            Exception listingError = entityCollector.collect(builder);
 
             if (properties.isIncludeNamespaceMetrics()) {
                 // Create basic namespace metrics (limited information available with connection string)
@@ -126,204 +116,113 @@ public class ServiceBusClientService {
                                                                  .quotaUsage(quotaUsage)
                                                                  .build();
 
-                namespaceMetrics.add(namespaceMetric);
+                builder.addNamespaceMetric(namespaceMetric);
             }
 
+            entityFilter.rollover();
             lastUpdate = Instant.now();
-            log.info("Metric collection completed");
+            publish(builder.build(lastUpdate, properties.getMetrics().isOffHeapSnapshot()));
+            log.info("Metric collection completed: {} entities, ~{} KiB of counter data",
+                     snapshot.entityCount(), snapshot.sizeInBytes() / 1024);
+            if (listingError == null) {
+                collectionStatus = collectionStatus.succeeded(lastUpdate);
+            } else {
+                recordFailure(listingError);
+            }
+            collectionMetrics.cycleCompleted(cycleStart, listingError == null, snapshot);
+            cycleEvent.complete(namespace, snapshot.entityCount(), listingError);
         } catch (Exception e) {
             log.error("Error collecting metrics", e);
+            recordFailure(e);
+            collectionMetrics.cycleCompleted(cycleStart, false, null);
+            cycleEvent.complete(namespace, 0, e);
         } finally {
-            cacheLock.writeLock().unlock();
+            collectionLock.unlock();
         }
     }
 
-    private void collectQueues() {
-        Pattern entityFilter = properties.getEntities().getCompiledFilter();
-
-        try {
-            log.info("Collecting Service Bus queue metrics");
-
-            // Check if queue metrics are enabled in configuration
-            if (!properties.getEntities().getTypes().contains("queue")) {
-                log.info("Queue metrics collection is disabled in configuration");
-                return;  // Skip entirely if queue type is not enabled
-            }
-
-            adminClient.listQueues().forEach(queueProperties -> {
-                String queueName = queueProperties.getName();
-
-                // Apply both entity filter and environment filter
-                if (!entityFilter.matcher(queueName).matches() ||
-                    !matchesEnvironmentFilter(queueName)) {
-                    return;
-                }
-
-                try {
-                    QueueRuntimeProperties runtimeProps = adminClient.getQueueRuntimeProperties(queueName);
-
-                    QueueMetric queueMetric = QueueMetric.builder()
-                                                         .namespace(namespace)
-                                                         .name(queueName)
-                                                         .createdAt(runtimeProps.getCreatedAt())
-                                                         .updatedAt(runtimeProps.getUpdatedAt())
-                                                         .accessedAt(runtimeProps.getAccessedAt())
-                                                         .totalMessages(runtimeProps.getTotalMessageCount())
-                                                         .activeMessages(runtimeProps.getActiveMessageCount())
-                                                         .deadLetterMessages(runtimeProps.getDeadLetterMessageCount())
-                                                         .scheduledMessages(runtimeProps.getScheduledMessageCount())
-                                                         .transferMessages(runtimeProps.getTransferMessageCount())
-                                                         .transferDeadLetterMessages(runtimeProps.getTransferDeadLetterMessageCount())
-                                                         .sizeBytes(runtimeProps.getSizeInBytes())
-                                                         .maxSizeBytes(queueProperties.getMaxSizeInMegabytes() * 1024 * 1024L)
-                                                         .build();
-
-                    queueMetrics.add(queueMetric);
-                    log.debug("Collected metrics for queue: {}", queueName);
-                } catch (Exception e) {
-                    log.warn("Failed to get metrics for queue {}: {}", queueName, e.getMessage());
-                }
-            });
-
-            log.info("Collected metrics for {} queues", queueMetrics.size());
-        } catch (Exception e) {
-            log.error("Error collecting queue metrics", e);
-        }
+    /**
+     * Whether the last snapshot is younger than the cache duration, so collectMetrics() returns without collecting.
+     */
+    public boolean isCacheFresh() {
+        Instant last = lastUpdate;
+        return !last.equals(Instant.EPOCH)
+            && Duration.between(last, Instant.now()).compareTo(properties.getMetrics().getCacheDuration()) < 0;
     }
 
-    private void collectTopics() {
-        Pattern entityFilter = properties.getEntities().getCompiledFilter();
+    private boolean isCircuitOpen() {
+        return collectionStatus.circuit(Instant.now()) == CollectionStatus.Circuit.OPEN;
+    }
 
-        // Check if queue metrics are enabled in configuration
-        if (!properties.getEntities().getTypes().contains("topic")) {
-            log.info("Queue metrics collection is disabled in configuration");
-            return;  // Skip entirely if topic type is not enabled
+    private void recordFailure(Exception error) {
+        ServiceBusProperties.Metrics metrics = properties.getMetrics();
+        collectionStatus = collectionStatus.failed(Instant.now(), error, metrics.getCircuitFailureThreshold(),
+                                                   metrics.getCircuitOpenDuration());
+        if (collectionStatus.openUntil() != null) {
+            log.warn("Metric collection failed {} times in a row, skipping cycles until {}",
+                     collectionStatus.consecutiveFailures(), collectionStatus.openUntil());
         }
+    }
 
+    /**
+     * Replace the current snapshot and notify listeners with the diff to the previous one.
+     * Called with the collection lock held so listeners observe snapshots in publish order.
+     */
+    private void publish(MetricsSnapshot next) {
+        SnapshotPublishEvent publishEvent = new SnapshotPublishEvent();
+        publishEvent.begin();
+        MetricsSnapshot previous = snapshot;
+        SnapshotDiff diff = SnapshotDiff.between(previous, next);
+        snapshot = next;
+        lastDiff = diff;
+        nameInterner.rollover();
+
+        log.info("Snapshot changes: {} added, {} removed, {} changed",
+                 diff.addedCount(), diff.removedCount(), diff.changedCount());
         try {
-            log.info("Collecting Service Bus topic metrics");
-            PagedIterable<TopicProperties> topics = adminClient.listTopics();
-
-            if (topics == null) {
-                log.warn("listTopics() returned null - skipping topic metrics collection");
-                return;
-            }
-
-            topics.forEach(topicProperties -> {
-                String topicName = topicProperties.getName();
-
-                // Apply both entity filter and environment filter
-                if (!entityFilter.matcher(topicName).matches() ||
-                    !matchesEnvironmentFilter(topicName)) {
-                    return;
-                }
-
-                try {
-                    TopicRuntimeProperties runtimeProps = adminClient.getTopicRuntimeProperties(topicName);
-
-                    TopicMetric topicMetric = TopicMetric.builder()
-                                                         .namespace(namespace)
-                                                         .name(topicName)
-                                                         .sizeBytes(runtimeProps.getSizeInBytes())
-                                                         .maxSizeBytes(topicProperties.getMaxSizeInMegabytes() * 1024 * 1024L)
-                                                         .subscriptionCount(runtimeProps.getSubscriptionCount())
-                                                         .build();
-
-                    topicMetrics.add(topicMetric);
-                    log.debug("Collected metrics for topic: {}", topicName);
-
-                    // Collect subscriptions for this topic
-                    if (properties.getEntities().getTypes().contains("subscription")) {
-                        collectSubscriptions(topicName, entityFilter);
-                    }
-                } catch (Exception e) {
-                    log.warn("Failed to get metrics for topic {}: {}", topicName, e.getMessage());
-                }
-            });
-
-            log.info("Collected metrics for {} topics and {} subscriptions",
-                     topicMetrics.size(), subscriptionMetrics.size());
+            eventPublisher.publishEvent(new SnapshotPublishedEvent(next, diff));
         } catch (Exception e) {
-            log.error("Error collecting topic metrics", e);
+            log.error("Error notifying snapshot listeners", e);
         }
+        collectionMetrics.published(next);
+        publishEvent.complete(next.getVersion(), next.entityCount(), diff.addedCount(), diff.removedCount(),
+                              diff.changedCount());
     }
 
-    private void collectSubscriptions(String topicName, Pattern entityFilter) {
-        // Skip subscriptions if the topic doesn't match environment filter
-        if (!matchesEnvironmentFilter(topicName)) {
-            return;
-        }
-
-        try {
-            adminClient.listSubscriptions(topicName).forEach(subscriptionProperties -> {
-                String subscriptionName = subscriptionProperties.getSubscriptionName();
-                String entityName = topicName + "/" + subscriptionName;
-
-                // Apply entity filter - environment already checked for topic
-                if (!entityFilter.matcher(entityName).matches()) {
-                    return;
-                }
-
-                try {
-                    SubscriptionRuntimeProperties runtimeProps = adminClient.getSubscriptionRuntimeProperties(
-                        topicName, subscriptionName);
+    /**
+     * Last published snapshot. Never null and safe to read without locking.
+     */
+    public MetricsSnapshot getSnapshot() {
+        return snapshot;
+    }
 
-                    SubscriptionMetric subscriptionMetric = SubscriptionMetric.builder()
-                                                                              .namespace(namespace)
-                                                                              .topicName(topicName)
-                                                                              .name(subscriptionName)
-                                                                              .activeMessages(runtimeProps.getActiveMessageCount())
-                                                                              .deadLetterMessages(runtimeProps.getDeadLetterMessageCount())
-                                                                              .scheduledMessages(0) // Not available in current API version
-                                                                              .transferMessages(runtimeProps.getTransferMessageCount())
-                                                                              .transferDeadLetterMessages(runtimeProps.getTransferDeadLetterMessageCount())
-                                                                              .build();
+    /**
+     * Outcome of the recent collection cycles. Safe to read without locking.
+     */
+    public CollectionStatus getCollectionStatus() {
+        return collectionStatus;
+    }
 
-                    subscriptionMetrics.add(subscriptionMetric);
-                    log.debug("Collected metrics for subscription: {}/{}", topicName, subscriptionName);
-                } catch (Exception e) {
-                    log.warn("Failed to get metrics for subscription {}/{}: {}",
-                             topicName, subscriptionName, e.getMessage());
-                }
-            });
-        } catch (Exception e) {
-            log.error("Error collecting subscription metrics for topic {}", topicName, e);
-        }
+    /**
+     * Diff between the last published snapshot and the one before it.
+     */
+    public SnapshotDiff getLastDiff() {
+        return lastDiff;
     }
 
     public List<QueueMetric> getQueueMetrics() {
-        cacheLock.readLock().lock();
-        try {
-            return new ArrayList<>(queueMetrics);
-        } finally {
-            cacheLock.readLock().unlock();
-        }
+        return snapshot.queueMetrics();
     }
 
     public List<TopicMetric> getTopicMetrics() {
-        cacheLock.readLock().lock();
-        try {
-            return new ArrayList<>(topicMetrics);
-        } finally {
-            cacheLock.readLock().unlock();
-        }
+        return snapshot.topicMetrics();
     }
 
     public List<SubscriptionMetric> getSubscriptionMetrics() {
-        cacheLock.readLock().lock();
-        try {
-            return new ArrayList<>(subscriptionMetrics);
-        } finally {
-            cacheLock.readLock().unlock();
-        }
+        return snapshot.subscriptionMetrics();
     }
 
     public List<NamespaceMetric> getNamespaceMetrics() {
-        cacheLock.readLock().lock();
-        try {
-            return new ArrayList<>(namespaceMetrics);
-        } finally {
-            cacheLock.readLock().unlock();
-        }
+        return snapshot.getNamespaceMetrics();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,89 @@
+package gavgas.azureservicebusmetricexporter.snapshot;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Storage of the counter columns of an {@link EntityTable}.
+ * Either plain {@code long[]} columns on the heap or one direct buffer outside of it.
+ */
+abstract class ColumnStorage {
+
+    abstract long get(int column, int row);
+
+    /**
+     * Approximate number of bytes held by this storage.
+     */
+    abstract long sizeInBytes();
+
+    abstract boolean isOffHeap();
+
+    static ColumnStorage heap(long[][] columns) {
+        return new Heap(columns);
+    }
+
+    /**
+     * Copy the given columns into a single direct buffer laid out column after column.
+     */
+    static ColumnStorage offHeap(long[][] columns, int rows) {
+        return new OffHeap(columns, rows);
+    }
+
+    private static final class Heap extends ColumnStorage {
+        private final long[][] columns;
+
+        private Heap(long[][] columns) {
+            this.columns = columns;
+        }
+
+        @Override
+        long get(int column, int row) {
+            return columns[column][row];
+        }
+
+        @Override
+        long sizeInBytes() {
+            long bytes = 0;
+            for (long[] column : columns) {
+                bytes += (long) column.length * Long.BYTES;
+            }
+            return bytes;
+        }
+
+        @Override
+        boolean isOffHeap() {
+            return false;
+        }
+    }
+
+    private static final class OffHeap extends ColumnStorage {
+        private final LongBuffer buffer;
+        private final int rows;
+
+        private OffHeap(long[][] columns, int rows) {
+            this.rows = rows;
+            this.buffer = ByteBuffer.allocateDirect(columns.length * rows * Long.BYTES)
+                                    .order(ByteOrder.nativeOrder())
+                                    .asLongBuffer();
+            for (long[] column : columns) {
+                buffer.put(column, 0, rows);
+            }
+        }
+
+        @Override
+        long get(int column, int row) {
+            return buffer.get(column * rows + row);
+        }
+
+        @Override
+        long sizeInBytes() {
+            return (long) buffer.capacity() * Long.BYTES;
+        }
+
+        @Override
+        boolean isOffHeap() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package gavgas.azureservicebusmetricexporter.snapshot;
+
+/**
+ * Numeric values kept per entity in a {@link MetricsSnapshot}.
+ * Timestamps are stored as epoch milliseconds, {@link #NO_VALUE} marks a missing value.
+ */
+public enum Counter {
+    TOTAL_MESSAGES("totalMessages"),
+    ACTIVE_MESSAGES("activeMessages"),
+    DEAD_LETTER_MESSAGES("deadLetterMessages"),
+    SCHEDULED_MESSAGES("scheduledMessages"),
+    TRANSFER_MESSAGES("transferMessages"),
+    TRANSFER_DEAD_LETTER_MESSAGES("transferDeadLetterMessages"),
+    SIZE_BYTES("sizeBytes"),
+    MAX_SIZE_BYTES("maxSizeBytes"),
+    SUBSCRIPTION_COUNT("subscriptionCount"),
+    CREATED_AT("createdAt"),
+    UPDATED_AT("updatedAt"),
+    ACCESSED_AT("accessedAt");
+
+    /**
+     * Sentinel for values the management API did not return (e.g. null timestamps).
+     */
+    public static final long NO_VALUE = Long.MIN_VALUE;
+
+    private static final Counter[] VALUES = values();
+
+    private final String fieldName;
+
+    Counter(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    /**
+     * Name of the matching property on the JSON models (QueueMetric, TopicMetric, ...).
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Resolve a counter by its JSON field name.
+     * @return the counter, or null if the name is unknown
+     */
+    public static Counter fromFieldName(String fieldName) {
+        for (Counter counter : VALUES) {
+            if (counter.fieldName.equalsIgnoreCase(fieldName)) {
+                return counter;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,428 @@
+package gavgas.azureservicebusmetricexporter.snapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Struct-of-arrays table holding all entities of one {@link EntityType}.
+ * Row {@code i} is described by {@code names[i]} (plus {@code topicNames[i]} for subscriptions)
+ * and one long value per counter column, plus the time the row's values were read. Tables are
+ * immutable once built.
+ * An open-addressing hash index maps names to rows without allocating on lookup, and rankings
+ * order the rows by a counter for top-N queries.
+ */
+public final class EntityTable {
+
+    private final EntityType type;
+    private final int size;
+    private final String[] names;
+    private final String[] topicNames;
+    private final ColumnStorage columns;
+    // Epoch millis at which each row was read; kept apart from the counters so it never shows up in diffs
+    private final long[] collectedAt;
+    private final long oldestCollectedAt;
+    // row + 1 per slot, 0 marks an empty slot; length is a power of two
+    private final int[] index;
+    // Rows ordered by each counter column, then by size usage; each is built on first use
+    private final AtomicReferenceArray<int[]> rankings;
+
+    private EntityTable(EntityType type, int size, String[] names, String[] topicNames, ColumnStorage columns,
+                        long[] collectedAt) {
+        this.type = type;
+        this.size = size;
+        this.names = names;
+        this.topicNames = topicNames;
+        this.columns = columns;
+        this.collectedAt = collectedAt;
+        this.oldestCollectedAt = Arrays.stream(collectedAt).min().orElse(0);
+        this.index = buildIndex();
+        this.rankings = new AtomicReferenceArray<>(type.counterCount() + 1);
+    }
+
+    private int[] buildIndex() {
+        int slots = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+        int[] table = new int[slots];
+        int mask = slots - 1;
+        for (int row = 0; row < size; row++) {
+            int slot = hash(topicName(row), names[row]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = row + 1;
+        }
+        return table;
+    }
+
+    private static int hash(String topicName, String name) {
+        int h = name.hashCode();
+        if (topicName != null) {
+            h = 31 * topicName.hashCode() + h;
+        }
+        // spread the bits, String hashes of similar names differ in the low bits only
+        return h ^ (h >>> 16);
+    }
+
+    private int lookup(String topicName, String name) {
+        if (name == null) {
+            return -1;
+        }
+        int mask = index.length - 1;
+        int slot = hash(topicName, name) & mask;
+        int entry;
+        while ((entry = index[slot]) != 0) {
+            int row = entry - 1;
+            if (names[row].equals(name) && (topicNames == null || topicNames[row].equals(topicName))) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    static EntityTable empty(EntityType type) {
+        return new Builder(type, new NameInterner(), null).build(0, false);
+    }
+
+    public EntityType getType() {
+        return type;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Entity name of the row; for subscriptions this is the subscription name only.
+     */
+    public String name(int row) {
+        return names[row];
+    }
+
+    /**
+     * Topic of a subscription row, null for queues and topics.
+     */
+    public String topicName(int row) {
+        return topicNames == null ? null : topicNames[row];
+    }
+
+    /**
+     * Name used in the "entity_name" tag: "topic/subscription" for subscriptions.
+     */
+    public String entityName(int row) {
+        return topicNames == null ? names[row] : topicNames[row] + "/" + names[row];
+    }
+
+    public long get(int row, Counter counter) {
+        int column = type.columnOf(counter);
+        if (column < 0) {
+            throw new IllegalArgumentException(counter + " is not collected for " + type.getLabel());
+        }
+        return columns.get(column, row);
+    }
+
+    /**
+     * Value by column index, see {@link EntityType#columnOf(Counter)}.
+     */
+    public long getColumn(int row, int column) {
+        return columns.get(column, row);
+    }
+
+    /**
+     * Epoch milliseconds at which the values of the row were read from the management API.
+     */
+    public long collectedAt(int row) {
+        return collectedAt[row];
+    }
+
+    /**
+     * Earliest {@link #collectedAt(int)} of all rows, 0 for an empty table.
+     */
+    public long oldestCollectedAt() {
+        return oldestCollectedAt;
+    }
+
+    /**
+     * Row of a queue or topic, or -1 if it is not part of this table.
+     */
+    public int rowOf(String name) {
+        return topicNames == null ? lookup(null, name) : -1;
+    }
+
+    /**
+     * Row of a subscription, or -1 if it is not part of this table.
+     */
+    public int rowOf(String topicName, String subscriptionName) {
+        if (topicNames == null || topicName == null) {
+            return -1;
+        }
+        return lookup(topicName, subscriptionName);
+    }
+
+    /**
+     * Row of the entity described by row {@code otherRow} of another table of the same type.
+     */
+    public int rowOf(EntityTable other, int otherRow) {
+        return topicNames == null
+            ? rowOf(other.name(otherRow))
+            : rowOf(other.topicName(otherRow), other.name(otherRow));
+    }
+
+    /**
+     * Rows ordered by the counter, highest value first, leaving out rows without a value.
+     * The order is computed once per table on first use and shared afterwards, so ranking
+     * queries against a published snapshot never sort. The returned array must not be modified.
+     */
+    public int[] rankedBy(Counter counter) {
+        int column = type.columnOf(counter);
+        if (column < 0) {
+            throw new IllegalArgumentException(counter + " is not collected for " + type.getLabel());
+        }
+        return ranking(column, row -> {
+            long value = columns.get(column, row);
+            return value == Counter.NO_VALUE ? Double.NaN : value;
+        });
+    }
+
+    /**
+     * Rows ordered by {@link #sizeUsage(int)}, fullest first, leaving out rows without a maximum size.
+     * Built once per table like {@link #rankedBy(Counter)}.
+     */
+    public int[] rankedBySizeUsage() {
+        if (!type.has(Counter.MAX_SIZE_BYTES)) {
+            throw new IllegalArgumentException("Size usage is not collected for " + type.getLabel());
+        }
+        return ranking(type.counterCount(), this::sizeUsage);
+    }
+
+    /**
+     * sizeBytes / maxSizeBytes of the row, NaN if the type or row has no maximum size.
+     */
+    public double sizeUsage(int row) {
+        int maxColumn = type.columnOf(Counter.MAX_SIZE_BYTES);
+        long maxSize = maxColumn < 0 ? 0 : columns.get(maxColumn, row);
+        return maxSize > 0 ? (double) columns.get(type.columnOf(Counter.SIZE_BYTES), row) / maxSize : Double.NaN;
+    }
+
+    private int[] ranking(int slot, IntToDoubleFunction key) {
+        int[] ranked = rankings.get(slot);
+        if (ranked != null) {
+            return ranked;
+        }
+        double[] keys = new double[size];
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            keys[row] = key.applyAsDouble(row);
+            if (!Double.isNaN(keys[row])) {
+                count++;
+            }
+        }
+        Integer[] rows = new Integer[count];
+        for (int row = 0, i = 0; row < size; row++) {
+            if (!Double.isNaN(keys[row])) {
+                rows[i++] = row;
+            }
+        }
+        // Stable sort, equal values keep the listing order
+        Arrays.sort(rows, (a, b) -> Double.compare(keys[b], keys[a]));
+        ranked = new int[count];
+        for (int i = 0; i < count; i++) {
+            ranked[i] = rows[i];
+        }
+        // Concurrent first callers may both build it; the first one stored wins
+        rankings.compareAndSet(slot, null, ranked);
+        return rankings.get(slot);
+    }
+
+    public boolean isOffHeap() {
+        return columns.isOffHeap();
+    }
+
+    /**
+     * Approximate bytes held by this table: counter columns, collection times, name reference arrays and the index.
+     * The name strings themselves are shared through the {@link NameInterner} and not counted.
+     */
+    public long sizeInBytes() {
+        long references = (long) names.length * 4 + (topicNames == null ? 0 : (long) topicNames.length * 4);
+        return columns.sizeInBytes() + (long) collectedAt.length * Long.BYTES + references
+            + (long) index.length * Integer.BYTES;
+    }
+
+    /**
+     * Append-only builder, one row per collected entity.
+     * Rows of entities that could not be read in this cycle can be carried forward from the previous
+     * table with their old values and collection time, so they neither show up as removed in the diff
+     * nor look fresh.
+     */
+    public static final class Builder {
+        private final EntityType type;
+        private final NameInterner interner;
+        private final EntityTable previous;
+        private String[] names;
+        private String[] topicNames;
+        private long[][] columns;
+        private long[] collectedAt;
+        private int size;
+        // Rows of the previous table per topic, built on the first carried forward topic
+        private Map<String, List<Integer>> previousRowsByTopic;
+
+        /**
+         * @param previous table of the same type in the previous snapshot, or null; sizes the builder
+         */
+        Builder(EntityType type, NameInterner interner, EntityTable previous) {
+            this.type = type;
+            this.interner = interner;
+            this.previous = previous;
+            int capacity = Math.max(previous == null ? 0 : previous.size(), 8);
+            this.names = new String[capacity];
+            this.topicNames = type == EntityType.SUBSCRIPTION ? new String[capacity] : null;
+            this.columns = new long[type.counterCount()][capacity];
+            this.collectedAt = new long[capacity];
+        }
+
+        /**
+         * Add a queue or topic row.
+         * @return the row index to be used with {@link #set(int, Counter, long)}
+         */
+        public int addRow(String name) {
+            return addRow(null, name);
+        }
+
+        /**
+         * Add a row; topicName is only kept for subscriptions.
+         */
+        public int addRow(String topicName, String name) {
+            if (size == names.length) {
+                grow();
+            }
+            int row = size++;
+            names[row] = interner.intern(name);
+            if (topicNames != null) {
+                topicNames[row] = interner.intern(topicName);
+            }
+            for (long[] column : columns) {
+                column[row] = 0;
+            }
+            collectedAt[row] = 0;
+            return row;
+        }
+
+        /**
+         * Add the previous table's row of an entity whose runtime properties could not be read.
+         * @param topicName topic of a subscription, null for queues and topics
+         * @return the added row, or -1 if the entity was not part of the previous table
+         */
+        public int carryForward(String topicName, String name) {
+            if (previous == null) {
+                return -1;
+            }
+            int previousRow = topicNames == null ? previous.rowOf(name) : previous.rowOf(topicName, name);
+            return previousRow < 0 ? -1 : copyRow(previousRow);
+        }
+
+        /**
+         * Add every row of the previous table, for a type that could not be listed. Must be called
+         * before any other row of the type is added.
+         * @return the number of rows added
+         */
+        public int carryForwardAll() {
+            if (previous == null) {
+                return 0;
+            }
+            for (int previousRow = 0; previousRow < previous.size(); previousRow++) {
+                copyRow(previousRow);
+            }
+            return previous.size();
+        }
+
+        /**
+         * Add the previous subscription rows of a topic whose subscriptions could not be listed.
+         * @return the number of rows added
+         */
+        public int carryForwardTopic(String topicName) {
+            if (previous == null || topicNames == null) {
+                return 0;
+            }
+            if (previousRowsByTopic == null) {
+                previousRowsByTopic = new HashMap<>();
+                for (int previousRow = 0; previousRow < previous.size(); previousRow++) {
+                    previousRowsByTopic.computeIfAbsent(previous.topicName(previousRow), k -> new ArrayList<>())
+                                       .add(previousRow);
+                }
+            }
+            List<Integer> rows = previousRowsByTopic.getOrDefault(topicName, List.of());
+            for (int previousRow : rows) {
+                copyRow(previousRow);
+            }
+            return rows.size();
+        }
+
+        private int copyRow(int previousRow) {
+            int row = addRow(previous.topicName(previousRow), previous.name(previousRow));
+            for (int column = 0; column < columns.length; column++) {
+                columns[column][row] = previous.getColumn(previousRow, column);
+            }
+            collectedAt[row] = previous.collectedAt(previousRow);
+            return row;
+        }
+
+        public Builder set(int row, Counter counter, long value) {
+            int column = type.columnOf(counter);
+            if (column < 0) {
+                throw new IllegalArgumentException(counter + " is not collected for " + type.getLabel());
+            }
+            columns[column][row] = value;
+            return this;
+        }
+
+        /**
+         * Time the row's values were read; rows without one get the snapshot's collection time.
+         */
+        public Builder collectedAt(int row, long epochMillis) {
+            collectedAt[row] = epochMillis;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private void grow() {
+            int capacity = names.length * 2;
+            names = Arrays.copyOf(names, capacity);
+            if (topicNames != null) {
+                topicNames = Arrays.copyOf(topicNames, capacity);
+            }
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = Arrays.copyOf(columns[i], capacity);
+            }
+            collectedAt = Arrays.copyOf(collectedAt, capacity);
+        }
+
+        EntityTable build(long defaultCollectedAt, boolean offHeap) {
+            String[] finalNames = Arrays.copyOf(names, size);
+            String[] finalTopics = topicNames == null ? null : Arrays.copyOf(topicNames, size);
+            ColumnStorage storage;
+            if (offHeap) {
+                storage = ColumnStorage.offHeap(columns, size);
+            } else {
+                long[][] trimmed = new long[columns.length][];
+                for (int i = 0; i < columns.length; i++) {
+                    trimmed[i] = Arrays.copyOf(columns[i], size);
+                }
+                storage = ColumnStorage.heap(trimmed);
+            }
+            long[] finalCollectedAt = Arrays.copyOf(collectedAt, size);
+            for (int row = 0; row < size; row++) {
+                if (finalCollectedAt[row] == 0) {
+                    finalCollectedAt[row] = defaultCollectedAt;
+                }
+            }
+            return new EntityTable(type, size, finalNames, finalTopics, storage, finalCollectedAt);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package gavgas.azureservicebusmetricexporter.snapshot;
+
+import java.util.Arrays;
+
+import static gavgas.azureservicebusmetricexporter.snapshot.Counter.*;
+
+/**
+ * Service Bus entity types and the counters collected for each of them.
+ */
+public enum EntityType {
+    QUEUE("queue",
+          TOTAL_MESSAGES, ACTIVE_MESSAGES, DEAD_LETTER_MESSAGES, SCHEDULED_MESSAGES, TRANSFER_MESSAGES,
+          TRANSFER_DEAD_LETTER_MESSAGES, SIZE_BYTES, MAX_SIZE_BYTES, CREATED_AT, UPDATED_AT, ACCESSED_AT),
+    TOPIC("topic",
+          SIZE_BYTES, MAX_SIZE_BYTES, SUBSCRIPTION_COUNT),
+    SUBSCRIPTION("subscription",
+                 ACTIVE_MESSAGES, DEAD_LETTER_MESSAGES, SCHEDULED_MESSAGES, TRANSFER_MESSAGES,
+                 TRANSFER_DEAD_LETTER_MESSAGES);
+
+    private static final EntityType[] VALUES = values();
+
+    private final String label;
+    private final Counter[] counters;
+    // Column index per Counter ordinal, -1 if the counter is not collected for this type
+    private final int[] columnIndex;
+
+    EntityType(String label, Counter... counters) {
+        this.label = label;
+        this.counters = counters;
+        this.columnIndex = new int[Counter.values().length];
+        Arrays.fill(columnIndex, -1);
+        for (int i = 0; i < counters.length; i++) {
+            columnIndex[counters[i].ordinal()] = i;
+        }
+    }
+
+    /**
+     * Label used in metric tags and probe requests, e.g. "queue".
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    public int counterCount() {
+        return counters.length;
+    }
+
+    public Counter counter(int column) {
+        return counters[column];
+    }
+
+    public boolean has(Counter counter) {
+        return columnIndex[counter.ordinal()] >= 0;
+    }
+
+    /**
+     * Column of the given counter in tables of this type, or -1 if it is not collected.
+     */
+    public int columnOf(Counter counter) {
+        return columnIndex[counter.ordinal()];
+    }
+
+    /**
+     * Resolve a type from its label (case-insensitive).
+     * @return the entity type, or null if the label is unknown
+     */
+    public static EntityType fromLabel(String label) {
+        if (label == null) {
+            return null;
+        }
+        for (EntityType type : VALUES) {
+            if (type.label.equalsIgnoreCase(label)) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,268 @@
+package gavgas.azureservicebusmetricexporter.snapshot;
+
+import gavgas.azureservicebusmetricexporter.model.NamespaceMetric;
+import gavgas.azureservicebusmetricexporter.model.QueueMetric;
+import gavgas.azureservicebusmetricexporter.model.SubscriptionMetric;
+import gavgas.azureservicebusmetricexporter.model.TopicMetric;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable result of one collection cycle.
+ * Entities are stored column-wise in one {@link EntityTable} per type; the model objects used by
+ * the JSON endpoints are only materialised on demand through the list views.
+ */
+public final class MetricsSnapshot {
+
+    private final String namespace;
+    private final long version;
+    private final Instant collectedAt;
+    private final EntityTable queues;
+    private final EntityTable topics;
+    private final EntityTable subscriptions;
+    private final List<NamespaceMetric> namespaceMetrics;
+
+    private MetricsSnapshot(String namespace,
+                            long version,
+                            Instant collectedAt,
+                            EntityTable queues,
+                            EntityTable topics,
+                            EntityTable subscriptions,
+                            List<NamespaceMetric> namespaceMetrics) {
+        this.namespace = namespace;
+        this.version = version;
+        this.collectedAt = collectedAt;
+        this.queues = queues;
+        this.topics = topics;
+        this.subscriptions = subscriptions;
+        this.namespaceMetrics = namespaceMetrics;
+    }
+
+    /**
+     * Snapshot without any entity, used until the first collection cycle completes.
+     */
+    public static MetricsSnapshot empty(String namespace) {
+        return new MetricsSnapshot(namespace,
+                                   0,
+                                   Instant.EPOCH,
+                                   EntityTable.empty(EntityType.QUEUE),
+                                   EntityTable.empty(EntityType.TOPIC),
+                                   EntityTable.empty(EntityType.SUBSCRIPTION),
+                                   Collections.emptyList());
+    }
+
+    /**
+     * Start a new snapshot, sizing the tables after the previous one and carrying rows forward from it.
+     */
+    public static Builder builder(String namespace, NameInterner interner, MetricsSnapshot previous) {
+        return new Builder(namespace, interner, previous);
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Number of this snapshot in its chain: 0 for the empty snapshot, one more than the previous
+     * snapshot passed to {@link #builder} otherwise. Increases with every publish, so it can
+     * validate cached responses.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public Instant getCollectedAt() {
+        return collectedAt;
+    }
+
+    public EntityTable getQueues() {
+        return queues;
+    }
+
+    public EntityTable getTopics() {
+        return topics;
+    }
+
+    public EntityTable getSubscriptions() {
+        return subscriptions;
+    }
+
+    public EntityTable table(EntityType type) {
+        return switch (type) {
+            case QUEUE -> queues;
+            case TOPIC -> topics;
+            case SUBSCRIPTION -> subscriptions;
+        };
+    }
+
+    public List<NamespaceMetric> getNamespaceMetrics() {
+        return namespaceMetrics;
+    }
+
+    public int entityCount() {
+        return queues.size() + topics.size() + subscriptions.size();
+    }
+
+    /**
+     * Approximate bytes held by the entity tables of this snapshot.
+     */
+    public long sizeInBytes() {
+        return queues.sizeInBytes() + topics.sizeInBytes() + subscriptions.sizeInBytes();
+    }
+
+    /**
+     * Read-only view creating a {@link QueueMetric} per accessed row.
+     */
+    public List<QueueMetric> queueMetrics() {
+        return new RowView<>(queues.size()) {
+            @Override
+            public QueueMetric get(int row) {
+                return toQueueMetric(row);
+            }
+        };
+    }
+
+    public List<TopicMetric> topicMetrics() {
+        return new RowView<>(topics.size()) {
+            @Override
+            public TopicMetric get(int row) {
+                return toTopicMetric(row);
+            }
+        };
+    }
+
+    public List<SubscriptionMetric> subscriptionMetrics() {
+        return new RowView<>(subscriptions.size()) {
+            @Override
+            public SubscriptionMetric get(int row) {
+                return toSubscriptionMetric(row);
+            }
+        };
+    }
+
+    public QueueMetric toQueueMetric(int row) {
+        return QueueMetric.builder()
+                          .namespace(namespace)
+                          .name(queues.name(row))
+                          .createdAt(toDateTime(queues.get(row, Counter.CREATED_AT)))
+                          .updatedAt(toDateTime(queues.get(row, Counter.UPDATED_AT)))
+                          .accessedAt(toDateTime(queues.get(row, Counter.ACCESSED_AT)))
+                          .totalMessages(queues.get(row, Counter.TOTAL_MESSAGES))
+                          .activeMessages(queues.get(row, Counter.ACTIVE_MESSAGES))
+                          .deadLetterMessages(queues.get(row, Counter.DEAD_LETTER_MESSAGES))
+                          .scheduledMessages(queues.get(row, Counter.SCHEDULED_MESSAGES))
+                          .transferMessages(queues.get(row, Counter.TRANSFER_MESSAGES))
+                          .transferDeadLetterMessages(queues.get(row, Counter.TRANSFER_DEAD_LETTER_MESSAGES))
+                          .sizeBytes(queues.get(row, Counter.SIZE_BYTES))
+                          .maxSizeBytes(queues.get(row, Counter.MAX_SIZE_BYTES))
+                          .build();
+    }
+
+    public TopicMetric toTopicMetric(int row) {
+        return TopicMetric.builder()
+                          .namespace(namespace)
+                          .name(topics.name(row))
+                          .sizeBytes(topics.get(row, Counter.SIZE_BYTES))
+                          .maxSizeBytes(topics.get(row, Counter.MAX_SIZE_BYTES))
+                          .subscriptionCount(topics.get(row, Counter.SUBSCRIPTION_COUNT))
+                          .build();
+    }
+
+    public SubscriptionMetric toSubscriptionMetric(int row) {
+        return SubscriptionMetric.builder()
+                                 .namespace(namespace)
+                                 .topicName(subscriptions.topicName(row))
+                                 .name(subscriptions.name(row))
+                                 .activeMessages(subscriptions.get(row, Counter.ACTIVE_MESSAGES))
+                                 .deadLetterMessages(subscriptions.get(row, Counter.DEAD_LETTER_MESSAGES))
+                                 .scheduledMessages(subscriptions.get(row, Counter.SCHEDULED_MESSAGES))
+                                 .transferMessages(subscriptions.get(row, Counter.TRANSFER_MESSAGES))
+                                 .transferDeadLetterMessages(subscriptions.get(row, Counter.TRANSFER_DEAD_LETTER_MESSAGES))
+                                 .build();
+    }
+
+    public static long toEpochMillis(OffsetDateTime dateTime) {
+        return dateTime == null ? Counter.NO_VALUE : dateTime.toInstant().toEpochMilli();
+    }
+
+    private static OffsetDateTime toDateTime(long epochMillis) {
+        return epochMillis == Counter.NO_VALUE
+            ? null
+            : OffsetDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneOffset.UTC);
+    }
+
+    private abstract static class RowView<T> extends AbstractList<T> {
+        private final int size;
+
+        RowView(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Collects the rows of one cycle; not thread-safe.
+     */
+    public static final class Builder {
+        private final String namespace;
+        private final long version;
+        private final EntityTable.Builder queues;
+        private final EntityTable.Builder topics;
+        private final EntityTable.Builder subscriptions;
+        private final List<NamespaceMetric> namespaceMetrics = new ArrayList<>();
+
+        private Builder(String namespace, NameInterner interner, MetricsSnapshot previous) {
+            this.namespace = namespace;
+            this.version = previous == null ? 1 : previous.version + 1;
+            this.queues = new EntityTable.Builder(EntityType.QUEUE, interner, previous(previous, EntityType.QUEUE));
+            this.topics = new EntityTable.Builder(EntityType.TOPIC, interner, previous(previous, EntityType.TOPIC));
+            this.subscriptions = new EntityTable.Builder(EntityType.SUBSCRIPTION, interner,
+                                                         previous(previous, EntityType.SUBSCRIPTION));
+        }
+
+        private static EntityTable previous(MetricsSnapshot previous, EntityType type) {
+            return previous == null ? null : previous.table(type);
+        }
+
+        public EntityTable.Builder queues() {
+            return queues;
+        }
+
+        public EntityTable.Builder topics() {
+            return topics;
+        }
+
+        public EntityTable.Builder subscriptions() {
+            return subscriptions;
+        }
+
+        public Builder addNamespaceMetric(NamespaceMetric namespaceMetric) {
+            namespaceMetrics.add(namespaceMetric);
+            return this;
+        }
+
+        /**
+         * @param offHeap keep the counter columns in direct memory instead of {@code long[]} arrays
+         */
+        public MetricsSnapshot build(Instant collectedAt, boolean offHeap) {
+            long collectedAtMillis = collectedAt.toEpochMilli();
+            return new MetricsSnapshot(namespace,
+                                       version,
+                                       collectedAt,
+                                       queues.build(collectedAtMillis, offHeap),
+                                       topics.build(collectedAtMillis, offHeap),
+                                       subscriptions.build(collectedAtMillis, offHeap),
+                                       List.copyOf(namespaceMetrics));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package gavgas.azureservicebusmetricexporter.snapshot;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns entity names across collection cycles so that consecutive snapshots share
+ * the same String instances instead of holding one copy per cycle.
+ * Names not seen during a cycle are dropped on {@link #rollover()}, which keeps the
+ * interner bounded by the number of live entities.
+ * Not thread-safe, it is only used while building a snapshot.
+ */
+public class NameInterner {
+
+    private Map<String, String> previous = new HashMap<>();
+    private Map<String, String> current = new HashMap<>();
+
+    public String intern(String name) {
+        if (name == null) {
+            return null;
+        }
+        String interned = current.get(name);
+        if (interned != null) {
+            return interned;
+        }
+        interned = previous.get(name);
+        if (interned == null) {
+            interned = name;
+        }
+        current.put(interned, interned);
+        return interned;
+    }
+
+    /**
+     * Finish a cycle: names interned during it become the reference set for the next one.
+     */
+    public void rollover() {
+        previous = current;
+        current = new HashMap<>(Math.max(16, previous.size() * 4 / 3 + 1));
+    }
+
+    public int size() {
+        return current.size();
+    }
+}
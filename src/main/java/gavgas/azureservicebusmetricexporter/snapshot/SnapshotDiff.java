@@ -0,0 +1,198 @@
+package gavgas.azureservicebusmetricexporter.snapshot;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Difference between two consecutive snapshots: entities added, removed and changed,
+ * with a bit mask of the changed counters for each changed entity.
+ * Rows of added and changed entities refer to the current snapshot, rows of removed
+ * entities to the previous one. The updatedAt and accessedAt timestamps are not compared:
+ * they move with every send and receive, so an entity whose counters are all the same
+ * is not reported as changed.
+ */
+public final class SnapshotDiff {
+
+    private final MetricsSnapshot previous;
+    private final MetricsSnapshot current;
+    private final TableDiff queues;
+    private final TableDiff topics;
+    private final TableDiff subscriptions;
+
+    private SnapshotDiff(MetricsSnapshot previous, MetricsSnapshot current) {
+        this.previous = previous;
+        this.current = current;
+        this.queues = TableDiff.compare(previous.getQueues(), current.getQueues());
+        this.topics = TableDiff.compare(previous.getTopics(), current.getTopics());
+        this.subscriptions = TableDiff.compare(previous.getSubscriptions(), current.getSubscriptions());
+    }
+
+    public static SnapshotDiff between(MetricsSnapshot previous, MetricsSnapshot current) {
+        return new SnapshotDiff(previous, current);
+    }
+
+    public MetricsSnapshot getPrevious() {
+        return previous;
+    }
+
+    public MetricsSnapshot getCurrent() {
+        return current;
+    }
+
+    public TableDiff table(EntityType type) {
+        return switch (type) {
+            case QUEUE -> queues;
+            case TOPIC -> topics;
+            case SUBSCRIPTION -> subscriptions;
+        };
+    }
+
+    public int addedCount() {
+        return queues.addedCount() + topics.addedCount() + subscriptions.addedCount();
+    }
+
+    public int removedCount() {
+        return queues.removedCount() + topics.removedCount() + subscriptions.removedCount();
+    }
+
+    public int changedCount() {
+        return queues.changedCount() + topics.changedCount() + subscriptions.changedCount();
+    }
+
+    public boolean isEmpty() {
+        return addedCount() == 0 && removedCount() == 0 && changedCount() == 0;
+    }
+
+    /**
+     * Changes of one entity type.
+     */
+    public static final class TableDiff {
+        private static final int IGNORED = 1 << Counter.UPDATED_AT.ordinal() | 1 << Counter.ACCESSED_AT.ordinal();
+
+        private final int[] added;
+        private final int[] removed;
+        private final int[] changed;
+        private final int[] changedPreviousRows;
+        // bit i set if Counter with ordinal i changed
+        private final int[] changedMasks;
+
+        private TableDiff(int[] added, int[] removed, int[] changed, int[] changedPreviousRows, int[] changedMasks) {
+            this.added = added;
+            this.removed = removed;
+            this.changed = changed;
+            this.changedPreviousRows = changedPreviousRows;
+            this.changedMasks = changedMasks;
+        }
+
+        static TableDiff compare(EntityTable previous, EntityTable current) {
+            IntList added = new IntList();
+            IntList changed = new IntList();
+            IntList changedPreviousRows = new IntList();
+            IntList changedMasks = new IntList();
+            boolean[] seen = new boolean[previous.size()];
+            EntityType type = current.getType();
+
+            for (int row = 0; row < current.size(); row++) {
+                int previousRow = previous.rowOf(current, row);
+                if (previousRow < 0) {
+                    added.add(row);
+                    continue;
+                }
+                seen[previousRow] = true;
+
+                int mask = 0;
+                for (int column = 0; column < type.counterCount(); column++) {
+                    int bit = 1 << type.counter(column).ordinal();
+                    if ((IGNORED & bit) == 0 && current.getColumn(row, column) != previous.getColumn(previousRow, column)) {
+                        mask |= bit;
+                    }
+                }
+                if (mask != 0) {
+                    changed.add(row);
+                    changedPreviousRows.add(previousRow);
+                    changedMasks.add(mask);
+                }
+            }
+
+            IntList removed = new IntList();
+            for (int previousRow = 0; previousRow < seen.length; previousRow++) {
+                if (!seen[previousRow]) {
+                    removed.add(previousRow);
+                }
+            }
+            return new TableDiff(added.toArray(), removed.toArray(), changed.toArray(),
+                                 changedPreviousRows.toArray(), changedMasks.toArray());
+        }
+
+        public int addedCount() {
+            return added.length;
+        }
+
+        public int removedCount() {
+            return removed.length;
+        }
+
+        public int changedCount() {
+            return changed.length;
+        }
+
+        /**
+         * Row in the current snapshot of the i-th added entity.
+         */
+        public int addedRow(int i) {
+            return added[i];
+        }
+
+        /**
+         * Row in the previous snapshot of the i-th removed entity.
+         */
+        public int removedRow(int i) {
+            return removed[i];
+        }
+
+        /**
+         * Row in the current snapshot of the i-th changed entity.
+         */
+        public int changedRow(int i) {
+            return changed[i];
+        }
+
+        /**
+         * Row in the previous snapshot of the i-th changed entity.
+         */
+        public int changedPreviousRow(int i) {
+            return changedPreviousRows[i];
+        }
+
+        public boolean isChanged(int i, Counter counter) {
+            return (changedMasks[i] & (1 << counter.ordinal())) != 0;
+        }
+
+        public Set<Counter> changedCounters(int i) {
+            Set<Counter> counters = EnumSet.noneOf(Counter.class);
+            for (Counter counter : Counter.values()) {
+                if (isChanged(i, counter)) {
+                    counters.add(counter);
+                }
+            }
+            return counters;
+        }
+    }
+
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
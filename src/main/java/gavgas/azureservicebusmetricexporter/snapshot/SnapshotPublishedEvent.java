@@ -0,0 +1,11 @@
+package gavgas.azureservicebusmetricexporter.snapshot;
+
+/**
+ * Published by the collection service each time a new snapshot replaces the previous one.
+ * Listeners run synchronously on the collecting thread with the collection lock held, so the next
+ * cycle waits for all of them. Rollups and gauge reconciliation only apply the diff, but rates,
+ * the forecast, the history and the cardinality limit walk every row of the snapshot, so their cost
+ * grows with the entity count. Listeners doing I/O or rendering hand the event to their own thread.
+ */
+public record SnapshotPublishedEvent(MetricsSnapshot snapshot, SnapshotDiff diff) {
+}
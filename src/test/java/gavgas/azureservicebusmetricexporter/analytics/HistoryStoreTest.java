@@ -0,0 +1,118 @@
+package gavgas.azureservicebusmetricexporter.analytics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.model.HistoryPoint;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryStoreTest {
+
+    private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+    private final NameInterner interner = new NameInterner();
+    private MetricsSnapshot previous = MetricsSnapshot.empty("testnamespace");
+
+    private static ServiceBusProperties properties(Duration retention, DataSize maxMemory) {
+        ServiceBusProperties properties = new ServiceBusProperties();
+        properties.getHistory().setRetention(retention);
+        properties.getHistory().setResolution(Duration.ofMinutes(1));
+        properties.getHistory().setMaxMemory(maxMemory);
+        return properties;
+    }
+
+    private void publish(HistoryStore store, long minute, int queueCount, long activeMessages) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", interner, previous);
+        for (int i = 0; i < queueCount; i++) {
+            int row = builder.queues().addRow("queue-" + i);
+            builder.queues().set(row, Counter.ACTIVE_MESSAGES, activeMessages);
+        }
+        int subscription = builder.subscriptions().addRow("test-topic", "test-subscription");
+        builder.subscriptions().set(subscription, Counter.DEAD_LETTER_MESSAGES, minute);
+        MetricsSnapshot current = builder.build(START.plus(Duration.ofMinutes(minute)), false);
+        interner.rollover();
+        store.record(current, SnapshotDiff.between(previous, current));
+        previous = current;
+    }
+
+    @Test
+    void query_ShouldReturnPointsWithinRetentionOldestFirst() {
+        // Given: 10 minutes of retention, 15 minutes of collections
+        HistoryStore store = new HistoryStore(properties(Duration.ofMinutes(10), DataSize.ofMegabytes(1)));
+        for (int minute = 0; minute < 15; minute++) {
+            publish(store, minute, 1, minute * 10L);
+        }
+
+        // When
+        List<HistoryPoint> points = store.query(EntityType.QUEUE, null, "queue-0",
+                                                START, START.plus(Duration.ofMinutes(14)));
+        List<HistoryPoint> subscription = store.query(EntityType.SUBSCRIPTION, "test-topic", "test-subscription",
+                                                      START.plus(Duration.ofMinutes(12)), START.plus(Duration.ofMinutes(13)));
+
+        // Then
+        assertEquals(10, points.size());
+        assertEquals(START.plus(Duration.ofMinutes(5)), points.get(0).getTimestamp());
+        assertEquals(50L, points.get(0).getValues().get("activeMessages").longValue());
+        assertEquals(140L, points.get(9).getValues().get("activeMessages").longValue());
+        assertEquals(2, subscription.size());
+        assertEquals(12L, subscription.get(0).getValues().get("deadLetterMessages").longValue());
+        assertNull(store.query(EntityType.QUEUE, null, "unknown-queue", START, START));
+    }
+
+    @Test
+    void record_WithMoreEntitiesThanBudget_ShouldKeepMemoryBounded() {
+        // Given: a budget of a few chunks only
+        DataSize budget = DataSize.ofKilobytes(512);
+        HistoryStore store = new HistoryStore(properties(Duration.ofHours(1), budget));
+
+        // When
+        for (int queueCount = 100; queueCount <= 10_000; queueCount *= 10) {
+            publish(store, queueCount, queueCount, 1);
+
+            // Then
+            assertTrue(store.sizeInBytes() <= budget.toBytes());
+        }
+        assertTrue(store.trackedEntities() < 10_000);
+        assertFalse(store.query(EntityType.QUEUE, null, "queue-0", START, START.plus(Duration.ofMinutes(10_000))).isEmpty());
+    }
+
+    @Test
+    void record_WhenEntityIsRemoved_ShouldDropItsHistory() {
+        // Given
+        HistoryStore store = new HistoryStore(properties(Duration.ofMinutes(10), DataSize.ofMegabytes(1)));
+        publish(store, 0, 2, 5);
+
+        // When
+        publish(store, 1, 1, 5);
+
+        // Then
+        assertNotNull(store.query(EntityType.QUEUE, null, "queue-0", START, START.plusSeconds(60)));
+        assertNull(store.query(EntityType.QUEUE, null, "queue-1", START, START.plusSeconds(60)));
+    }
+
+    @Test
+    void onSnapshotPublished_ByDefault_ShouldNotRecord() {
+        // Given
+        HistoryStore store = new HistoryStore(new ServiceBusProperties());
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", interner, null);
+        builder.queues().set(builder.queues().addRow("queue-0"), Counter.ACTIVE_MESSAGES, 1);
+        MetricsSnapshot snapshot = builder.build(START, false);
+
+        // When
+        store.onSnapshotPublished(new SnapshotPublishedEvent(snapshot, SnapshotDiff.between(previous, snapshot)));
+
+        // Then
+        assertNull(store.query(EntityType.QUEUE, null, "queue-0", START, START.plusSeconds(60)));
+    }
+}
@@ -0,0 +1,109 @@
+package gavgas.azureservicebusmetricexporter.analytics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.metrics.EntityGauge;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateEngineTest {
+
+    private final NameInterner interner = new NameInterner();
+
+    private MetricsSnapshot snapshot(Instant collectedAt, long active, long deadLetters, long sizeBytes) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", interner, null);
+        int row = builder.queues().addRow("test-queue");
+        builder.queues()
+               .set(row, Counter.ACTIVE_MESSAGES, active)
+               .set(row, Counter.DEAD_LETTER_MESSAGES, deadLetters)
+               .set(row, Counter.SIZE_BYTES, sizeBytes);
+        return builder.build(collectedAt, false);
+    }
+
+    @Test
+    void update_ShouldComputeGrowthPerSecond() {
+        // Given
+        RateEngine engine = new RateEngine(new ServiceBusProperties());
+        Instant start = Instant.parse("2024-01-01T00:00:00Z");
+        MetricsSnapshot first = snapshot(start, 100, 10, 1000);
+        MetricsSnapshot second = snapshot(start.plusSeconds(60), 160, 10, 400);
+
+        // When
+        engine.update(MetricsSnapshot.empty("testnamespace"), first);
+        double firstRate = engine.rate(EntityType.QUEUE, null, "test-queue", Counter.ACTIVE_MESSAGES);
+        engine.update(first, second);
+
+        // Then
+        assertTrue(Double.isNaN(firstRate), "No rate without a previous value");
+        assertEquals(1.0, engine.rate(EntityType.QUEUE, null, "test-queue", Counter.ACTIVE_MESSAGES), 1e-9);
+        assertEquals(0.0, engine.rate(EntityType.QUEUE, null, "test-queue", Counter.DEAD_LETTER_MESSAGES), 1e-9);
+        assertEquals(-10.0, engine.rate(EntityType.QUEUE, null, "test-queue", Counter.SIZE_BYTES), 1e-9);
+        assertTrue(Double.isNaN(engine.rate(EntityType.QUEUE, null, "unknown-queue", Counter.ACTIVE_MESSAGES)));
+    }
+
+    @Test
+    void update_ShouldDivideByTimeBetweenReadsOfEachEntity() {
+        // Given
+        RateEngine engine = new RateEngine(new ServiceBusProperties());
+        Instant start = Instant.parse("2024-01-01T00:00:00Z");
+        MetricsSnapshot.Builder firstBuilder = MetricsSnapshot.builder("testnamespace", interner, null);
+        firstBuilder.queues().set(firstBuilder.queues().addRow("late-queue"), Counter.ACTIVE_MESSAGES, 0);
+        firstBuilder.queues().set(firstBuilder.queues().addRow("stale-queue"), Counter.ACTIVE_MESSAGES, 0);
+        MetricsSnapshot first = firstBuilder.build(start, false);
+        MetricsSnapshot.Builder secondBuilder = MetricsSnapshot.builder("testnamespace", interner, first);
+        int late = secondBuilder.queues().addRow("late-queue");
+        // Read 30 seconds into a 60 second cycle
+        secondBuilder.queues().set(late, Counter.ACTIVE_MESSAGES, 60).collectedAt(late, start.plusSeconds(30).toEpochMilli());
+        int stale = secondBuilder.queues().addRow("stale-queue");
+        // Carried forward after a failed read
+        secondBuilder.queues().set(stale, Counter.ACTIVE_MESSAGES, 0).collectedAt(stale, start.toEpochMilli());
+        MetricsSnapshot second = secondBuilder.build(start.plusSeconds(60), false);
+
+        // When
+        engine.update(MetricsSnapshot.empty("testnamespace"), first);
+        engine.update(first, second);
+
+        // Then
+        assertEquals(2.0, engine.rate(EntityType.QUEUE, null, "late-queue", Counter.ACTIVE_MESSAGES), 1e-9);
+        assertTrue(Double.isNaN(engine.rate(EntityType.QUEUE, null, "stale-queue", Counter.ACTIVE_MESSAGES)));
+    }
+
+    @Test
+    void update_AcrossManyCycles_ShouldKeepLatestRates() {
+        RateEngine engine = new RateEngine(new ServiceBusProperties());
+        Instant start = Instant.parse("2024-01-01T00:00:00Z");
+        MetricsSnapshot previous = snapshot(start, 0, 0, 0);
+        engine.update(MetricsSnapshot.empty("testnamespace"), previous);
+
+        for (int cycle = 1; cycle <= 10; cycle++) {
+            MetricsSnapshot current = snapshot(start.plusSeconds(cycle * 10L), cycle * 50L, 0, 0);
+            engine.update(previous, current);
+            previous = current;
+        }
+
+        assertEquals(5.0, engine.rate(EntityType.QUEUE, null, "test-queue", Counter.ACTIVE_MESSAGES), 1e-9);
+    }
+
+    @Test
+    void entityGauges_ShouldOnlyIncludeCountersCollectedForType() {
+        ServiceBusProperties properties = new ServiceBusProperties();
+        properties.getMetrics().setRatesEnabled(true);
+        List<EntityGauge> gauges = new RateEngine(properties).entityGauges();
+
+        assertEquals(3, gauges.stream().filter(g -> g.type() == EntityType.QUEUE).count());
+        assertEquals(1, gauges.stream().filter(g -> g.type() == EntityType.TOPIC).count());
+        assertEquals(2, gauges.stream().filter(g -> g.type() == EntityType.SUBSCRIPTION).count());
+    }
+
+    @Test
+    void entityGauges_ByDefault_ShouldBeEmpty() {
+        assertTrue(new RateEngine(new ServiceBusProperties()).entityGauges().isEmpty());
+    }
+}
@@ -0,0 +1,121 @@
+package gavgas.azureservicebusmetricexporter.analytics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RollupEngineTest {
+
+    private final NameInterner interner = new NameInterner();
+    private final Random random = new Random(42);
+    private MeterRegistry meterRegistry;
+    private RollupEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        ServiceBusProperties properties = new ServiceBusProperties();
+        properties.getRollups().getGroups().put("orders", List.of("order"));
+        properties.getRollups().getGroups().put("order-audit", List.of("order-audit"));
+        meterRegistry = new SimpleMeterRegistry();
+        engine = new RollupEngine(properties, meterRegistry);
+    }
+
+    /**
+     * Random snapshot: entities appear and disappear, counters move.
+     */
+    private MetricsSnapshot randomSnapshot(MetricsSnapshot previous, int cycle) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", interner, previous);
+        for (int i = 0; i < 50; i++) {
+            if (random.nextInt(10) == 0) {
+                continue;
+            }
+            String prefix = i % 3 == 0 ? "order-" : i % 3 == 1 ? "order-audit-" : "invoice-";
+            int queue = builder.queues().addRow(prefix + "queue-" + i);
+            builder.queues()
+                   .set(queue, Counter.ACTIVE_MESSAGES, random.nextInt(3) == 0 ? 7 : random.nextInt(1000))
+                   .set(queue, Counter.DEAD_LETTER_MESSAGES, random.nextInt(10));
+            int subscription = builder.subscriptions().addRow(prefix + "topic-" + (i % 5), "sub-" + i);
+            builder.subscriptions()
+                   .set(subscription, Counter.ACTIVE_MESSAGES, random.nextInt(1000))
+                   .set(subscription, Counter.DEAD_LETTER_MESSAGES, random.nextInt(10));
+        }
+        MetricsSnapshot snapshot = builder.build(Instant.EPOCH.plusSeconds(cycle * 60L), false);
+        interner.rollover();
+        return snapshot;
+    }
+
+    private static long sum(MetricsSnapshot snapshot, String prefix, Counter counter, boolean queues) {
+        long sum = 0;
+        for (int row = 0; row < snapshot.getSubscriptions().size(); row++) {
+            if (snapshot.getSubscriptions().topicName(row).startsWith(prefix)) {
+                sum += snapshot.getSubscriptions().get(row, counter);
+            }
+        }
+        for (int row = 0; queues && row < snapshot.getQueues().size(); row++) {
+            if (snapshot.getQueues().name(row).startsWith(prefix)) {
+                sum += snapshot.getQueues().get(row, counter);
+            }
+        }
+        return sum;
+    }
+
+    private double groupGauge(String name, String group) {
+        return meterRegistry.find(name).tag("group", group).gauge().value();
+    }
+
+    @Test
+    void update_OverManyCycles_ShouldMatchTotalsComputedFromScratch() {
+        MetricsSnapshot previous = MetricsSnapshot.empty("testnamespace");
+        for (int cycle = 1; cycle <= 100; cycle++) {
+            // Given
+            MetricsSnapshot current = randomSnapshot(previous, cycle);
+
+            // When
+            engine.update(current, SnapshotDiff.between(previous, current));
+
+            // Then
+            for (int topic = 0; topic < 5; topic++) {
+                String topicName = "invoice-topic-" + topic;
+                assertEquals(sum(current, topicName, Counter.ACTIVE_MESSAGES, false), engine.topicActiveMessages(topicName));
+                assertEquals(sum(current, topicName, Counter.DEAD_LETTER_MESSAGES, false), engine.topicDeadLetterMessages(topicName));
+            }
+            long auditActive = sum(current, "order-audit", Counter.ACTIVE_MESSAGES, true);
+            assertEquals(auditActive, groupGauge("azure_servicebus_group_active_messages", "order-audit"));
+            assertEquals(sum(current, "order", Counter.ACTIVE_MESSAGES, true) - auditActive,
+                         groupGauge("azure_servicebus_group_active_messages", "orders"));
+            assertEquals(sum(current, "order", Counter.DEAD_LETTER_MESSAGES, true)
+                             - sum(current, "order-audit", Counter.DEAD_LETTER_MESSAGES, true),
+                         groupGauge("azure_servicebus_group_dead_letter_messages", "orders"));
+            previous = current;
+        }
+    }
+
+    @Test
+    void update_AfterMissedSnapshot_ShouldRebuildTotals() {
+        // Given
+        MetricsSnapshot first = randomSnapshot(MetricsSnapshot.empty("testnamespace"), 1);
+        engine.update(first, SnapshotDiff.between(MetricsSnapshot.empty("testnamespace"), first));
+        MetricsSnapshot missed = randomSnapshot(first, 2);
+        MetricsSnapshot current = randomSnapshot(missed, 3);
+
+        // When
+        engine.update(current, SnapshotDiff.between(missed, current));
+
+        // Then
+        assertEquals(sum(current, "invoice-topic-2", Counter.ACTIVE_MESSAGES, false),
+                     engine.topicActiveMessages("invoice-topic-2"));
+        assertEquals(0, engine.topicActiveMessages("unknown-topic"));
+    }
+}
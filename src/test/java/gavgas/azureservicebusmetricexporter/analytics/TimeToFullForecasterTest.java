@@ -0,0 +1,117 @@
+package gavgas.azureservicebusmetricexporter.analytics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimeToFullForecasterTest {
+
+    private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+    private final NameInterner interner = new NameInterner();
+    private MetricsSnapshot previous = MetricsSnapshot.empty("testnamespace");
+
+    private void publish(TimeToFullForecaster forecaster, long second, String queueName, long sizeBytes, long maxSizeBytes) {
+        publish(forecaster, second, second, queueName, sizeBytes, maxSizeBytes);
+    }
+
+    // readSecond is when the queue was read, earlier than second for a row carried forward
+    private void publish(TimeToFullForecaster forecaster, long second, long readSecond, String queueName, long sizeBytes,
+                         long maxSizeBytes) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", interner, previous);
+        if (queueName != null) {
+            int row = builder.queues().addRow(queueName);
+            builder.queues()
+                   .set(row, Counter.SIZE_BYTES, sizeBytes)
+                   .set(row, Counter.MAX_SIZE_BYTES, maxSizeBytes)
+                   .collectedAt(row, START.plusSeconds(readSecond).toEpochMilli());
+        }
+        MetricsSnapshot current = builder.build(START.plusSeconds(second), false);
+        interner.rollover();
+        forecaster.update(current, SnapshotDiff.between(previous, current));
+        previous = current;
+    }
+
+    @Test
+    void update_WithLinearGrowth_ShouldForecastTimeUntilFull() {
+        // Given
+        TimeToFullForecaster forecaster = new TimeToFullForecaster(new ServiceBusProperties());
+
+        // When: 10 bytes per second for 100 cycles, crossing several window rebuilds
+        for (int cycle = 0; cycle < 100; cycle++) {
+            publish(forecaster, cycle * 60L, "test-queue", 1000 + cycle * 600L, 1_000_000);
+        }
+
+        // Then
+        long currentSize = 1000 + 99 * 600L;
+        assertEquals((1_000_000 - currentSize) / 10.0,
+                     forecaster.secondsUntilFull(EntityType.QUEUE, "test-queue"), 1e-3);
+        assertEquals((currentSize + 3600 * 10) * 100.0 / 1_000_000,
+                     forecaster.projectedFillPercentage(EntityType.QUEUE, "test-queue"), 1e-6);
+    }
+
+    @Test
+    void update_WithRowCarriedForward_ShouldNotSampleItAgain() {
+        // Given
+        TimeToFullForecaster forecaster = new TimeToFullForecaster(new ServiceBusProperties());
+
+        // When: 10 bytes per second, the read of the third cycle failed and the second one is carried forward
+        publish(forecaster, 0, "test-queue", 1000, 1_000_000);
+        publish(forecaster, 60, "test-queue", 1600, 1_000_000);
+        publish(forecaster, 120, 60, "test-queue", 1600, 1_000_000);
+        publish(forecaster, 180, "test-queue", 2800, 1_000_000);
+
+        // Then
+        assertEquals((1_000_000 - 2800) / 10.0, forecaster.secondsUntilFull(EntityType.QUEUE, "test-queue"), 1e-3);
+    }
+
+    @Test
+    void update_WithShrinkingEntity_ShouldReportInfinity() {
+        TimeToFullForecaster forecaster = new TimeToFullForecaster(new ServiceBusProperties());
+
+        for (int cycle = 0; cycle < 5; cycle++) {
+            publish(forecaster, cycle * 60L, "test-queue", 10_000 - cycle * 100L, 1_000_000);
+        }
+
+        assertEquals(Double.POSITIVE_INFINITY, forecaster.secondsUntilFull(EntityType.QUEUE, "test-queue"));
+    }
+
+    @Test
+    void update_WithSingleSample_ShouldReportNaN() {
+        TimeToFullForecaster forecaster = new TimeToFullForecaster(new ServiceBusProperties());
+
+        publish(forecaster, 0, "test-queue", 1000, 1_000_000);
+
+        assertTrue(Double.isNaN(forecaster.secondsUntilFull(EntityType.QUEUE, "test-queue")));
+        assertTrue(Double.isNaN(forecaster.secondsUntilFull(EntityType.QUEUE, "unknown-queue")));
+    }
+
+    @Test
+    void update_WhenEntityReappears_ShouldStartWithFreshState() {
+        TimeToFullForecaster forecaster = new TimeToFullForecaster(new ServiceBusProperties());
+        publish(forecaster, 0, "test-queue", 1000, 1_000_000);
+        publish(forecaster, 60, "test-queue", 2000, 1_000_000);
+
+        publish(forecaster, 120, null, 0, 0);
+        publish(forecaster, 180, "test-queue", 5000, 1_000_000);
+
+        assertTrue(Double.isNaN(forecaster.secondsUntilFull(EntityType.QUEUE, "test-queue")));
+    }
+
+    @Test
+    void entityGauges_ByDefault_ShouldBeEmpty() {
+        ServiceBusProperties properties = new ServiceBusProperties();
+        assertTrue(new TimeToFullForecaster(properties).entityGauges().isEmpty());
+
+        properties.getForecast().setEnabled(true);
+        assertEquals(4, new TimeToFullForecaster(properties).entityGauges().size());
+    }
+}
@@ -1,29 +1,80 @@
 package gavgas.azureservicebusmetricexporter.controller;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import gavgas.azureservicebusmetricexporter.analytics.HistoryStore;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptorCache;
+import gavgas.azureservicebusmetricexporter.model.HistoryPoint;
 import gavgas.azureservicebusmetricexporter.model.NamespaceMetric;
 import gavgas.azureservicebusmetricexporter.model.QueueMetric;
 import gavgas.azureservicebusmetricexporter.model.SubscriptionMetric;
 import gavgas.azureservicebusmetricexporter.model.TopicMetric;
-import gavgas.azureservicebusmetricexporter.service.ServiceBusClientService;
+import gavgas.azureservicebusmetricexporter.service.CollectionMetrics;
+import gavgas.azureservicebusmetricexporter.service.EntityFetchStats;
+import gavgas.azureservicebusmetricexporter.service.ProbeTargetRegistry;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 
 @ExtendWith(MockitoExtension.class)
 class ProbeControllerTest {
 
     @Mock
-    private ServiceBusClientService serviceBusClientService;
+    private SnapshotRefresher snapshotRefresher;
+
+    @Mock
+    private HistoryStore historyStore;
+
+    @Mock
+    private ProbeTargetRegistry probeTargetRegistry;
+
+    @Mock
+    private ServiceBusProperties properties;
+
+    @Mock
+    private SnapshotStream snapshotStream;
+
+    @Mock
+    private CollectionMetrics collectionMetrics;
+
+    @Mock
+    private EntityFetchStats fetchStats;
+
+    @Spy
+    private EntityDescriptorCache descriptorCache = new EntityDescriptorCache(new ServiceBusProperties());
 
     @InjectMocks
     private ProbeController probeController;
@@ -71,126 +122,247 @@ class ProbeControllerTest {
     }
 
     @Test
-    void getProbeMetrics_ShouldReturnAllMetrics() {
+    void getProbeMetrics_ShouldReturnAllMetrics() throws IOException {
         // Given
-        List<QueueMetric> queueMetrics = Collections.singletonList(testQueueMetric);
-        List<TopicMetric> topicMetrics = Collections.singletonList(testTopicMetric);
-        List<SubscriptionMetric> subscriptionMetrics = Collections.singletonList(testSubscriptionMetric);
-        List<NamespaceMetric> namespaceMetrics = Collections.singletonList(testNamespaceMetric);
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(0)));
+
+        // When
+        ResponseEntity<?> response = probeController.getProbeMetrics(null, null, null, 0, null, null, null).join();
+
+        // Then
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        String body = streamed(response);
+        assertTrue(body.contains("\"queues\":[{\"namespace\":\"testnamespace\",\"name\":\"test-queue\""));
+        assertTrue(body.contains("\"topicName\":\"test-topic\",\"name\":\"test-subscription\""));
+        verify(snapshotRefresher).snapshot();
+    }
 
-        when(serviceBusClientService.getQueueMetrics()).thenReturn(queueMetrics);
-        when(serviceBusClientService.getTopicMetrics()).thenReturn(topicMetrics);
-        when(serviceBusClientService.getSubscriptionMetrics()).thenReturn(subscriptionMetrics);
-        when(serviceBusClientService.getNamespaceMetrics()).thenReturn(namespaceMetrics);
+    @Test
+    void getProbeMetrics_WithLimit_ShouldReturnPageAndCursor() throws IOException {
+        // Given
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(10)));
 
         // When
-        ResponseEntity<?> response = probeController.getProbeMetrics();
+        ResponseEntity<?> response = probeController.getProbeMetrics(List.of("queue"), "queue-", List.of("activeMessages"), 3, null, null, null).join();
+
+        // Then
+        String body = streamed(response);
+        assertTrue(body.startsWith("{\"status\":\"success\",\"data\":{\"queues\":[{\"name\":\"queue-0\",\"activeMessages\":0}"));
+        assertTrue(body.contains("\"next_cursor\":"));
+        assertFalse(body.contains("subscriptions"));
+    }
+
+    @Test
+    void getProbeMetrics_WithUnknownField_ShouldReturnBadRequest() {
+        // When
+        ResponseEntity<?> response = probeController.getProbeMetrics(null, null, List.of("colour"), 0, null, null, null).join();
+
+        // Then
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        verify(snapshotRefresher, never()).snapshot();
+    }
+
+    @Test
+    void getProbeMetrics_WithCborAccept_ShouldReturnColumnarBody() throws IOException {
+        // Given
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(0)));
+
+        // When
+        ResponseEntity<?> response = probeController.getProbeMetrics(null, null, null, 0, null,
+                                                                     "application/cbor, application/json;q=0.5", null).join();
 
         // Then
         assertEquals(HttpStatus.OK, response.getStatusCode());
-        verify(serviceBusClientService).collectMetrics();
-        verify(serviceBusClientService).getQueueMetrics();
-        verify(serviceBusClientService).getTopicMetrics();
-        verify(serviceBusClientService).getSubscriptionMetrics();
-        verify(serviceBusClientService).getNamespaceMetrics();
+        assertEquals("application/cbor", response.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE));
+        assertTrue(response.getHeaders().getFirst(HttpHeaders.ETAG).endsWith("-cbor\""));
+        JsonNode body = new ObjectMapper(new CBORFactory()).readTree(streamedBytes(response));
+        assertEquals("testnamespace", body.get("namespace").asText());
+        assertEquals("test-queue", body.get("queues").get("name").get(0).asText());
+        assertEquals(10, body.get("queues").get("activeMessages").get(0).asLong());
+        assertEquals("test-topic", body.get("subscriptions").get("topicName").get(0).asText());
     }
 
     @Test
-    void getProbeMetricsList_ShouldReturnEntityList() {
+    void getProbeMetrics_WithCborAcceptAndLimit_ShouldReturnBadRequest() throws IOException {
+        // When
+        ResponseEntity<?> response = probeController.getProbeMetrics(null, null, null, 10, null, "application/cbor", null).join();
+
+        // Then
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals("{\"status\":\"error\",\"data\":\"'limit' and 'cursor' are only supported for JSON\"}", streamed(response));
+        verify(snapshotRefresher, never()).snapshot();
+    }
+
+    @Test
+    void getProbeMetrics_ThroughDispatcher_ShouldStreamFilteredBody() throws Exception {
         // Given
-        List<QueueMetric> queueMetrics = Collections.singletonList(testQueueMetric);
-        List<TopicMetric> topicMetrics = Collections.singletonList(testTopicMetric);
-        List<SubscriptionMetric> subscriptionMetrics = Collections.singletonList(testSubscriptionMetric);
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(10)));
+        MockMvc mvc = MockMvcBuilders.standaloneSetup(probeController).build();
+
+        // When
+        MvcResult started = mvc.perform(get("/probe/metrics").param("type", "queue").param("prefix", "queue-")
+                                                             .param("fields", "activeMessages").param("limit", "3"))
+                               .andExpect(request().asyncStarted())
+                               .andReturn();
+        MvcResult dispatched = mvc.perform(asyncDispatch(started)).andReturn();
+        dispatched.getAsyncResult();
 
-        when(serviceBusClientService.getQueueMetrics()).thenReturn(queueMetrics);
-        when(serviceBusClientService.getTopicMetrics()).thenReturn(topicMetrics);
-        when(serviceBusClientService.getSubscriptionMetrics()).thenReturn(subscriptionMetrics);
+        // Then
+        assertEquals(HttpStatus.OK.value(), dispatched.getResponse().getStatus());
+        assertEquals("application/json", dispatched.getResponse().getContentType());
+        assertTrue(dispatched.getResponse().getContentAsString()
+                             .startsWith("{\"status\":\"success\",\"data\":{\"queues\":[{\"name\":\"queue-0\",\"activeMessages\":0}"));
+    }
+
+    @Test
+    void getProbeMetrics_ThroughDispatcherWithUnknownField_ShouldReturnJsonError() throws Exception {
+        // Given
+        MockMvc mvc = MockMvcBuilders.standaloneSetup(probeController).build();
+
+        // When
+        MvcResult started = mvc.perform(get("/probe/metrics").param("fields", "colour"))
+                               .andExpect(request().asyncStarted())
+                               .andReturn();
+        MvcResult dispatched = mvc.perform(asyncDispatch(started)).andReturn();
+        dispatched.getAsyncResult();
+
+        // Then
+        assertEquals(HttpStatus.BAD_REQUEST.value(), dispatched.getResponse().getStatus());
+        assertTrue(dispatched.getResponse().getContentAsString().startsWith("{\"status\":\"error\",\"data\":"));
+    }
+
+    @Test
+    void getProbeMetricsList_ShouldReturnEntityList() {
+        // Given
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(0)));
 
         // When
-        ResponseEntity<?> response = probeController.getProbeMetricsList();
+        ResponseEntity<byte[]> response = probeController.getProbeMetricsList(null).join();
 
         // Then
         assertEquals(HttpStatus.OK, response.getStatusCode());
-        verify(serviceBusClientService).collectMetrics();
-        verify(serviceBusClientService).getQueueMetrics();
-        verify(serviceBusClientService).getTopicMetrics();
-        verify(serviceBusClientService).getSubscriptionMetrics();
+        assertEquals("{\"status\":\"success\",\"data\":{\"queues\":[\"test-queue\"],\"topics\":[\"test-topic\"],"
+                     + "\"subscriptions\":[{\"topic\":\"test-topic\",\"subscription\":\"test-subscription\"}]}}",
+                     new String(response.getBody(), StandardCharsets.UTF_8));
+        verify(snapshotRefresher).snapshot();
+    }
+
+    @Test
+    void getProbeMetricsList_WithMatchingETag_ShouldReturnNotModified() {
+        // Given
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(0)));
+        String etag = probeController.getProbeMetricsList(null).join().getHeaders().getFirst(HttpHeaders.ETAG);
+
+        // When
+        ResponseEntity<byte[]> response = probeController.getProbeMetricsList("W/\"other\", " + etag).join();
+
+        // Then
+        assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+        assertEquals(etag, response.getHeaders().getFirst(HttpHeaders.ETAG));
+        assertNull(response.getBody());
+    }
+
+    @Test
+    void getProbeMetrics_WithoutFilters_ShouldRenderEachSnapshotVersionOnce() throws IOException {
+        // Given
+        MetricsSnapshot first = resourceSnapshot(0);
+        MetricsSnapshot next = MetricsSnapshot.builder("testnamespace", new NameInterner(), first)
+                                              .build(Instant.now(), false);
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(first), CompletableFuture.completedFuture(first),
+                                                     CompletableFuture.completedFuture(next));
+
+        // When
+        ResponseEntity<?> firstPoll = probeController.getProbeMetrics(null, null, null, 0, null, null, null).join();
+        ResponseEntity<?> secondPoll = probeController.getProbeMetrics(null, null, null, 0, null, null, null).join();
+        ResponseEntity<?> afterPublish = probeController.getProbeMetrics(null, null, null, 0, null, null,
+                                                                         firstPoll.getHeaders().getFirst(HttpHeaders.ETAG)).join();
+
+        // Then
+        assertEquals(streamed(firstPoll), streamed(secondPoll));
+        verify(collectionMetrics, times(2)).recordRender(eq("metrics:json"), anyLong());
+        assertEquals(firstPoll.getHeaders().getFirst(HttpHeaders.ETAG), secondPoll.getHeaders().getFirst(HttpHeaders.ETAG));
+        assertEquals(HttpStatus.OK, afterPublish.getStatusCode());
+        assertNotEquals(firstPoll.getHeaders().getFirst(HttpHeaders.ETAG), afterPublish.getHeaders().getFirst(HttpHeaders.ETAG));
+        assertFalse(streamed(afterPublish).contains("test-queue"));
     }
 
     @Test
     void getProbeMetricsResource_WithQueueType_ShouldReturnQueueMetrics() {
         // Given
-        List<QueueMetric> queueMetrics = Collections.singletonList(testQueueMetric);
-        when(serviceBusClientService.getQueueMetrics()).thenReturn(queueMetrics);
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(0)));
 
         // When
-        ResponseEntity<?> response = probeController.getProbeMetricsResource("queue", "test-queue");
+        ResponseEntity<?> response = probeController.getProbeMetricsResource("queue", "test-queue").join();
 
         // Then
         assertEquals(HttpStatus.OK, response.getStatusCode());
-        verify(serviceBusClientService).collectMetrics();
-        verify(serviceBusClientService).getQueueMetrics();
+        QueueMetric metric = (QueueMetric) ((Map<?, ?>) response.getBody()).get("metrics");
+        assertEquals("test-queue", metric.getName());
+        assertEquals(10, metric.getActiveMessages());
+        verify(snapshotRefresher).snapshot();
     }
 
     @Test
     void getProbeMetricsResource_WithTopicType_ShouldReturnTopicMetrics() {
         // Given
-        List<TopicMetric> topicMetrics = Collections.singletonList(testTopicMetric);
-        when(serviceBusClientService.getTopicMetrics()).thenReturn(topicMetrics);
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(0)));
 
         // When
-        ResponseEntity<?> response = probeController.getProbeMetricsResource("topic", "test-topic");
+        ResponseEntity<?> response = probeController.getProbeMetricsResource("topic", "test-topic").join();
 
         // Then
         assertEquals(HttpStatus.OK, response.getStatusCode());
-        verify(serviceBusClientService).collectMetrics();
-        verify(serviceBusClientService).getTopicMetrics();
+        TopicMetric metric = (TopicMetric) ((Map<?, ?>) response.getBody()).get("metrics");
+        assertEquals(2048, metric.getSizeBytes());
+        verify(snapshotRefresher).snapshot();
     }
 
     @Test
     void getProbeMetricsResource_WithSubscriptionType_ShouldReturnSubscriptionMetrics() {
         // Given
-        List<SubscriptionMetric> subscriptionMetrics = Collections.singletonList(testSubscriptionMetric);
-        when(serviceBusClientService.getSubscriptionMetrics()).thenReturn(subscriptionMetrics);
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(0)));
 
         // When
-        ResponseEntity<?> response = probeController.getProbeMetricsResource("subscription", "test-topic/test-subscription");
+        ResponseEntity<?> response = probeController.getProbeMetricsResource("subscription", "test-topic/test-subscription").join();
 
         // Then
         assertEquals(HttpStatus.OK, response.getStatusCode());
-        verify(serviceBusClientService).collectMetrics();
-        verify(serviceBusClientService).getSubscriptionMetrics();
+        SubscriptionMetric metric = (SubscriptionMetric) ((Map<?, ?>) response.getBody()).get("metrics");
+        assertEquals("test-topic", metric.getTopicName());
+        assertEquals(5, metric.getActiveMessages());
+        verify(snapshotRefresher).snapshot();
     }
 
     @Test
     void getProbeMetricsResource_WithNonexistentEntity_ShouldReturn404() {
         // Given
-        List<QueueMetric> emptyList = new ArrayList<>();
-        when(serviceBusClientService.getQueueMetrics()).thenReturn(emptyList);
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(0)));
 
         // When
-        ResponseEntity<?> response = probeController.getProbeMetricsResource("queue", "non-existent-queue");
+        ResponseEntity<?> response = probeController.getProbeMetricsResource("queue", "non-existent-queue").join();
 
         // Then
         assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
-        verify(serviceBusClientService).collectMetrics();
-        verify(serviceBusClientService).getQueueMetrics();
+        verify(snapshotRefresher).snapshot();
     }
 
     @Test
     void getProbeMetricsResource_WithInvalidSubscriptionFormat_ShouldReturn404() {
+        // Given
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(0)));
+
         // When
-        ResponseEntity<?> response = probeController.getProbeMetricsResource("subscription", "invalid-format");
+        ResponseEntity<?> response = probeController.getProbeMetricsResource("subscription", "invalid-format").join();
 
         // Then
         assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
-        verify(serviceBusClientService).collectMetrics();
+        verify(snapshotRefresher).snapshot();
     }
 
     @Test
     void getProbeMetricsResource_WithNullParameters_ShouldReturnBadRequest() {
         // When
-        ResponseEntity<?> response = probeController.getProbeMetricsResource(null, null);
+        ResponseEntity<?> response = probeController.getProbeMetricsResource(null, null).join();
 
         // Then
         assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
@@ -199,10 +371,290 @@ class ProbeControllerTest {
     @Test
     void getProbeMetricsResource_WithInvalidType_ShouldReturnNotFound() {
         // When
-        ResponseEntity<?> response = probeController.getProbeMetricsResource("invalid", "test-name");
+        ResponseEntity<?> response = probeController.getProbeMetricsResource("invalid", "test-name").join();
 
         // Then
         // ProbeController sınıfı şu anda NOT_FOUND dönüyor, test adı bir önceki davranışa göre oluşturulmuş olabilir
         assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
     }
-}
\ No newline at end of file
+
+    @Test
+    void getProbeHistory_WithTrackedSubscription_ShouldReturnPoints() {
+        // Given
+        Instant from = Instant.parse("2024-01-01T00:00:00Z");
+        Instant to = Instant.parse("2024-01-01T01:00:00Z");
+        List<HistoryPoint> points = List.of(HistoryPoint.builder()
+                                                        .timestamp(from)
+                                                        .values(Map.of("activeMessages", 5L))
+                                                        .build());
+        when(historyStore.query(EntityType.SUBSCRIPTION, "test-topic", "test-subscription", from, to)).thenReturn(points);
+
+        // When
+        ResponseEntity<?> response = probeController.getProbeHistory("subscription", "test-topic/test-subscription",
+                                                                     from.toString(), to.toString());
+
+        // Then
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(points, ((Map<?, ?>) response.getBody()).get("points"));
+        verify(snapshotRefresher, never()).snapshot();
+    }
+
+    @Test
+    void getProbeHistory_WithUntrackedEntity_ShouldReturn404() {
+        // Given
+        when(historyStore.oldestRetained(any())).thenReturn(Instant.EPOCH);
+
+        // When
+        ResponseEntity<?> response = probeController.getProbeHistory("queue", "unknown-queue", null, null);
+
+        // Then
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
+    @Test
+    void getProbeHistory_WithInvalidInstant_ShouldReturnBadRequest() {
+        // When
+        ResponseEntity<?> response = probeController.getProbeHistory("queue", "test-queue", "yesterday", null);
+
+        // Then
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    void getProbeFetches_ShouldReturnSlowestAndFailingEntities() {
+        // Given
+        Instant lastFetch = Instant.parse("2024-01-01T00:00:00Z");
+        EntityFetchStats.Entry slow = new EntityFetchStats.Entry(EntityType.SUBSCRIPTION, "test-topic", "slow", 900.0,
+                                                                 750.0, 0, 0, 12, null, lastFetch);
+        EntityFetchStats.Entry failing = new EntityFetchStats.Entry(EntityType.QUEUE, null, "broken", 30.0, 25.0, 3, 5,
+                                                                    12, "java.lang.IllegalStateException", lastFetch);
+        when(fetchStats.slowest(5)).thenReturn(List.of(slow));
+        when(fetchStats.failing(5)).thenReturn(List.of(failing));
+
+        // When
+        ResponseEntity<?> response = probeController.getProbeFetches(5);
+
+        // Then
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        Map<?, ?> body = (Map<?, ?>) response.getBody();
+        Map<?, ?> slowest = (Map<?, ?>) ((List<?>) body.get("slowest")).get(0);
+        Map<?, ?> broken = (Map<?, ?>) ((List<?>) body.get("failing")).get(0);
+        assertEquals("test-topic/slow", slowest.get("entity_name"));
+        assertEquals(750.0, slowest.get("average_latency_ms"));
+        assertEquals(3, broken.get("failure_streak"));
+        assertEquals("java.lang.IllegalStateException", broken.get("last_error"));
+        verify(snapshotRefresher, never()).snapshot();
+    }
+
+    @Test
+    void probe_WithConfiguredTarget_ShouldReturnPrometheusText() {
+        // Given
+        when(probeTargetRegistry.probe("other", null)).thenReturn(CompletableFuture.completedFuture(snapshot("othernamespace")));
+        when(properties.getEnvironment()).thenReturn("test");
+
+        // When
+        ResponseEntity<String> response = probeController.probe("other", null, "text/plain").join();
+
+        // Then
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(response.getBody().contains("azure_servicebus_active_messages{entity_type=\"queue\","
+                                                   + "entity_name=\"orders\",namespace=\"othernamespace\",environment=\"test\"} 7 1704067170000\n"));
+        assertTrue(response.getBody().contains("azure_servicebus_probe_success 1.0\n"));
+    }
+
+    @Test
+    void probe_WhenListingFails_ShouldReportFailure() {
+        // Given
+        when(probeTargetRegistry.probe("other", null)).thenReturn(CompletableFuture.failedFuture(
+            new IllegalStateException("Could not list the entities of target other")));
+
+        // When
+        ResponseEntity<String> response = probeController.probe("other", null, "text/plain").join();
+
+        // Then
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertFalse(response.getBody().contains("azure_servicebus_active_messages"));
+        assertTrue(response.getBody().contains("azure_servicebus_probe_success 0.0\n"));
+    }
+
+    @Test
+    void probe_WithUnknownTarget_ShouldReturnBadRequest() {
+        // Given
+        when(probeTargetRegistry.probe("unknown", null)).thenThrow(new IllegalArgumentException("Unknown target: unknown"));
+
+        // When
+        ResponseEntity<String> response = probeController.probe("unknown", null, null).join();
+
+        // Then
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    void getProbeExposition_WithOpenMetricsAccepted_ShouldStampSamplesWithCollectionTime() {
+        // Given
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(snapshot("testnamespace")));
+        when(properties.getEnvironment()).thenReturn("test");
+
+        // When
+        ResponseEntity<byte[]> response = probeController.getProbeExposition(
+            "application/openmetrics-text;version=1.0.0,text/plain;version=0.0.4;q=0.5", null).join();
+
+        // Then
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(response.getHeaders().getFirst("Content-Type").startsWith("application/openmetrics-text"));
+        String body = new String(response.getBody(), StandardCharsets.UTF_8);
+        assertTrue(body.contains("entity_name=\"orders\",namespace=\"testnamespace\",environment=\"test\"} 7 1704067170.000\n"));
+        assertTrue(body.contains("entity_name=\"payments\",namespace=\"testnamespace\",environment=\"test\"} 0 1704067200.000\n"));
+        assertTrue(body.endsWith("# EOF\n"));
+        verify(snapshotRefresher).snapshot();
+    }
+
+    // "orders" was read 30 seconds before the end of the cycle, "payments" at the end
+    private static MetricsSnapshot snapshot(String namespace) {
+        Instant collectedAt = Instant.parse("2024-01-01T00:00:00Z");
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder(namespace, new NameInterner(), null);
+        int row = builder.queues().addRow("orders");
+        builder.queues()
+               .collectedAt(row, collectedAt.minusSeconds(30).toEpochMilli())
+               .set(row, Counter.ACTIVE_MESSAGES, 7);
+        builder.queues().addRow("payments");
+        return builder.build(collectedAt, false);
+    }
+
+    @Test
+    void getProbeMetricsResource_UnderConcurrentLoad_ShouldLookUpWithoutScanning() throws Exception {
+        // Given: 50k queues and 50k subscriptions
+        int entities = 50_000;
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(resourceSnapshot(entities)));
+        int threads = 4;
+        int requestsPerThread = 25_000;
+
+        // When
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        int[] found = new int[threads];
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < requestsPerThread; i++) {
+                    int entity = (i * 7919 + worker) % entities;
+                    ResponseEntity<?> response = i % 2 == 0
+                        ? probeController.getProbeMetricsResource("queue", "queue-" + entity).join()
+                        : probeController.getProbeMetricsResource("subscription", "topic-" + entity % 100 + "/sub-" + entity).join();
+                    if (response.getStatusCode() == HttpStatus.OK) {
+                        found[worker]++;
+                    }
+                }
+            });
+            workers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // Then
+        System.out.printf("%d resource lookups over %d entities on %d threads: %d ms%n",
+                          threads * requestsPerThread, 2 * entities, threads, elapsedMillis);
+        assertEquals(threads * requestsPerThread, Arrays.stream(found).sum());
+    }
+
+    @Test
+    void getProbeMetricsTop_WithDeadLetters_ShouldReturnHighestFirstWithoutSortingPerRequest() {
+        // Given: 50k subscriptions, dead letters increasing with the index
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        for (int i = 0; i < 50_000; i++) {
+            int row = builder.subscriptions().addRow("topic-" + i % 100, "sub-" + i);
+            builder.subscriptions().set(row, Counter.DEAD_LETTER_MESSAGES, i);
+        }
+        when(snapshotRefresher.snapshot()).thenReturn(CompletableFuture.completedFuture(builder.build(Instant.now(), false)));
+        probeController.getProbeMetricsTop("subscription", "deadLetterMessages", 20, "desc").join();
+
+        // When
+        long start = System.nanoTime();
+        ResponseEntity<?> response = probeController.getProbeMetricsTop("subscription", "deadLetterMessages", 20, "desc").join();
+        long elapsedMicros = (System.nanoTime() - start) / 1_000;
+
+        // Then
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        List<?> entities = (List<?>) ((Map<?, ?>) response.getBody()).get("entities");
+        assertEquals(20, entities.size());
+        Map<?, ?> first = (Map<?, ?>) entities.get(0);
+        assertEquals("topic-99/sub-49999", first.get("entity_name"));
+        assertEquals(49_999L, first.get("value"));
+        assertInstanceOf(SubscriptionMetric.class, first.get("metrics"));
+        System.out.printf("Top 20 of 50000 subscriptions by dead letters: %d us%n", elapsedMicros);
+    }
+
+    @Test
+    void getProbeMetricsTop_WithCounterNotCollectedForType_ShouldReturnBadRequest() {
+        // When
+        ResponseEntity<?> response = probeController.getProbeMetricsTop("subscription", "sizeUsage", 20, "desc").join();
+
+        // Then
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        verify(snapshotRefresher, never()).snapshot();
+    }
+
+    @Test
+    void getProbeStream_WithUnknownType_ShouldReturnBadRequestWithoutSubscribing() {
+        // When
+        ResponseStatusException e = assertThrows(ResponseStatusException.class,
+                                                 () -> probeController.getProbeStream(List.of("namespace"), null, null, null));
+
+        // Then
+        assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+        verifyNoInteractions(snapshotStream);
+    }
+
+    @Test
+    void getProbeStream_ThroughDispatcher_ShouldSendSnapshotEvent() throws Exception {
+        // Given
+        when(properties.getStream()).thenReturn(new ServiceBusProperties.Stream());
+        AtomicReference<SnapshotStream.Sink> sink = new AtomicReference<>();
+        when(snapshotStream.subscribe(any(), any(), any())).thenAnswer(invocation -> {
+            sink.set(invocation.getArgument(2));
+            return null;
+        });
+        MockMvc mvc = MockMvcBuilders.standaloneSetup(probeController).build();
+
+        // When
+        MvcResult started = mvc.perform(get("/probe/stream").accept(MediaType.TEXT_EVENT_STREAM))
+                               .andExpect(request().asyncStarted())
+                               .andReturn();
+        sink.get().send(new SnapshotStream.Event("1", "snapshot", "{\"queues\":[]}"));
+
+        // Then
+        assertEquals(HttpStatus.OK.value(), started.getResponse().getStatus());
+        assertTrue(started.getResponse().getContentType().startsWith(MediaType.TEXT_EVENT_STREAM_VALUE));
+        assertEquals("id:1\nevent:snapshot\ndata:{\"queues\":[]}\n\n", started.getResponse().getContentAsString());
+    }
+
+    // Body of a /metrics response as written to the client
+    private static String streamed(ResponseEntity<?> response) throws IOException {
+        return new String(streamedBytes(response), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] streamedBytes(ResponseEntity<?> response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingResponseBody) response.getBody()).writeTo(out);
+        return out.toByteArray();
+    }
+
+    // test-queue, test-topic and test-topic/test-subscription plus the given number of extra queues and subscriptions
+    private static MetricsSnapshot resourceSnapshot(int entities) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        int queue = builder.queues().addRow("test-queue");
+        builder.queues().set(queue, Counter.ACTIVE_MESSAGES, 10);
+        int topic = builder.topics().addRow("test-topic");
+        builder.topics().set(topic, Counter.SIZE_BYTES, 2048);
+        int subscription = builder.subscriptions().addRow("test-topic", "test-subscription");
+        builder.subscriptions().set(subscription, Counter.ACTIVE_MESSAGES, 5);
+        for (int i = 0; i < entities; i++) {
+            builder.queues().addRow("queue-" + i);
+            builder.subscriptions().addRow("topic-" + i % 100, "sub-" + i);
+        }
+        return builder.build(Instant.now(), false);
+    }
+}
@@ -0,0 +1,33 @@
+package gavgas.azureservicebusmetricexporter.controller;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProbeRequestFilterTest {
+
+    private final ProbeRequestFilter filter = new ProbeRequestFilter(new SimpleMeterRegistry());
+
+    @Test
+    void shouldNotFilter_ShouldCountProbeRequestsButNotStreamsOrOtherPaths() {
+        assertFalse(filter.shouldNotFilter(new MockHttpServletRequest("GET", "/probe")));
+        assertFalse(filter.shouldNotFilter(new MockHttpServletRequest("GET", "/probe/metrics")));
+        assertTrue(filter.shouldNotFilter(new MockHttpServletRequest("GET", "/probe/stream")));
+        assertTrue(filter.shouldNotFilter(new MockHttpServletRequest("GET", "/actuator/prometheus")));
+    }
+
+    @Test
+    void shouldNotFilter_WithContextPath_ShouldMatchPathsBelowIt() {
+        // Given
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/exporter/probe/exposition");
+        request.setContextPath("/exporter");
+        MockHttpServletRequest stream = new MockHttpServletRequest("GET", "/exporter/probe/stream");
+        stream.setContextPath("/exporter");
+
+        // Then
+        assertFalse(filter.shouldNotFilter(request));
+        assertTrue(filter.shouldNotFilter(stream));
+    }
+}
@@ -0,0 +1,31 @@
+package gavgas.azureservicebusmetricexporter.controller;
+
+import gavgas.azureservicebusmetricexporter.service.CollectionMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrometheusScrapeFilterTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final PrometheusScrapeFilter filter =
+        new PrometheusScrapeFilter(new CollectionMetrics(meterRegistry), "/actuator");
+
+    @Test
+    void doFilter_ShouldTimeScrapesOfThePrometheusEndpointOnly() throws Exception {
+        // When
+        filter.doFilter(new MockHttpServletRequest("GET", "/actuator/prometheus"), new MockHttpServletResponse(),
+                        new MockFilterChain());
+        filter.doFilter(new MockHttpServletRequest("GET", "/actuator/health"), new MockHttpServletResponse(),
+                        new MockFilterChain());
+        filter.doFilter(new MockHttpServletRequest("GET", "/probe/exposition"), new MockHttpServletResponse(),
+                        new MockFilterChain());
+
+        // Then
+        assertEquals(1, meterRegistry.find("azure_servicebus_exporter_scrape").timer().count());
+    }
+}
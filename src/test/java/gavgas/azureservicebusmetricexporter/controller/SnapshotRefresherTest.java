@@ -0,0 +1,164 @@
+package gavgas.azureservicebusmetricexporter.controller;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotRefresherTest {
+
+    private final ServiceBusProperties.Probe settings = new ServiceBusProperties.Probe();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MetricsSnapshot previous = MetricsSnapshot.empty("testnamespace");
+    private final MetricsSnapshot next = MetricsSnapshot.builder("testnamespace", new NameInterner(), previous)
+                                                        .build(Instant.now(), false);
+    private volatile MetricsSnapshot current = previous;
+    private final AtomicInteger cycles = new AtomicInteger();
+    private SnapshotRefresher refresher;
+
+    @AfterEach
+    void tearDown() {
+        if (refresher != null) {
+            refresher.shutdown();
+        }
+    }
+
+    @Test
+    void snapshot_WhenFresh_ShouldReturnCompletedFutureWithoutCollecting() {
+        // Given
+        refresher = new SnapshotRefresher(() -> true, cycles::incrementAndGet, () -> current, settings, meterRegistry);
+
+        // When
+        CompletableFuture<MetricsSnapshot> snapshot = refresher.snapshot();
+
+        // Then
+        assertTrue(snapshot.isDone());
+        assertSame(previous, snapshot.join());
+        assertEquals(0, cycles.get());
+    }
+
+    @Test
+    void snapshot_WithThousandConcurrentRequestsDuringSlowCycle_ShouldCollectOnceWithoutBlockingCallers() throws Exception {
+        // Given: a cycle taking 300 ms
+        refresher = new SnapshotRefresher(() -> current == next, () -> {
+            cycles.incrementAndGet();
+            sleep(300);
+            current = next;
+        }, () -> current, settings, meterRegistry);
+        int requests = 1_000;
+        ExecutorService callers = Executors.newFixedThreadPool(16);
+        long[] answeredNanos = new long[requests];
+        AtomicLong longestCall = new AtomicLong();
+        CountDownLatch answered = new CountDownLatch(requests);
+
+        // When: 1000 requests arrive on 16 threads while it runs
+        long start = System.nanoTime();
+        List<Future<?>> calls = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            int request = i;
+            calls.add(callers.submit(() -> {
+                long called = System.nanoTime();
+                CompletableFuture<MetricsSnapshot> snapshot = refresher.snapshot();
+                longestCall.accumulateAndGet(System.nanoTime() - called, Math::max);
+                snapshot.thenAccept(s -> {
+                    assertSame(next, s);
+                    answeredNanos[request] = System.nanoTime() - start;
+                    answered.countDown();
+                });
+            }));
+        }
+        for (Future<?> call : calls) {
+            call.get();
+        }
+        boolean allParked = refresher.queued() > 0;
+
+        // Then: no caller thread waited for the cycle, and all requests were answered together when it ended
+        assertTrue(answered.await(5, TimeUnit.SECONDS));
+        callers.shutdown();
+        Arrays.sort(answeredNanos);
+        long p50 = answeredNanos[requests / 2] / 1_000_000;
+        long p99 = answeredNanos[requests * 99 / 100] / 1_000_000;
+        System.out.printf("%d requests during a 300 ms cycle: longest call %d us, answered p50 %d ms, p99 %d ms%n",
+                          requests, longestCall.get() / 1_000, p50, p99);
+        assertTrue(allParked);
+        assertEquals(1, cycles.get());
+        if (Boolean.getBoolean("timingAssertions")) {
+            // Well under the cycle, which every call would have waited for if it blocked
+            assertTrue(longestCall.get() < TimeUnit.MILLISECONDS.toNanos(150), "longest call " + longestCall.get());
+            assertTrue(p99 - p50 < 100, "p50 " + p50 + " ms, p99 " + p99 + " ms");
+        }
+        assertEquals(0, refresher.queued());
+    }
+
+    @Test
+    void snapshot_WhenCycleOutlastsWait_ShouldAnswerFromPreviousSnapshot() {
+        // Given
+        settings.setRefreshWait(Duration.ofMillis(50));
+        CountDownLatch cycleEnds = new CountDownLatch(1);
+        refresher = new SnapshotRefresher(() -> false, () -> await(cycleEnds), () -> current, settings, meterRegistry);
+
+        // When
+        MetricsSnapshot snapshot = refresher.snapshot().join();
+
+        // Then
+        assertSame(previous, snapshot);
+        assertEquals(1.0, meterRegistry.find("azure_servicebus_exporter_probe_requests_stale").counter().count());
+        cycleEnds.countDown();
+    }
+
+    @Test
+    void snapshot_WithTooManyQueuedRequests_ShouldAnswerFurtherOnesImmediately() {
+        // Given: one request already waiting for a cycle
+        settings.setMaxQueuedRequests(1);
+        CountDownLatch cycleEnds = new CountDownLatch(1);
+        refresher = new SnapshotRefresher(() -> false, () -> {
+            await(cycleEnds);
+            current = next;
+        }, () -> current, settings, meterRegistry);
+        CompletableFuture<MetricsSnapshot> waiting = refresher.snapshot();
+
+        // When
+        CompletableFuture<MetricsSnapshot> rejected = refresher.snapshot();
+
+        // Then
+        assertTrue(rejected.isDone());
+        assertSame(previous, rejected.join());
+        assertFalse(waiting.isDone());
+        cycleEnds.countDown();
+        assertSame(next, waiting.join());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
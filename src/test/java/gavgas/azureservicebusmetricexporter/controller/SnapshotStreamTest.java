@@ -0,0 +1,234 @@
+package gavgas.azureservicebusmetricexporter.controller;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.export.SnapshotJsonWriter;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotStreamTest {
+
+    private final ServiceBusProperties.Stream settings = new ServiceBusProperties.Stream();
+    private final List<MetricsSnapshot> published = new ArrayList<>(List.of(MetricsSnapshot.empty("testnamespace")));
+    private SnapshotStream stream;
+
+    @AfterEach
+    void tearDown() {
+        if (stream != null) {
+            stream.shutdown();
+        }
+    }
+
+    @Test
+    void subscribe_ShouldSendSnapshotThenOnlyMatchingDeltas() throws InterruptedException {
+        // Given
+        stream = new SnapshotStream(this::current, settings, new SimpleMeterRegistry());
+        publish(1, 1);
+        RecordingSink sink = new RecordingSink();
+        stream.subscribe(new SnapshotJsonWriter(List.of("queue"), "orders", null, 0, null), null, sink);
+
+        // When: payments changes (filtered out), then orders changes
+        publish(1, 2);
+        publish(2, 2);
+
+        // Then
+        SnapshotStream.Event snapshot = sink.next();
+        assertEquals("snapshot", snapshot.name());
+        assertTrue(snapshot.data().contains("\"name\":\"orders\",\"totalMessages\":0,\"activeMessages\":1"));
+        assertFalse(snapshot.data().contains("payments"));
+        SnapshotStream.Event delta = sink.next();
+        assertEquals("delta", delta.name());
+        assertTrue(delta.id().startsWith("3."));
+        assertTrue(delta.data().startsWith("{\"version\":3,\"previous_version\":2,"));
+        assertTrue(delta.data().contains("\"updated\":{\"queues\":[{\"namespace\":\"testnamespace\",\"name\":\"orders\""));
+        assertNull(sink.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void subscribe_WithLastEventId_ShouldReplayMissedDeltasOnly() throws InterruptedException {
+        // Given
+        stream = new SnapshotStream(this::current, settings, new SimpleMeterRegistry());
+        publish(1, 1);
+        RecordingSink first = new RecordingSink();
+        stream.subscribe(new SnapshotJsonWriter(null, null, null, 0, null), null, first);
+        String lastEventId = first.next().id();
+
+        // When: two cycles pass while the client is away
+        publish(2, 1);
+        publish(3, 1);
+        RecordingSink resumed = new RecordingSink();
+        stream.subscribe(new SnapshotJsonWriter(null, null, null, 0, null), lastEventId, resumed);
+        RecordingSink foreign = new RecordingSink();
+        stream.subscribe(new SnapshotJsonWriter(null, null, null, 0, null), "2.0", foreign);
+
+        // Then
+        assertEquals("delta", resumed.next().name());
+        assertTrue(resumed.next().data().startsWith("{\"version\":3,"));
+        assertNull(resumed.events.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals("snapshot", foreign.next().name());
+    }
+
+    @Test
+    void dispatch_WithSlowClient_ShouldDisconnectItAndKeepServingOthers() throws InterruptedException {
+        // Given: a client whose connection blocks, with room for two buffered events
+        settings.setClientBufferSize(2);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        stream = new SnapshotStream(this::current, settings, meterRegistry);
+        publish(0, 0);
+        CountDownLatch unblock = new CountDownLatch(1);
+        RecordingSink slow = new RecordingSink() {
+            @Override
+            public void send(SnapshotStream.Event event) {
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        RecordingSink fast = new RecordingSink();
+        stream.subscribe(new SnapshotJsonWriter(null, null, null, 0, null), null, slow);
+        stream.subscribe(new SnapshotJsonWriter(null, null, null, 0, null), null, fast);
+
+        assertEquals("snapshot", fast.next().name());
+
+        // When: the fast client keeps up with every cycle
+        for (int i = 1; i <= 5; i++) {
+            publish(i, i);
+            assertEquals("delta", fast.next().name());
+        }
+
+        // Then: its connection is closed once the blocked write returns
+        assertEquals(1, stream.clientCount());
+        assertEquals(1.0, meterRegistry.find("azure_servicebus_exporter_stream_disconnects").tag("reason", "slow").counter().count());
+        unblock.countDown();
+        assertTrue(slow.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void abandonStuckWrites_WithWriteBlockedPastTimeout_ShouldDisconnectItAndKeepServingOthers() throws InterruptedException {
+        // Given: a single sender and a client whose write ignores interrupts until released
+        settings.setSenders(1);
+        settings.setWriteTimeout(Duration.ofMillis(200));
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        stream = new SnapshotStream(this::current, settings, meterRegistry);
+        publish(0, 0);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch unblock = new CountDownLatch(1);
+        RecordingSink stuck = new RecordingSink() {
+            @Override
+            public void send(SnapshotStream.Event event) {
+                writing.countDown();
+                while (true) {
+                    try {
+                        unblock.await();
+                        return;
+                    } catch (InterruptedException e) {
+                        // A blocking socket write does not return on interrupt either
+                    }
+                }
+            }
+        };
+        stream.subscribe(new SnapshotJsonWriter(null, null, null, 0, null), null, stuck);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        // When: a client connects while the only sender is stuck
+        RecordingSink fast = new RecordingSink();
+        stream.subscribe(new SnapshotJsonWriter(null, null, null, 0, null), null, fast);
+
+        // Then: the stuck client is dropped and another sender serves the new one
+        assertEquals("snapshot", fast.next().name());
+        publish(1, 1);
+        assertEquals("delta", fast.next().name());
+        assertEquals(1, stream.clientCount());
+        assertEquals(1.0, meterRegistry.find("azure_servicebus_exporter_stream_disconnects").tag("reason", "timeout").counter().count());
+        assertEquals(1, stuck.closed.getCount());
+        unblock.countDown();
+        assertTrue(stuck.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void dispatch_WithThousandsOfClients_ShouldRenderOncePerFilter() throws InterruptedException {
+        // Given
+        stream = new SnapshotStream(this::current, settings, new SimpleMeterRegistry());
+        publish(0, 0);
+        int clients = 5_000;
+        CountDownLatch delivered = new CountDownLatch(clients * 11);
+        for (int i = 0; i < clients; i++) {
+            RecordingSink sink = new RecordingSink() {
+                @Override
+                public void send(SnapshotStream.Event event) {
+                    delivered.countDown();
+                }
+            };
+            String prefix = i % 2 == 0 ? "orders" : "payments";
+            stream.subscribe(new SnapshotJsonWriter(List.of("queue"), prefix, null, 0, null), null, sink);
+        }
+
+        // When
+        long start = System.nanoTime();
+        for (int i = 1; i <= 10; i++) {
+            publish(i, i);
+        }
+
+        // Then: the initial snapshot and ten deltas each
+        assertTrue(delivered.await(30, TimeUnit.SECONDS));
+        System.out.printf("Delivered 10 deltas to %d clients in %d ms%n", clients, (System.nanoTime() - start) / 1_000_000);
+        assertEquals(clients, stream.clientCount());
+    }
+
+    private MetricsSnapshot current() {
+        synchronized (published) {
+            return published.get(published.size() - 1);
+        }
+    }
+
+    // Publishes a snapshot with the given active message counts of "orders" and "payments"
+    private void publish(long orders, long payments) {
+        MetricsSnapshot previous = current();
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), previous);
+        builder.queues().set(builder.queues().addRow("orders"), Counter.ACTIVE_MESSAGES, orders);
+        builder.queues().set(builder.queues().addRow("payments"), Counter.ACTIVE_MESSAGES, payments);
+        MetricsSnapshot next = builder.build(Instant.now(), false);
+        synchronized (published) {
+            published.add(next);
+        }
+        stream.dispatch(SnapshotDiff.between(previous, next));
+    }
+
+    private static class RecordingSink implements SnapshotStream.Sink {
+        final BlockingQueue<SnapshotStream.Event> events = new LinkedBlockingQueue<>();
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void send(SnapshotStream.Event event) {
+            events.add(event);
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+
+        SnapshotStream.Event next() throws InterruptedException {
+            SnapshotStream.Event event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event);
+            return event;
+        }
+    }
+}
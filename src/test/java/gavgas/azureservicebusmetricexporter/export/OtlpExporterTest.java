@@ -0,0 +1,224 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptorCache;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the exporter against a local stand-in for an OTLP/HTTP receiver.
+ */
+class OtlpExporterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<JsonNode> received = new CopyOnWriteArrayList<>();
+    private volatile int responseStatus = 200;
+    private final CountDownLatch firstRequest = new CountDownLatch(1);
+    // Requests are answered once this is released
+    private volatile CountDownLatch hold = new CountDownLatch(0);
+    private HttpServer receiver;
+    private ServiceBusProperties properties;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        receiver = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        receiver.createContext("/v1/metrics", exchange -> {
+            firstRequest.countDown();
+            try {
+                hold.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try (InputStream body = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                ? new GZIPInputStream(exchange.getRequestBody())
+                : exchange.getRequestBody()) {
+                JsonNode request = objectMapper.readTree(body);
+                if (responseStatus == 200) {
+                    received.add(request);
+                }
+            }
+            exchange.sendResponseHeaders(responseStatus, -1);
+            exchange.close();
+        });
+        receiver.start();
+
+        properties = new ServiceBusProperties();
+        properties.setEnvironment("test");
+        properties.getOtlp().setEnabled(true);
+        properties.getOtlp().setEndpoint("http://localhost:" + receiver.getAddress().getPort() + "/v1/metrics");
+        properties.getOtlp().setBatchSize(25);
+    }
+
+    @AfterEach
+    void tearDown() {
+        receiver.stop(0);
+    }
+
+    private static MetricsSnapshot snapshot(MetricsSnapshot previous, int queues, long activeOffset) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), previous);
+        for (int i = 0; i < queues; i++) {
+            int row = builder.queues().addRow("queue-" + i);
+            builder.queues()
+                   .set(row, Counter.ACTIVE_MESSAGES, i == 0 ? activeOffset : i)
+                   .set(row, Counter.DEAD_LETTER_MESSAGES, 1);
+        }
+        int subscription = builder.subscriptions().addRow("test-topic", "test-subscription");
+        builder.subscriptions().set(subscription, Counter.ACTIVE_MESSAGES, 5);
+        // Read a minute before the others, e.g. carried forward after a failed read
+        builder.subscriptions().collectedAt(subscription, Instant.parse("2023-12-31T23:59:00Z").toEpochMilli());
+        return builder.build(Instant.parse("2024-01-01T00:00:00Z"), false);
+    }
+
+    private List<JsonNode> dataPoints() {
+        return received.stream()
+                       .flatMap(request -> request.findValues("dataPoints").stream())
+                       .flatMap(points -> StreamSupport.stream(points.spliterator(), false))
+                       .toList();
+    }
+
+    @Test
+    void export_ShouldSendGzippedBatchesOfAllDataPoints() {
+        // Given
+        OtlpExporter exporter = new OtlpExporter(properties, new SimpleMeterRegistry(), new EntityDescriptorCache(properties));
+        MetricsSnapshot snapshot = snapshot(null, 30, 0);
+
+        // When
+        exporter.export(snapshot, SnapshotDiff.between(MetricsSnapshot.empty("testnamespace"), snapshot));
+
+        // Then: 30 queues x 8 counters + 1 subscription x 5 counters in batches of 25
+        assertEquals(10, received.size());
+        assertEquals(245, dataPoints().size());
+        JsonNode resource = received.get(0).at("/resourceMetrics/0/resource/attributes");
+        assertEquals("testnamespace", resource.get(1).at("/value/stringValue").asText());
+        JsonNode point = received.get(0).at("/resourceMetrics/0/scopeMetrics/0/metrics/0/gauge/dataPoints/1");
+        assertEquals("azure_servicebus_active_messages",
+                     received.get(0).at("/resourceMetrics/0/scopeMetrics/0/metrics/0/name").asText());
+        assertEquals("queue-1", point.at("/attributes/1/value/stringValue").asText());
+        assertEquals("1", point.get("asInt").asText());
+        assertEquals("1704067200000000000", point.get("timeUnixNano").asText());
+        List<String> subscriptionTimes = dataPoints().stream()
+                                                     .filter(p -> "subscription".equals(p.at("/attributes/0/value/stringValue").asText()))
+                                                     .map(p -> p.get("timeUnixNano").asText())
+                                                     .toList();
+        assertEquals(List.of("1704067140000000000"), subscriptionTimes.stream().distinct().toList());
+    }
+
+    @Test
+    void export_WithLabelRulesAndNoEnvironment_ShouldAddRuleAttributesToEveryDataPoint() {
+        // Given
+        properties.setEnvironment(null);
+        ServiceBusProperties.LabelRule rule = new ServiceBusProperties.LabelRule();
+        rule.setPattern("queue-1");
+        rule.getLabels().put("team", "payments");
+        properties.getLabels().getRules().add(rule);
+        OtlpExporter exporter = new OtlpExporter(properties, new SimpleMeterRegistry(), new EntityDescriptorCache(properties));
+        MetricsSnapshot snapshot = snapshot(null, 2, 0);
+
+        // When
+        exporter.export(snapshot, SnapshotDiff.between(MetricsSnapshot.empty("testnamespace"), snapshot));
+
+        // Then
+        JsonNode resource = received.get(0).at("/resourceMetrics/0/resource/attributes");
+        assertEquals(2, resource.size());
+        JsonNode point = received.get(0).at("/resourceMetrics/0/scopeMetrics/0/metrics/0/gauge/dataPoints/1");
+        assertEquals("queue-1", point.at("/attributes/1/value/stringValue").asText());
+        assertEquals("team", point.at("/attributes/2/key").asText());
+        assertEquals("payments", point.at("/attributes/2/value/stringValue").asText());
+        assertEquals("none", received.get(0).at("/resourceMetrics/0/scopeMetrics/0/metrics/0/gauge/dataPoints/0")
+                                     .at("/attributes/2/value/stringValue").asText());
+    }
+
+    @Test
+    void export_WithChangedOnly_ShouldSendOnlyChangedCounters() {
+        // Given
+        properties.getOtlp().setChangedOnly(true);
+        OtlpExporter exporter = new OtlpExporter(properties, new SimpleMeterRegistry(), new EntityDescriptorCache(properties));
+        MetricsSnapshot previous = snapshot(null, 30, 0);
+        MetricsSnapshot current = snapshot(previous, 30, 42);
+
+        // When
+        exporter.export(current, SnapshotDiff.between(previous, current));
+
+        // Then
+        assertEquals(1, dataPoints().size());
+        assertEquals("42", dataPoints().get(0).get("asInt").asText());
+    }
+
+    @Test
+    void onSnapshotPublished_WithChangedOnlyAndSkippedSnapshot_ShouldSendItsChangesWithTheNextExport() throws Exception {
+        // Given
+        properties.getOtlp().setChangedOnly(true);
+        OtlpExporter exporter = new OtlpExporter(properties, new SimpleMeterRegistry(), new EntityDescriptorCache(properties));
+        MetricsSnapshot first = snapshot(null, 2, 0);
+        MetricsSnapshot changed = snapshot(first, 2, 42);
+        MetricsSnapshot unchanged = snapshot(changed, 2, 42);
+        hold = new CountDownLatch(1);
+
+        // When: two snapshots are published while the first is being sent, the queued one is replaced
+        exporter.onSnapshotPublished(new SnapshotPublishedEvent(first, SnapshotDiff.between(MetricsSnapshot.empty("testnamespace"), first)));
+        assertTrue(firstRequest.await(5, TimeUnit.SECONDS));
+        exporter.onSnapshotPublished(new SnapshotPublishedEvent(changed, SnapshotDiff.between(first, changed)));
+        exporter.onSnapshotPublished(new SnapshotPublishedEvent(unchanged, SnapshotDiff.between(changed, unchanged)));
+        hold.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        exporter.shutdown();
+
+        // Then: the change of the skipped snapshot is sent with the one that replaced it
+        assertEquals(2, received.size());
+        List<JsonNode> points = dataPoints();
+        assertEquals(21 + 1, points.size());
+        assertEquals("42", points.get(points.size() - 1).get("asInt").asText());
+    }
+
+    @Test
+    void export_WhenReceiverIsDown_ShouldQueueBoundedAndResendLater() {
+        // Given
+        properties.getOtlp().setRetryQueueSize(4);
+        properties.getOtlp().setBatchSize(100);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        OtlpExporter exporter = new OtlpExporter(properties, meterRegistry, new EntityDescriptorCache(properties));
+        MetricsSnapshot snapshot = snapshot(null, 30, 0);
+        SnapshotDiff diff = SnapshotDiff.between(MetricsSnapshot.empty("testnamespace"), snapshot);
+
+        // When: two cycles of 3 requests fail, then the receiver recovers
+        responseStatus = 503;
+        exporter.export(snapshot, diff);
+        exporter.export(snapshot, diff);
+        int queued = exporter.retryQueueSize();
+        responseStatus = 200;
+        exporter.export(snapshot, diff);
+
+        // Then
+        assertEquals(4, queued);
+        assertEquals(0, exporter.retryQueueSize());
+        assertEquals(4 + 3, received.size());
+        assertEquals(2, meterRegistry.find("azure_servicebus_exporter_otlp_requests").tag("result", "dropped")
+                                     .counter().count());
+    }
+}
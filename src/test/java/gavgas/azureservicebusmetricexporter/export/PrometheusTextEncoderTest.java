@@ -0,0 +1,60 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties.LabelRule;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptorCache;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrometheusTextEncoderTest {
+
+    @Test
+    void encode_WithLabelRules_ShouldAddRuleLabelsToEverySeries() {
+        // Given
+        ServiceBusProperties properties = new ServiceBusProperties();
+        LabelRule rule = new LabelRule();
+        rule.setMatch(LabelRule.MatchType.PREFIX);
+        rule.setPattern("payments");
+        rule.getLabels().put("team", "payments");
+        properties.getLabels().getRules().add(rule);
+        PrometheusTextEncoder encoder = new PrometheusTextEncoder("test", false, new EntityDescriptorCache(properties));
+
+        // When
+        StringBuilder out = new StringBuilder();
+        encoder.encode(snapshot(), out);
+
+        // Then
+        String text = out.toString();
+        assertTrue(text.contains("azure_servicebus_active_messages{entity_type=\"queue\",entity_name=\"payments-in\","
+                                 + "namespace=\"testnamespace\",environment=\"test\",team=\"payments\"} 3 "));
+        assertTrue(text.contains("azure_servicebus_active_messages{entity_type=\"queue\",entity_name=\"orders\","
+                                 + "namespace=\"testnamespace\",environment=\"test\",team=\"none\"} 5 "));
+    }
+
+    @Test
+    void encode_WithoutEnvironmentOrRules_ShouldRenderEmptyEnvironment() {
+        // Given
+        PrometheusTextEncoder encoder = new PrometheusTextEncoder(null, false,
+                                                                  new EntityDescriptorCache(new ServiceBusProperties()));
+
+        // When
+        StringBuilder out = new StringBuilder();
+        encoder.encode(snapshot(), out);
+
+        // Then
+        assertTrue(out.toString().contains("entity_name=\"orders\",namespace=\"testnamespace\",environment=\"\"} 5 "));
+    }
+
+    private static MetricsSnapshot snapshot() {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        builder.queues().set(builder.queues().addRow("orders"), Counter.ACTIVE_MESSAGES, 5);
+        builder.queues().set(builder.queues().addRow("payments-in"), Counter.ACTIVE_MESSAGES, 3);
+        return builder.build(Instant.now(), false);
+    }
+}
@@ -0,0 +1,324 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import com.sun.net.httpserver.HttpServer;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.metrics.EntityDescriptorCache;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the exporter against a local stand-in for a remote-write receiver that decodes the
+ * snappy-compressed protobuf requests.
+ */
+class RemoteWriteExporterTest {
+
+    private record Sample(Map<String, String> labels, double value, long timestamp) {
+    }
+
+    private final List<List<Sample>> received = new CopyOnWriteArrayList<>();
+    private final List<String> contentEncodings = new CopyOnWriteArrayList<>();
+    private final CountDownLatch receiverRelease = new CountDownLatch(1);
+    private volatile boolean stalled;
+    private HttpServer receiver;
+    private ServiceBusProperties properties;
+    private RemoteWriteExporter exporter;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        receiver = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        receiver.createContext("/api/v1/write", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                if (stalled) {
+                    receiverRelease.await();
+                }
+                received.add(decodeWriteRequest(uncompress(body.readAllBytes())));
+                contentEncodings.add(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        receiver.start();
+
+        properties = new ServiceBusProperties();
+        properties.setEnvironment("test");
+        properties.getRemoteWrite().setEnabled(true);
+        properties.getRemoteWrite().setUrl("http://localhost:" + receiver.getAddress().getPort() + "/api/v1/write");
+        properties.getRemoteWrite().setShards(3);
+        properties.getRemoteWrite().setMaxSamplesPerSend(25);
+    }
+
+    @AfterEach
+    void tearDown() {
+        receiverRelease.countDown();
+        if (exporter != null) {
+            exporter.shutdown();
+        }
+        receiver.stop(0);
+    }
+
+    private static MetricsSnapshot snapshot(int queues) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        for (int i = 0; i < queues; i++) {
+            int row = builder.queues().addRow("queue-" + i);
+            builder.queues()
+                   .set(row, Counter.ACTIVE_MESSAGES, i)
+                   .set(row, Counter.DEAD_LETTER_MESSAGES, 1);
+        }
+        int subscription = builder.subscriptions().addRow("test-topic", "test-subscription");
+        builder.subscriptions().set(subscription, Counter.ACTIVE_MESSAGES, 5);
+        // Read a minute before the others, e.g. carried forward after a failed read
+        builder.subscriptions().collectedAt(subscription, Instant.parse("2023-12-31T23:59:00Z").toEpochMilli());
+        return builder.build(Instant.parse("2024-01-01T00:00:00Z"), false);
+    }
+
+    private List<Sample> samples() {
+        return received.stream().flatMap(List::stream).toList();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean(), "condition not met within 10 seconds");
+    }
+
+    @Test
+    void enqueue_ShouldSendAllSamplesWithCollectionTimestamp() throws InterruptedException {
+        // Given
+        exporter = new RemoteWriteExporter(properties, new SimpleMeterRegistry(), new EntityDescriptorCache(properties));
+
+        // When
+        exporter.enqueue(snapshot(30));
+
+        // Then: 30 queues x 8 counters + 1 subscription x 5 counters
+        await(() -> samples().size() == 245);
+        assertTrue(received.stream().allMatch(request -> request.size() <= 25));
+        assertTrue(contentEncodings.stream().allMatch("snappy"::equals));
+
+        Sample sample = samples().stream()
+                                 .filter(s -> "queue-7".equals(s.labels().get("entity_name"))
+                                     && "azure_servicebus_active_messages".equals(s.labels().get("__name__")))
+                                 .findFirst()
+                                 .orElseThrow();
+        assertEquals(7.0, sample.value());
+        assertEquals(1704067200000L, sample.timestamp());
+        assertEquals(List.of("__name__", "entity_name", "entity_type", "environment", "namespace"),
+                     new ArrayList<>(sample.labels().keySet()));
+        assertEquals("testnamespace", sample.labels().get("namespace"));
+
+        Sample subscription = samples().stream()
+                                       .filter(s -> "subscription".equals(s.labels().get("entity_type")))
+                                       .findFirst()
+                                       .orElseThrow();
+        assertEquals("test-subscription", subscription.labels().get("subscription_name"));
+        assertEquals("test-topic", subscription.labels().get("topic_name"));
+        assertEquals(1704067140000L, subscription.timestamp());
+    }
+
+    @Test
+    void enqueue_WithLabelRulesAndNoEnvironment_ShouldSendRuleLabelsInSortedOrder() throws InterruptedException {
+        // Given
+        properties.setEnvironment(null);
+        ServiceBusProperties.LabelRule rule = new ServiceBusProperties.LabelRule();
+        rule.setPattern("queue-1");
+        rule.getLabels().put("team", "payments");
+        rule.getLabels().put("domain", "orders");
+        properties.getLabels().getRules().add(rule);
+        exporter = new RemoteWriteExporter(properties, new SimpleMeterRegistry(), new EntityDescriptorCache(properties));
+
+        // When
+        exporter.enqueue(snapshot(2));
+
+        // Then: 2 queues x 8 counters + 1 subscription x 5 counters
+        await(() -> samples().size() == 21);
+        Sample sample = samples().stream()
+                                 .filter(s -> "queue-1".equals(s.labels().get("entity_name")))
+                                 .findFirst()
+                                 .orElseThrow();
+        assertEquals(List.of("__name__", "domain", "entity_name", "entity_type", "namespace", "team"),
+                     new ArrayList<>(sample.labels().keySet()));
+        assertEquals("payments", sample.labels().get("team"));
+        assertEquals("orders", sample.labels().get("domain"));
+        assertTrue(samples().stream()
+                            .filter(s -> "queue-0".equals(s.labels().get("entity_name")))
+                            .allMatch(s -> "none".equals(s.labels().get("team"))));
+    }
+
+    @Test
+    void enqueue_WhenReceiverStalls_ShouldBoundPendingRequestsAndDropOldest() throws InterruptedException {
+        // Given
+        stalled = true;
+        properties.getRemoteWrite().setShards(2);
+        properties.getRemoteWrite().setQueueCapacity(2);
+        properties.getRemoteWrite().setMaxSamplesPerSend(10);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        exporter = new RemoteWriteExporter(properties, meterRegistry, new EntityDescriptorCache(properties));
+
+        // When: 5 snapshots of 25 requests each while the receiver does not answer
+        for (int i = 0; i < 5; i++) {
+            exporter.enqueue(snapshot(30));
+        }
+
+        // Then
+        assertTrue(exporter.pendingRequests() <= 4);
+        double dropped = meterRegistry.find("azure_servicebus_exporter_remote_write_samples")
+                                      .tag("result", "dropped")
+                                      .counter()
+                                      .count();
+        assertTrue(dropped >= 5 * 245 - 6 * 10, "dropped " + dropped);
+
+        receiverRelease.countDown();
+        await(() -> exporter.pendingRequests() == 0);
+    }
+
+    @Test
+    void compress_ShouldRoundTripRepetitiveAndRandomInput() {
+        // Given
+        byte[] repetitive = "azure_servicebus_active_messages{entity_name=\"queue\"} ".repeat(5000)
+                                                                                     .getBytes(StandardCharsets.UTF_8);
+        byte[] random = new byte[200_000];
+        new Random(42).nextBytes(random);
+
+        // When
+        byte[] compressedRepetitive = Snappy.compress(repetitive, repetitive.length);
+        byte[] compressedRandom = Snappy.compress(random, random.length);
+
+        // Then
+        assertArrayEquals(repetitive, uncompress(compressedRepetitive));
+        assertArrayEquals(random, uncompress(compressedRandom));
+        assertTrue(compressedRepetitive.length < repetitive.length / 10);
+    }
+
+    /**
+     * Snappy block format decoder.
+     */
+    private static byte[] uncompress(byte[] in) {
+        int pos = 0;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in[pos++] & 0xff;
+            length |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                break;
+            }
+        }
+        byte[] out = new byte[length];
+        int op = 0;
+        while (pos < in.length) {
+            int tag = in[pos++] & 0xff;
+            switch (tag & 3) {
+                case 0 -> {
+                    int n = tag >>> 2;
+                    if (n >= 60) {
+                        int bytes = n - 59;
+                        n = 0;
+                        for (int i = 0; i < bytes; i++) {
+                            n |= (in[pos++] & 0xff) << (8 * i);
+                        }
+                    }
+                    System.arraycopy(in, pos, out, op, n + 1);
+                    pos += n + 1;
+                    op += n + 1;
+                }
+                case 1 -> {
+                    int n = ((tag >>> 2) & 7) + 4;
+                    int offset = ((tag >>> 5) << 8) | (in[pos++] & 0xff);
+                    for (int i = 0; i < n; i++, op++) {
+                        out[op] = out[op - offset];
+                    }
+                }
+                case 2 -> {
+                    int n = (tag >>> 2) + 1;
+                    int offset = (in[pos] & 0xff) | (in[pos + 1] & 0xff) << 8;
+                    pos += 2;
+                    for (int i = 0; i < n; i++, op++) {
+                        out[op] = out[op - offset];
+                    }
+                }
+                default -> fail("4-byte offsets are not expected");
+            }
+        }
+        assertEquals(length, op);
+        return out;
+    }
+
+    private static List<Sample> decodeWriteRequest(byte[] bytes) {
+        List<Sample> samples = new ArrayList<>();
+        ByteBuffer request = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        while (request.hasRemaining()) {
+            assertEquals(0x0a, request.get());
+            ByteBuffer series = slice(request);
+            Map<String, String> labels = new LinkedHashMap<>();
+            double value = Double.NaN;
+            long timestamp = 0;
+            while (series.hasRemaining()) {
+                int tag = series.get();
+                ByteBuffer field = slice(series);
+                if (tag == 0x0a) {
+                    assertEquals(0x0a, field.get());
+                    String name = string(slice(field));
+                    assertEquals(0x12, field.get());
+                    labels.put(name, string(slice(field)));
+                } else {
+                    assertEquals(0x12, tag);
+                    assertEquals(0x09, field.get());
+                    value = field.getDouble();
+                    assertEquals(0x10, field.get());
+                    timestamp = varint(field);
+                }
+            }
+            samples.add(new Sample(labels, value, timestamp));
+        }
+        return samples;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer) {
+        int length = (int) varint(buffer);
+        ByteBuffer slice = buffer.slice(buffer.position(), length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long varint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = buffer.get() & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package gavgas.azureservicebusmetricexporter.export;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotJsonWriterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void write_WithoutQuery_ShouldWriteAllEntitiesInModelShape() throws IOException {
+        // Given
+        MetricsSnapshot snapshot = snapshot(2);
+
+        // When
+        JsonNode json = write(new SnapshotJsonWriter(null, null, null, 0, null), snapshot);
+
+        // Then
+        assertEquals("success", json.get("status").asText());
+        JsonNode data = json.get("data");
+        assertEquals(2, data.get("queues").size());
+        JsonNode queue = data.get("queues").get(0);
+        assertEquals("testnamespace", queue.get("namespace").asText());
+        assertEquals("queue-0", queue.get("name").asText());
+        assertEquals(10, queue.get("activeMessages").asLong());
+        assertEquals("2024-01-01T00:00:00Z", queue.get("createdAt").asText());
+        assertTrue(queue.get("updatedAt").isNull());
+        assertEquals("orders", data.get("subscriptions").get(1).get("topicName").asText());
+        assertEquals(1, data.get("topics").size());
+        assertEquals(0, data.get("namespaces").size());
+        assertNull(json.get("next_cursor"));
+    }
+
+    @Test
+    void write_WithTypePrefixAndFields_ShouldWriteOnlyMatchingEntitiesAndFields() throws IOException {
+        // Given
+        MetricsSnapshot snapshot = snapshot(3);
+
+        // When
+        JsonNode json = write(new SnapshotJsonWriter(List.of("subscription"), "orders/sub-1", List.of("activeMessages"), 0, null),
+                              snapshot);
+
+        // Then
+        JsonNode data = json.get("data");
+        assertNull(data.get("queues"));
+        assertNull(data.get("namespaces"));
+        assertEquals(1, data.get("subscriptions").size());
+        JsonNode subscription = data.get("subscriptions").get(0);
+        assertEquals("sub-1", subscription.get("name").asText());
+        assertEquals(3, subscription.size()); // topicName, name, activeMessages
+        assertEquals(5, subscription.get("activeMessages").asLong());
+    }
+
+    @Test
+    void write_WithLimit_ShouldPageThroughAllEntitiesAcrossTypesAndRefreshes() throws IOException {
+        // Given
+        MetricsSnapshot snapshot = snapshot(5);
+        List<String> names = new ArrayList<>();
+
+        // When: 5 queues, 1 topic and 5 subscriptions in pages of 4
+        String cursor = null;
+        int pages = 0;
+        do {
+            JsonNode json = write(new SnapshotJsonWriter(null, null, List.of("name"), 4, cursor), snapshot);
+            json.get("data").properties().forEach(entry -> {
+                if (!entry.getKey().equals("namespaces")) {
+                    entry.getValue().forEach(entity -> names.add(entity.get("name").asText()));
+                }
+            });
+            cursor = json.has("next_cursor") ? json.get("next_cursor").asText() : null;
+            // A refresh adding entities in front must not repeat the ones already returned
+            snapshot = pages == 0 ? snapshot(5, "queue-new") : snapshot;
+            pages++;
+        } while (cursor != null);
+
+        // Then
+        assertEquals(3, pages);
+        assertEquals(11, names.size());
+        assertEquals(List.of("queue-0", "queue-1", "queue-2", "queue-3", "queue-4", "orders"), names.subList(0, 6));
+        assertEquals("sub-4", names.get(10));
+    }
+
+    @Test
+    void new_WithInvalidQuery_ShouldThrow() {
+        assertThrows(IllegalArgumentException.class, () -> new SnapshotJsonWriter(List.of("namespace"), null, null, 0, null));
+        assertThrows(IllegalArgumentException.class, () -> new SnapshotJsonWriter(List.of("queue"), null, List.of("subscriptionCount"), 0, null));
+        assertThrows(IllegalArgumentException.class, () -> new SnapshotJsonWriter(null, null, null, -1, null));
+        assertThrows(IllegalArgumentException.class, () -> new SnapshotJsonWriter(null, null, null, 10, "not a cursor"));
+    }
+
+    @Test
+    void write_WithLargeNamespace_ShouldNotGrowHeapWithEntityCount() throws IOException {
+        // Given
+        MetricsSnapshot snapshot = snapshot(200_000);
+        SnapshotJsonWriter writer = new SnapshotJsonWriter(null, null, null, 0, null);
+        CountingOutputStream out = new CountingOutputStream();
+        System.gc();
+        long usedBefore = usedHeap();
+
+        // When
+        writer.write(snapshot, out);
+
+        // Then: tens of megabytes are written while only the generator's buffers stay reachable
+        System.gc();
+        long retained = usedHeap() - usedBefore;
+        System.out.printf("Streamed %d entities (%d bytes), %d bytes retained%n", snapshot.entityCount(), out.count, retained);
+        assertTrue(out.count > 40_000_000L, "bytes written " + out.count);
+        assertTrue(retained < 8_000_000L, "retained " + retained);
+    }
+
+    @Test
+    void writeColumnar_WithPrefixAndFields_ShouldWriteNamesOnceAndOneArrayPerField() throws IOException {
+        // Given
+        MetricsSnapshot snapshot = snapshot(12);
+        SnapshotJsonWriter writer = new SnapshotJsonWriter(List.of("queue", "subscription"), "queue-1",
+                                                           List.of("activeMessages", "createdAt", "updatedAt"), 0, null);
+
+        // When
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeColumnar(snapshot, SnapshotJsonWriter.ColumnarFormat.CBOR, out);
+
+        // Then: queue-1, queue-10 and queue-11; no subscription path starts with queue-1
+        JsonNode json = new ObjectMapper(new CBORFactory()).readTree(out.toByteArray());
+        assertNull(json.get("namespace"));
+        assertEquals(snapshot.getVersion(), json.get("version").asLong());
+        JsonNode queues = json.get("queues");
+        assertEquals(3, queues.get("count").asInt());
+        assertEquals(List.of("queue-1", "queue-10", "queue-11"),
+                     List.of(queues.get("name").get(0).asText(), queues.get("name").get(1).asText(), queues.get("name").get(2).asText()));
+        assertEquals(10, queues.get("activeMessages").get(2).asLong());
+        assertEquals(Instant.parse("2024-01-01T00:00:00Z").toEpochMilli(), queues.get("createdAt").get(0).asLong());
+        assertTrue(queues.get("updatedAt").get(0).isNull());
+        assertNull(queues.get("totalMessages"));
+        assertEquals(0, json.get("subscriptions").get("count").asInt());
+        assertNull(json.get("topics"));
+        assertNull(json.get("namespaces"));
+    }
+
+    @Test
+    void writeColumnar_WithLimit_ShouldThrow() {
+        SnapshotJsonWriter writer = new SnapshotJsonWriter(null, null, null, 10, null);
+
+        assertThrows(IllegalStateException.class,
+                     () -> writer.writeColumnar(snapshot(1), SnapshotJsonWriter.ColumnarFormat.SMILE, new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void writeColumnar_ComparedWithJson_ShouldBeSmallerAndDecodeToTheSameValues() throws IOException {
+        // Given
+        MetricsSnapshot snapshot = snapshot(50_000);
+        SnapshotJsonWriter writer = new SnapshotJsonWriter(null, null, null, 0, null);
+        ObjectMapper cbor = new ObjectMapper(new CBORFactory());
+        ObjectMapper smile = new ObjectMapper(new SmileFactory());
+
+        // When: a few rounds to warm up, the last one measured
+        Encoding json = null;
+        Encoding cborColumns = null;
+        Encoding smileColumns = null;
+        for (int round = 0; round < 5; round++) {
+            json = measure(out -> writer.write(snapshot, out), objectMapper);
+            cborColumns = measure(out -> writer.writeColumnar(snapshot, SnapshotJsonWriter.ColumnarFormat.CBOR, out), cbor);
+            smileColumns = measure(out -> writer.writeColumnar(snapshot, SnapshotJsonWriter.ColumnarFormat.SMILE, out), smile);
+        }
+
+        // Then
+        System.out.printf("%d entities%n  JSON rows:      %s%n  CBOR columns:   %s%n  Smile columns:  %s%n",
+                          snapshot.entityCount(), json, cborColumns, smileColumns);
+        assertTrue(cborColumns.bytes() * 3 < json.bytes(), "CBOR " + cborColumns.bytes() + " vs JSON " + json.bytes());
+        assertTrue(smileColumns.bytes() * 3 < json.bytes(), "Smile " + smileColumns.bytes() + " vs JSON " + json.bytes());
+        JsonNode rows = json.decoded().get("data");
+        for (Encoding columnar : List.of(cborColumns, smileColumns)) {
+            JsonNode subscriptions = columnar.decoded().get("subscriptions");
+            assertEquals(rows.get("subscriptions").size(), subscriptions.get("count").asInt());
+            assertEquals(rows.get("subscriptions").get(49_999).get("name").asText(), subscriptions.get("name").get(49_999).asText());
+            assertEquals(rows.get("queues").get(7).get("activeMessages").asLong(), columnar.decoded().get("queues").get("activeMessages").get(7).asLong());
+        }
+    }
+
+    private JsonNode write(SnapshotJsonWriter writer, MetricsSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(snapshot, out);
+        return objectMapper.readTree(out.toByteArray());
+    }
+
+    private static MetricsSnapshot snapshot(int entities, String... extraQueues) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        for (String name : extraQueues) {
+            builder.queues().addRow(name);
+        }
+        for (int i = 0; i < entities; i++) {
+            int queue = builder.queues().addRow("queue-" + i);
+            builder.queues()
+                   .set(queue, Counter.ACTIVE_MESSAGES, 10)
+                   .set(queue, Counter.CREATED_AT, Instant.parse("2024-01-01T00:00:00Z").toEpochMilli())
+                   .set(queue, Counter.UPDATED_AT, Counter.NO_VALUE)
+                   .set(queue, Counter.ACCESSED_AT, Counter.NO_VALUE);
+            int subscription = builder.subscriptions().addRow("orders", "sub-" + i);
+            builder.subscriptions().set(subscription, Counter.ACTIVE_MESSAGES, 5);
+        }
+        builder.topics().addRow("orders");
+        return builder.build(Instant.now(), false);
+    }
+
+    private static Encoding measure(Renderer renderer, ObjectMapper decoder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        renderer.render(out);
+        long encodeNanos = System.nanoTime() - start;
+        byte[] bytes = out.toByteArray();
+        start = System.nanoTime();
+        JsonNode decoded = decoder.readTree(bytes);
+        return new Encoding(bytes.length, encodeNanos, System.nanoTime() - start, decoded);
+    }
+
+    private interface Renderer {
+        void render(OutputStream out) throws IOException;
+    }
+
+    private record Encoding(int bytes, long encodeNanos, long decodeNanos, JsonNode decoded) {
+        @Override
+        public String toString() {
+            return String.format("%,10d bytes, encode %4d ms, decode %4d ms", bytes, encodeNanos / 1_000_000, decodeNanos / 1_000_000);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package gavgas.azureservicebusmetricexporter.health;
+
+import com.azure.core.http.rest.PagedIterable;
+import com.azure.messaging.servicebus.administration.ServiceBusAdministrationClient;
+import com.azure.messaging.servicebus.administration.models.QueueProperties;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.service.CollectionStatus;
+import gavgas.azureservicebusmetricexporter.service.ServiceBusClientService;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ServiceBusHealthIndicatorTest {
+
+    @Mock
+    private ServiceBusAdministrationClient adminClient;
+
+    @Mock
+    private ServiceBusClientService serviceBusClientService;
+
+    @Mock
+    private PagedIterable<QueueProperties> queues;
+
+    private final ServiceBusProperties properties = new ServiceBusProperties();
+    private ServiceBusHealthIndicator healthIndicator;
+
+    @BeforeEach
+    void setUp() {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        builder.queues().addRow("orders");
+        builder.queues().addRow("payments");
+        builder.subscriptions().addRow("events", "audit");
+        when(serviceBusClientService.getSnapshot()).thenReturn(builder.build(Instant.now(), false));
+        healthIndicator = new ServiceBusHealthIndicator(adminClient, serviceBusClientService, properties);
+    }
+
+    @Test
+    void health_AfterRecentCycle_ShouldBeUpWithoutCallingServiceBus() {
+        // Given
+        Instant lastSuccess = Instant.now().minusSeconds(30);
+        when(serviceBusClientService.getCollectionStatus())
+            .thenReturn(new CollectionStatus(lastSuccess, null, 0, null, null));
+
+        // When
+        Health health = healthIndicator.health();
+
+        // Then
+        assertEquals(Status.UP, health.getStatus());
+        assertEquals(lastSuccess.toString(), health.getDetails().get("lastSuccessfulCycle"));
+        assertEquals("CLOSED", health.getDetails().get("circuit"));
+        assertEquals(2, health.getDetails().get("queueCount"));
+        assertEquals(1, health.getDetails().get("subscriptionCount"));
+        verifyNoInteractions(adminClient);
+    }
+
+    @Test
+    void health_WithOpenCircuitOrStaleCycle_ShouldBeDown() {
+        // Given
+        Instant now = Instant.now();
+        when(serviceBusClientService.getCollectionStatus())
+            .thenReturn(new CollectionStatus(now.minusSeconds(60), now, 3, "java.lang.RuntimeException: unauthorized",
+                                             now.plus(Duration.ofMinutes(2))),
+                        new CollectionStatus(now.minus(Duration.ofMinutes(10)), null, 0, null, null));
+
+        // When
+        Health circuitOpen = healthIndicator.health();
+        Health stale = healthIndicator.health();
+
+        // Then
+        assertEquals(Status.DOWN, circuitOpen.getStatus());
+        assertEquals("OPEN", circuitOpen.getDetails().get("circuit"));
+        assertEquals("java.lang.RuntimeException: unauthorized", circuitOpen.getDetails().get("error"));
+        assertEquals(Status.DOWN, stale.getStatus());
+        assertEquals("stale", stale.getDetails().get("status"));
+    }
+
+    @Test
+    void health_WithDeepCheck_ShouldListQueuesAtMostOncePerInterval() {
+        // Given
+        properties.getHealth().setDeepCheckInterval(Duration.ofMinutes(5));
+        when(serviceBusClientService.getCollectionStatus())
+            .thenReturn(new CollectionStatus(Instant.now(), null, 0, null, null));
+        when(adminClient.listQueues()).thenReturn(queues);
+        when(queues.stream()).thenReturn(Stream.empty());
+
+        // When
+        Health first = healthIndicator.health();
+        Health second = healthIndicator.health();
+
+        // Then
+        assertEquals(Status.UP, first.getStatus());
+        assertEquals(Status.UP, second.getStatus());
+        assertEquals(first.getDetails().get("deepCheckAt"), second.getDetails().get("deepCheckAt"));
+        verify(adminClient, times(1)).listQueues();
+    }
+}
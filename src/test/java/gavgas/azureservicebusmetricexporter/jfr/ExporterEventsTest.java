@@ -0,0 +1,84 @@
+package gavgas.azureservicebusmetricexporter.jfr;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExporterEventsTest {
+
+    @Test
+    void settings_ShouldRecordEveryExporterEvent() throws Exception {
+        // Given
+        Configuration settings;
+        try (Reader reader = new InputStreamReader(
+            getClass().getClassLoader().getResourceAsStream(ExporterEvents.SETTINGS), StandardCharsets.UTF_8)) {
+            settings = Configuration.create(reader);
+        }
+
+        // When
+        List<RecordedEvent> events = record(new Recording(settings));
+
+        // Then
+        Map<String, RecordedEvent> byName = events.stream().collect(
+            Collectors.toMap(event -> event.getEventType().getName(), Function.identity(), (a, b) -> a));
+        assertEquals(4, byName.size());
+        RecordedEvent call = byName.get(AdminCallEvent.NAME);
+        assertEquals("runtime", call.getString("operation"));
+        assertEquals("events/audit", call.getString("entity"));
+        assertFalse(call.getBoolean("success"));
+        assertEquals(IllegalStateException.class.getName(), call.getString("error"));
+        assertTrue(byName.get(CollectionCycleEvent.NAME).getBoolean("success"));
+        assertEquals(7, byName.get(SnapshotPublishEvent.NAME).getLong("version"));
+        assertEquals(2, byName.get(GaugeReconciliationEvent.NAME).getInt("added"));
+    }
+
+    @Test
+    void events_WithoutSettings_ShouldNotBeRecorded() throws Exception {
+        // When
+        List<RecordedEvent> events = record(new Recording());
+
+        // Then
+        assertTrue(events.stream().noneMatch(event -> event.getEventType().getName().startsWith(ExporterEvents.PREFIX)));
+    }
+
+    private List<RecordedEvent> record(Recording recording) throws Exception {
+        try (recording) {
+            recording.start();
+            CollectionCycleEvent cycle = new CollectionCycleEvent();
+            cycle.begin();
+            AdminCallEvent call = new AdminCallEvent();
+            call.begin();
+            call.complete("runtime", "subscription", "events/audit", new IllegalStateException("boom"));
+            SnapshotPublishEvent publish = new SnapshotPublishEvent();
+            publish.begin();
+            GaugeReconciliationEvent reconciliation = new GaugeReconciliationEvent();
+            reconciliation.begin();
+            reconciliation.complete(7, false, 2, 0);
+            publish.complete(7, 3, 2, 0, 1);
+            cycle.complete("testnamespace", 3, null);
+            recording.stop();
+
+            Path file = Files.createTempFile("events", ".jfr");
+            try {
+                recording.dump(file);
+                return RecordingFile.readAllEvents(file);
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+}
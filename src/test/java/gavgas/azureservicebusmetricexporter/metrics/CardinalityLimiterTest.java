@@ -0,0 +1,75 @@
+package gavgas.azureservicebusmetricexporter.metrics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CardinalityLimiterTest {
+
+    private static CardinalityLimiter limiter(int limit, ServiceBusProperties.Metrics.RankBy rankBy) {
+        ServiceBusProperties properties = new ServiceBusProperties();
+        properties.getMetrics().setMaxEntitiesPerType(limit);
+        properties.getMetrics().setRankBy(rankBy);
+        return new CardinalityLimiter(properties);
+    }
+
+    private static EntityTable queues(int count) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        for (int i = 0; i < count; i++) {
+            int row = builder.queues().addRow("queue-" + i);
+            // Backlog peaks in the middle, dead letters grow with the index
+            builder.queues()
+                   .set(row, Counter.ACTIVE_MESSAGES, count - Math.abs(count / 2 - i))
+                   .set(row, Counter.DEAD_LETTER_MESSAGES, i);
+        }
+        return builder.build(Instant.now(), false).getQueues();
+    }
+
+    @Test
+    void select_ShouldKeepTopEntitiesByBacklogAndSumTheOthers() {
+        // Given
+        EntityTable table = queues(1000);
+
+        // When
+        CardinalityLimiter.Selection selection = limiter(5, ServiceBusProperties.Metrics.RankBy.BACKLOG).select(table);
+
+        // Then
+        assertEquals(5, selection.rows().cardinality());
+        for (int i = 498; i <= 502; i++) {
+            assertTrue(selection.rows().get(table.rowOf("queue-" + i)));
+        }
+        long[] others = selection.others().get(null);
+        assertEquals(1000L * 999 / 2 - (498 + 499 + 500 + 501 + 502), others[Counter.DEAD_LETTER_MESSAGES.ordinal()]);
+    }
+
+    @Test
+    void select_ByDeadLetter_ShouldKeepEntitiesWithMostDeadLetters() {
+        // Given
+        EntityTable table = queues(100);
+
+        // When
+        CardinalityLimiter.Selection selection = limiter(3, ServiceBusProperties.Metrics.RankBy.DEAD_LETTER).select(table);
+
+        // Then
+        assertEquals(3, selection.rows().cardinality());
+        assertTrue(selection.rows().get(table.rowOf("queue-99")));
+        assertTrue(selection.rows().get(table.rowOf("queue-97")));
+    }
+
+    @Test
+    void select_WithinLimit_ShouldKeepEveryEntityWithoutAggregate() {
+        // When
+        CardinalityLimiter.Selection selection = limiter(10, ServiceBusProperties.Metrics.RankBy.BACKLOG).select(queues(10));
+
+        // Then
+        assertEquals(10, selection.rows().cardinality());
+        assertTrue(selection.others().isEmpty());
+    }
+}
@@ -0,0 +1,155 @@
+package gavgas.azureservicebusmetricexporter.metrics;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties.LabelRule;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import io.micrometer.core.instrument.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LabelRulesTest {
+
+    private static LabelRule rule(LabelRule.MatchType match, String pattern, String... labels) {
+        LabelRule rule = new LabelRule();
+        rule.setMatch(match);
+        rule.setPattern(pattern);
+        for (int i = 0; i < labels.length; i += 2) {
+            rule.getLabels().put(labels[i], labels[i + 1]);
+        }
+        return rule;
+    }
+
+    private static ServiceBusProperties.Labels labels(LabelRule... rules) {
+        ServiceBusProperties.Labels labels = new ServiceBusProperties.Labels();
+        labels.getRules().addAll(List.of(rules));
+        return labels;
+    }
+
+    @Test
+    void labelValues_ShouldApplyMatchTypesAndLongestPattern() {
+        // Given
+        LabelRules rules = new LabelRules(labels(
+            rule(LabelRule.MatchType.PREFIX, "pay-", "team", "payments", "tier", "gold"),
+            rule(LabelRule.MatchType.PREFIX, "pay-refund-", "team", "refunds"),
+            rule(LabelRule.MatchType.SUFFIX, "-deadletter", "tier", "bronze"),
+            rule(LabelRule.MatchType.CONTAINS, "order", "domain", "orders"),
+            rule(LabelRule.MatchType.EXACT, "legacy", "team", "platform")));
+
+        // Then
+        assertArrayEquals(new String[]{"team", "tier", "domain"}, rules.labelNames());
+        assertArrayEquals(new String[]{"payments", "gold", "none"}, rules.labelValues("pay-invoices"));
+        assertArrayEquals(new String[]{"refunds", "gold", "orders"}, rules.labelValues("pay-refund-order"));
+        assertArrayEquals(new String[]{"payments", "bronze", "none"}, rules.labelValues("pay-x-deadletter"));
+        assertArrayEquals(new String[]{"none", "none", "orders"}, rules.labelValues("shop/pay-order"));
+        assertArrayEquals(new String[]{"platform", "none", "none"}, rules.labelValues("legacy"));
+        assertArrayEquals(new String[]{"none", "none", "none"}, rules.labelValues("legacy-2"));
+    }
+
+    @Test
+    void labelValues_WithManyOverlappingRules_ShouldMatchNaiveEvaluation() {
+        // Given: hundreds of overlapping patterns over a small alphabet
+        Random random = new Random(7);
+        List<LabelRule> ruleList = new ArrayList<>();
+        LabelRule.MatchType[] types = LabelRule.MatchType.values();
+        for (int i = 0; i < 300; i++) {
+            ruleList.add(rule(types[random.nextInt(types.length)], randomName(random, 1 + random.nextInt(4)),
+                              "label" + random.nextInt(5), "value" + i));
+        }
+        LabelRules rules = new LabelRules(labels(ruleList.toArray(LabelRule[]::new)));
+        String[] labelNames = rules.labelNames();
+
+        for (int n = 0; n < 2000; n++) {
+            // When
+            String name = randomName(random, 1 + random.nextInt(12));
+            String[] values = rules.labelValues(name);
+
+            // Then
+            for (int label = 0; label < labelNames.length; label++) {
+                assertEquals(naive(ruleList, labelNames[label], name), values[label], name + " " + labelNames[label]);
+            }
+        }
+    }
+
+    /**
+     * Labelling 50k entities with hundreds of rules should cost microseconds per entity; the time
+     * bound is checked with -PtimingAssertions.
+     */
+    @Test
+    void labelValues_With50kEntitiesAnd500Rules_ShouldBeFast() {
+        // Given
+        List<LabelRule> ruleList = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            ruleList.add(rule(LabelRule.MatchType.PREFIX, "team" + i + "-", "team", "team" + i, "tier", "tier" + (i % 3)));
+        }
+        LabelRules rules = new LabelRules(labels(ruleList.toArray(LabelRule[]::new)));
+
+        // When
+        long start = System.nanoTime();
+        for (int i = 0; i < 50_000; i++) {
+            assertEquals("team" + (i % 500), rules.labelValues("team" + (i % 500) + "-orders-topic/subscription-" + i)[0]);
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        // Then
+        System.out.println("Labelled 50000 entities with 500 rules in " + millis + " ms");
+        if (Boolean.getBoolean("timingAssertions")) {
+            assertTrue(millis < 2_000, "Labelling took " + millis + " ms");
+        }
+    }
+
+    @Test
+    void descriptor_ShouldCarryRuleLabels() {
+        // Given
+        ServiceBusProperties properties = new ServiceBusProperties();
+        properties.setLabels(labels(rule(LabelRule.MatchType.PREFIX, "orders", "team", "shop")));
+        EntityDescriptorCache cache = new EntityDescriptorCache(properties);
+
+        // When
+        EntityDescriptor subscription = cache.descriptor("testnamespace", EntityType.SUBSCRIPTION, "orders", "audit");
+        EntityDescriptor queue = cache.descriptor("testnamespace", EntityType.QUEUE, null, "invoices");
+
+        // Then
+        assertTrue(subscription.getTags().stream().anyMatch(tag -> tag.equals(Tag.of("team", "shop"))));
+        assertTrue(queue.getTags().stream().anyMatch(tag -> tag.equals(Tag.of("team", "none"))));
+    }
+
+    @Test
+    void constructor_WithReservedLabel_ShouldThrow() {
+        assertThrows(IllegalArgumentException.class, () ->
+            new LabelRules(labels(rule(LabelRule.MatchType.PREFIX, "x", "namespace", "y"))));
+    }
+
+    private static String randomName(Random random, int length) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            name.append("abc-".charAt(random.nextInt(4)));
+        }
+        return name.toString();
+    }
+
+    private static String naive(List<LabelRule> rules, String label, String name) {
+        String best = "none";
+        int bestLength = 0;
+        for (LabelRule rule : rules) {
+            String value = rule.getLabels().get(label);
+            String pattern = rule.getPattern();
+            boolean matches = switch (rule.getMatch()) {
+                case PREFIX -> name.startsWith(pattern);
+                case SUFFIX -> name.endsWith(pattern);
+                case CONTAINS -> name.contains(pattern);
+                case EXACT -> name.equals(pattern);
+            };
+            if (value != null && matches && pattern.length() > bestLength) {
+                best = value;
+                bestLength = pattern.length();
+            }
+        }
+        return best;
+    }
+}
@@ -1,8 +1,13 @@
 package gavgas.azureservicebusmetricexporter.metrics;
 
 import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
-import gavgas.azureservicebusmetricexporter.model.QueueMetric;
 import gavgas.azureservicebusmetricexporter.service.ServiceBusClientService;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotDiff;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
@@ -13,11 +18,15 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
 
-import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -33,23 +42,35 @@ class ServiceBusMetricsCollectorTest {
 
     private MeterRegistry meterRegistry;
 
+    private EntityDescriptorCache descriptorCache;
+
+    private ServiceBusProperties.Metrics metricsProperties;
+
     @BeforeEach
     void setUp() {
 
         meterRegistry = new SimpleMeterRegistry();
+        metricsProperties = new ServiceBusProperties.Metrics();
 
         when(serviceBusProperties.getEnvironment()).thenReturn("test");
+        when(serviceBusProperties.getMetrics()).thenReturn(metricsProperties);
+        when(serviceBusProperties.getLabels()).thenReturn(new ServiceBusProperties.Labels());
 
-        when(serviceBusClientService.getQueueMetrics()).thenReturn(Collections.emptyList());
-        when(serviceBusClientService.getTopicMetrics()).thenReturn(Collections.emptyList());
-        when(serviceBusClientService.getSubscriptionMetrics()).thenReturn(Collections.emptyList());
+        descriptorCache = new EntityDescriptorCache(serviceBusProperties);
+
+        when(serviceBusClientService.getSnapshot()).thenReturn(MetricsSnapshot.empty("testnamespace"));
         when(serviceBusClientService.getNamespaceMetrics()).thenReturn(Collections.emptyList());
     }
 
+    private ServiceBusMetricsCollector newCollector() {
+        return new ServiceBusMetricsCollector(meterRegistry, serviceBusClientService, serviceBusProperties, descriptorCache,
+                                              List.of());
+    }
+
     @Test
     void init_ShouldRegisterTestGauge() {
         // When
-        ServiceBusMetricsCollector collector = new ServiceBusMetricsCollector(meterRegistry, serviceBusClientService, serviceBusProperties);
+        ServiceBusMetricsCollector collector = newCollector();
         collector.init();
 
         // Then
@@ -59,7 +80,7 @@ class ServiceBusMetricsCollectorTest {
     @Test
     void collectMetrics_ShouldCallServiceBusClientService() {
         // Given
-        ServiceBusMetricsCollector collector = new ServiceBusMetricsCollector(meterRegistry, serviceBusClientService, serviceBusProperties);
+        ServiceBusMetricsCollector collector = newCollector();
 
         // When
         collector.collectMetrics();
@@ -70,29 +91,183 @@ class ServiceBusMetricsCollectorTest {
 
     @Test
     void init_WithSingleQueue_ShouldRegisterQueueMetrics() {
-        List<QueueMetric> queueMetrics = new ArrayList<>();
-        QueueMetric testQueue = QueueMetric.builder()
-                                           .namespace("testnamespace")
-                                           .name("test-queue")
-                                           .activeMessages(10)
-                                           .deadLetterMessages(2)
-                                           .scheduledMessages(1)
-                                           .sizeBytes(1024).totalMessages(13).build();
-        queueMetrics.add(testQueue);
-
-        when(serviceBusClientService.getQueueMetrics()).thenReturn(queueMetrics);
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        int row = builder.queues().addRow("test-queue");
+        builder.queues()
+               .set(row, Counter.ACTIVE_MESSAGES, 10)
+               .set(row, Counter.DEAD_LETTER_MESSAGES, 2)
+               .set(row, Counter.SCHEDULED_MESSAGES, 1)
+               .set(row, Counter.SIZE_BYTES, 1024)
+               .set(row, Counter.TOTAL_MESSAGES, 13);
+
+        when(serviceBusClientService.getSnapshot()).thenReturn(builder.build(Instant.now(), false));
 
         // When
-        ServiceBusMetricsCollector collector = new ServiceBusMetricsCollector(meterRegistry, serviceBusClientService, serviceBusProperties);
+        ServiceBusMetricsCollector collector = newCollector();
         collector.init();
 
         meterRegistry.getMeters()
                      .forEach(meter -> System.out.println("- " + meter.getId().getName() + ", tags: " + meter.getId().getTags()));
 
-        assertNotNull(meterRegistry.find("azure_servicebus_active_messages")
+        Gauge gauge = meterRegistry.find("azure_servicebus_active_messages")
                                    .tag("entity_type", "queue")
                                    .tag("entity_name", "test-queue")
+                                   .gauge();
+        assertNotNull(gauge);
+        assertEquals(10, gauge.value());
+    }
+
+    @Test
+    void collectMetrics_WithKnownEntities_ShouldNotReRegisterGauges() {
+        // Given
+        when(serviceBusClientService.getSnapshot()).thenReturn(snapshotWithSubscriptions(100));
+        ServiceBusMetricsCollector collector = newCollector();
+        collector.init();
+        int meterCount = meterRegistry.getMeters().size();
+
+        // When
+        collector.collectMetrics();
+
+        // Then
+        assertEquals(200, meterCount);
+        assertEquals(meterCount, meterRegistry.getMeters().size());
+        assertEquals(100, descriptorCache.size());
+    }
+
+    @Test
+    void onSnapshotPublished_ShouldRegisterAddedAndRemoveDeletedEntities() {
+        // Given
+        MetricsSnapshot previous = snapshotWithSubscriptions(3);
+        when(serviceBusClientService.getSnapshot()).thenReturn(previous);
+        ServiceBusMetricsCollector collector = newCollector();
+        collector.init();
+
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), previous);
+        builder.subscriptions().addRow("topic-0", "sub-0");
+        builder.subscriptions().addRow("topic-9", "sub-new");
+        MetricsSnapshot current = builder.build(Instant.now(), false);
+        when(serviceBusClientService.getSnapshot()).thenReturn(current);
+
+        // When
+        collector.onSnapshotPublished(new SnapshotPublishedEvent(current, SnapshotDiff.between(previous, current)));
+
+        // Then
+        assertNotNull(meterRegistry.find("azure_servicebus_active_messages")
+                                   .tag("entity_name", "topic-9/sub-new")
                                    .gauge());
+        assertNull(meterRegistry.find("azure_servicebus_active_messages")
+                                .tag("entity_name", "topic-1/sub-1")
+                                .gauge());
+        assertEquals(4, meterRegistry.getMeters().size());
+        assertEquals(2, descriptorCache.size());
+    }
 
+    @Test
+    void onSnapshotPublished_WithCardinalityLimit_ShouldExportTopEntitiesAndAggregateOthers() {
+        // Given: 100 subscriptions over 50 topics, only the top 10 by backlog are exported
+        metricsProperties.setMaxEntitiesPerType(10);
+        MetricsSnapshot previous = snapshotWithSubscriptions(100);
+        when(serviceBusClientService.getSnapshot()).thenReturn(previous);
+        ServiceBusMetricsCollector collector = newCollector();
+        collector.init();
+        int meterCount = meterRegistry.getMeters().size();
+
+        // When: the backlog moves to sub-0..sub-9
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), previous);
+        for (int i = 0; i < 100; i++) {
+            int row = builder.subscriptions().addRow("topic-" + (i % 50), "sub-" + i);
+            builder.subscriptions().set(row, Counter.ACTIVE_MESSAGES, i < 10 ? 1000 + i : i);
+        }
+        MetricsSnapshot current = builder.build(Instant.now(), false);
+        when(serviceBusClientService.getSnapshot()).thenReturn(current);
+        collector.onSnapshotPublished(new SnapshotPublishedEvent(current, SnapshotDiff.between(previous, current)));
+
+        // Then: 10 entities and 50 per-topic aggregates, 2 gauges each
+        assertEquals(120, meterCount);
+        assertEquals(meterCount, meterRegistry.getMeters().size());
+        assertNotNull(meterRegistry.find("azure_servicebus_active_messages")
+                                   .tag("entity_name", "topic-0/sub-0")
+                                   .gauge());
+        assertNull(meterRegistry.find("azure_servicebus_active_messages")
+                                .tag("entity_name", "topic-49/sub-99")
+                                .gauge());
+        Gauge other = meterRegistry.find("azure_servicebus_active_messages")
+                                   .tag("topic_name", "topic-49")
+                                   .tag("subscription_name", "__other__")
+                                   .gauge();
+        assertNotNull(other);
+        assertEquals(49 + 99, other.value());
+    }
+
+    /**
+     * Allocation benchmark: refreshing the gauges of 10k already known entities
+     * should only cost descriptor lookups, not tags, meter ids or strings per entity.
+     */
+    @Test
+    void registerAllMetrics_WithKnownEntities_ShouldNotAllocatePerEntity() {
+        // Given
+        int entities = 10_000;
+        when(serviceBusClientService.getSnapshot()).thenReturn(snapshotWithSubscriptions(entities));
+        ServiceBusMetricsCollector collector = newCollector();
+        collector.init();
+        for (int i = 0; i < 5; i++) {
+            collector.registerAllMetrics(); // warm-up
+        }
+
+        // When
+        long allocatedBytes = allocatedBytes(() -> collector.registerAllMetrics());
+
+        // Then
+        System.out.println("Allocated bytes per refresh of " + entities + " entities: " + allocatedBytes);
+        assertTrue(allocatedBytes < entities * 4L,
+                   "Refresh allocated " + allocatedBytes + " bytes for " + entities + " entities");
+    }
+
+    private static MetricsSnapshot snapshotWithSubscriptions(int count) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        for (int i = 0; i < count; i++) {
+            int row = builder.subscriptions().addRow("topic-" + (i % 50), "sub-" + i);
+            builder.subscriptions().set(row, Counter.ACTIVE_MESSAGES, i);
+        }
+        return builder.build(Instant.now(), false);
+    }
+
+    private static long allocatedBytes(Runnable action) {
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        action.run();
+        return threadBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    @Test
+    void init_WithCollectionTimestamps_ShouldExportLastCollectedTimeAndDataAge() {
+        // Given
+        metricsProperties.setCollectionTimestamps(true);
+        Instant collectedAt = Instant.now().minusSeconds(90);
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        builder.queues().addRow("test-queue");
+        when(serviceBusClientService.getSnapshot()).thenReturn(builder.build(collectedAt, false));
+
+        // When
+        ServiceBusMetricsCollector collector = newCollector();
+        collector.init();
+
+        // Then
+        Gauge lastCollected = meterRegistry.find("azure_servicebus_last_collected_timestamp_seconds")
+                                           .tag("entity_name", "test-queue")
+                                           .gauge();
+        assertNotNull(lastCollected);
+        assertEquals(collectedAt.toEpochMilli() / 1000.0, lastCollected.value());
+        Gauge dataAge = meterRegistry.find("azure_servicebus_data_age_seconds")
+                                     .tag("entity_type", "queue")
+                                     .gauge();
+        assertNotNull(dataAge);
+        assertTrue(dataAge.value() >= 90);
+        assertTrue(Double.isNaN(meterRegistry.find("azure_servicebus_data_age_seconds")
+                                             .tag("entity_type", "topic")
+                                             .gauge()
+                                             .value()));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,76 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import gavgas.azureservicebusmetricexporter.service.CollectionMetrics.Cause;
+import gavgas.azureservicebusmetricexporter.service.CollectionMetrics.Operation;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.NameInterner;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CollectionMetricsTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CollectionMetrics collectionMetrics = new CollectionMetrics(meterRegistry);
+
+    @Test
+    void cycleCompleted_AfterCalls_ShouldRecordCallsPerCycleAndEntitiesCollected() {
+        // Given
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        builder.queues().addRow("orders");
+        builder.queues().addRow("payments");
+        MetricsSnapshot snapshot = builder.build(Instant.now(), false);
+        collectionMetrics.recordCall(Operation.RUNTIME, EntityType.QUEUE, 1_000_000);
+
+        // When: a cycle listing queues and reading two of them
+        long start = collectionMetrics.cycleStarted();
+        collectionMetrics.recordCall(Operation.LIST, EntityType.QUEUE, TimeUnit.MILLISECONDS.toNanos(40));
+        collectionMetrics.recordCall(Operation.RUNTIME, EntityType.QUEUE, TimeUnit.MILLISECONDS.toNanos(10));
+        collectionMetrics.recordCall(Operation.RUNTIME, EntityType.QUEUE, TimeUnit.MILLISECONDS.toNanos(30));
+        collectionMetrics.cycleCompleted(start, true, snapshot);
+
+        // Then: the call made before the cycle counts towards latency only
+        assertEquals(3, meterRegistry.find("azure_servicebus_exporter_admin_call_duration")
+                                     .tags("operation", "runtime", "entity_type", "queue").timer().count());
+        assertEquals(2.0, meterRegistry.find("azure_servicebus_exporter_admin_calls_per_cycle")
+                                       .tags("operation", "runtime", "entity_type", "queue").summary().max());
+        assertEquals(1.0, meterRegistry.find("azure_servicebus_exporter_admin_calls_per_cycle")
+                                       .tags("operation", "list", "entity_type", "queue").summary().max());
+        assertEquals(1, meterRegistry.find("azure_servicebus_exporter_collection_cycle")
+                                     .tag("result", "success").timer().count());
+        assertEquals(2.0, meterRegistry.find("azure_servicebus_exporter_entities_collected")
+                                       .tag("entity_type", "queue").gauge().value());
+        assertEquals(0.0, meterRegistry.find("azure_servicebus_exporter_entities_collected")
+                                       .tag("entity_type", "topic").gauge().value());
+    }
+
+    @Test
+    void recordFailure_ShouldCountByCause() {
+        // When
+        collectionMetrics.recordFailure(Operation.RUNTIME, EntityType.SUBSCRIPTION,
+                                        new CompletionException(new RejectedExecutionException("queue full")));
+        collectionMetrics.recordFailure(Operation.RUNTIME, EntityType.SUBSCRIPTION, new TimeoutException());
+        collectionMetrics.recordFailure(Operation.LIST, EntityType.TOPIC, new IllegalStateException("boom"));
+
+        // Then
+        assertEquals(1.0, failures("runtime", "subscription", "rejected"));
+        assertEquals(1.0, failures("runtime", "subscription", "timeout"));
+        assertEquals(1.0, failures("list", "topic", "other"));
+        assertEquals(0.0, failures("list", "topic", "throttled"));
+        assertEquals(Cause.OTHER, Cause.of(new RuntimeException()));
+    }
+
+    private double failures(String operation, String type, String cause) {
+        return meterRegistry.find("azure_servicebus_exporter_collection_failures")
+                            .tags("operation", operation, "entity_type", type, "cause", cause)
+                            .counter().count();
+    }
+}
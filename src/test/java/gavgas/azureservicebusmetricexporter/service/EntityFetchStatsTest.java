@@ -0,0 +1,101 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityFetchStatsTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void slowest_ShouldRankByAverageLatency() {
+        // Given
+        EntityFetchStats stats = new EntityFetchStats(10);
+        stats.recordSuccess(EntityType.QUEUE, null, "fast", 10 * MILLIS);
+        stats.recordSuccess(EntityType.SUBSCRIPTION, "events", "audit", 100 * MILLIS);
+        stats.recordSuccess(EntityType.QUEUE, null, "spiky", 20 * MILLIS);
+
+        // When: one slow fetch only moves the average part of the way
+        stats.recordSuccess(EntityType.QUEUE, null, "spiky", 220 * MILLIS);
+        List<EntityFetchStats.Entry> slowest = stats.slowest(2);
+
+        // Then
+        assertEquals(2, slowest.size());
+        assertEquals("events/audit", slowest.get(0).entityName());
+        assertEquals("spiky", slowest.get(1).name());
+        assertEquals(220.0, slowest.get(1).lastLatencyMillis(), 1e-9);
+        assertEquals(20 + EntityFetchStats.EWMA_ALPHA * 200, slowest.get(1).averageLatencyMillis(), 1e-9);
+        assertEquals(2, slowest.get(1).fetches());
+    }
+
+    @Test
+    void failing_ShouldTrackStreakAndKeepLastErrorClass() {
+        // Given
+        EntityFetchStats stats = new EntityFetchStats(10);
+        stats.recordFailure(EntityType.QUEUE, null, "broken", MILLIS, new IllegalStateException("boom"));
+        stats.recordFailure(EntityType.QUEUE, null, "broken", MILLIS, new IllegalStateException("boom"));
+        stats.recordFailure(EntityType.TOPIC, null, "recovered", MILLIS, new IllegalArgumentException("boom"));
+
+        // When
+        stats.recordSuccess(EntityType.TOPIC, null, "recovered", MILLIS);
+        List<EntityFetchStats.Entry> failing = stats.failing(10);
+
+        // Then
+        assertEquals(1, failing.size());
+        assertEquals("broken", failing.get(0).name());
+        assertEquals(2, failing.get(0).failureStreak());
+        assertEquals(IllegalStateException.class.getName(), failing.get(0).lastErrorClass());
+        EntityFetchStats.Entry recovered = stats.slowest(10).stream()
+                                                .filter(entry -> entry.name().equals("recovered"))
+                                                .findFirst().orElseThrow();
+        assertEquals(0, recovered.failureStreak());
+        assertEquals(1, recovered.failures());
+        assertEquals(IllegalArgumentException.class.getName(), recovered.lastErrorClass());
+    }
+
+    @Test
+    void cycleCompleted_ShouldReleaseEntitiesNoLongerFetchedAndBoundTracking() {
+        // Given: room for two entities
+        EntityFetchStats stats = new EntityFetchStats(2);
+        stats.recordSuccess(EntityType.QUEUE, null, "orders", MILLIS);
+        stats.recordSuccess(EntityType.QUEUE, null, "deleted", MILLIS);
+        stats.recordSuccess(EntityType.QUEUE, null, "untracked", MILLIS);
+        stats.cycleCompleted(true);
+
+        // When: "deleted" is gone in the next cycle
+        stats.recordSuccess(EntityType.QUEUE, null, "orders", MILLIS);
+        stats.cycleCompleted(true);
+        stats.recordSuccess(EntityType.QUEUE, null, "orders", MILLIS);
+        stats.recordSuccess(EntityType.QUEUE, null, "new", MILLIS);
+
+        // Then
+        assertEquals(2, stats.size());
+        assertEquals(List.of("new", "orders"),
+                     stats.slowest(10).stream().map(EntityFetchStats.Entry::name).sorted().toList());
+        assertTrue(EntityFetchStats.NONE.slowest(10).isEmpty());
+    }
+
+    @Test
+    void cycleCompleted_ShouldKeepEntitiesListedButNotFetched() {
+        // Given
+        EntityFetchStats stats = new EntityFetchStats(10);
+        stats.recordSuccess(EntityType.QUEUE, null, "rejected", MILLIS);
+        stats.recordSuccess(EntityType.SUBSCRIPTION, "events", "audit", MILLIS);
+        stats.recordSuccess(EntityType.SUBSCRIPTION, "orders", "billing", MILLIS);
+        stats.cycleCompleted(true);
+
+        // When: the queue's call is rejected and the subscriptions of "events" cannot be listed
+        stats.listed(EntityType.QUEUE, null, "rejected");
+        stats.subscriptionsNotListed("events");
+        stats.cycleCompleted(true);
+
+        // Then: only the subscription missing from a successful listing is released
+        assertEquals(List.of("audit", "rejected"),
+                     stats.slowest(10).stream().map(EntityFetchStats.Entry::name).sorted().toList());
+    }
+}
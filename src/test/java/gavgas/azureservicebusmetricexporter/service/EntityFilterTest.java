@@ -0,0 +1,128 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityFilterTest {
+
+    private static ServiceBusProperties properties(String environment) {
+        ServiceBusProperties properties = new ServiceBusProperties();
+        properties.setEnvironment(environment);
+        return properties;
+    }
+
+    @Test
+    void includes_ShouldApplyEnvironmentLegacyFilterAndRules() {
+        // Given
+        ServiceBusProperties properties = properties("dev");
+        ServiceBusProperties.Entities entities = properties.getEntities();
+        entities.setFilter("dev-.*");
+        entities.setIncludePrefixes(List.of("dev-orders", "dev-billing"));
+        entities.setInclude(List.of(".*-audit-[0-9]+"));
+        entities.setExclude(List.of(".*-tmp"));
+        entities.setExcludePrefixes(List.of("dev-orders-legacy"));
+        ServiceBusProperties.FilterRules subscriptionRules = new ServiceBusProperties.FilterRules();
+        subscriptionRules.setExclude(List.of("dev-orders/debug-.*"));
+        entities.getTypeRules().put("subscription", subscriptionRules);
+
+        // When
+        EntityFilter filter = new EntityFilter(properties);
+
+        // Then
+        assertTrue(filter.includes(EntityType.QUEUE, "dev-orders-created"));
+        assertTrue(filter.includes(EntityType.TOPIC, "dev-billing"));
+        assertTrue(filter.includes(EntityType.QUEUE, "dev-shop-audit-12"));
+        assertFalse(filter.includes(EntityType.QUEUE, "dev-shop-audit-x"));
+        assertFalse(filter.includes(EntityType.QUEUE, "dev-orders-tmp"));
+        assertFalse(filter.includes(EntityType.QUEUE, "dev-orders-legacy-1"));
+        assertFalse(filter.includes(EntityType.QUEUE, "prod-orders"));
+        assertTrue(filter.includes("dev-orders", "shipping"));
+        assertFalse(filter.includes("dev-orders", "debug-1"));
+        assertTrue(filter.includes(EntityType.QUEUE, "dev-orders/debug-1"));
+    }
+
+    @Test
+    void includes_WithDefaultProperties_ShouldOnlyApplyEnvironmentPrefix() {
+        EntityFilter filter = new EntityFilter(properties("test"));
+
+        assertTrue(filter.includes(EntityType.QUEUE, "test-queue"));
+        assertTrue(filter.includes("test-topic", "any"));
+        assertFalse(filter.includes(EntityType.TOPIC, "other-topic"));
+        assertTrue(new EntityFilter(properties("")).includes(EntityType.TOPIC, "other-topic"));
+    }
+
+    @Test
+    void includes_ShouldCacheDecisionsOfEntitiesSeenInTheLastCycle() {
+        // Given
+        EntityFilter filter = new EntityFilter(properties("dev"));
+        filter.includes(EntityType.QUEUE, "dev-a");
+        filter.includes("dev-topic", "sub");
+        filter.rollover();
+
+        // When: dev-a is seen again, the subscription is not
+        filter.includes(EntityType.QUEUE, "dev-a");
+        filter.includes(EntityType.QUEUE, "dev-a");
+        filter.rollover();
+        filter.includes(EntityType.QUEUE, "dev-a");
+        filter.includes("dev-topic", "sub");
+
+        // Then
+        assertEquals(3, filter.evaluations());
+    }
+
+    /**
+     * Microbenchmark against the former per-entity double regex (entity filter + environment filter).
+     */
+    @Test
+    void includes_With50kEntities_ShouldMatchDoubleRegexAndEvaluateOnce() {
+        // Given
+        ServiceBusProperties properties = properties("dev");
+        properties.getEntities().setFilter("dev-.*");
+        properties.getEntities().setExclude(List.of(".*-tmp-[0-9]+", ".*-debug"));
+        EntityFilter filter = new EntityFilter(properties);
+        Pattern entityPattern = Pattern.compile("dev-.*");
+        Pattern environmentPattern = Pattern.compile("^dev.*");
+        Pattern excludePattern = Pattern.compile("(?:.*-tmp-[0-9]+)|(?:.*-debug)");
+        String[] names = new String[50_000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = (i % 4 == 0 ? "prod-" : "dev-") + "orders-" + i + (i % 10 == 0 ? "-tmp-1" : "");
+        }
+
+        // When
+        long regexNanos = 0;
+        long filterNanos = 0;
+        int expected = 0;
+        int actual = 0;
+        for (int cycle = 0; cycle < 10; cycle++) {
+            long start = System.nanoTime();
+            for (String name : names) {
+                if (entityPattern.matcher(name).matches() && environmentPattern.matcher(name).matches()
+                    && !excludePattern.matcher(name).matches()) {
+                    expected++;
+                }
+            }
+            regexNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (String name : names) {
+                if (filter.includes(EntityType.QUEUE, name)) {
+                    actual++;
+                }
+            }
+            filter.rollover();
+            filterNanos += System.nanoTime() - start;
+        }
+
+        // Then
+        System.out.println("10 cycles of 50000 entities: regex " + regexNanos / 1_000_000 + " ms, compiled filter "
+                               + filterNanos / 1_000_000 + " ms");
+        assertEquals(expected, actual);
+        assertEquals(names.length, filter.evaluations());
+    }
+}
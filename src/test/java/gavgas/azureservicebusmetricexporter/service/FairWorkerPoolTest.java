@@ -0,0 +1,102 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FairWorkerPoolTest {
+
+    private final FairWorkerPool pool = new FairWorkerPool(1, 10, "test-worker");
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void executor_WithBacklogOfOneTarget_ShouldServeTargetsRoundRobin() throws InterruptedException {
+        // Given: the only worker is busy while both targets queue their calls
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(7);
+        List<String> order = new CopyOnWriteArrayList<>();
+        pool.executor("blocker").execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Executor big = pool.executor("big");
+        Executor small = pool.executor("small");
+        for (int i = 1; i <= 5; i++) {
+            String name = "big" + i;
+            big.execute(() -> {
+                order.add(name);
+                done.countDown();
+            });
+        }
+        for (int i = 1; i <= 2; i++) {
+            String name = "small" + i;
+            small.execute(() -> {
+                order.add(name);
+                done.countDown();
+            });
+        }
+
+        // When
+        release.countDown();
+
+        // Then
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("big1", "small1", "big2", "small2", "big3", "big4", "big5"), order);
+    }
+
+    @Test
+    void executor_WhenTargetQueueIsFull_ShouldBlockUntilAWorkerTakesATask() throws InterruptedException {
+        // Given: the only worker is busy and the target's queue is full
+        CountDownLatch release = new CountDownLatch(1);
+        pool.executor("blocker").execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Executor executor = pool.executor("target");
+        CountDownLatch done = new CountDownLatch(11);
+        Runnable call = done::countDown;
+        for (int i = 0; i < 10; i++) {
+            executor.execute(call);
+        }
+
+        // When
+        Thread submitter = new Thread(() -> executor.execute(call));
+        submitter.start();
+        submitter.join(200);
+
+        // Then: the eleventh call waits instead of being rejected, other targets still queue
+        assertTrue(submitter.isAlive());
+        assertDoesNotThrow(() -> pool.executor("other").execute(() -> { }));
+        release.countDown();
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void executor_AfterShutdown_ShouldReject() {
+        // When
+        pool.shutdown();
+
+        // Then
+        assertThrows(RejectedExecutionException.class, () -> pool.executor("target").execute(() -> { }));
+    }
+}
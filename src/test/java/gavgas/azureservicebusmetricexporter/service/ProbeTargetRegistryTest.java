@@ -0,0 +1,203 @@
+package gavgas.azureservicebusmetricexporter.service;
+
+import com.azure.core.http.rest.PagedIterable;
+import com.azure.messaging.servicebus.administration.ServiceBusAdministrationClient;
+import com.azure.messaging.servicebus.administration.models.QueueProperties;
+import com.azure.messaging.servicebus.administration.models.QueueRuntimeProperties;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusClientConfig;
+import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
+import gavgas.azureservicebusmetricexporter.snapshot.Counter;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityType;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class ProbeTargetRegistryTest {
+
+    private static final String CONNECTION_STRING =
+        "Endpoint=sb://othernamespace.servicebus.windows.net/;SharedAccessKeyName=key;SharedAccessKey=secret";
+
+    @Mock
+    private ServiceBusClientConfig clientConfig;
+
+    @Mock
+    private ServiceBusAdministrationClient adminClient;
+
+    @Mock
+    private PagedIterable<QueueProperties> queuePropertiesPagedIterable;
+
+    private ServiceBusProperties properties;
+    private ProbeTargetRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        properties = new ServiceBusProperties();
+        properties.setEnvironment("");
+        properties.getEntities().setTypes(Set.of("queue"));
+        ServiceBusProperties.ProbeTarget target = new ServiceBusProperties.ProbeTarget();
+        target.setConnectionString(CONNECTION_STRING);
+        properties.getProbe().getTargets().put("other", target);
+        ServiceBusProperties.Entities ordersOnly = new ServiceBusProperties.Entities();
+        ordersOnly.setTypes(Set.of("queue"));
+        ordersOnly.setIncludePrefixes(List.of("orders"));
+        properties.getProbe().getModules().put("orders", ordersOnly);
+
+        when(clientConfig.extractNamespaceFromConnectionString(CONNECTION_STRING)).thenReturn("othernamespace");
+        when(clientConfig.buildClient(CONNECTION_STRING)).thenReturn(adminClient);
+
+        List<QueueProperties> queues = List.of(queue("orders"), queue("payments"));
+        doAnswer(invocation -> {
+            Consumer<QueueProperties> consumer = invocation.getArgument(0);
+            queues.forEach(consumer);
+            return null;
+        }).when(queuePropertiesPagedIterable).forEach(any());
+        when(adminClient.listQueues()).thenReturn(queuePropertiesPagedIterable);
+
+        QueueRuntimeProperties runtimeProps = mock(QueueRuntimeProperties.class);
+        when(runtimeProps.getActiveMessageCount()).thenReturn(7);
+        when(adminClient.getQueueRuntimeProperties(anyString())).thenReturn(runtimeProps);
+
+        registry = new ProbeTargetRegistry(properties, clientConfig);
+    }
+
+    @AfterEach
+    void tearDown() {
+        registry.shutdown();
+    }
+
+    private static QueueProperties queue(String name) {
+        QueueProperties queueProperties = mock(QueueProperties.class);
+        when(queueProperties.getName()).thenReturn(name);
+        when(queueProperties.getMaxSizeInMegabytes()).thenReturn(1024L);
+        return queueProperties;
+    }
+
+    @Test
+    void probe_WithinCacheDuration_ShouldCreateClientAndCollectOnce() {
+        // When
+        MetricsSnapshot first = registry.probe("other", null).join();
+        MetricsSnapshot second = registry.probe("other", null).join();
+
+        // Then
+        assertSame(first, second);
+        assertEquals("othernamespace", first.getNamespace());
+        EntityTable queues = first.table(EntityType.QUEUE);
+        assertEquals(2, queues.size());
+        assertEquals(7, queues.get(queues.rowOf("payments"), Counter.ACTIVE_MESSAGES));
+        verify(clientConfig, times(1)).buildClient(CONNECTION_STRING);
+        verify(adminClient, times(1)).listQueues();
+    }
+
+    @Test
+    void probe_WhenCollecting_ShouldListOffTheCallingThread() {
+        // Given
+        AtomicReference<String> listingThread = new AtomicReference<>();
+        when(adminClient.listQueues()).thenAnswer(invocation -> {
+            listingThread.set(Thread.currentThread().getName());
+            return queuePropertiesPagedIterable;
+        });
+
+        // When
+        MetricsSnapshot snapshot = registry.probe("other", null).join();
+
+        // Then
+        assertEquals(2, snapshot.table(EntityType.QUEUE).size());
+        assertEquals("probe-collector", listingThread.get());
+    }
+
+    @Test
+    void probe_WithModule_ShouldApplyModuleFilterAndShareClient() {
+        // When
+        MetricsSnapshot all = registry.probe("other", null).join();
+        MetricsSnapshot orders = registry.probe("other", "orders").join();
+
+        // Then
+        assertEquals(2, all.table(EntityType.QUEUE).size());
+        assertEquals(1, orders.table(EntityType.QUEUE).size());
+        assertEquals("orders", orders.table(EntityType.QUEUE).name(0));
+        verify(clientConfig, times(1)).buildClient(CONNECTION_STRING);
+    }
+
+    @Test
+    void probe_WhenListingFails_ShouldThrowAndNotCache() {
+        // Given
+        when(adminClient.listQueues()).thenThrow(new RuntimeException("Unauthorized"))
+                                      .thenReturn(queuePropertiesPagedIterable);
+
+        // When
+        CompletionException error = assertThrows(CompletionException.class, () -> registry.probe("other", null).join());
+        MetricsSnapshot retried = registry.probe("other", null).join();
+
+        // Then
+        assertInstanceOf(IllegalStateException.class, error.getCause());
+        assertEquals("Unauthorized", error.getCause().getCause().getMessage());
+        assertEquals(2, retried.table(EntityType.QUEUE).size());
+        verify(adminClient, times(2)).listQueues();
+    }
+
+    @Test
+    void probe_WithMoreEntitiesThanQueueBound_ShouldCollectAll() {
+        // Given: one worker and room for a single queued call
+        registry.shutdown();
+        properties.getProbe().setWorkers(1);
+        properties.getProbe().setMaxQueuedPerTarget(1);
+        registry = new ProbeTargetRegistry(properties, clientConfig);
+        List<QueueProperties> queues = IntStream.range(0, 50).mapToObj(i -> queue("queue-" + i)).toList();
+        doAnswer(invocation -> {
+            Consumer<QueueProperties> consumer = invocation.getArgument(0);
+            queues.forEach(consumer);
+            return null;
+        }).when(queuePropertiesPagedIterable).forEach(any());
+
+        // When
+        MetricsSnapshot snapshot = registry.probe("other", null).join();
+
+        // Then
+        EntityTable table = snapshot.table(EntityType.QUEUE);
+        assertEquals(50, table.size());
+        assertEquals("queue-49", table.name(49));
+        verify(adminClient, times(50)).getQueueRuntimeProperties(anyString());
+    }
+
+    @Test
+    void probe_WithUnknownTargetOrModule_ShouldThrow() {
+        assertThrows(IllegalArgumentException.class, () -> registry.probe("unknown", null));
+        assertThrows(IllegalArgumentException.class, () -> registry.probe("other", "unknown"));
+        verify(clientConfig, never()).buildClient(any());
+    }
+
+    @Test
+    void evictIdleTargets_AfterIdleTtl_ShouldDropTargetAndReconnect() {
+        // Given
+        properties.getProbe().setIdleTtl(Duration.ZERO);
+        registry.probe("other", null).join();
+
+        // When
+        registry.evictIdleTargets();
+        registry.probe("other", null).join();
+
+        // Then
+        assertEquals(1, registry.targetCount());
+        verify(clientConfig, times(2)).buildClient(CONNECTION_STRING);
+    }
+}
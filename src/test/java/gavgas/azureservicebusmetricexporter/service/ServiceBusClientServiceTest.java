@@ -7,16 +7,22 @@ import gavgas.azureservicebusmetricexporter.config.ServiceBusClientConfig;
 import gavgas.azureservicebusmetricexporter.config.ServiceBusProperties;
 import gavgas.azureservicebusmetricexporter.model.QueueMetric;
 import gavgas.azureservicebusmetricexporter.model.TopicMetric;
+import gavgas.azureservicebusmetricexporter.snapshot.EntityTable;
+import gavgas.azureservicebusmetricexporter.snapshot.MetricsSnapshot;
+import gavgas.azureservicebusmetricexporter.snapshot.SnapshotPublishedEvent;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
+import org.springframework.context.ApplicationEventPublisher;
 
 import java.time.Duration;
+import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -40,6 +46,15 @@ class ServiceBusClientServiceTest {
     @Mock
     private ServiceBusClientConfig clientConfig;
 
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
+    @Mock
+    private CollectionMetrics collectionMetrics;
+
+    @Mock
+    private EntityFetchStats fetchStats;
+
     @Mock
     private ServiceBusProperties.Entities entities;
 
@@ -272,4 +287,125 @@ class ServiceBusClientServiceTest {
         // listQueues() metodu hiç çağrılmamalı
         verify(adminClient, never()).listQueues();
     }
-}
\ No newline at end of file
+
+    @Test
+    void collectMetrics_ShouldPublishSnapshotWithDiff() {
+        // Given
+        when(adminClient.listQueues()).thenReturn(queuePropertiesPagedIterable);
+        when(adminClient.listTopics()).thenReturn(topicPropertiesPagedIterable);
+
+        // When
+        serviceBusClientService.collectMetrics();
+
+        // Then
+        ArgumentCaptor<SnapshotPublishedEvent> event = ArgumentCaptor.forClass(SnapshotPublishedEvent.class);
+        verify(eventPublisher).publishEvent(event.capture());
+        assertSame(serviceBusClientService.getSnapshot(), event.getValue().snapshot());
+        assertSame(serviceBusClientService.getLastDiff(), event.getValue().diff());
+        assertTrue(event.getValue().diff().isEmpty());
+    }
+
+    @Test
+    void collectMetrics_AfterConsecutiveListingFailures_ShouldOpenCircuitAndSkipCycles() {
+        // Given: every cycle fails to list queues
+        when(metrics.getCacheDuration()).thenReturn(Duration.ZERO);
+        when(metrics.getCircuitFailureThreshold()).thenReturn(3);
+        when(metrics.getCircuitOpenDuration()).thenReturn(Duration.ofMinutes(2));
+        when(adminClient.listQueues()).thenThrow(new RuntimeException("unauthorized"));
+        when(adminClient.listTopics()).thenReturn(topicPropertiesPagedIterable);
+
+        // When
+        for (int i = 0; i < 5; i++) {
+            serviceBusClientService.collectMetrics();
+        }
+
+        // Then: the first three cycles ran, the circuit then skipped the others
+        CollectionStatus status = serviceBusClientService.getCollectionStatus();
+        assertEquals(3, status.consecutiveFailures());
+        assertEquals(CollectionStatus.Circuit.OPEN, status.circuit(Instant.now()));
+        assertEquals(CollectionStatus.Circuit.HALF_OPEN, status.circuit(Instant.now().plus(Duration.ofMinutes(3))));
+        assertTrue(status.lastError().contains("unauthorized"));
+        assertNull(status.lastSuccess());
+        verify(adminClient, times(3)).listQueues();
+    }
+
+    @Test
+    void collectMetrics_WhenListingFailsAfterSuccess_ShouldKeepPreviousRows() {
+        // Given: a first cycle listing one queue
+        when(metrics.getCacheDuration()).thenReturn(Duration.ZERO);
+        when(metrics.getCircuitFailureThreshold()).thenReturn(3);
+        when(metrics.getCircuitOpenDuration()).thenReturn(Duration.ofMinutes(2));
+        QueueProperties queueProps = mock(QueueProperties.class);
+        when(queueProps.getName()).thenReturn("test-queue");
+        when(queueProps.getMaxSizeInMegabytes()).thenReturn(1024L);
+        doAnswer(invocation -> {
+            java.util.function.Consumer<QueueProperties> consumer = invocation.getArgument(0);
+            consumer.accept(queueProps);
+            return null;
+        }).when(queuePropertiesPagedIterable).forEach(any());
+        QueueRuntimeProperties runtimeProps = mock(QueueRuntimeProperties.class);
+        when(runtimeProps.getActiveMessageCount()).thenReturn(10);
+        when(adminClient.getQueueRuntimeProperties("test-queue")).thenReturn(runtimeProps);
+        when(adminClient.listQueues()).thenReturn(queuePropertiesPagedIterable)
+                                      .thenThrow(new RuntimeException("throttled"));
+        when(adminClient.listTopics()).thenReturn(topicPropertiesPagedIterable);
+        serviceBusClientService.collectMetrics();
+        long firstCollectedAt = serviceBusClientService.getSnapshot().getQueues().collectedAt(0);
+
+        // When: the next cycle cannot list queues
+        serviceBusClientService.collectMetrics();
+
+        // Then: the queue is kept with its old values instead of being removed
+        List<QueueMetric> queueMetrics = serviceBusClientService.getQueueMetrics();
+        assertEquals(1, queueMetrics.size());
+        assertEquals(10, queueMetrics.get(0).getActiveMessages());
+        assertEquals(firstCollectedAt, serviceBusClientService.getSnapshot().getQueues().collectedAt(0));
+        assertEquals(0, serviceBusClientService.getLastDiff().removedCount());
+        assertEquals(1, serviceBusClientService.getCollectionStatus().consecutiveFailures());
+    }
+
+    @Test
+    void collectMetrics_WhenEntityFailsAcrossCycles_ShouldKeepItsCollectionTimeSoItsAgeGrows() throws InterruptedException {
+        // Given: two queues, the runtime call of "broken" fails after the first cycle
+        when(metrics.getCacheDuration()).thenReturn(Duration.ZERO);
+        List<QueueProperties> queues = new ArrayList<>();
+        for (String name : List.of("healthy", "broken")) {
+            QueueProperties queueProps = mock(QueueProperties.class);
+            when(queueProps.getName()).thenReturn(name);
+            when(queueProps.getMaxSizeInMegabytes()).thenReturn(1024L);
+            queues.add(queueProps);
+        }
+        doAnswer(invocation -> {
+            java.util.function.Consumer<QueueProperties> consumer = invocation.getArgument(0);
+            queues.forEach(consumer);
+            return null;
+        }).when(queuePropertiesPagedIterable).forEach(any());
+        QueueRuntimeProperties runtimeProps = mock(QueueRuntimeProperties.class);
+        when(adminClient.listQueues()).thenReturn(queuePropertiesPagedIterable);
+        when(adminClient.listTopics()).thenReturn(topicPropertiesPagedIterable);
+        when(adminClient.getQueueRuntimeProperties("healthy")).thenReturn(runtimeProps);
+        when(adminClient.getQueueRuntimeProperties("broken")).thenReturn(runtimeProps)
+                                                             .thenThrow(new RuntimeException("timeout"));
+        serviceBusClientService.collectMetrics();
+        long readAt = serviceBusClientService.getSnapshot().getQueues().collectedAt(1);
+
+        // When: two more cycles fail to read it
+        List<Long> ages = new ArrayList<>();
+        for (int cycle = 0; cycle < 2; cycle++) {
+            Thread.sleep(20);
+            serviceBusClientService.collectMetrics();
+            MetricsSnapshot snapshot = serviceBusClientService.getSnapshot();
+            EntityTable table = snapshot.getQueues();
+            int row = table.rowOf("broken");
+            assertEquals(readAt, table.collectedAt(row));
+            assertEquals(readAt, table.oldestCollectedAt());
+            assertTrue(table.collectedAt(table.rowOf("healthy")) > readAt);
+            ages.add(snapshot.getCollectedAt().toEpochMilli() - table.collectedAt(row));
+        }
+
+        // Then
+        assertTrue(ages.get(0) > 0);
+        assertTrue(ages.get(1) > ages.get(0));
+        assertEquals(0, serviceBusClientService.getLastDiff().removedCount());
+    }
+}
@@ -0,0 +1,240 @@
+package gavgas.azureservicebusmetricexporter.snapshot;
+
+import gavgas.azureservicebusmetricexporter.model.QueueMetric;
+import gavgas.azureservicebusmetricexporter.model.SubscriptionMetric;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsSnapshotTest {
+
+    private static MetricsSnapshot buildSnapshot(NameInterner interner, MetricsSnapshot previous, boolean offHeap) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", interner, previous);
+
+        int queueRow = builder.queues().addRow("test-queue");
+        builder.queues()
+               .set(queueRow, Counter.ACTIVE_MESSAGES, 10)
+               .set(queueRow, Counter.DEAD_LETTER_MESSAGES, 2)
+               .set(queueRow, Counter.SIZE_BYTES, 1024)
+               .set(queueRow, Counter.CREATED_AT, MetricsSnapshot.toEpochMillis(
+                   OffsetDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC)))
+               .set(queueRow, Counter.UPDATED_AT, MetricsSnapshot.toEpochMillis(null));
+
+        int topicRow = builder.topics().addRow("test-topic");
+        builder.topics().set(topicRow, Counter.SUBSCRIPTION_COUNT, 2);
+
+        for (int i = 0; i < 100; i++) {
+            int row = builder.subscriptions().addRow("test-topic", "sub-" + i);
+            builder.subscriptions().set(row, Counter.ACTIVE_MESSAGES, i);
+        }
+        return builder.build(Instant.now(), offHeap);
+    }
+
+    @Test
+    void queueMetrics_ShouldMaterialiseRowsAsModelObjects() {
+        // Given
+        MetricsSnapshot snapshot = buildSnapshot(new NameInterner(), null, false);
+
+        // When
+        List<QueueMetric> queues = snapshot.queueMetrics();
+
+        // Then
+        assertEquals(1, queues.size());
+        QueueMetric queue = queues.get(0);
+        assertEquals("testnamespace", queue.getNamespace());
+        assertEquals("test-queue", queue.getName());
+        assertEquals(10, queue.getActiveMessages());
+        assertEquals(2, queue.getDeadLetterMessages());
+        assertEquals(2024, queue.getCreatedAt().getYear());
+        assertNull(queue.getUpdatedAt());
+    }
+
+    @Test
+    void subscriptionMetrics_ShouldKeepTopicAndSubscriptionNames() {
+        MetricsSnapshot snapshot = buildSnapshot(new NameInterner(), null, false);
+
+        SubscriptionMetric subscription = snapshot.subscriptionMetrics().get(42);
+
+        assertEquals("test-topic", subscription.getTopicName());
+        assertEquals("sub-42", subscription.getName());
+        assertEquals(42, subscription.getActiveMessages());
+        assertEquals(42, snapshot.getSubscriptions().rowOf("test-topic", "sub-42"));
+        assertEquals(-1, snapshot.getSubscriptions().rowOf("other-topic", "sub-42"));
+    }
+
+    @Test
+    void build_WithOffHeap_ShouldReturnSameValuesAsHeap() {
+        MetricsSnapshot heap = buildSnapshot(new NameInterner(), null, false);
+        MetricsSnapshot offHeap = buildSnapshot(new NameInterner(), null, true);
+
+        assertTrue(offHeap.getSubscriptions().isOffHeap());
+        for (int row = 0; row < heap.getSubscriptions().size(); row++) {
+            assertEquals(heap.getSubscriptions().get(row, Counter.ACTIVE_MESSAGES),
+                         offHeap.getSubscriptions().get(row, Counter.ACTIVE_MESSAGES));
+        }
+        assertEquals(heap.toQueueMetric(0), offHeap.toQueueMetric(0));
+    }
+
+    @Test
+    void build_AcrossCycles_ShouldShareInternedNames() {
+        NameInterner interner = new NameInterner();
+        MetricsSnapshot first = buildSnapshot(interner, null, false);
+        interner.rollover();
+
+        MetricsSnapshot second = buildSnapshot(interner, first, false);
+
+        assertSame(first.getSubscriptions().name(7), second.getSubscriptions().name(7));
+        assertSame(first.getQueues().name(0), second.getQueues().name(0));
+    }
+
+    @Test
+    void get_WithCounterNotCollectedForType_ShouldThrow() {
+        MetricsSnapshot snapshot = buildSnapshot(new NameInterner(), null, false);
+
+        assertThrows(IllegalArgumentException.class,
+                     () -> snapshot.getTopics().get(0, Counter.ACTIVE_MESSAGES));
+    }
+
+    @Test
+    void empty_ShouldHaveNoEntities() {
+        MetricsSnapshot snapshot = MetricsSnapshot.empty("testnamespace");
+
+        assertEquals(0, snapshot.entityCount());
+        assertEquals(0, snapshot.getVersion());
+        assertTrue(snapshot.queueMetrics().isEmpty());
+        assertEquals(Instant.EPOCH, snapshot.getCollectedAt());
+    }
+
+    @Test
+    void build_ShouldKeepPerEntityCollectionTimesOutsideTheDiff() {
+        // Given
+        Instant collectedAt = Instant.parse("2024-01-01T00:01:00Z");
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        int early = builder.queues().addRow("early-queue");
+        builder.queues().collectedAt(early, collectedAt.toEpochMilli() - 30_000);
+        builder.queues().addRow("late-queue");
+        MetricsSnapshot previous = builder.build(collectedAt, false);
+
+        // When: the same values read a minute later
+        MetricsSnapshot.Builder next = MetricsSnapshot.builder("testnamespace", new NameInterner(), previous);
+        next.queues().addRow("early-queue");
+        next.queues().addRow("late-queue");
+        MetricsSnapshot current = next.build(collectedAt.plusSeconds(60), false);
+
+        // Then
+        EntityTable queues = previous.getQueues();
+        assertEquals(collectedAt.toEpochMilli() - 30_000, queues.collectedAt(queues.rowOf("early-queue")));
+        assertEquals(collectedAt.toEpochMilli(), queues.collectedAt(queues.rowOf("late-queue")));
+        assertEquals(collectedAt.toEpochMilli() - 30_000, queues.oldestCollectedAt());
+        assertTrue(SnapshotDiff.between(previous, current).isEmpty());
+        assertEquals(previous.getVersion() + 1, current.getVersion());
+    }
+
+    @Test
+    void carryForward_ShouldKeepPreviousValuesAndCollectionTimes() {
+        // Given
+        MetricsSnapshot previous = buildSnapshot(new NameInterner(), null, false);
+        Instant collectedAt = previous.getCollectedAt().plusSeconds(60);
+
+        // When: the queue failed, topics could not be listed and one topic's subscriptions neither
+        MetricsSnapshot.Builder next = MetricsSnapshot.builder("testnamespace", new NameInterner(), previous);
+        int queueRow = next.queues().carryForward(null, "test-queue");
+        int unknown = next.queues().carryForward(null, "deleted-queue");
+        int topics = next.topics().carryForwardAll();
+        int subscriptions = next.subscriptions().carryForwardTopic("test-topic");
+        int otherTopic = next.subscriptions().carryForwardTopic("other-topic");
+        MetricsSnapshot current = next.build(collectedAt, false);
+
+        // Then
+        assertEquals(0, queueRow);
+        assertEquals(-1, unknown);
+        assertEquals(1, topics);
+        assertEquals(100, subscriptions);
+        assertEquals(0, otherTopic);
+        assertEquals(previous.toQueueMetric(0), current.toQueueMetric(0));
+        assertEquals(42, current.getSubscriptions().get(current.getSubscriptions().rowOf("test-topic", "sub-42"),
+                                                        Counter.ACTIVE_MESSAGES));
+        assertEquals(previous.getQueues().collectedAt(0), current.getQueues().collectedAt(0));
+        assertEquals(previous.getCollectedAt().toEpochMilli(), current.getSubscriptions().oldestCollectedAt());
+        assertTrue(SnapshotDiff.between(previous, current).isEmpty());
+    }
+
+    @Test
+    void rankedBy_ShouldOrderRowsByCounterOnceAndSkipMissingValues() {
+        // Given
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        long[][] values = {{5, 100}, {40, 0}, {5, 50}, {12, 200}};
+        for (int i = 0; i < values.length; i++) {
+            int row = builder.queues().addRow("queue-" + i);
+            builder.queues()
+                   .set(row, Counter.DEAD_LETTER_MESSAGES, values[i][0])
+                   .set(row, Counter.SIZE_BYTES, values[i][0])
+                   .set(row, Counter.MAX_SIZE_BYTES, values[i][1])
+                   .set(row, Counter.ACCESSED_AT, i == 2 ? 1_000 : Counter.NO_VALUE);
+        }
+        EntityTable queues = builder.build(Instant.now(), false).getQueues();
+
+        // When
+        int[] byDeadLetters = queues.rankedBy(Counter.DEAD_LETTER_MESSAGES);
+        int[] bySizeUsage = queues.rankedBySizeUsage();
+
+        // Then: ties keep listing order, rows without a value are left out
+        assertArrayEquals(new int[]{1, 3, 0, 2}, byDeadLetters);
+        assertSame(byDeadLetters, queues.rankedBy(Counter.DEAD_LETTER_MESSAGES));
+        assertArrayEquals(new int[]{2}, queues.rankedBy(Counter.ACCESSED_AT));
+        assertArrayEquals(new int[]{2, 3, 0}, bySizeUsage);
+        assertEquals(0.1, queues.sizeUsage(2));
+        assertTrue(Double.isNaN(queues.sizeUsage(1)));
+        assertThrows(IllegalArgumentException.class, () -> builder.build(Instant.now(), false).getSubscriptions().rankedBySizeUsage());
+    }
+
+    @Test
+    void build_With50kSubscriptions_ShouldRetainNoMoreHeapThanModelObjects() {
+        // Given: names exist before measuring, model objects and tables share them
+        List<String> names = IntStream.range(0, 50_000).mapToObj(i -> "subscription-" + i).toList();
+        long usedBefore = usedHeap();
+
+        // When
+        MetricsSnapshot heap = subscriptionSnapshot(names, false);
+        long heapRetained = usedHeap() - usedBefore;
+        MetricsSnapshot offHeap = subscriptionSnapshot(names, true);
+        long offHeapRetained = usedHeap() - usedBefore - heapRetained;
+        List<SubscriptionMetric> models = new ArrayList<>(heap.subscriptionMetrics());
+        long modelRetained = usedHeap() - usedBefore - heapRetained - offHeapRetained;
+
+        // Then: heap columns hold about what the model objects held, as a few arrays instead of 50k objects;
+        // off-heap columns leave only names, collection times and the index on the heap
+        System.out.printf("%d subscriptions: model objects %d bytes, table %d bytes (estimate %d), off-heap table %d bytes%n",
+                          models.size(), modelRetained, heapRetained, heap.sizeInBytes(), offHeapRetained);
+        assertEquals(50_000, offHeap.entityCount());
+        assertTrue(heapRetained < modelRetained * 3 / 2, "table " + heapRetained + ", model objects " + modelRetained);
+        assertTrue(offHeapRetained < modelRetained, "off-heap table " + offHeapRetained + ", model objects " + modelRetained);
+    }
+
+    private static MetricsSnapshot subscriptionSnapshot(List<String> names, boolean offHeap) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", new NameInterner(), null);
+        for (int i = 0; i < names.size(); i++) {
+            int row = builder.subscriptions().addRow("test-topic", names.get(i));
+            builder.subscriptions()
+                   .set(row, Counter.ACTIVE_MESSAGES, i)
+                   .set(row, Counter.DEAD_LETTER_MESSAGES, i % 7)
+                   .set(row, Counter.SCHEDULED_MESSAGES, 0)
+                   .set(row, Counter.TRANSFER_MESSAGES, 0)
+                   .set(row, Counter.TRANSFER_DEAD_LETTER_MESSAGES, 0);
+        }
+        return builder.build(Instant.now(), offHeap);
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,97 @@
+package gavgas.azureservicebusmetricexporter.snapshot;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotDiffTest {
+
+    private final NameInterner interner = new NameInterner();
+
+    private MetricsSnapshot snapshot(Map<String, Long> activeBySubscription) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", interner, null);
+        activeBySubscription.forEach((name, active) -> {
+            int row = builder.subscriptions().addRow("test-topic", name);
+            builder.subscriptions().set(row, Counter.ACTIVE_MESSAGES, active);
+        });
+        MetricsSnapshot snapshot = builder.build(Instant.now(), false);
+        interner.rollover();
+        return snapshot;
+    }
+
+    private MetricsSnapshot queueSnapshot(long accessedAt, long active) {
+        MetricsSnapshot.Builder builder = MetricsSnapshot.builder("testnamespace", interner, null);
+        int row = builder.queues().addRow("test-queue");
+        builder.queues()
+               .set(row, Counter.ACTIVE_MESSAGES, active)
+               .set(row, Counter.UPDATED_AT, accessedAt)
+               .set(row, Counter.ACCESSED_AT, accessedAt);
+        return builder.build(Instant.now(), false);
+    }
+
+    @Test
+    void between_ShouldDetectAddedRemovedAndChangedEntities() {
+        // Given
+        MetricsSnapshot previous = snapshot(Map.of("unchanged", 1L, "changed", 5L, "removed", 3L));
+        MetricsSnapshot current = snapshot(Map.of("unchanged", 1L, "changed", 7L, "added", 0L));
+
+        // When
+        SnapshotDiff diff = SnapshotDiff.between(previous, current);
+        SnapshotDiff.TableDiff subscriptions = diff.table(EntityType.SUBSCRIPTION);
+
+        // Then
+        assertEquals(1, subscriptions.addedCount());
+        assertEquals("added", current.getSubscriptions().name(subscriptions.addedRow(0)));
+
+        assertEquals(1, subscriptions.removedCount());
+        assertEquals("removed", previous.getSubscriptions().name(subscriptions.removedRow(0)));
+
+        assertEquals(1, subscriptions.changedCount());
+        assertEquals("changed", current.getSubscriptions().name(subscriptions.changedRow(0)));
+        assertEquals("changed", previous.getSubscriptions().name(subscriptions.changedPreviousRow(0)));
+        assertEquals(Set.of(Counter.ACTIVE_MESSAGES), subscriptions.changedCounters(0));
+        assertTrue(subscriptions.isChanged(0, Counter.ACTIVE_MESSAGES));
+        assertFalse(subscriptions.isChanged(0, Counter.DEAD_LETTER_MESSAGES));
+
+        assertEquals(3, diff.addedCount() + diff.removedCount() + diff.changedCount());
+    }
+
+    @Test
+    void between_WithIdenticalSnapshots_ShouldBeEmpty() {
+        MetricsSnapshot previous = snapshot(Map.of("a", 1L, "b", 2L));
+        MetricsSnapshot current = snapshot(Map.of("b", 2L, "a", 1L));
+
+        assertTrue(SnapshotDiff.between(previous, current).isEmpty());
+    }
+
+    @Test
+    void between_WithOnlyActivityTimestampsMoved_ShouldNotReportChange() {
+        // Given
+        MetricsSnapshot previous = queueSnapshot(1_000, 5);
+        MetricsSnapshot current = queueSnapshot(2_000, 5);
+        MetricsSnapshot grown = queueSnapshot(3_000, 6);
+
+        // When
+        SnapshotDiff touched = SnapshotDiff.between(previous, current);
+        SnapshotDiff changed = SnapshotDiff.between(current, grown);
+
+        // Then
+        assertTrue(touched.isEmpty());
+        assertEquals(1, changed.changedCount());
+        assertEquals(Set.of(Counter.ACTIVE_MESSAGES), changed.table(EntityType.QUEUE).changedCounters(0));
+    }
+
+    @Test
+    void between_FromEmptySnapshot_ShouldReportAllAsAdded() {
+        MetricsSnapshot current = snapshot(Map.of("a", 1L, "b", 2L));
+
+        SnapshotDiff diff = SnapshotDiff.between(MetricsSnapshot.empty("testnamespace"), current);
+
+        assertEquals(2, diff.addedCount());
+        assertEquals(0, diff.removedCount());
+    }
+}